@@ -10,6 +10,8 @@ import com.p2papp.filesharing.database.DatabaseConnection;
 import com.p2papp.filesharing.model.User;
 
 import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
 
 /**
  * App.java - JavaFX Main Application
@@ -162,11 +164,16 @@ public class App extends Application {
         new Thread(() -> {
             System.out.println("🔄 Testing database connection...");
             
-            if (DatabaseConnection.getConnection() != null) {
-                System.out.println("✅ Database connected successfully!");
-            } else {
-                System.err.println("❌ Database connection failed!");
-                System.err.println("   App will continue but database features will not work.");
+            // Mượn rồi trả ngay (không giữ kết nối của pool)
+            try (Connection conn = DatabaseConnection.getConnection()) {
+                if (conn != null) {
+                    System.out.println("✅ Database connected successfully!");
+                } else {
+                    System.err.println("❌ Database connection failed!");
+                    System.err.println("   App will continue but database features will not work.");
+                }
+            } catch (SQLException e) {
+                System.err.println("❌ Database connection failed: " + e.getMessage());
             }
         }).start();
     }
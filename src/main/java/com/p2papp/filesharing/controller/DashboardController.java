@@ -4,15 +4,18 @@ import com.p2papp.filesharing.App;
 import com.p2papp.filesharing.database.dao.*;
 import com.p2papp.filesharing.model.*;
 import com.p2papp.filesharing.network.*;
+import com.p2papp.filesharing.utils.BlobStore;
+import com.p2papp.filesharing.utils.FileIngest;
 import com.p2papp.filesharing.utils.HashUtil;
+import com.p2papp.filesharing.utils.PieceManifest;
 
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.io.File;
-import java.nio.file.Files;
-import java.nio.file.StandardCopyOption;
+import java.io.IOException;
 import javafx.stage.FileChooser;
 import java.sql.Timestamp;
+import java.util.List;
 import java.text.SimpleDateFormat;
 import java.util.concurrent.ExecutorService;
 import javafx.application.Platform;
@@ -76,6 +79,16 @@ public class DashboardController {
     private ObservableList<FileInfo> allFilesList = FXCollections.observableArrayList();
     private ObservableList<Peer> peersList = FXCollections.observableArrayList();
     
+    /**
+     * allFilesList chỉ chứa các trang đã cuộn tới (xem PagedFileList)
+     */
+    private PagedFileList pagedFiles;
+    
+    /**
+     * Catalog version mà peersList đang hiển thị (-1 = phải tải lại toàn bộ)
+     */
+    private volatile long peersVersion = -1;
+    
     private final ExecutorService executor = Executors.newCachedThreadPool();
     private ScheduledExecutorService refreshScheduler = Executors.newScheduledThreadPool(1);
     
@@ -97,7 +110,7 @@ public class DashboardController {
         loadAllFiles();
         loadPeers();
         
-        startPeerServer();
+        // PeerServer start trong setCurrentUser (cần user để nạp file đang chia sẻ)
         
         lblStatus.setText("🟢 Online");
         
@@ -147,6 +160,9 @@ public class DashboardController {
             return new SimpleStringProperty(formatted);
         });
         tblAllFiles.setItems(allFilesList);
+        
+        pagedFiles = new PagedFileList(fileDAO, executor, allFilesList, FileDAO.DEFAULT_PAGE_SIZE);
+        pagedFiles.attach(tblAllFiles);
     }
     
    private void setupPeersTable() {
@@ -161,6 +177,7 @@ public class DashboardController {
    public void setCurrentUser(User user) {
         this.currentUser = user;
         lblUsername.setText("Welcome, " + currentUser.getUsername() + "!");
+        PeerConnectionPool.getShared().setClientName(currentUser.getUsername());
         loadMyFiles();
         loadAllFiles();
         loadPeers();
@@ -190,33 +207,24 @@ public class DashboardController {
      * ✅ FIXED: Load ALL files từ peers ONLINE
      */
     private void loadAllFiles() {
-        executor.submit(() -> {
-            try {
-                // ✅ FileDAO.getAllSharedFiles() đã được fix để chỉ lấy peers online
-                var files = fileDAO.getAllSharedFiles();
-                
-                Platform.runLater(() -> {
-                    allFilesList.clear();
-                    allFilesList.addAll(files);
-                    
-                    System.out.println("📋 Loaded " + files.size() + " files from ONLINE peers");
-                });
-                
-            } catch (Exception e) {
-                e.printStackTrace();
-                Platform.runLater(() -> 
-                    showError("Error loading all shared files: " + e.getMessage())
-                );
-            }
-        });
+        // ✅ Chỉ áp dụng thay đổi từ lần load trước cho các trang đã tải
+        pagedFiles.refresh();
     }
      private void loadPeers() {
         executor.submit(() -> {
             try {
-                var peers = peerDAO.getOnlinePeers();
+                var delta = CatalogCache.getInstance().getPeerChangesSince(peersVersion);
+                if (delta.isEmpty()) return;
+                
                 Platform.runLater(() -> {
-                    peersList.clear();
-                    peersList.addAll(peers);
+                    if (peersVersion != delta.getFromVersion() && !delta.isFull()) return;
+                    
+                    if (delta.isFull()) {
+                        peersList.setAll(delta.getRows());
+                    } else {
+                        delta.applyTo(peersList);
+                    }
+                    peersVersion = delta.getVersion();
                 });
             } catch (Exception e) {
                 e.printStackTrace();
@@ -230,6 +238,7 @@ public class DashboardController {
 public void shutdown() {
         executor.shutdownNow();
         refreshScheduler.shutdownNow();
+        PeerConnectionPool.getShared().closeAll();
     }
 // ============================================
 // FIXED: Upload với tên file ASCII an toàn
@@ -260,32 +269,46 @@ public void shutdown() {
                 System.out.println("📁 Original: " + originalName);
                 System.out.println("📝 Safe ASCII: " + safeName);
                 
-                String folderPath = "storage/user_" + currentUser.getUserId();
-                File folder = new File(folderPath);
-                if (!folder.exists()) folder.mkdirs();
-                
-                File destFile = new File(folder, safeName);
-                Files.copy(selectedFile.toPath(), destFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
-                
-                String hash = HashUtil.hashFile(destFile);
+                BlobStore store = BlobStore.getShared();
+                FileInfo info = new FileInfo();
                 
-                FileInfo existing = fileDAO.getFileByHash(hash);
-                if (existing != null) {
-                    Platform.runLater(() -> 
-                        showError("File already exists: " + existing.getFileName())
-                    );
-                    return;
+                // ✅ Copy vào file tạm, hash cả file + từng piece trong lúc copy (đọc file 1 lần)
+                try (FileIngest ingest = store.ingest(selectedFile)) {
+                    HashUtil.FileDigest digest = ingest.getDigest();
+                    String hash = digest.getFileHash();
+                    
+                    // Chỉ trùng khi chính user này đã chia sẻ; user khác có cùng nội dung → dùng chung blob
+                    FileInfo existing = fileDAO.getFileByUserAndHash(currentUser.getUserId(), hash);
+                    if (existing != null) {
+                        // File tạm bị xóa khi đóng ingest → không để lại bản copy trùng
+                        Platform.runLater(() -> 
+                            showError("File already exists: " + existing.getFileName())
+                        );
+                        return;
+                    }
+                    
+                    // ✅ Nội dung lưu 1 lần theo hash, tên file chỉ nằm trong DB
+                    File destFile = store.store(ingest);
+                    
+                    info.setFileName(safeName);
+                    info.setFileSize(digest.getSize());
+                    info.setFilePath(destFile.getAbsolutePath());
+                    info.setFileHash(hash);
+                    info.setUserId(currentUser.getUserId());
+                    info.setOwnerUsername(currentUser.getUsername());
+                    
+                    // Hash từng piece để người tải kiểm tra ngay khi nhận
+                    PieceManifest manifest = digest.getManifest();
+                    info.setPieceSize(manifest.getPieceSize());
+                    info.setPieceHashes(manifest.getPieceHashesHex());
+                    info.setMerkleRoot(manifest.getMerkleRoot());
                 }
                 
-                FileInfo info = new FileInfo();
-                info.setFileName(safeName);
-                info.setFileSize(selectedFile.length());
-                info.setFilePath(destFile.getAbsolutePath());
-                info.setFileHash(hash);
-                info.setUserId(currentUser.getUserId());
-                info.setOwnerUsername(currentUser.getUsername());
-                
                 boolean ok = fileDAO.addFile(info);
+                if (ok && peerServer != null) {
+                    // ✅ Peer khác tải được ngay bằng DOWNLOAD_BY_HASH
+                    peerServer.addSharedFile(info);
+                }
                 
                 Platform.runLater(() -> {
                     if (ok) {
@@ -353,6 +376,9 @@ private String toSafeASCIIFileName(String fileName) {
         confirm.showAndWait().ifPresent(response -> {
             if (response == ButtonType.OK) {
                 if (fileDAO.deleteFile(selected.getFileId())) {
+                    if (peerServer != null) {
+                        peerServer.removeSharedFile(selected);
+                    }
                     showInfo("File deleted!");
                     loadMyFiles();
                     // ✅ Không cần gọi loadAllFiles() - auto-refresh sẽ làm
@@ -368,18 +394,8 @@ private String toSafeASCIIFileName(String fileName) {
         String keyword = txtSearch.getText().trim();
         System.out.println("Searching keyword: '" + keyword + "'");
         
-        if (keyword.isEmpty()) {
-            loadAllFiles();
-            return;
-        }
-        
-        new Thread(() -> {
-            // ✅ searchFilesByName() đã được fix để chỉ tìm từ peers online
-            var results = fileDAO.searchFilesByName(keyword);
-            Platform.runLater(() -> {
-                allFilesList.setAll(results);
-            });
-        }).start();
+        // ✅ Tìm theo trang (keyset), cuộn xuống để xem thêm kết quả
+        pagedFiles.reset(keyword);
     }
     /**
      * ✅ FIXED: Download P2P trực tiếp từ peer
@@ -405,6 +421,11 @@ private String toSafeASCIIFileName(String fileName) {
         
         new Thread(() -> {
             try {
+                // Nhiều peer online cùng giữ file này → swarm download
+                if (downloadFromSwarm(selected, saveLocation)) {
+                    return;
+                }
+                
                 User owner = userDAO.getUserById(selected.getUserId());
                 if (owner == null) {
                     Platform.runLater(() -> {
@@ -429,12 +450,7 @@ private String toSafeASCIIFileName(String fileName) {
                 
                 downloadDAO.addDownload(selected.getFileId(), currentUser.getUserId());
                 
-                boolean success = PeerClient.downloadFileDirect(
-                    peer.getIpAddress(), 
-                    peer.getPort(), 
-                    selected.getFileName(), 
-                    saveLocation.getAbsolutePath()
-                );
+                boolean success = downloadFromPeer(peer, selected, saveLocation);
                 
                 Platform.runLater(() -> {
                     btnDownload.setDisable(false);
@@ -460,6 +476,89 @@ private String toSafeASCIIFileName(String fileName) {
             }
         }).start();
     }
+    /**
+     * Swarm download: tải song song từ mọi peer online có cùng file_hash
+     * 
+     * @return true nếu đã xử lý (thành công hoặc báo lỗi),
+     *         false nếu chỉ có ≤ 1 nguồn → dùng cách tải từ owner
+     */
+    private boolean downloadFromSwarm(FileInfo file, File saveLocation) {
+        if (file.getFileHash() == null) return false;
+        
+        List<FileInfo> sources = fileDAO.getOnlineSourcesByHash(file.getFileHash());
+        if (sources.size() <= 1) return false;
+        
+        downloadDAO.addDownload(file.getFileId(), currentUser.getUserId());
+        
+        String message;
+        boolean success;
+        try {
+            PieceManifest manifest = fileDAO.getManifest(file.getFileHash());
+            SwarmDownloader swarm = manifest != null
+                ? new SwarmDownloader(sources, manifest)
+                : new SwarmDownloader(sources, file.getFileSize());
+            SwarmDownloader.Result result = swarm.download(saveLocation);
+            success = true;
+            message = "✅ Download successful!\n\n" +
+                      "From: " + sources.size() + " peers (swarm)\n" +
+                      "File: " + file.getFileName() + "\n" +
+                      String.format("Speed: %.2f MB/s\n", result.getThroughputMBps()) +
+                      "Saved to: " + saveLocation.getAbsolutePath();
+        } catch (IOException e) {
+            success = false;
+            message = "Swarm download failed: " + e.getMessage();
+        }
+        
+        boolean ok = success;
+        String text = message;
+        Platform.runLater(() -> {
+            btnDownload.setDisable(false);
+            btnDownload.setText("Download");
+            if (ok) {
+                showInfo(text);
+            } else {
+                showError(text);
+            }
+        });
+        return true;
+    }
+    
+    /**
+     * File lớn hơn ngưỡng này tải bằng nhiều kết nối song song
+     */
+    private static final long SEGMENTED_THRESHOLD = 16L * 1024 * 1024; // 16MB
+    
+    /**
+     * Tải file từ 1 peer
+     * - File lớn: SegmentedDownloader (nhiều kết nối song song)
+     * - File nhỏ hoặc peer cũ không hỗ trợ range: 1 kết nối, resume được
+     */
+    private boolean downloadFromPeer(Peer peer, FileInfo file, File saveLocation) {
+        PieceManifest manifest = file.getFileHash() != null ? fileDAO.getManifest(file.getFileHash()) : null;
+        
+        if (file.getFileSize() >= SEGMENTED_THRESHOLD) {
+            try {
+                SegmentedDownloader downloader =
+                    new SegmentedDownloader(peer.getIpAddress(), peer.getPort(), file.getFileName());
+                downloader.setManifest(manifest);
+                downloader.setFileHash(file.getFileHash());
+                downloader.download(saveLocation);
+                return true;
+            } catch (IOException e) {
+                System.err.println("⚠️  Segmented download failed, falling back: " + e.getMessage());
+            }
+        }
+        
+        return PeerClient.downloadFileDirect(
+            peer.getIpAddress(), 
+            peer.getPort(), 
+            file.getFileName(), 
+            file.getFileHash(),
+            saveLocation.getAbsolutePath(),
+            manifest
+        );
+    }
+    
     /**
      * ✅ NEW: Helper để update download status
      */
@@ -510,6 +609,10 @@ private String toSafeASCIIFileName(String fileName) {
             peerServer.stopServer();
         }
         
+        // ✅ Đóng kết nối giữ sẵn đến peer khác
+        System.out.println("🔌 Peer connection pool: " + PeerConnectionPool.getShared().getStats());
+        PeerConnectionPool.getShared().closeAll();
+        
         if (currentUser != null) {
             peerDAO.setPeerOffline(currentUser.getUserId());
         }
@@ -518,23 +621,36 @@ private String toSafeASCIIFileName(String fileName) {
     }
     
     
+    /**
+     * Start PeerServer đúng 1 lần, sau khi biết user
+     * (server thứ 2 không bind được port → upload / xóa cập nhật nhầm instance chết)
+     */
    private void startPeerServer() {
+        if (currentUser == null || peerServer != null) {
+            return;
+        }
+        PeerServer server = new PeerServer(8000);
+        peerServer = server;
+        User user = currentUser;
+        
         new Thread(() -> {
             try {
-                peerServer = new PeerServer(8000);
-                peerServer.start();
+                // ✅ Giữ file đang chia sẻ trong bộ nhớ → DOWNLOAD_BY_HASH không query DB
+                server.loadSharedFiles(fileDAO.getFilesByUser(user.getUserId()));
+                server.start();
                 
-                if (currentUser != null) {
-                    try {
-                        String myIP = InetAddress.getLocalHost().getHostAddress();
-                        peerDAO.registerPeer(currentUser.getUserId(), myIP, 8000);
-                        System.out.println("✅ Peer registered: " + myIP + ":8000");
-                    } catch (Exception e) {
-                        System.err.println("❌ Cannot get local IP: " + e.getMessage());
-                        peerDAO.registerPeer(currentUser.getUserId(), "127.0.0.1", 8000);
-                    }
+                try {
+                    String myIP = InetAddress.getLocalHost().getHostAddress();
+                    peerDAO.registerPeer(user.getUserId(), myIP, 8000);
+                    System.out.println("✅ Peer registered: " + myIP + ":8000");
+                } catch (Exception e) {
+                    System.err.println("❌ Cannot get local IP: " + e.getMessage());
+                    peerDAO.registerPeer(user.getUserId(), "127.0.0.1", 8000);
                 }
                 
+                // Dọn blob không còn ai tham chiếu (file đã xóa) + file tạm của upload bị bỏ dở
+                new BlobDAO().collectGarbage(BlobStore.getShared(), BlobDAO.DEFAULT_GRACE_MS);
+                
             } catch (Exception e) {
                 System.err.println("❌ Start server error: " + e.getMessage());
                 e.printStackTrace();
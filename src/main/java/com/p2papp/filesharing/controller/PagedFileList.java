@@ -0,0 +1,260 @@
+package com.p2papp.filesharing.controller;
+
+import com.p2papp.filesharing.database.dao.CatalogCache;
+import com.p2papp.filesharing.database.dao.CatalogDelta;
+import com.p2papp.filesharing.database.dao.FileDAO;
+import com.p2papp.filesharing.model.FileInfo;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import javafx.application.Platform;
+import javafx.collections.ObservableList;
+import javafx.geometry.Orientation;
+import javafx.scene.Node;
+import javafx.scene.control.ScrollBar;
+import javafx.scene.control.TableView;
+
+/**
+ * PagedFileList.java - Nguồn dữ liệu theo trang cho bảng All Files
+ *
+ * Trước đây bảng giữ toàn bộ catalog (1 triệu dòng = 1 triệu FileInfo trên heap,
+ * mỗi lần refresh truyền lại toàn bộ kết quả).
+ *
+ * - Chỉ tải trang đầu (FileDAO.getSharedFilesPage)
+ * - Cuộn gần cuối bảng → tải trang tiếp theo (keyset, nối vào cuối list)
+ * - Tìm kiếm: kết quả đã xếp hạng (FileDAO.searchFilesByName), tải tiếp theo vị trí
+ *   (offset, xem FileDAO.searchFilesByName); refresh chạy lại đúng đoạn đã tải
+ * - Refresh: version không đổi (CatalogCache.getCurrentVersion) → không query gì thêm;
+ *   đổi thì lấy delta (FileDAO.getChangesSince) và chỉ áp dụng cho phần đã tải,
+ *   dòng nằm sau trang cuối đã tải sẽ có khi cuộn tới
+ *
+ * Mọi thao tác lên list chạy trên FX thread, query chạy trên executor.
+ */
+class PagedFileList {
+
+    /**
+     * Cuộn quá tỉ lệ này của thanh cuộn → tải trang tiếp
+     */
+    private static final double PREFETCH_THRESHOLD = 0.8;
+
+    private final FileDAO fileDAO;
+    private final ExecutorService executor;
+    private final ObservableList<FileInfo> items;
+    private final int pageSize;
+
+    // Chỉ đọc / ghi trên FX thread
+    private String keyword;
+    private boolean exhausted;
+    private boolean loading;
+
+    /**
+     * Dòng cuối của trang cuối đã tải = con trỏ keyset của trang tiếp
+     * (không dùng dòng cuối của items: có thể đã bị delta xóa)
+     */
+    private FileInfo boundary;
+
+    /**
+     * Số kết quả tìm kiếm đã tải (vị trí của trang tiếp)
+     */
+    private int loaded;
+
+    /**
+     * Catalog version của phần đã tải (-1 = chưa biết → refresh tải lại từ đầu)
+     */
+    private volatile long version = -1;
+
+    /**
+     * Tăng mỗi lần reset → bỏ kết quả của query cũ về muộn
+     */
+    private int generation;
+
+    PagedFileList(FileDAO fileDAO, ExecutorService executor, ObservableList<FileInfo> items, int pageSize) {
+        this.fileDAO = fileDAO;
+        this.executor = executor;
+        this.items = items;
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * Theo dõi thanh cuộn dọc của bảng để tải trang tiếp
+     * (thanh cuộn chỉ có sau khi bảng có skin)
+     */
+    void attach(TableView<FileInfo> table) {
+        table.skinProperty().addListener((obs, oldSkin, newSkin) -> {
+            if (newSkin == null) return;
+            for (Node node : table.lookupAll(".scroll-bar")) {
+                if (node instanceof ScrollBar && ((ScrollBar) node).getOrientation() == Orientation.VERTICAL) {
+                    ScrollBar bar = (ScrollBar) node;
+                    bar.valueProperty().addListener((o, oldValue, value) -> {
+                        if (value.doubleValue() >= bar.getMax() * PREFETCH_THRESHOLD) {
+                            loadNextPage();
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    // ============================================
+    // LOAD
+    // ============================================
+
+    /**
+     * Bỏ phần đã tải, tải lại trang đầu
+     *
+     * @param keyword null / rỗng = tất cả file
+     */
+    void reset(String keyword) {
+        runOnFx(() -> {
+            this.keyword = keyword == null || keyword.isEmpty() ? null : keyword;
+            this.exhausted = false;
+            this.loading = false;
+            this.boundary = null;
+            this.loaded = 0;
+            this.generation++;
+            this.version = -1;
+            load(true);
+        });
+    }
+
+    /**
+     * Tải trang sau dòng cuối đang có (không làm gì nếu đang tải / đã hết)
+     */
+    void loadNextPage() {
+        runOnFx(() -> load(false));
+    }
+
+    private void load(boolean first) {
+        if (loading || exhausted) return;
+        loading = true;
+
+        int gen = generation;
+        String kw = keyword;
+        FileInfo after = first ? null : boundary;
+        int offset = first ? 0 : loaded;
+
+        executor.submit(() -> {
+            // Đọc version TRƯỚC khi query → thay đổi giữa chừng được thấy ở lần refresh sau
+            long atVersion = fileDAO.getCatalogVersion();
+            List<FileInfo> page = kw == null
+                ? fileDAO.getSharedFilesPage(after, pageSize)
+                : fileDAO.searchFilesByName(kw, offset, pageSize);
+
+            Platform.runLater(() -> {
+                if (gen != generation) return;
+                loading = false;
+
+                if (first) {
+                    items.setAll(page);
+                    version = atVersion;
+                } else {
+                    items.addAll(page);
+                }
+                if (!page.isEmpty()) {
+                    boundary = page.get(page.size() - 1);
+                }
+                loaded = offset + page.size();
+                exhausted = page.size() < pageSize;
+
+                System.out.println("📋 Loaded page: " + page.size() + " files (" + items.size() + " shown" +
+                                   (exhausted ? ", end" : "") + ")");
+            });
+        });
+    }
+
+    // ============================================
+    // REFRESH
+    // ============================================
+
+    /**
+     * Áp dụng thay đổi của catalog từ lần tải trước lên phần đã tải
+     * (kết quả tìm kiếm thì chạy lại search cho đúng số dòng đã tải,
+     * vì delta không lọc / xếp hạng theo keyword)
+     */
+    void refresh() {
+        runOnFx(() -> {
+            long since = version;
+            if (since < 0) {
+                if (!loading) reset(keyword);
+                return;
+            }
+
+            String kw = keyword;
+            int gen = generation;
+            int range = Math.max(loaded, pageSize);
+
+            executor.submit(() -> {
+                // Đa số lượt refresh không có gì đổi: 1 lần đọc version (dùng chung với loadPeers)
+                if (CatalogCache.getInstance().getCurrentVersion() == since) return;
+
+                if (kw != null) {
+                    reloadSearch(kw, gen, since, range);
+                } else {
+                    applyChanges(since);
+                }
+            });
+        });
+    }
+
+    private void applyChanges(long since) {
+        CatalogDelta<FileInfo> delta = fileDAO.getChangesSince(since, false);
+        if (delta.isEmpty()) return;
+
+        Platform.runLater(() -> {
+            // Đã reset / refresh khác từ lúc tính delta → bỏ qua
+            if (version != since) return;
+
+            if (delta.isFull()) {
+                reset(keyword);
+                return;
+            }
+
+            delta.applyTo(items);
+            trimBeyondLoaded();
+            version = delta.getVersion();
+
+            System.out.println("📋 Files: " + delta + " → " + items.size() + " shown");
+        });
+    }
+
+    /**
+     * Chạy lại search cho đoạn đã tải (thay tại chỗ, không về trang đầu
+     * → giữ vị trí cuộn)
+     */
+    private void reloadSearch(String kw, int gen, long since, int range) {
+        long atVersion = fileDAO.getCatalogVersion();
+        List<FileInfo> rows = fileDAO.searchFilesByName(kw, 0, range);
+
+        Platform.runLater(() -> {
+            // Đang tải trang tiếp (offset theo kết quả cũ) → để lượt refresh sau làm lại
+            if (gen != generation || version != since || loading) return;
+
+            items.setAll(rows);
+            boundary = rows.isEmpty() ? null : rows.get(rows.size() - 1);
+            loaded = rows.size();
+            exhausted = rows.size() < range;
+            version = atVersion;
+
+            System.out.println("📋 Search '" + kw + "' refreshed → " + items.size() + " shown");
+        });
+    }
+
+    /**
+     * Delta có thể chèn dòng nằm sau trang cuối đã tải (VD: peer cũ online lại)
+     * → bỏ đi, trang sau sẽ tải lại đúng chỗ, giữ keyset liền mạch
+     */
+    private void trimBeyondLoaded() {
+        if (exhausted || boundary == null) return;
+        while (!items.isEmpty()
+               && FileDAO.sharedFilesOrder().compare(items.get(items.size() - 1), boundary) > 0) {
+            items.remove(items.size() - 1);
+        }
+    }
+
+    private static void runOnFx(Runnable action) {
+        if (Platform.isFxApplicationThread()) {
+            action.run();
+        } else {
+            Platform.runLater(action);
+        }
+    }
+}
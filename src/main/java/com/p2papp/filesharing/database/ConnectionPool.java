@@ -0,0 +1,816 @@
+package com.p2papp.filesharing.database;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * ConnectionPool.java - Pool kết nối JDBC có giới hạn
+ *
+ * Trước đây chỉ có 1 Connection static dùng chung cho mọi thread,
+ * DAO đóng nó sau mỗi lần gọi → lần sau lại DriverManager.getConnection().
+ *
+ * Pool:
+ * - Giữ sẵn tối thiểu minIdle kết nối, tối đa maxSize kết nối
+ * - borrow(): lấy kết nối rảnh (mới trả gần nhất trước), hết thì tạo mới,
+ *   đủ maxSize thì chờ tối đa connectionTimeoutMs
+ * - Connection trả ra là proxy: close() = trả về pool (DAO vẫn dùng
+ *   try-with-resources như cũ), Statement chưa đóng được đóng giúp
+ * - prepareStatement(sql) được cache theo từng kết nối vật lý (LRU):
+ *   cùng SQL ở lần mượn sau dùng lại PreparedStatement cũ, close() chỉ trả về cache
+ * - Kết nối rảnh lâu hơn VALIDATE_AFTER_MS → isValid() trước khi dùng lại
+ * - Thread nền: đóng kết nối rảnh quá idleTimeoutMs / sống quá maxLifetimeMs,
+ *   bù lại đến minIdle, báo leak nếu giữ kết nối quá leakThresholdMs
+ *
+ * Cấu hình bằng -Dp2p.db.pool.* (xem DatabaseConnection)
+ */
+public class ConnectionPool {
+
+    // ============================================
+    // CONFIG
+    // ============================================
+
+    /**
+     * Kết nối rảnh ít hơn thời gian này → dùng lại luôn, không cần isValid()
+     */
+    private static final long VALIDATE_AFTER_MS = 500;
+
+    /**
+     * Timeout của isValid() (giây)
+     */
+    private static final int VALIDATION_TIMEOUT_SECONDS = 2;
+
+    private final String url;
+    private final String user;
+    private final String password;
+
+    private final int minIdle;
+    private final int maxSize;
+    private final long connectionTimeoutMs;
+    private final long idleTimeoutMs;
+    private final long maxLifetimeMs;
+    private final long leakThresholdMs;
+    private final int statementCacheSize;
+
+    // ============================================
+    // STATE
+    // ============================================
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+
+    /**
+     * Kết nối rảnh (đầu deque = mới trả gần nhất)
+     */
+    private final Deque<PooledConnection> idle = new ArrayDeque<>();
+
+    /**
+     * Kết nối đang được mượn (để phát hiện leak)
+     */
+    private final Set<PooledConnection> borrowed = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Tổng số kết nối (rảnh + đang mượn + đang tạo)
+     */
+    private int total;
+
+    private boolean closed;
+
+    private final ScheduledExecutorService housekeeper;
+
+    // ============================================
+    // METRICS
+    // ============================================
+
+    private final AtomicLong borrows = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong created = new AtomicLong();
+    private final AtomicLong discarded = new AtomicLong();
+    private final AtomicLong leaks = new AtomicLong();
+    private final AtomicLong statementHits = new AtomicLong();
+    private final AtomicLong statementMisses = new AtomicLong();
+
+    // ============================================
+    // CONSTRUCTOR
+    // ============================================
+
+    /**
+     * @param minIdle Số kết nối rảnh giữ sẵn
+     * @param maxSize Số kết nối tối đa
+     * @param connectionTimeoutMs Thời gian chờ tối đa khi pool đã đầy
+     * @param idleTimeoutMs Kết nối rảnh lâu hơn (và dư so với minIdle) → đóng
+     * @param maxLifetimeMs Kết nối sống lâu hơn → thay mới (tránh bị MySQL wait_timeout cắt)
+     * @param leakThresholdMs Mượn lâu hơn → in cảnh báo leak (0 = tắt)
+     * @param statementCacheSize Số PreparedStatement cache / kết nối (0 = tắt)
+     */
+    public ConnectionPool(String url, String user, String password,
+                          int minIdle, int maxSize, long connectionTimeoutMs,
+                          long idleTimeoutMs, long maxLifetimeMs, long leakThresholdMs,
+                          int statementCacheSize) {
+        if (maxSize <= 0 || minIdle < 0 || minIdle > maxSize) {
+            throw new IllegalArgumentException("Invalid pool size: min=" + minIdle + ", max=" + maxSize);
+        }
+
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.minIdle = minIdle;
+        this.maxSize = maxSize;
+        this.connectionTimeoutMs = connectionTimeoutMs;
+        this.idleTimeoutMs = idleTimeoutMs;
+        this.maxLifetimeMs = maxLifetimeMs;
+        this.leakThresholdMs = leakThresholdMs;
+        this.statementCacheSize = statementCacheSize;
+
+        this.housekeeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "db-pool-housekeeper");
+            t.setDaemon(true);
+            return t;
+        });
+        this.housekeeper.scheduleWithFixedDelay(this::housekeep, 0, 5, TimeUnit.SECONDS);
+    }
+
+    // ============================================
+    // BORROW / RETURN
+    // ============================================
+
+    /**
+     * Mượn 1 kết nối
+     *
+     * @return Proxy của Connection, close() = trả về pool
+     * @throws SQLTimeoutException nếu chờ quá connectionTimeoutMs
+     * @throws SQLException nếu không tạo được kết nối mới
+     */
+    public Connection borrow() throws SQLException {
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(connectionTimeoutMs);
+
+        while (true) {
+            PooledConnection pooled = null;
+            boolean create = false;
+
+            lock.lock();
+            try {
+                while (true) {
+                    if (closed) {
+                        throw new SQLException("Connection pool is closed");
+                    }
+                    pooled = idle.pollFirst();
+                    if (pooled != null) {
+                        break;
+                    }
+                    if (total < maxSize) {
+                        total++;
+                        create = true;
+                        break;
+                    }
+
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        timeouts.incrementAndGet();
+                        throw new SQLTimeoutException("Connection pool timeout after " + connectionTimeoutMs +
+                                                      " ms (" + getStatsLocked() + ")");
+                    }
+                    try {
+                        available.awaitNanos(remaining);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new SQLException("Interrupted while waiting for a connection", e);
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+
+            if (create) {
+                pooled = createConnection();
+            } else if (!isUsable(pooled)) {
+                discard(pooled);
+                continue;
+            }
+
+            recordWait(System.nanoTime() - start);
+            return pooled.lend();
+        }
+    }
+
+    /**
+     * Trả kết nối về pool (gọi từ proxy.close())
+     */
+    private void giveBack(PooledConnection pooled) {
+        borrowed.remove(pooled);
+
+        boolean healthy;
+        try {
+            healthy = pooled.reset();
+        } catch (SQLException e) {
+            healthy = false;
+        }
+
+        long now = System.currentTimeMillis();
+        if (!healthy || now - pooled.createdAt >= maxLifetimeMs) {
+            discard(pooled);
+            return;
+        }
+
+        lock.lock();
+        try {
+            if (closed) {
+                total--;
+                closeQuietly(pooled.raw);
+                return;
+            }
+            pooled.lastUsed = now;
+            idle.addFirst(pooled);
+            available.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Đóng kết nối hỏng / hết hạn, nhường chỗ cho kết nối mới
+     */
+    private void discard(PooledConnection pooled) {
+        discarded.incrementAndGet();
+        closeQuietly(pooled.raw);
+
+        lock.lock();
+        try {
+            total--;
+            available.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Đóng pool: đóng mọi kết nối rảnh, kết nối đang mượn đóng khi được trả
+     */
+    public void close() {
+        housekeeper.shutdownNow();
+
+        lock.lock();
+        try {
+            closed = true;
+            for (PooledConnection pooled : idle) {
+                closeQuietly(pooled.raw);
+                total--;
+            }
+            idle.clear();
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // ============================================
+    // HOUSEKEEPING
+    // ============================================
+
+    /**
+     * Chạy định kỳ: dọn kết nối rảnh/hết hạn, bù minIdle, báo leak
+     */
+    private void housekeep() {
+        try {
+            evictAndRefill();
+        } catch (RuntimeException e) {
+            // Không để lỗi bất ngờ dừng thread housekeeping
+            System.err.println("❌ Connection pool housekeeping error: " + e.getMessage());
+        }
+    }
+
+    private void evictAndRefill() {
+        long now = System.currentTimeMillis();
+        List<PooledConnection> retired = new ArrayList<>();
+
+        lock.lock();
+        try {
+            if (closed) return;
+
+            // Cũ nhất nằm cuối deque
+            int idleCount = idle.size();
+            for (PooledConnection pooled : new ArrayList<>(idle)) {
+                boolean expired = now - pooled.createdAt >= maxLifetimeMs;
+                boolean surplus = idleCount > minIdle && now - pooled.lastUsed >= idleTimeoutMs;
+                if (expired || surplus) {
+                    idle.remove(pooled);
+                    retired.add(pooled);
+                    idleCount--;
+                    total--;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        for (PooledConnection pooled : retired) {
+            discarded.incrementAndGet();
+            closeQuietly(pooled.raw);
+        }
+
+        fillMinIdle();
+        detectLeaks(now);
+    }
+
+    private void fillMinIdle() {
+        while (true) {
+            lock.lock();
+            try {
+                if (closed || idle.size() >= minIdle || total >= maxSize) {
+                    return;
+                }
+                total++;
+            } finally {
+                lock.unlock();
+            }
+
+            PooledConnection pooled;
+            try {
+                pooled = createConnection();
+            } catch (SQLException e) {
+                // Đã in lỗi, thử lại ở lần housekeeping sau
+                return;
+            }
+
+            lock.lock();
+            try {
+                pooled.lastUsed = System.currentTimeMillis();
+                idle.addLast(pooled);
+                available.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private void detectLeaks(long now) {
+        if (leakThresholdMs <= 0) return;
+
+        for (PooledConnection pooled : borrowed) {
+            Throwable trace = pooled.borrowTrace;
+            if (!pooled.leakReported && trace != null && now - pooled.borrowedAt >= leakThresholdMs) {
+                pooled.leakReported = true;
+                leaks.incrementAndGet();
+                System.err.println("⚠️  Possible connection leak: borrowed " + (now - pooled.borrowedAt) +
+                                   " ms ago by thread " + pooled.borrowThread);
+                trace.printStackTrace();
+            }
+        }
+    }
+
+    // ============================================
+    // HELPER METHODS
+    // ============================================
+
+    /**
+     * Tạo kết nối vật lý (slot trong total đã được giữ trước)
+     */
+    private PooledConnection createConnection() throws SQLException {
+        try {
+            Connection raw = DriverManager.getConnection(url, user, password);
+            created.incrementAndGet();
+            return new PooledConnection(raw);
+
+        } catch (SQLException | RuntimeException e) {
+            lock.lock();
+            try {
+                total--;
+                available.signal();
+            } finally {
+                lock.unlock();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Kết nối rảnh còn dùng được không (isValid nếu đã rảnh lâu)
+     */
+    private boolean isUsable(PooledConnection pooled) {
+        long now = System.currentTimeMillis();
+        if (now - pooled.createdAt >= maxLifetimeMs) {
+            return false;
+        }
+        if (now - pooled.lastUsed < VALIDATE_AFTER_MS) {
+            return true;
+        }
+        try {
+            return pooled.raw.isValid(VALIDATION_TIMEOUT_SECONDS);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private void recordWait(long nanos) {
+        borrows.incrementAndGet();
+        totalWaitNanos.addAndGet(nanos);
+        maxWaitNanos.accumulateAndGet(nanos, Math::max);
+    }
+
+    private static void closeQuietly(Connection connection) {
+        try {
+            connection.close();
+        } catch (SQLException ignored) {
+        }
+    }
+
+    // ============================================
+    // GETTERS (METRICS)
+    // ============================================
+
+    public int getTotalConnections() {
+        lock.lock();
+        try {
+            return total;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getIdleConnections() {
+        lock.lock();
+        try {
+            return idle.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getActiveConnections() {
+        return borrowed.size();
+    }
+
+    public long getBorrowCount() {
+        return borrows.get();
+    }
+
+    /**
+     * Thời gian chờ trung bình khi mượn (ms, gồm cả thời gian tạo kết nối)
+     */
+    public double getAverageWaitMs() {
+        long count = borrows.get();
+        return count == 0 ? 0 : totalWaitNanos.get() / 1e6 / count;
+    }
+
+    public double getMaxWaitMs() {
+        return maxWaitNanos.get() / 1e6;
+    }
+
+    public long getTimeoutCount() {
+        return timeouts.get();
+    }
+
+    public long getCreatedCount() {
+        return created.get();
+    }
+
+    public long getDiscardedCount() {
+        return discarded.get();
+    }
+
+    public long getLeakCount() {
+        return leaks.get();
+    }
+
+    public long getStatementCacheHits() {
+        return statementHits.get();
+    }
+
+    public long getStatementCacheMisses() {
+        return statementMisses.get();
+    }
+
+    public String getStats() {
+        lock.lock();
+        try {
+            return getStatsLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private String getStatsLocked() {
+        return String.format("total=%d, idle=%d, active=%d, borrows=%d, avg wait=%.2f ms, max wait=%.2f ms, " +
+                             "timeouts=%d, created=%d, discarded=%d, leaks=%d, statement cache %d/%d hits",
+                             total, idle.size(), borrowed.size(), borrows.get(), getAverageWaitMs(),
+                             getMaxWaitMs(), timeouts.get(), created.get(), discarded.get(), leaks.get(),
+                             statementHits.get(), statementHits.get() + statementMisses.get());
+    }
+
+    // ============================================
+    // POOLED CONNECTION
+    // ============================================
+
+    /**
+     * 1 kết nối vật lý + trạng thái trong pool
+     */
+    private class PooledConnection {
+        final Connection raw;
+        final long createdAt = System.currentTimeMillis();
+        volatile long lastUsed = createdAt;
+
+        // Thông tin lần mượn hiện tại
+        volatile long borrowedAt;
+        volatile String borrowThread;
+        volatile Throwable borrowTrace;
+        volatile boolean leakReported;
+
+        /**
+         * Statement không cache tạo trong lần mượn hiện tại (đóng giúp khi trả)
+         */
+        final List<Statement> statements = new ArrayList<>();
+
+        /**
+         * SQL → PreparedStatement đã prepare trên kết nối này (LRU)
+         * Chỉ thread đang mượn kết nối mới truy cập
+         */
+        final Map<String, CachedStatement> statementCache = new LinkedHashMap<String, CachedStatement>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedStatement> eldest) {
+                if (size() <= statementCacheSize) {
+                    return false;
+                }
+                // Đang dùng → đóng khi được trả về
+                if (eldest.getValue().inUse) {
+                    eldest.getValue().evicted = true;
+                } else {
+                    eldest.getValue().closeQuietly();
+                }
+                return true;
+            }
+        };
+
+        PooledConnection(Connection raw) {
+            this.raw = raw;
+        }
+
+        /**
+         * Tạo proxy cho 1 lần mượn
+         */
+        Connection lend() {
+            borrowedAt = System.currentTimeMillis();
+            borrowThread = Thread.currentThread().getName();
+            borrowTrace = leakThresholdMs > 0 ? new Throwable("Connection borrowed here") : null;
+            leakReported = false;
+            borrowed.add(this);
+
+            return (Connection) Proxy.newProxyInstance(
+                Connection.class.getClassLoader(),
+                new Class<?>[] { Connection.class },
+                new Handler(this));
+        }
+
+        /**
+         * Dọn trạng thái trước khi trả về pool
+         *
+         * @return false nếu kết nối đã hỏng
+         */
+        boolean reset() throws SQLException {
+            // Statement cache quên close() → trả về cache
+            for (CachedStatement cached : statementCache.values()) {
+                if (cached.inUse) {
+                    cached.checkIn();
+                }
+            }
+
+            synchronized (statements) {
+                for (Statement statement : statements) {
+                    try {
+                        statement.close();
+                    } catch (SQLException ignored) {
+                    }
+                }
+                statements.clear();
+            }
+
+            if (raw.isClosed()) {
+                return false;
+            }
+            if (!raw.getAutoCommit()) {
+                raw.rollback();
+                raw.setAutoCommit(true);
+            }
+            if (raw.isReadOnly()) {
+                raw.setReadOnly(false);
+            }
+            raw.clearWarnings();
+            return true;
+        }
+    }
+
+    /**
+     * Proxy: chuyển mọi lời gọi sang kết nối thật, trừ close()/isClosed()
+     */
+    private class Handler implements InvocationHandler {
+        private final PooledConnection pooled;
+        private boolean returned;
+
+        Handler(PooledConnection pooled) {
+            this.pooled = pooled;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    synchronized (this) {
+                        if (returned) return null;
+                        returned = true;
+                    }
+                    giveBack(pooled);
+                    return null;
+
+                case "isClosed":
+                    synchronized (this) {
+                        if (returned) return true;
+                    }
+                    break;
+
+                case "equals":
+                    return proxy == args[0];
+
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+
+                case "toString":
+                    return "PooledConnection{" + pooled.raw + "}";
+
+                default:
+                    synchronized (this) {
+                        if (returned) {
+                            throw new SQLException("Connection is closed (returned to pool)");
+                        }
+                    }
+            }
+
+            if (statementCacheSize > 0 && method.getName().equals("prepareStatement") && isCacheable(args)) {
+                PreparedStatement cached = checkOut(args);
+                if (cached != null) {
+                    return cached;
+                }
+            }
+
+            Object result;
+            try {
+                result = method.invoke(pooled.raw, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+
+            if (result instanceof Statement) {
+                synchronized (pooled.statements) {
+                    pooled.statements.add((Statement) result);
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Chỉ cache prepareStatement(sql) và prepareStatement(sql, autoGeneratedKeys)
+         */
+        private boolean isCacheable(Object[] args) {
+            return args.length == 1 || (args.length == 2 && args[1] instanceof Integer);
+        }
+
+        /**
+         * Lấy PreparedStatement từ cache, prepare mới nếu chưa có
+         *
+         * @return null nếu SQL này đang được dùng (lồng nhau) → caller prepare bản không cache
+         */
+        private PreparedStatement checkOut(Object[] args) throws SQLException {
+            String sql = (String) args[0];
+            String key = args.length == 1 ? sql : args[1] + "|" + sql;
+
+            CachedStatement cached = pooled.statementCache.get(key);
+            if (cached != null && !cached.inUse && cached.raw.isClosed()) {
+                // Lỗi khi dọn lần trước → đã đóng, prepare lại
+                pooled.statementCache.remove(key);
+                cached = null;
+            }
+            if (cached != null) {
+                if (cached.inUse) {
+                    return null;
+                }
+                statementHits.incrementAndGet();
+                cached.inUse = true;
+                return cached.proxy;
+            }
+
+            statementMisses.incrementAndGet();
+            PreparedStatement raw = args.length == 1
+                ? pooled.raw.prepareStatement(sql)
+                : pooled.raw.prepareStatement(sql, (Integer) args[1]);
+
+            cached = new CachedStatement(raw);
+            cached.inUse = true;
+            pooled.statementCache.put(key, cached);
+            return cached.proxy;
+        }
+    }
+
+    // ============================================
+    // STATEMENT CACHE
+    // ============================================
+
+    /**
+     * PreparedStatement trong cache: proxy có close() = trả về cache
+     */
+    private static class CachedStatement implements InvocationHandler {
+        final PreparedStatement raw;
+        final PreparedStatement proxy;
+        volatile boolean inUse;
+        volatile boolean evicted;
+
+        CachedStatement(PreparedStatement raw) {
+            this.raw = raw;
+            this.proxy = (PreparedStatement) Proxy.newProxyInstance(
+                PreparedStatement.class.getClassLoader(),
+                new Class<?>[] { PreparedStatement.class },
+                this);
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    if (inUse) {
+                        checkIn();
+                    }
+                    return null;
+
+                case "isClosed":
+                    return !inUse || raw.isClosed();
+
+                case "equals":
+                    return proxy == args[0];
+
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+
+                default:
+                    if (!inUse) {
+                        throw new SQLException("Statement is closed");
+                    }
+            }
+
+            try {
+                return method.invoke(raw, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+
+        /**
+         * Dọn statement để lần sau dùng lại (đóng ResultSet, xoá tham số)
+         */
+        void checkIn() {
+            inUse = false;
+            if (evicted) {
+                closeQuietly();
+                return;
+            }
+            try {
+                ResultSet rs = raw.getResultSet();
+                if (rs != null) {
+                    rs.close();
+                }
+                raw.clearParameters();
+                raw.clearWarnings();
+            } catch (SQLException e) {
+                closeQuietly();
+            }
+        }
+
+        void closeQuietly() {
+            try {
+                raw.close();
+            } catch (SQLException ignored) {
+            }
+        }
+    }
+}
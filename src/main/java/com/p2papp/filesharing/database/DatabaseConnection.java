@@ -1,7 +1,6 @@
 package com.p2papp.filesharing.database;
 
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.sql.ResultSet;
@@ -10,7 +9,17 @@ import java.sql.ResultSet;
  * DatabaseConnection.java
  * 
  * Quản lý kết nối đến MySQL database
- * Sử dụng Singleton pattern (chỉ 1 connection duy nhất)
+ * Dùng ConnectionPool (1 pool duy nhất cho cả app), mỗi lần getConnection()
+ * mượn 1 kết nối, close() trả kết nối về pool
+ * 
+ * Cấu hình pool (System properties):
+ * -Dp2p.db.pool.minIdle=2          Số kết nối rảnh giữ sẵn
+ * -Dp2p.db.pool.maxSize=10         Số kết nối tối đa
+ * -Dp2p.db.pool.timeoutMs=5000     Chờ tối đa khi pool đầy
+ * -Dp2p.db.pool.idleTimeoutMs=600000
+ * -Dp2p.db.pool.maxLifetimeMs=1800000
+ * -Dp2p.db.pool.leakThresholdMs=0  (mặc định tắt; > 0 → mỗi lần mượn lưu stack trace để báo leak)
+ * -Dp2p.db.pool.statementCacheSize=64  (0 = tắt cache PreparedStatement)
  * 
  * @author P2P Team
  * @version 1.0
@@ -38,6 +47,22 @@ public class DatabaseConnection {
     "&characterEncoding=UTF-8" +
     "&serverTimezone=Asia/Ho_Chi_Minh";
     
+    /**
+     * Prepared statement phía server (Connector/J):
+     * - useServerPrepStmts: MySQL parse + lập kế hoạch 1 lần, sau đó chỉ gửi tham số
+     * - cachePrepStmts + prepStmtCacheSize/SqlLimit: driver giữ statement đã prepare
+     *   (cho statement không nằm trong cache của ConnectionPool)
+     * - useLocalSessionState: getAutoCommit()/isReadOnly() khi trả kết nối về pool
+     *   không cần hỏi server
+     * Tắt bằng -Dp2p.db.serverPrepStmts=false
+     */
+    private static final String PREPARED_STATEMENT_OPTIONS =
+    "&useServerPrepStmts=true" +
+    "&cachePrepStmts=true" +
+    "&prepStmtCacheSize=250" +
+    "&prepStmtCacheSqlLimit=2048" +
+    "&useLocalSessionState=true";
+    
     /**
      * Username MySQL
      */
@@ -50,38 +75,29 @@ public class DatabaseConnection {
     private static final String PASSWORD = "123456";
     
     // ============================================
-    // INSTANCE VARIABLE - Singleton
+    // INSTANCE VARIABLE - Pool
     // ============================================
     
     /**
-     * Connection instance (static = dùng chung)
+     * Pool kết nối (tạo khi getConnection() lần đầu)
      */
-    private static Connection connection = null;
+    private static ConnectionPool pool = null;
     
     // ============================================
     // PUBLIC METHODS
     // ============================================
     
     /**
-     * Lấy kết nối đến database (Singleton pattern)
+     * Lấy kết nối đến database (mượn từ pool)
      * 
-     * Kiểm tra:
-     * - Nếu connection == null → tạo mới
-     * - Nếu connection đã đóng → tạo mới
-     * - Nếu connection còn mở → trả về luôn
+     * Caller phải close() sau khi dùng (try-with-resources)
+     * → kết nối được trả về pool, không bị đóng thật
      * 
      * @return Connection object hoặc null nếu lỗi
      */
     public static Connection getConnection() {
         try {
-            // Kiểm tra connection
-            if (connection == null || connection.isClosed()) {
-                Class.forName("com.mysql.cj.jdbc.Driver");
-                connection = DriverManager.getConnection(URL, USER, PASSWORD);
-                
-                // In thông báo thành công
-                System.out.println("✅ Database connected successfully!");
-            }
+            return getPool().borrow();
             
         } catch (ClassNotFoundException e) {
             // Lỗi: Không tìm thấy MySQL Driver
@@ -97,6 +113,7 @@ public class DatabaseConnection {
             // 2. Sai username/password
             // 3. Database chưa tồn tại
             // 4. Port 3306 bị chặn
+            // 5. Pool đầy quá timeout (xem getPool().getStats())
             System.err.println("❌ Database connection failed!");
             System.err.println("   Error: " + e.getMessage());
             System.err.println("   SQL State: " + e.getSQLState());
@@ -104,26 +121,46 @@ public class DatabaseConnection {
             e.printStackTrace();
         }
         
-        return connection;
+        return null;
+    }
+    
+    /**
+     * Pool dùng chung (tạo lần đầu khi được gọi)
+     */
+    public static synchronized ConnectionPool getPool() throws ClassNotFoundException {
+        if (pool == null) {
+            Class.forName("com.mysql.cj.jdbc.Driver");
+            String url = Boolean.parseBoolean(System.getProperty("p2p.db.serverPrepStmts", "true"))
+                ? URL + PREPARED_STATEMENT_OPTIONS
+                : URL;
+            
+            pool = new ConnectionPool(url, USER, PASSWORD,
+                Integer.getInteger("p2p.db.pool.minIdle", 2),
+                Integer.getInteger("p2p.db.pool.maxSize", 10),
+                Long.getLong("p2p.db.pool.timeoutMs", 5000),
+                Long.getLong("p2p.db.pool.idleTimeoutMs", 10 * 60 * 1000),
+                Long.getLong("p2p.db.pool.maxLifetimeMs", 30 * 60 * 1000),
+                Long.getLong("p2p.db.pool.leakThresholdMs", 0),
+                Integer.getInteger("p2p.db.pool.statementCacheSize", 64));
+            
+            System.out.println("✅ Database connection pool created");
+        }
+        return pool;
     }
     
     /**
-     * Đóng kết nối database
+     * Đóng pool (mọi kết nối database)
      * 
      * Nên gọi khi:
      * - Ứng dụng kết thúc
      * - Cần giải phóng tài nguyên
      */
-    public static void closeConnection() {
-        try {
-            // Kiểm tra connection tồn tại và đang mở
-            if (connection != null && !connection.isClosed()) {
-                connection.close();
-                System.out.println("🔴 Database connection closed");
-            }
-        } catch (SQLException e) {
-            System.err.println("❌ Error closing connection: " + e.getMessage());
-            e.printStackTrace();
+    public static synchronized void closeConnection() {
+        if (pool != null) {
+            System.out.println("📊 Connection pool: " + pool.getStats());
+            pool.close();
+            pool = null;
+            System.out.println("🔴 Database connection pool closed");
         }
     }
     
@@ -155,6 +192,9 @@ public class DatabaseConnection {
                 
                 System.out.println("✅ Test 1 PASSED!");
                 
+                // Trả kết nối về pool
+                conn.close();
+                
             } catch (SQLException e) {
                 System.err.println("❌ Test 1 FAILED: " + e.getMessage());
             }
@@ -236,6 +276,40 @@ public class DatabaseConnection {
         }
     }
     
+    /**
+     * Test 4: Nhiều thread dùng pool cùng lúc
+     */
+    private static void testConcurrentPool() throws Exception {
+        System.out.println("\n=== TEST 4: Concurrent Pool ===");
+        
+        int threads = 20;
+        int queriesPerThread = 50;
+        java.util.concurrent.ExecutorService workers = java.util.concurrent.Executors.newFixedThreadPool(threads);
+        java.util.concurrent.atomic.AtomicInteger failures = new java.util.concurrent.atomic.AtomicInteger();
+        
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            workers.submit(() -> {
+                for (int i = 0; i < queriesPerThread; i++) {
+                    try (Connection conn = getConnection();
+                         Statement stmt = conn.createStatement();
+                         ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM files")) {
+                        rs.next();
+                    } catch (Exception e) {
+                        failures.incrementAndGet();
+                    }
+                }
+            });
+        }
+        workers.shutdown();
+        workers.awaitTermination(1, java.util.concurrent.TimeUnit.MINUTES);
+        
+        long ms = (System.nanoTime() - start) / 1_000_000;
+        System.out.println("   " + threads * queriesPerThread + " queries in " + ms + " ms, failures: " + failures.get());
+        System.out.println("   Pool: " + getPool().getStats());
+        System.out.println(failures.get() == 0 ? "✅ Test 4 PASSED!" : "❌ Test 4 FAILED!");
+    }
+    
     // ============================================
     // MAIN - Chạy tất cả tests
     // ============================================
@@ -257,6 +331,7 @@ public class DatabaseConnection {
             testConnection();
             testQuery();
             testReadData();
+            testConcurrentPool();
             
             // Tất cả tests pass
             System.out.println("\n╔══════════════════════════════════════╗");
@@ -0,0 +1,480 @@
+package com.p2papp.filesharing.database.dao;
+
+import com.p2papp.filesharing.database.DatabaseConnection;
+import com.p2papp.filesharing.utils.BlobStore;
+import com.p2papp.filesharing.utils.HashCache;
+import com.p2papp.filesharing.utils.HashUtil;
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * BlobDAO.java - Đếm tham chiếu cho BlobStore (bảng blobs) + dọn rác / kiểm tra
+ *
+ * blobs(blob_hash, blob_size, ref_count, released_at):
+ * - FileDAO.addFile    → ref_count + 1 (cùng transaction với INSERT files)
+ * - FileDAO.deleteFile → ref_count - 1, về 0 thì ghi released_at
+ *
+ * ref_count đếm theo file_hash trên toàn DB (mọi máy dùng chung 1 MySQL):
+ * blob trên 1 máy chỉ bị xóa khi không còn ai tham chiếu hash đó.
+ * Sai thì chỉ giữ blob lâu hơn cần, không bao giờ xóa nhầm.
+ *
+ * Bảo trì (chạy tay):
+ * mvn compile exec:java -Dexec.mainClass="com.p2papp.filesharing.database.dao.BlobDAO" -Dexec.args="check|repair|verify|gc|compact"
+ */
+public class BlobDAO {
+
+    /**
+     * Blob mới hết tham chiếu / vừa ghi vẫn giữ trong khoảng này trước khi GC xóa
+     * (upload đang dùng lại blob nhưng chưa kịp addFile)
+     */
+    public static final long DEFAULT_GRACE_MS = 60L * 60 * 1000;
+
+    /**
+     * Đã tạo bảng blobs chưa (chỉ kiểm tra 1 lần)
+     */
+    private static volatile boolean blobTableChecked = false;
+
+    // ============================================
+    // REFERENCE COUNTING (gọi từ FileDAO)
+    // ============================================
+
+    /**
+     * Thêm 1 tham chiếu đến blob, gọi trên cùng kết nối / transaction với INSERT files
+     */
+    static void addRef(Connection conn, String hash, long size) throws SQLException {
+        String sql = "INSERT INTO blobs (blob_hash, blob_size, ref_count) VALUES (?, ?, 1) " +
+                     "ON DUPLICATE KEY UPDATE ref_count = ref_count + 1, released_at = NULL";
+
+        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            pstmt.setString(1, hash);
+            pstmt.setLong(2, size);
+            pstmt.executeUpdate();
+        }
+    }
+
+    /**
+     * Bỏ count tham chiếu, gọi trên cùng kết nối / transaction với DELETE files
+     * (MySQL gán lần lượt từ trái sang → released_at thấy ref_count mới)
+     */
+    static void release(Connection conn, String hash, int count) throws SQLException {
+        String sql = "UPDATE blobs " +
+                     "SET ref_count = GREATEST(ref_count - ?, 0), " +
+                     "    released_at = IF(ref_count = 0, CURRENT_TIMESTAMP, NULL) " +
+                     "WHERE blob_hash = ?";
+
+        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            pstmt.setInt(1, count);
+            pstmt.setString(2, hash);
+            pstmt.executeUpdate();
+        }
+    }
+
+    /**
+     * Bỏ tham chiếu của mọi file của user, gọi TRƯỚC khi DELETE files của user đó
+     * (trong transaction của caller)
+     *
+     * UPDATE nhiều bảng (JOIN) không đảm bảo thứ tự gán → không dùng được
+     * IF(ref_count = 0, ...) như release(); đánh dấu released_at bằng câu thứ 2
+     */
+    static void releaseByUser(Connection conn, int userId) throws SQLException {
+        String sql = "UPDATE blobs b " +
+                     "JOIN (SELECT file_hash, COUNT(*) AS refs FROM files " +
+                     "      WHERE user_id = ? AND file_hash IS NOT NULL GROUP BY file_hash) f " +
+                     "  ON b.blob_hash = f.file_hash " +
+                     "SET b.ref_count = GREATEST(b.ref_count - f.refs, 0)";
+
+        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            pstmt.setInt(1, userId);
+            pstmt.executeUpdate();
+        }
+
+        try (PreparedStatement pstmt = conn.prepareStatement(
+                 "UPDATE blobs SET released_at = CURRENT_TIMESTAMP WHERE ref_count = 0 AND released_at IS NULL")) {
+            pstmt.executeUpdate();
+        }
+    }
+
+    /**
+     * Số tham chiếu hiện tại (-1 nếu chưa có dòng / lỗi)
+     */
+    public int getRefCount(String hash) {
+        ensureBlobTable();
+
+        try (Connection conn = DatabaseConnection.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement("SELECT ref_count FROM blobs WHERE blob_hash = ?")) {
+
+            pstmt.setString(1, hash);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                return rs.next() ? rs.getInt(1) : -1;
+            }
+
+        } catch (SQLException e) {
+            System.err.println("❌ Get blob ref count error: " + e.getMessage());
+            return -1;
+        }
+    }
+
+    // ============================================
+    // GARBAGE COLLECTION
+    // ============================================
+
+    /**
+     * Xóa blob không còn tham chiếu + file tạm bị bỏ dở
+     *
+     * Blob bị xóa khi:
+     * - ref_count = 0 (hoặc không có dòng trong blobs) từ hơn graceMs trước
+     * - mtime của blob cũ hơn graceMs (store() vừa dùng lại thì mtime mới)
+     * - và không có dòng files nào còn file_hash đó (kiểm tra lại trước khi xóa,
+     *   ref_count có lệch cũng không xóa nhầm)
+     *
+     * @return Số blob đã xóa, -1 nếu lỗi DB
+     */
+    public int collectGarbage(BlobStore store, long graceMs) {
+        ensureBlobTable();
+
+        int tempFiles = store.cleanTemp(graceMs);
+        long cutoff = System.currentTimeMillis() - graceMs;
+        int deleted = 0;
+        long freed = 0;
+
+        try (Connection conn = DatabaseConnection.getConnection()) {
+            if (conn == null) return -1;
+
+            Map<String, Long> released = new HashMap<>();   // hash → thời điểm hết tham chiếu (0 = không có dòng)
+            Set<String> referenced = new HashSet<>();
+            try (PreparedStatement pstmt = conn.prepareStatement("SELECT blob_hash, ref_count, released_at FROM blobs");
+                 ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    if (rs.getInt("ref_count") > 0) {
+                        referenced.add(rs.getString("blob_hash"));
+                    } else {
+                        Timestamp at = rs.getTimestamp("released_at");
+                        released.put(rs.getString("blob_hash"), at != null ? at.getTime() : 0L);
+                    }
+                }
+            }
+
+            for (String hash : store.listHashes()) {
+                if (referenced.contains(hash)) continue;
+
+                Long releasedAt = released.get(hash);
+                if (releasedAt != null && releasedAt > cutoff) continue;
+
+                File blob = store.blobFile(hash);
+                if (blob.lastModified() > cutoff || hasFileRows(conn, hash)) continue;
+
+                long size = blob.length();
+                try (PreparedStatement pstmt = conn.prepareStatement(
+                         "DELETE FROM blobs WHERE blob_hash = ? AND ref_count = 0")) {
+                    pstmt.setString(1, hash);
+                    pstmt.executeUpdate();
+                }
+                if (blob.lastModified() <= cutoff && store.delete(hash)) {
+                    deleted++;
+                    freed += size;
+                }
+            }
+
+            // Dòng hết tham chiếu mà blob không nằm trên máy này
+            try (PreparedStatement pstmt = conn.prepareStatement(
+                     "DELETE FROM blobs WHERE ref_count = 0 AND (released_at IS NULL OR released_at < ?)")) {
+                pstmt.setTimestamp(1, new Timestamp(cutoff));
+                pstmt.executeUpdate();
+            }
+
+        } catch (SQLException | IOException e) {
+            System.err.println("❌ Blob GC error: " + e.getMessage());
+            return -1;
+        }
+
+        System.out.println("🧹 Blob GC: deleted " + deleted + " blobs (" + (freed >> 20) + " MB), " +
+                           tempFiles + " stale temp files");
+        return deleted;
+    }
+
+    private static boolean hasFileRows(Connection conn, String hash) throws SQLException {
+        try (PreparedStatement pstmt = conn.prepareStatement("SELECT 1 FROM files WHERE file_hash = ? LIMIT 1")) {
+            pstmt.setString(1, hash);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                return rs.next();
+            }
+        }
+    }
+
+    // ============================================
+    // CONSISTENCY CHECK
+    // ============================================
+
+    /**
+     * Kết quả check()
+     */
+    public static class Report {
+        /** Hash có ref_count khác số dòng files thật */
+        public final List<String> wrongRefCounts = new ArrayList<>();
+        /** Dòng files trỏ vào blob không còn trên disk */
+        public final List<String> missingBlobs = new ArrayList<>();
+        /** Blob có size (hoặc hash nếu verifyContent) khác với tên */
+        public final List<String> corruptBlobs = new ArrayList<>();
+        /** Blob trên disk không có dòng files nào (GC sẽ xóa) */
+        public final List<String> unreferencedBlobs = new ArrayList<>();
+
+        public boolean isClean() {
+            return wrongRefCounts.isEmpty() && missingBlobs.isEmpty() && corruptBlobs.isEmpty();
+        }
+
+        @Override
+        public String toString() {
+            return "wrong ref counts: " + wrongRefCounts.size() +
+                   ", missing blobs: " + missingBlobs.size() +
+                   ", corrupt blobs: " + corruptBlobs.size() +
+                   ", unreferenced blobs: " + unreferencedBlobs.size();
+        }
+    }
+
+    /**
+     * So bảng blobs với bảng files và với blob trên disk
+     *
+     * @param verifyContent true → hash lại từng blob (chậm, đọc toàn bộ store)
+     * @param repair true → đặt lại ref_count theo số dòng files thật
+     *               (blob thiếu / hỏng chỉ báo cáo, không tự sửa được)
+     */
+    public Report check(BlobStore store, boolean verifyContent, boolean repair) {
+        ensureBlobTable();
+        Report report = new Report();
+
+        try (Connection conn = DatabaseConnection.getConnection()) {
+            if (conn == null) return report;
+
+            // Số tham chiếu thật + size (theo files)
+            Map<String, Integer> actual = new HashMap<>();
+            Map<String, Long> sizes = new HashMap<>();
+            try (PreparedStatement pstmt = conn.prepareStatement(
+                     "SELECT file_hash, COUNT(*) AS refs, MAX(file_size) AS size FROM files " +
+                     "WHERE file_hash IS NOT NULL GROUP BY file_hash");
+                 ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    actual.put(rs.getString("file_hash"), rs.getInt("refs"));
+                    sizes.put(rs.getString("file_hash"), rs.getLong("size"));
+                }
+            }
+
+            Map<String, Integer> counted = new HashMap<>();
+            try (PreparedStatement pstmt = conn.prepareStatement("SELECT blob_hash, ref_count FROM blobs");
+                 ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    counted.put(rs.getString("blob_hash"), rs.getInt("ref_count"));
+                }
+            }
+
+            for (Map.Entry<String, Integer> e : actual.entrySet()) {
+                if (!e.getValue().equals(counted.get(e.getKey()))) {
+                    report.wrongRefCounts.add(e.getKey());
+                }
+            }
+            for (Map.Entry<String, Integer> e : counted.entrySet()) {
+                if (e.getValue() != 0 && !actual.containsKey(e.getKey())) {
+                    report.wrongRefCounts.add(e.getKey());
+                }
+            }
+
+            // Dòng files trỏ vào blob không còn trên disk
+            try (PreparedStatement pstmt = conn.prepareStatement(
+                     "SELECT file_id, file_path FROM files WHERE file_path IS NOT NULL");
+                 ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    File path = new File(rs.getString("file_path"));
+                    if (store.isBlob(path) && !path.isFile()) {
+                        report.missingBlobs.add(path.getName() + " (file_id " + rs.getInt("file_id") + ")");
+                    }
+                }
+            }
+
+            // Blob trên disk
+            for (String hash : store.listHashes()) {
+                File blob = store.blobFile(hash);
+                Long size = sizes.get(hash);
+
+                if (size == null) {
+                    report.unreferencedBlobs.add(hash);
+                } else if (blob.length() != size) {
+                    report.corruptBlobs.add(hash);
+                    continue;
+                }
+                if (verifyContent && !HashUtil.verifyFile(blob, hash)) {
+                    report.corruptBlobs.add(hash);
+                }
+            }
+
+            if (repair && !report.wrongRefCounts.isEmpty()) {
+                repairRefCounts(conn, report.wrongRefCounts, actual, sizes);
+            }
+
+        } catch (SQLException e) {
+            System.err.println("❌ Blob check error: " + e.getMessage());
+        }
+
+        System.out.println((report.isClean() ? "✅" : "⚠️ ") + " Blob check: " + report);
+        return report;
+    }
+
+    private static void repairRefCounts(Connection conn, List<String> hashes,
+                                        Map<String, Integer> actual, Map<String, Long> sizes) throws SQLException {
+        String sql = "INSERT INTO blobs (blob_hash, blob_size, ref_count, released_at) VALUES (?, ?, ?, ?) " +
+                     "ON DUPLICATE KEY UPDATE ref_count = VALUES(ref_count), released_at = VALUES(released_at)";
+
+        Timestamp now = new Timestamp(System.currentTimeMillis());
+        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            for (String hash : hashes) {
+                int refs = actual.getOrDefault(hash, 0);
+                pstmt.setString(1, hash);
+                pstmt.setLong(2, sizes.getOrDefault(hash, 0L));
+                pstmt.setInt(3, refs);
+                pstmt.setTimestamp(4, refs == 0 ? now : null);
+                pstmt.addBatch();
+            }
+            pstmt.executeBatch();
+        }
+        System.out.println("🔧 Repaired ref counts of " + hashes.size() + " blobs");
+    }
+
+    // ============================================
+    // COMPACTION
+    // ============================================
+
+    /**
+     * Chuyển bản copy cũ (storage/user_N/...) vào BlobStore
+     *
+     * Mỗi file cũ được kiểm tra hash trước (file có thể đã bị sửa sau khi upload;
+     * HashCache → file không đổi từ lần hash trước thì không đọc lại):
+     * - Hash khớp file_hash → move vào blob (blob đã có thì xóa bản cũ),
+     *   mọi dòng files trỏ vào đường dẫn cũ chuyển sang đường dẫn blob
+     * - Không khớp → giữ nguyên, báo cáo
+     *
+     * PeerServer đang chạy vẫn giữ đường dẫn cũ → chạy lúc không có peer nào online.
+     *
+     * @return Số file đã chuyển
+     */
+    public int compact(BlobStore store) {
+        ensureBlobTable();
+        int moved = 0;
+        long freed = 0;
+
+        try (Connection conn = DatabaseConnection.getConnection()) {
+            if (conn == null) return 0;
+
+            Map<String, String> legacy = new HashMap<>();   // đường dẫn cũ → hash
+            try (PreparedStatement pstmt = conn.prepareStatement(
+                     "SELECT file_path, file_hash FROM files WHERE file_path IS NOT NULL AND file_hash IS NOT NULL");
+                 ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    File path = new File(rs.getString("file_path"));
+                    if (!store.isBlob(path) && BlobStore.isValidHash(rs.getString("file_hash"))) {
+                        legacy.put(rs.getString("file_path"), rs.getString("file_hash"));
+                    }
+                }
+            }
+
+            for (Map.Entry<String, String> e : legacy.entrySet()) {
+                File file = new File(e.getKey());
+                String hash = e.getValue();
+                if (!file.isFile()) continue;
+
+                if (!HashCache.getShared().verify(file, hash)) {
+                    System.err.println("⚠️  Content changed since upload, skipped: " + file);
+                    continue;
+                }
+
+                boolean deduplicated = store.contains(hash);
+                long size = file.length();
+                File blob = store.adopt(file, hash);
+
+                try (PreparedStatement pstmt = conn.prepareStatement(
+                         "UPDATE files SET file_path = ? WHERE file_path = ?")) {
+                    pstmt.setString(1, blob.getAbsolutePath());
+                    pstmt.setString(2, e.getKey());
+                    pstmt.executeUpdate();
+                }
+
+                moved++;
+                if (deduplicated) {
+                    freed += size;
+                }
+            }
+
+        } catch (SQLException | IOException e) {
+            System.err.println("❌ Blob compaction error: " + e.getMessage());
+        }
+
+        System.out.println("📦 Moved " + moved + " files into blob store, freed " + (freed >> 20) + " MB of duplicates");
+        return moved;
+    }
+
+    // ============================================
+    // HELPER METHODS
+    // ============================================
+
+    /**
+     * Tạo bảng blobs nếu chưa có
+     * (gọi trước khi mở transaction: CREATE TABLE tự commit trong MySQL)
+     */
+    static synchronized void ensureBlobTable() {
+        if (blobTableChecked) return;
+
+        try (Connection conn = DatabaseConnection.getConnection()) {
+            if (conn == null) return;
+
+            try (Statement stmt = conn.createStatement()) {
+                stmt.executeUpdate(
+                    "CREATE TABLE IF NOT EXISTS blobs (" +
+                    "  blob_hash CHAR(64) PRIMARY KEY, " +
+                    "  blob_size BIGINT NOT NULL, " +
+                    "  ref_count INT NOT NULL DEFAULT 0, " +
+                    "  released_at TIMESTAMP NULL" +
+                    ")"
+                );
+            }
+
+            blobTableChecked = true;
+
+        } catch (SQLException e) {
+            System.err.println("❌ Ensure blob table error: " + e.getMessage());
+        }
+    }
+
+    // ============================================
+    // MAINTENANCE
+    // ============================================
+
+    public static void main(String[] args) {
+        String command = args.length > 0 ? args[0] : "check";
+        BlobStore store = BlobStore.getShared();
+        BlobDAO dao = new BlobDAO();
+
+        System.out.println("Blob store: " + store.getRoot() + "\n");
+
+        switch (command) {
+            case "check":   dao.check(store, false, false); break;
+            case "verify":  dao.check(store, true, false); break;
+            case "repair":  dao.check(store, false, true); break;
+            case "gc":      dao.collectGarbage(store, DEFAULT_GRACE_MS); break;
+            case "compact":
+                dao.compact(store);
+                dao.check(store, false, true);
+                break;
+            default:
+                System.err.println("Usage: check | verify | repair | gc | compact");
+        }
+    }
+}
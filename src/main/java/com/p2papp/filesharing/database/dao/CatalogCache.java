@@ -0,0 +1,447 @@
+package com.p2papp.filesharing.database.dao;
+
+import com.p2papp.filesharing.database.DatabaseConnection;
+import com.p2papp.filesharing.model.Peer;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongFunction;
+import java.util.function.Supplier;
+
+/**
+ * CatalogCache.java - Cache danh sách file chia sẻ + peers online
+ *
+ * Dashboard của mọi client refresh mỗi 5 giây, mỗi lần là 1 JOIN 3 bảng
+ * sắp xếp theo shared_date → tải DB tăng theo số client × số file.
+ *
+ * Bảng catalog_version giữ 1 số tăng dần (version):
+ * - addFile / deleteFile / đổi trạng thái peer → tăng version (bumpVersion)
+ * - getOnlinePeers(): đọc version (1 dòng theo primary key),
+ *   chỉ query lại khi version khác bản đang cache, không thì trả list cache luôn
+ * - Nhiều lần gọi trong CHECK_INTERVAL_MS dùng chung 1 lần đọc version
+ * - Danh sách file không cache ở đây (bảng All Files tải theo trang, xem PagedFileList):
+ *   trang chỉ hỏi getCurrentVersion(), version không đổi thì không query catalog_changes
+ *
+ * Đọc version TRƯỚC khi query list → thay đổi xảy ra giữa chừng
+ * sẽ được thấy ở lần kiểm tra sau, không bị mất.
+ *
+ * Bảng catalog_changes (version → user_id) ghi user bị ảnh hưởng ở mỗi version:
+ * khi version đổi chỉ query lại dòng của các user đó (CatalogDelta),
+ * dashboard dùng getPeerChangesSince / FileDAO.getChangesSince để sửa
+ * ObservableList tại chỗ thay vì clear() + addAll().
+ */
+public class CatalogCache {
+
+    /**
+     * Gọi liên tiếp trong khoảng này không đọc lại version
+     * (VD: refresh bảng All Files + loadPeers cùng 1 lượt refresh)
+     */
+    private static final long CHECK_INTERVAL_MS = 1000;
+
+    /**
+     * Số version giữ lại trong catalog_changes
+     * (client chậm hơn số này → tải lại toàn bộ)
+     */
+    private static final long CHANGE_LOG_RETENTION = 1000;
+
+    /**
+     * Quá nhiều user thay đổi cùng lúc → tải lại toàn bộ rẻ hơn
+     */
+    static final int MAX_DELTA_USERS = 200;
+
+    private static final CatalogCache INSTANCE = new CatalogCache(new PeerDAO());
+
+    /**
+     * Đã tạo bảng catalog_version chưa (chỉ kiểm tra 1 lần)
+     */
+    private static volatile boolean versionTableChecked = false;
+
+    private final Section<Peer> peers;
+
+    /**
+     * Version đọc gần nhất + thời điểm đọc (0 = phải đọc lại ngay)
+     */
+    private volatile long version = -1;
+    private volatile long lastCheck;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong refreshes = new AtomicLong();
+    private final AtomicLong fullReloads = new AtomicLong();
+
+    CatalogCache(PeerDAO peerDAO) {
+        this.peers = new Section<>(peerDAO::getOnlinePeers, peerDAO::getChangesSince, PeerDAO::fullDelta);
+    }
+
+    public static CatalogCache getInstance() {
+        return INSTANCE;
+    }
+
+    // ============================================
+    // READ
+    // ============================================
+
+    /**
+     * Peers đang online (giống PeerDAO.getOnlinePeers)
+     *
+     * @return List chỉ đọc, dùng chung giữa các caller
+     */
+    public List<Peer> getOnlinePeers() {
+        return peers.get(checkVersion()).rows;
+    }
+
+    /**
+     * Catalog version đọc gần nhất (-1 nếu chưa đọc được)
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Version hiện tại; nhiều lần gọi trong CHECK_INTERVAL_MS dùng chung 1 lần đọc DB
+     * (VD: trang All Files so với version của phần đã tải trước khi lấy delta)
+     *
+     * @return version, -1 nếu chưa đọc được lần nào
+     */
+    public long getCurrentVersion() {
+        checkVersion();
+        return version;
+    }
+
+    /**
+     * Bắt buộc lần gọi sau đọc lại version
+     * (gọi sau khi chính client này thay đổi catalog)
+     */
+    public void invalidate() {
+        lastCheck = 0;
+    }
+
+    /**
+     * Thay đổi của danh sách peer online từ version cho trước
+     *
+     * @param since Version của list phía caller (-1 = chưa có gì)
+     * @return Delta để applyTo() lên list của caller (isEmpty() nếu không đổi)
+     */
+    public CatalogDelta<Peer> getPeerChangesSince(long since) {
+        return peers.get(checkVersion()).deltaSince(since);
+    }
+
+    /**
+     * Version hiện tại; nhiều lần gọi trong CHECK_INTERVAL_MS dùng chung 1 lần đọc DB
+     */
+    private long checkVersion() {
+        if (System.currentTimeMillis() - lastCheck < CHECK_INTERVAL_MS) {
+            return version;
+        }
+
+        synchronized (this) {
+            // Thread khác vừa kiểm tra xong
+            if (System.currentTimeMillis() - lastCheck < CHECK_INTERVAL_MS) {
+                return version;
+            }
+
+            long read = readVersion();
+            lastCheck = System.currentTimeMillis();
+
+            // Không đọc được version (DB lỗi) → dùng tạm version cũ
+            if (read >= 0) {
+                version = read;
+            }
+            return read;
+        }
+    }
+
+    /**
+     * 1 danh sách được cache (peers online)
+     */
+    private class Section<T> {
+        private final Supplier<List<T>> loader;
+        private final LongFunction<CatalogDelta<T>> changes;
+        private final FullDelta<T> fullDelta;
+
+        /**
+         * Bản cache hiện tại (đổi nguyên cả snapshot, không sửa tại chỗ)
+         */
+        private volatile Snapshot<T> snapshot;
+
+        Section(Supplier<List<T>> loader, LongFunction<CatalogDelta<T>> changes, FullDelta<T> fullDelta) {
+            this.loader = loader;
+            this.changes = changes;
+            this.fullDelta = fullDelta;
+        }
+
+        /**
+         * @param version Version vừa đọc (-1 = DB lỗi → dùng tạm bản cũ nếu có)
+         */
+        Snapshot<T> get(long version) {
+            Snapshot<T> s = snapshot;
+            if (s != null && (s.version == version || version < 0)) {
+                hits.incrementAndGet();
+                return s;
+            }
+
+            synchronized (this) {
+                s = snapshot;
+                if (s != null && (s.version == version || version < 0)) {
+                    hits.incrementAndGet();
+                    return s;
+                }
+
+                refreshes.incrementAndGet();
+                s = s == null || s.version < 0 ? load(version) : update(s, version);
+                snapshot = s;
+                return s;
+            }
+        }
+
+        /**
+         * Tải toàn bộ (lần đầu)
+         */
+        private Snapshot<T> load(long version) {
+            fullReloads.incrementAndGet();
+            List<T> rows = loader.get();
+            return new Snapshot<>(version, Collections.unmodifiableList(rows), fullDelta.of(-1, version, rows));
+        }
+
+        /**
+         * Chỉ tải lại dòng của user có thay đổi từ s.version
+         *
+         * Delta có thể chứa thay đổi mới hơn version (đọc log sau khi đọc version),
+         * nhưng vẫn gắn nhãn version → lần sau lấy lại, áp dụng lại vẫn đúng.
+         */
+        private Snapshot<T> update(Snapshot<T> s, long version) {
+            CatalogDelta<T> delta = changes.apply(s.version).relabel(s.version, version);
+            if (delta.isFull()) {
+                fullReloads.incrementAndGet();
+            }
+
+            List<T> rows = new ArrayList<>(s.rows);
+            delta.applyTo(rows);
+            return new Snapshot<>(version, Collections.unmodifiableList(rows), delta);
+        }
+    }
+
+    /**
+     * PeerDAO.fullDelta
+     */
+    private interface FullDelta<T> {
+        CatalogDelta<T> of(long from, long version, List<T> rows);
+    }
+
+    // ============================================
+    // VERSION
+    // ============================================
+
+    /**
+     * Đọc version hiện tại trong DB
+     *
+     * @return version, -1 nếu lỗi
+     */
+    static long readVersion() {
+        try (Connection conn = DatabaseConnection.getConnection()) {
+            if (conn == null) return -1;
+            ensureVersionTable(conn);
+
+            try (PreparedStatement pstmt = conn.prepareStatement(
+                     "SELECT version FROM catalog_version WHERE id = 1");
+                 ResultSet rs = pstmt.executeQuery()) {
+                return rs.next() ? rs.getLong(1) : -1;
+            }
+
+        } catch (SQLException e) {
+            System.err.println("❌ Read catalog version error: " + e.getMessage());
+            return -1;
+        }
+    }
+
+    /**
+     * Tăng version và ghi user bị ảnh hưởng sau khi thay đổi files / trạng thái peer
+     * Gọi trên cùng kết nối vừa thay đổi dữ liệu
+     *
+     * UPDATE version + INSERT log trong 1 transaction → reader thấy version mới
+     * thì cũng thấy dòng log của version đó.
+     *
+     * @param userId Chủ của file / peer vừa thay đổi
+     */
+    static void bumpVersion(Connection conn, int userId) {
+        try {
+            ensureVersionTable(conn);
+
+            boolean autoCommit = conn.getAutoCommit();
+            conn.setAutoCommit(false);
+            try {
+                long version;
+                try (PreparedStatement pstmt = conn.prepareStatement(
+                         "UPDATE catalog_version SET version = version + 1 WHERE id = 1")) {
+                    pstmt.executeUpdate();
+                }
+                try (PreparedStatement pstmt = conn.prepareStatement(
+                         "SELECT version FROM catalog_version WHERE id = 1");
+                     ResultSet rs = pstmt.executeQuery()) {
+                    version = rs.next() ? rs.getLong(1) : 0;
+                }
+                try (PreparedStatement pstmt = conn.prepareStatement(
+                         "INSERT INTO catalog_changes (version, user_id) VALUES (?, ?)")) {
+                    pstmt.setLong(1, version);
+                    pstmt.setInt(2, userId);
+                    pstmt.executeUpdate();
+                }
+                try (PreparedStatement pstmt = conn.prepareStatement(
+                         "DELETE FROM catalog_changes WHERE version <= ?")) {
+                    pstmt.setLong(1, version - CHANGE_LOG_RETENTION);
+                    pstmt.executeUpdate();
+                }
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(autoCommit);
+            }
+        } catch (SQLException e) {
+            System.err.println("❌ Bump catalog version error: " + e.getMessage());
+        }
+        INSTANCE.invalidate();
+    }
+
+    /**
+     * Các user có thay đổi sau version cho trước
+     *
+     * @return null nếu không tính được (log đã bị dọn / có version thiếu log)
+     *         → caller tải lại toàn bộ
+     */
+    static Changes readChanges(long since) {
+        try (Connection conn = DatabaseConnection.getConnection()) {
+            if (conn == null || since < 0) return null;
+            ensureVersionTable(conn);
+
+            Changes changes = new Changes(since);
+            try (PreparedStatement pstmt = conn.prepareStatement(
+                     "SELECT version, user_id FROM catalog_changes WHERE version > ? ORDER BY version")) {
+                pstmt.setLong(1, since);
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    while (rs.next()) {
+                        long version = rs.getLong(1);
+                        // Version liên tiếp, thiếu 1 cái là không tin được delta
+                        if (version != changes.version + 1) {
+                            return null;
+                        }
+                        changes.version = version;
+                        changes.users.add(rs.getInt(2));
+                    }
+                }
+            }
+
+            if (changes.users.size() > MAX_DELTA_USERS) {
+                return null;
+            }
+            // Version đã tăng nhưng không có log (bump từ trước khi có bảng log)
+            if (changes.users.isEmpty() && readVersion() > since) {
+                return null;
+            }
+            return changes;
+
+        } catch (SQLException e) {
+            System.err.println("❌ Read catalog changes error: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Tạo bảng catalog_version nếu DB cũ chưa có
+     */
+    private static void ensureVersionTable(Connection conn) throws SQLException {
+        if (versionTableChecked) return;
+
+        synchronized (CatalogCache.class) {
+            if (versionTableChecked) return;
+
+            try (Statement stmt = conn.createStatement()) {
+                stmt.executeUpdate(
+                    "CREATE TABLE IF NOT EXISTS catalog_version (" +
+                    "  id TINYINT PRIMARY KEY, " +
+                    "  version BIGINT NOT NULL" +
+                    ")"
+                );
+                stmt.executeUpdate("INSERT IGNORE INTO catalog_version (id, version) VALUES (1, 0)");
+                stmt.executeUpdate(
+                    "CREATE TABLE IF NOT EXISTS catalog_changes (" +
+                    "  version BIGINT PRIMARY KEY, " +
+                    "  user_id INT NOT NULL" +
+                    ")"
+                );
+            }
+            versionTableChecked = true;
+        }
+    }
+
+    // ============================================
+    // GETTERS (METRICS)
+    // ============================================
+
+    /**
+     * Số lần trả list cache (không query lại)
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Số lần query lại vì version đổi
+     */
+    public long getRefreshes() {
+        return refreshes.get();
+    }
+
+    /**
+     * Số lần phải tải lại toàn bộ thay vì delta
+     */
+    public long getFullReloads() {
+        return fullReloads.get();
+    }
+
+    /**
+     * Bản cache: version + list + delta từ bản trước
+     */
+    private static class Snapshot<T> {
+        final long version;
+        final List<T> rows;
+        final CatalogDelta<T> delta;
+
+        Snapshot(long version, List<T> rows, CatalogDelta<T> delta) {
+            this.version = version;
+            this.rows = rows;
+            this.delta = delta;
+        }
+
+        CatalogDelta<T> deltaSince(long since) {
+            if (since == version) {
+                return delta.unchanged(version);
+            }
+            // Caller chậm đúng 1 lần refresh → dùng lại delta vừa tính
+            if (since == delta.getFromVersion()) {
+                return delta;
+            }
+            return delta.fullReload(since, version, rows);
+        }
+    }
+
+    /**
+     * Kết quả đọc catalog_changes: version mới nhất + các user bị ảnh hưởng
+     */
+    static class Changes {
+        long version;
+        final Set<Integer> users = new HashSet<>();
+
+        Changes(long since) {
+            this.version = since;
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package com.p2papp.filesharing.database.dao;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiPredicate;
+import java.util.function.ToIntFunction;
+
+/**
+ * CatalogDelta.java - Thay đổi của catalog (files / peers) từ 1 version cũ
+ *
+ * Bảng catalog_changes ghi user_id bị ảnh hưởng ở mỗi version
+ * (file của user đó thêm/xóa, peer của user đó online/offline...).
+ * Delta gồm:
+ * - changedUsers: các user có thay đổi
+ * - rows: các dòng HIỆN TẠI của những user đó (đã lọc như query đầy đủ)
+ *
+ * applyTo() sửa list đích tại chỗ: dòng của changedUsers không còn trong rows → xóa,
+ * dòng đã có nhưng khác → thay, dòng mới → chèn đúng vị trí sắp xếp.
+ * Dòng không đổi giữ nguyên object → TableView giữ selection, không layout lại.
+ * Áp dụng 2 lần cùng 1 delta cho kết quả giống nhau.
+ *
+ * full = true: không tính được delta (log đã bị dọn, version cũ quá...)
+ * → rows là toàn bộ danh sách, dùng setAll().
+ */
+public class CatalogDelta<T> {
+
+    private final long fromVersion;
+    private final long version;
+    private final boolean full;
+    private final Set<Integer> changedUsers;
+    private final List<T> rows;
+
+    private final ToIntFunction<T> key;
+    private final ToIntFunction<T> owner;
+    private final BiPredicate<T, T> sameRow;
+    private final Comparator<T> order;
+
+    /**
+     * @param key Khóa chính của dòng (file_id / peer_id)
+     * @param owner user_id của dòng
+     * @param sameRow Dòng cũ và mới có giống nhau không (giống → giữ object cũ)
+     * @param order Thứ tự sắp xếp của query đầy đủ (để chèn dòng mới)
+     */
+    CatalogDelta(long fromVersion, long version, boolean full, Set<Integer> changedUsers, List<T> rows,
+                 ToIntFunction<T> key, ToIntFunction<T> owner, BiPredicate<T, T> sameRow, Comparator<T> order) {
+        this.fromVersion = fromVersion;
+        this.version = version;
+        this.full = full;
+        this.changedUsers = Collections.unmodifiableSet(changedUsers);
+        this.rows = Collections.unmodifiableList(rows);
+        this.key = key;
+        this.owner = owner;
+        this.sameRow = sameRow;
+        this.order = order;
+    }
+
+    /**
+     * Delta "không có gì thay đổi" ở version cho trước
+     */
+    CatalogDelta<T> unchanged(long atVersion) {
+        return new CatalogDelta<>(atVersion, atVersion, false, Collections.emptySet(), Collections.emptyList(),
+                                  key, owner, sameRow, order);
+    }
+
+    /**
+     * Delta đầy đủ: thay toàn bộ bằng rows
+     */
+    CatalogDelta<T> fullReload(long from, long atVersion, List<T> allRows) {
+        return new CatalogDelta<>(from, atVersion, true, Collections.emptySet(), allRows,
+                                  key, owner, sameRow, order);
+    }
+
+    /**
+     * Cùng nội dung, gắn lại version đầu / cuối
+     * (CatalogCache gắn theo version đã đọc trước khi lấy delta)
+     */
+    CatalogDelta<T> relabel(long from, long atVersion) {
+        return new CatalogDelta<>(from, atVersion, full, changedUsers, rows,
+                                  key, owner, sameRow, order);
+    }
+
+    // ============================================
+    // APPLY
+    // ============================================
+
+    /**
+     * Áp dụng delta lên list (VD: ObservableList của TableView)
+     *
+     * Chỉ gọi remove / set / add cho dòng thực sự thay đổi.
+     *
+     * @return Số dòng bị thêm / xóa / thay
+     */
+    public int applyTo(List<T> target) {
+        if (full) {
+            target.clear();
+            target.addAll(rows);
+            return rows.size();
+        }
+        if (changedUsers.isEmpty()) {
+            return 0;
+        }
+
+        Map<Integer, T> incoming = new HashMap<>();
+        for (T row : rows) {
+            incoming.put(key.applyAsInt(row), row);
+        }
+
+        int changed = 0;
+
+        // Xóa / thay dòng của user có thay đổi
+        for (int i = target.size() - 1; i >= 0; i--) {
+            T current = target.get(i);
+            if (!changedUsers.contains(owner.applyAsInt(current))) {
+                continue;
+            }
+
+            T fresh = incoming.remove(key.applyAsInt(current));
+            if (fresh == null) {
+                target.remove(i);
+                changed++;
+            } else if (!sameRow.test(current, fresh)) {
+                target.set(i, fresh);
+                changed++;
+            }
+        }
+
+        // Còn lại là dòng mới → chèn theo thứ tự sắp xếp
+        for (T row : rows) {
+            if (!incoming.containsKey(key.applyAsInt(row))) {
+                continue;
+            }
+            int pos = 0;
+            while (pos < target.size() && order.compare(target.get(pos), row) <= 0) {
+                pos++;
+            }
+            target.add(pos, row);
+            changed++;
+        }
+
+        return changed;
+    }
+
+    // ============================================
+    // GETTERS
+    // ============================================
+
+    public long getFromVersion() {
+        return fromVersion;
+    }
+
+    /**
+     * Version sau khi áp dụng delta
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    public boolean isFull() {
+        return full;
+    }
+
+    /**
+     * Không có gì thay đổi
+     */
+    public boolean isEmpty() {
+        return !full && changedUsers.isEmpty();
+    }
+
+    public Set<Integer> getChangedUsers() {
+        return changedUsers;
+    }
+
+    public List<T> getRows() {
+        return rows;
+    }
+
+    @Override
+    public String toString() {
+        return full
+            ? "CatalogDelta{" + fromVersion + "→" + version + ", full, " + rows.size() + " rows}"
+            : "CatalogDelta{" + fromVersion + "→" + version + ", users=" + changedUsers + ", " + rows.size() + " rows}";
+    }
+}
@@ -0,0 +1,99 @@
+package com.p2papp.filesharing.database.dao;
+
+import com.p2papp.filesharing.database.DatabaseConnection;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+
+/**
+ * DAOBenchmark.java - Đo latency / query của các lookup hay gọi nhất
+ *
+ * So sánh 2 cấu hình (cùng dùng ConnectionPool):
+ * - before: không cache PreparedStatement, prepare phía client (mặc định cũ của Connector/J)
+ * - after:  cache PreparedStatement theo kết nối + server-side prepare
+ *
+ * In p50 / p99 / trung bình (µs) cho FileDAO.getAllSharedFiles và PeerDAO.getPeerByUserId.
+ * Cần MySQL đang chạy với database p2p_file_sharing (xem DatabaseConnection).
+ *
+ * Cách chạy:
+ * mvn compile exec:java -Dexec.mainClass="com.p2papp.filesharing.database.dao.DAOBenchmark" -Dexec.args="5000 1"
+ * (args: số lần gọi mỗi query, user_id dùng cho getPeerByUserId)
+ */
+public class DAOBenchmark {
+
+    public static void main(String[] args) {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        int userId = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+
+        System.out.println("╔════════════════════════════════════════╗");
+        System.out.println("║   DAO QUERY LATENCY BENCHMARK          ║");
+        System.out.println("╚════════════════════════════════════════╝\n");
+
+        run("before", false, 0, iterations, userId);
+        run("after ", true, 64, iterations, userId);
+    }
+
+    /**
+     * Tạo lại pool với cấu hình cho trước rồi đo 2 query
+     */
+    private static void run(String label, boolean serverPrepStmts, int statementCacheSize,
+                            int iterations, int userId) {
+        DatabaseConnection.closeConnection();
+        System.setProperty("p2p.db.serverPrepStmts", String.valueOf(serverPrepStmts));
+        System.setProperty("p2p.db.pool.statementCacheSize", String.valueOf(statementCacheSize));
+
+        FileDAO fileDAO = new FileDAO();
+        PeerDAO peerDAO = new PeerDAO();
+
+        // DAO in log mỗi lần gọi → tắt stdout khi đo
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        long[] files;
+        long[] peer;
+        try {
+            // Warm-up: tạo kết nối, JIT, cache của driver/server
+            measure(iterations / 10, () -> fileDAO.getAllSharedFiles());
+            measure(iterations / 10, () -> peerDAO.getPeerByUserId(userId));
+
+            files = measure(iterations, () -> fileDAO.getAllSharedFiles());
+            peer = measure(iterations, () -> peerDAO.getPeerByUserId(userId));
+        } finally {
+            System.setOut(out);
+        }
+
+        System.out.println("[" + label + "] serverPrepStmts=" + serverPrepStmts +
+                           ", statementCacheSize=" + statementCacheSize);
+        System.out.println("   getAllSharedFiles : " + summarize(files));
+        System.out.println("   getPeerByUserId   : " + summarize(peer));
+        System.out.println("   pool: " + poolStats());
+        System.out.println();
+    }
+
+    private static long[] measure(int iterations, Runnable query) {
+        long[] nanos = new long[iterations];
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            query.run();
+            nanos[i] = System.nanoTime() - start;
+        }
+        return nanos;
+    }
+
+    private static String summarize(long[] nanos) {
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        double avg = Arrays.stream(sorted).average().orElse(0);
+        return String.format("p50 %7.1f µs, p99 %7.1f µs, avg %7.1f µs",
+                             sorted[sorted.length / 2] / 1e3,
+                             sorted[(int) (sorted.length * 0.99)] / 1e3,
+                             avg / 1e3);
+    }
+
+    private static String poolStats() {
+        try {
+            return DatabaseConnection.getPool().getStats();
+        } catch (ClassNotFoundException e) {
+            return "n/a";
+        }
+    }
+}
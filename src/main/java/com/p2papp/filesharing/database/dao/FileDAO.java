@@ -6,9 +6,19 @@ package com.p2papp.filesharing.database.dao;
 
 import com.p2papp.filesharing.database.DatabaseConnection;
 import com.p2papp.filesharing.model.FileInfo;
+import com.p2papp.filesharing.model.Peer;
+import com.p2papp.filesharing.utils.PieceManifest;
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -36,8 +46,12 @@ public class FileDAO {
      * Thêm file mới
      */
     public boolean addFile(FileInfo file) {
-        String sql = "INSERT INTO files (user_id, file_name, file_size, file_hash, file_path) " +
-                     "VALUES (?, ?, ?, ?, ?)";
+        ensurePieceColumns();
+        BlobDAO.ensureBlobTable();
+        
+        String sql = "INSERT INTO files (user_id, file_name, file_size, file_hash, file_path, " +
+                     "piece_size, piece_hashes, merkle_root) " +
+                     "VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
         
         try (Connection conn = DatabaseConnection.getConnection();
              PreparedStatement pstmt = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
@@ -48,7 +62,32 @@ public class FileDAO {
             pstmt.setString(4, file.getFileHash());
             pstmt.setString(5, file.getFilePath());
             
-            int rows = pstmt.executeUpdate();
+            if (file.getPieceHashes() != null) {
+                pstmt.setInt(6, file.getPieceSize());
+                pstmt.setString(7, file.getPieceHashes());
+                pstmt.setString(8, file.getMerkleRoot());
+            } else {
+                pstmt.setNull(6, Types.INTEGER);
+                pstmt.setNull(7, Types.LONGVARCHAR);
+                pstmt.setNull(8, Types.CHAR);
+            }
+            
+            // INSERT + tăng ref_count của blob trong 1 transaction
+            int rows;
+            boolean autoCommit = conn.getAutoCommit();
+            conn.setAutoCommit(false);
+            try {
+                rows = pstmt.executeUpdate();
+                if (rows > 0 && file.getFileHash() != null) {
+                    BlobDAO.addRef(conn, file.getFileHash(), file.getFileSize());
+                }
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(autoCommit);
+            }
             
             if (rows > 0) {
                 ResultSet generatedKeys = pstmt.getGeneratedKeys();
@@ -56,6 +95,8 @@ public class FileDAO {
                     file.setFileId(generatedKeys.getInt(1));
                 }
                 
+                CatalogCache.bumpVersion(conn, file.getUserId());
+                FileNameIndex.onFileAdded(file.getFileId(), file.getUserId(), file.getFileName());
                 System.out.println("✅ File added: " + file.getFileName());
                 return true;
             }
@@ -195,7 +236,7 @@ public class FileDAO {
             "INNER JOIN users u ON f.user_id = u.user_id " +
             "INNER JOIN peers p ON f.user_id = p.user_id " +
             "WHERE p.status = 'online' " +  // ← CHỈ LẤY PEERS ONLINE
-            "ORDER BY f.shared_date DESC";
+            "ORDER BY f.shared_date DESC, f.file_id DESC";
         
         try (Connection conn = DatabaseConnection.getConnection()) {
             
@@ -252,6 +293,127 @@ public class FileDAO {
         
         return files;
     }
+    /**
+     * Thay đổi của danh sách getAllSharedFiles() từ version cho trước
+     *
+     * Chỉ query lại file của các user có thay đổi (xem catalog_changes),
+     * không tính được thì trả delta đầy đủ.
+     *
+     * @param version Version của list phía caller (CatalogCache.getCurrentVersion())
+     */
+    public CatalogDelta<FileInfo> getChangesSince(long version) {
+        return getChangesSince(version, true);
+    }
+    
+    /**
+     * Catalog version hiện tại trong DB (-1 nếu lỗi)
+     * Đọc trước khi tải 1 trang → lần getChangesSince sau bắt đầu từ đây
+     */
+    public long getCatalogVersion() {
+        return CatalogCache.readVersion();
+    }
+    
+    /**
+     * Như getChangesSince(version), nhưng khi phải tải lại toàn bộ
+     * có thể bỏ qua việc query toàn bộ catalog
+     *
+     * @param withFullRows false → delta isFull() có rows rỗng,
+     *                     caller tự tải lại trang đầu (xem getSharedFilesPage)
+     */
+    public CatalogDelta<FileInfo> getChangesSince(long version, boolean withFullRows) {
+        CatalogCache.Changes changes = CatalogCache.readChanges(version);
+        if (changes == null) {
+            long current = CatalogCache.readVersion();
+            return fullDelta(version, current, withFullRows ? getAllSharedFiles() : new ArrayList<>());
+        }
+        if (changes.users.isEmpty()) {
+            return fullDelta(version, version, new ArrayList<>()).unchanged(version);
+        }
+        
+        List<FileInfo> files = new ArrayList<>();
+        String placeholders = String.join(", ", Collections.nCopies(changes.users.size(), "?"));
+        String sql = 
+            "SELECT f.file_id, f.user_id, f.file_name, f.file_size, f.file_hash, f.file_path, " +
+            "       f.shared_date, u.username, p.ip_address, p.port " +
+            "FROM files f " +
+            "INNER JOIN users u ON f.user_id = u.user_id " +
+            "INNER JOIN peers p ON f.user_id = p.user_id " +
+            "WHERE p.status = 'online' AND f.user_id IN (" + placeholders + ") " +
+            "ORDER BY f.shared_date DESC, f.file_id DESC";
+        
+        try (Connection conn = DatabaseConnection.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            
+            int index = 1;
+            for (int userId : changes.users) {
+                pstmt.setInt(index++, userId);
+            }
+            
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    FileInfo file = new FileInfo();
+                    file.setFileId(rs.getInt("file_id"));
+                    file.setUserId(rs.getInt("user_id"));
+                    file.setFileName(rs.getString("file_name"));
+                    file.setFileSize(rs.getLong("file_size"));
+                    file.setFileHash(rs.getString("file_hash"));
+                    file.setFilePath(rs.getString("file_path"));
+                    file.setSharedDate(rs.getTimestamp("shared_date"));
+                    file.setOwnerUsername(rs.getString("username"));
+                    file.setPeerIp(rs.getString("ip_address"));
+                    file.setPeerPort(rs.getInt("port"));
+                    files.add(file);
+                }
+            }
+            
+        } catch (SQLException e) {
+            System.err.println("❌ Get file changes error: " + e.getMessage());
+            long current = CatalogCache.readVersion();
+            return fullDelta(version, current, withFullRows ? getAllSharedFiles() : new ArrayList<>());
+        }
+        
+        return new CatalogDelta<>(version, changes.version, false, changes.users, files,
+                                  FileInfo::getFileId, FileInfo::getUserId,
+                                  FileDAO::sameRow, SHARED_FILES_ORDER);
+    }
+    
+    /**
+     * Delta thay toàn bộ list bằng files
+     */
+    static CatalogDelta<FileInfo> fullDelta(long from, long version, List<FileInfo> files) {
+        return new CatalogDelta<>(from, version, true, Collections.emptySet(), files,
+                                  FileInfo::getFileId, FileInfo::getUserId,
+                                  FileDAO::sameRow, SHARED_FILES_ORDER);
+    }
+    
+    /**
+     * Thứ tự của getAllSharedFiles(): shared_date DESC, file_id DESC
+     */
+    private static final Comparator<FileInfo> SHARED_FILES_ORDER =
+        Comparator.comparing(FileInfo::getSharedDate, Comparator.nullsLast(Comparator.<Timestamp>reverseOrder()))
+                  .thenComparing(Comparator.comparingInt(FileInfo::getFileId).reversed());
+    
+    /**
+     * Thứ tự của getAllSharedFiles() / các trang (để so với con trỏ trang)
+     */
+    public static Comparator<FileInfo> sharedFilesOrder() {
+        return SHARED_FILES_ORDER;
+    }
+    
+    /**
+     * Các cột hiển thị / dùng để download có giống nhau không
+     */
+    private static boolean sameRow(FileInfo a, FileInfo b) {
+        return a.getFileSize() == b.getFileSize()
+            && a.getPeerPort() == b.getPeerPort()
+            && Objects.equals(a.getFileName(), b.getFileName())
+            && Objects.equals(a.getFileHash(), b.getFileHash())
+            && Objects.equals(a.getFilePath(), b.getFilePath())
+            && Objects.equals(a.getSharedDate(), b.getSharedDate())
+            && Objects.equals(a.getOwnerUsername(), b.getOwnerUsername())
+            && Objects.equals(a.getPeerIp(), b.getPeerIp());
+    }
+    
     /**
      * Lấy file theo ID
      */
@@ -358,58 +520,189 @@ public List<FileInfo> getFilesByName(String fileName) {
 /**
  * ✅ ALTERNATIVE: Tìm file gần khớp nhất (fuzzy search)
  * Dùng khi tên file có thể khác encoding nhẹ
+ *
+ * Tìm trên BK-tree của FileNameIndex (không duyệt toàn bộ bảng files),
+ * chỉ chấp nhận nếu độ tương đồng >= 80%
  */
 public FileInfo findBestMatch(String fileName) {
     if (fileName == null || fileName.isEmpty()) return null;
 
-    String sql = "SELECT f.*, u.username AS owner_username, " +
-                 "LEVENSHTEIN(LOWER(f.file_name), LOWER(?)) AS distance " +
-                 "FROM files f " +
-                 "JOIN users u ON f.user_id = u.user_id " +
-                 "ORDER BY distance ASC " +
-                 "LIMIT 1";
-
-    try (Connection conn = DatabaseConnection.getConnection();
-         PreparedStatement pstmt = conn.prepareStatement(sql)) {
-
-        pstmt.setString(1, fileName);
-        ResultSet rs = pstmt.executeQuery();
-
-        if (rs.next()) {
-            int distance = rs.getInt("distance");
-            
-            // Chỉ chấp nhận nếu độ tương đồng > 80%
-            int maxLength = Math.max(fileName.length(), rs.getString("file_name").length());
-            double similarity = 1.0 - (double) distance / maxLength;
-            
-            if (similarity >= 0.8) {
-                FileInfo file = new FileInfo();
-                file.setFileId(rs.getInt("file_id"));
-                file.setUserId(rs.getInt("user_id"));
-                file.setFileName(rs.getString("file_name"));
-                file.setFileSize(rs.getLong("file_size"));
-                file.setFileHash(rs.getString("file_hash"));
-                file.setFilePath(rs.getString("file_path"));
-                file.setSharedDate(rs.getTimestamp("shared_date"));
-                file.setOwnerUsername(rs.getString("owner_username"));
-                
-                System.out.println("✅ Found best match: " + file.getFileName() + 
-                                 " (similarity: " + String.format("%.1f%%", similarity * 100) + ")");
-                return file;
-            }
-        }
-
-    } catch (SQLException e) {
-        // LEVENSHTEIN function không có sẵn trong MySQL
-        System.err.println("⚠️  Fuzzy search not supported: " + e.getMessage());
+    int fileId = FileNameIndex.getShared().findClosest(fileName, 0.8, null);
+    if (fileId < 0) {
+        return null;
     }
 
-    return null;
+    FileInfo file = getFileById(fileId);
+    if (file != null) {
+        System.out.println("✅ Found best match: " + file.getFileName());
+    }
+    return file;
 }
  /**
+     * Cách tìm kiếm theo tên (-Dp2p.search.mode):
+     * - index    (mặc định) FileNameIndex trong bộ nhớ, bỏ dấu, xếp hạng theo độ khớp
+     * - fulltext MySQL FULLTEXT index với ngram parser, xếp hạng theo MATCH() AGAINST()
+     * - like     LIKE '%kw%' như cũ (full scan)
+     */
+    public static final String SEARCH_MODE = System.getProperty("p2p.search.mode", "index");
+    
+    /**
      * Tìm kiếm file theo keyword
      */
      public List<FileInfo> searchFilesByName(String keyword) {
+        return searchFilesByName(keyword, 0, Integer.MAX_VALUE);
+    }
+    
+    /**
+     * Tìm kiếm file theo keyword, lấy 1 đoạn kết quả (đã xếp hạng)
+     *
+     * Phân trang theo vị trí, không theo keyset: chế độ index xếp hạng top (offset + limit)
+     * trong bộ nhớ, fulltext xếp theo score số thực → con trỏ (hạng, file_id) không bỏ được
+     * phần xếp hạng phía trước, chỉ thêm rủi ro so sánh score không ổn định.
+     *
+     * @param offset Bỏ qua bao nhiêu kết quả đầu
+     * @param limit Số kết quả tối đa
+     */
+    public List<FileInfo> searchFilesByName(String keyword, int offset, int limit) {
+        switch (SEARCH_MODE) {
+            case "fulltext":
+                return searchFulltext(keyword, offset, limit);
+            case "like":
+                return searchLike(keyword, offset, limit);
+            default:
+                return searchIndex(keyword, offset, limit);
+        }
+    }
+    
+    /**
+     * Tìm bằng FileNameIndex, chỉ lấy file của peers online
+     */
+    private List<FileInfo> searchIndex(String keyword, int offset, int limit) {
+        Set<Integer> onlineUsers = new HashSet<>();
+        for (Peer peer : CatalogCache.getInstance().getOnlinePeers()) {
+            onlineUsers.add(peer.getUserId());
+        }
+        
+        int[] ranked = FileNameIndex.getShared().search(keyword, onlineUsers::contains,
+                                                        (int) Math.min((long) offset + limit, Integer.MAX_VALUE));
+        if (offset >= ranked.length) {
+            return new ArrayList<>();
+        }
+        
+        List<FileInfo> files = getSharedFilesByIds(Arrays.copyOfRange(ranked, offset, ranked.length));
+        System.out.println("✅ Found " + files.size() + " files matching '" + keyword + "' (index)");
+        return files;
+    }
+    
+    /**
+     * Lấy file chia sẻ (peer online) theo danh sách ID, giữ nguyên thứ tự
+     */
+    private List<FileInfo> getSharedFilesByIds(int[] fileIds) {
+        Map<Integer, FileInfo> byId = new HashMap<>();
+        
+        // Chia nhỏ để câu IN (...) không quá dài
+        for (int from = 0; from < fileIds.length; from += 500) {
+            int to = Math.min(from + 500, fileIds.length);
+            String placeholders = String.join(", ", Collections.nCopies(to - from, "?"));
+            String sql = 
+                "SELECT f.file_id, f.user_id, f.file_name, f.file_size, f.file_hash, f.file_path, " +
+                "       f.shared_date, u.username, p.ip_address, p.port " +
+                "FROM files f " +
+                "INNER JOIN users u ON f.user_id = u.user_id " +
+                "INNER JOIN peers p ON f.user_id = p.user_id " +
+                "WHERE p.status = 'online' AND f.file_id IN (" + placeholders + ")";
+            
+            try (Connection conn = DatabaseConnection.getConnection();
+                 PreparedStatement pstmt = conn.prepareStatement(sql)) {
+                
+                for (int i = from; i < to; i++) {
+                    pstmt.setInt(i - from + 1, fileIds[i]);
+                }
+                
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    while (rs.next()) {
+                        FileInfo file = mapSharedFile(rs);
+                        byId.put(file.getFileId(), file);
+                    }
+                }
+                
+            } catch (SQLException e) {
+                System.err.println("❌ Get files by ids error: " + e.getMessage());
+            }
+        }
+        
+        List<FileInfo> files = new ArrayList<>();
+        for (int fileId : fileIds) {
+            FileInfo file = byId.get(fileId);
+            if (file != null) {
+                files.add(file);
+            }
+        }
+        return files;
+    }
+    
+    /**
+     * Tìm bằng MySQL FULLTEXT (ngram parser), xếp hạng theo độ liên quan
+     */
+    private List<FileInfo> searchFulltext(String keyword, int offset, int limit) {
+        ensureFulltextIndex();
+        
+        List<FileInfo> files = new ArrayList<>();
+        
+        String sql = 
+            "SELECT f.file_id, f.user_id, f.file_name, f.file_size, f.file_hash, f.file_path, " +
+            "       f.shared_date, u.username, p.ip_address, p.port, " +
+            "       MATCH(f.file_name) AGAINST (?) AS score " +
+            "FROM files f " +
+            "INNER JOIN users u ON f.user_id = u.user_id " +
+            "INNER JOIN peers p ON f.user_id = p.user_id " +
+            "WHERE p.status = 'online' " +
+            "  AND MATCH(f.file_name) AGAINST (?) " +
+            "ORDER BY score DESC, f.shared_date DESC, f.file_id DESC " +
+            "LIMIT ?, ?";
+        
+        try (Connection conn = DatabaseConnection.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            
+            pstmt.setString(1, keyword);
+            pstmt.setString(2, keyword);
+            pstmt.setInt(3, offset);
+            pstmt.setInt(4, limit);
+            
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    files.add(mapSharedFile(rs));
+                }
+            }
+            
+            System.out.println("✅ Found " + files.size() + " files matching '" + keyword + "' (fulltext)");
+            
+        } catch (SQLException e) {
+            System.err.println("❌ Fulltext search error: " + e.getMessage());
+        }
+        
+        return files;
+    }
+    
+    private FileInfo mapSharedFile(ResultSet rs) throws SQLException {
+        FileInfo file = new FileInfo();
+        file.setFileId(rs.getInt("file_id"));
+        file.setUserId(rs.getInt("user_id"));
+        file.setFileName(rs.getString("file_name"));
+        file.setFileSize(rs.getLong("file_size"));
+        file.setFileHash(rs.getString("file_hash"));
+        file.setFilePath(rs.getString("file_path"));
+        file.setSharedDate(rs.getTimestamp("shared_date"));
+        file.setOwnerUsername(rs.getString("username"));
+        file.setPeerIp(rs.getString("ip_address"));
+        file.setPeerPort(rs.getInt("port"));
+        return file;
+    }
+    
+    /**
+     * LIKE '%kw%' (cách cũ, full scan)
+     */
+    private List<FileInfo> searchLike(String keyword, int offset, int limit) {
         List<FileInfo> files = new ArrayList<>();
         
         String sql = 
@@ -429,12 +722,15 @@ public FileInfo findBestMatch(String fileName) {
             "INNER JOIN peers p ON f.user_id = p.user_id " +
             "WHERE p.status = 'online' " +  // ← CHỈ ONLINE
             "  AND LOWER(f.file_name) LIKE LOWER(?) " +
-            "ORDER BY f.shared_date DESC";
+            "ORDER BY f.shared_date DESC, f.file_id DESC " +
+            "LIMIT ?, ?";
         
         try (Connection conn = DatabaseConnection.getConnection();
              PreparedStatement pstmt = conn.prepareStatement(sql)) {
             
             pstmt.setString(1, "%" + keyword + "%");
+            pstmt.setInt(2, offset);
+            pstmt.setInt(3, limit);
             
             try (ResultSet rs = pstmt.executeQuery()) {
                 while (rs.next()) {
@@ -463,6 +759,81 @@ public FileInfo findBestMatch(String fileName) {
         return files;
     }
     
+    // ============================================
+    // PAGINATION - Keyset theo (shared_date, file_id)
+    // ============================================
+    
+    /**
+     * Số dòng mỗi trang mặc định
+     */
+    public static final int DEFAULT_PAGE_SIZE = 200;
+    
+    /**
+     * 1 trang của getAllSharedFiles()
+     * 
+     * Keyset: WHERE (shared_date, file_id) < (dòng cuối trang trước)
+     * → đi qua index (shared_date, file_id), không dùng OFFSET
+     * (OFFSET 100000 vẫn phải đọc rồi bỏ 100000 dòng).
+     * 
+     * @param after Dòng cuối của trang trước (null = trang đầu)
+     * @param limit Số dòng tối đa
+     * @return Ít hơn limit dòng → đã hết
+     */
+    public List<FileInfo> getSharedFilesPage(FileInfo after, int limit) {
+        return querySharedPage(after, limit);
+    }
+    
+    private List<FileInfo> querySharedPage(FileInfo after, int limit) {
+        ensurePagingIndex();
+        
+        List<FileInfo> files = new ArrayList<>();
+        
+        String sql = 
+            "SELECT f.file_id, f.user_id, f.file_name, f.file_size, f.file_hash, f.file_path, " +
+            "       f.shared_date, u.username, p.ip_address, p.port " +
+            "FROM files f " +
+            "INNER JOIN users u ON f.user_id = u.user_id " +
+            "INNER JOIN peers p ON f.user_id = p.user_id " +
+            "WHERE p.status = 'online' " +
+            (after != null ? "  AND (f.shared_date < ? OR (f.shared_date = ? AND f.file_id < ?)) " : "") +
+            "ORDER BY f.shared_date DESC, f.file_id DESC " +
+            "LIMIT ?";
+        
+        try (Connection conn = DatabaseConnection.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            
+            int index = 1;
+            if (after != null) {
+                pstmt.setTimestamp(index++, after.getSharedDate());
+                pstmt.setTimestamp(index++, after.getSharedDate());
+                pstmt.setInt(index++, after.getFileId());
+            }
+            pstmt.setInt(index, limit);
+            
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    FileInfo file = new FileInfo();
+                    file.setFileId(rs.getInt("file_id"));
+                    file.setUserId(rs.getInt("user_id"));
+                    file.setFileName(rs.getString("file_name"));
+                    file.setFileSize(rs.getLong("file_size"));
+                    file.setFileHash(rs.getString("file_hash"));
+                    file.setFilePath(rs.getString("file_path"));
+                    file.setSharedDate(rs.getTimestamp("shared_date"));
+                    file.setOwnerUsername(rs.getString("username"));
+                    file.setPeerIp(rs.getString("ip_address"));
+                    file.setPeerPort(rs.getInt("port"));
+                    files.add(file);
+                }
+            }
+            
+        } catch (SQLException e) {
+            System.err.println("❌ Get shared files page error: " + e.getMessage());
+        }
+        
+        return files;
+    }
+    
   /**
      * Tìm file theo hash
      */
@@ -498,19 +869,178 @@ public FileInfo findBestMatch(String fileName) {
         return null;
     }
     
+    /**
+     * Lấy file của 1 user theo hash (kiểm tra trùng khi upload)
+     * User khác có cùng nội dung không tính là trùng: dùng chung 1 blob
+     */
+    public FileInfo getFileByUserAndHash(int userId, String fileHash) {
+        String sql = "SELECT file_id, file_name, file_size, file_path, shared_date " +
+                     "FROM files " +
+                     "WHERE user_id = ? AND file_hash = ? " +
+                     "LIMIT 1";
+        
+        try (Connection conn = DatabaseConnection.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            
+            pstmt.setInt(1, userId);
+            pstmt.setString(2, fileHash);
+            
+            try (ResultSet rs = pstmt.executeQuery()) {
+                if (rs.next()) {
+                    FileInfo file = new FileInfo();
+                    file.setFileId(rs.getInt("file_id"));
+                    file.setUserId(userId);
+                    file.setFileName(rs.getString("file_name"));
+                    file.setFileSize(rs.getLong("file_size"));
+                    file.setFileHash(fileHash);
+                    file.setFilePath(rs.getString("file_path"));
+                    file.setSharedDate(rs.getTimestamp("shared_date"));
+                    return file;
+                }
+            }
+            
+        } catch (SQLException e) {
+            System.err.println("❌ Get file by user and hash error: " + e.getMessage());
+        }
+        
+        return null;
+    }
+    
+    /**
+     * Lấy tất cả bản sao của 1 file (cùng file_hash) trên các peer đang online
+     * Dùng cho swarm download (tải song song từ nhiều peer)
+     */
+    public List<FileInfo> getOnlineSourcesByHash(String fileHash) {
+        List<FileInfo> files = new ArrayList<>();
+        
+        String sql = 
+            "SELECT " +
+            "  f.file_id, " +
+            "  f.user_id, " +
+            "  f.file_name, " +
+            "  f.file_size, " +
+            "  f.file_hash, " +
+            "  f.file_path, " +
+            "  f.shared_date, " +
+            "  u.username, " +
+            "  p.ip_address, " +
+            "  p.port " +
+            "FROM files f " +
+            "INNER JOIN users u ON f.user_id = u.user_id " +
+            "INNER JOIN peers p ON f.user_id = p.user_id " +
+            "WHERE p.status = 'online' " +
+            "  AND f.file_hash = ?";
+        
+        try (Connection conn = DatabaseConnection.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            
+            pstmt.setString(1, fileHash);
+            
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    FileInfo file = new FileInfo();
+                    file.setFileId(rs.getInt("file_id"));
+                    file.setUserId(rs.getInt("user_id"));
+                    file.setFileName(rs.getString("file_name"));
+                    file.setFileSize(rs.getLong("file_size"));
+                    file.setFileHash(rs.getString("file_hash"));
+                    file.setFilePath(rs.getString("file_path"));
+                    file.setSharedDate(rs.getTimestamp("shared_date"));
+                    file.setOwnerUsername(rs.getString("username"));
+                    file.setPeerIp(rs.getString("ip_address"));
+                    file.setPeerPort(rs.getInt("port"));
+                    
+                    files.add(file);
+                }
+            }
+            
+            System.out.println("✅ Found " + files.size() + " online sources for hash " + fileHash);
+            
+        } catch (SQLException e) {
+            System.err.println("❌ Get sources by hash error: " + e.getMessage());
+        }
+        
+        return files;
+    }
+    
+    /**
+     * Lấy piece manifest của file (để kiểm tra từng piece khi tải)
+     * 
+     * @param fileHash SHA-256 của cả file
+     * @return Manifest, hoặc null nếu file upload trước khi có manifest
+     */
+    public PieceManifest getManifest(String fileHash) {
+        ensurePieceColumns();
+        
+        String sql = "SELECT file_size, piece_size, piece_hashes, merkle_root " +
+                     "FROM files " +
+                     "WHERE file_hash = ? AND piece_hashes IS NOT NULL " +
+                     "LIMIT 1";
+        
+        try (Connection conn = DatabaseConnection.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            
+            pstmt.setString(1, fileHash);
+            
+            try (ResultSet rs = pstmt.executeQuery()) {
+                if (rs.next()) {
+                    return PieceManifest.parse(rs.getInt("piece_size"), rs.getLong("file_size"),
+                                               rs.getString("piece_hashes"), rs.getString("merkle_root"));
+                }
+            }
+            
+        } catch (SQLException e) {
+            System.err.println("❌ Get manifest error: " + e.getMessage());
+        }
+        
+        return null;
+    }
+    
      /**
      * Xóa file
      */
     public boolean deleteFile(int fileId) {
+        BlobDAO.ensureBlobTable();
         String sql = "DELETE FROM files WHERE file_id = ?";
         
         try (Connection conn = DatabaseConnection.getConnection();
              PreparedStatement pstmt = conn.prepareStatement(sql)) {
             
-            pstmt.setInt(1, fileId);
-            int rows = pstmt.executeUpdate();
+            // Chủ file (để ghi vào catalog_changes) + hash (để bỏ tham chiếu blob)
+            int userId = 0;
+            String fileHash = null;
+            try (PreparedStatement owner = conn.prepareStatement("SELECT user_id, file_hash FROM files WHERE file_id = ?")) {
+                owner.setInt(1, fileId);
+                try (ResultSet rs = owner.executeQuery()) {
+                    if (rs.next()) {
+                        userId = rs.getInt(1);
+                        fileHash = rs.getString(2);
+                    }
+                }
+            }
+            
+            // DELETE + giảm ref_count trong 1 transaction
+            // (blob không bị xóa ở đây, BlobDAO.collectGarbage dọn sau)
+            int rows;
+            boolean autoCommit = conn.getAutoCommit();
+            conn.setAutoCommit(false);
+            try {
+                pstmt.setInt(1, fileId);
+                rows = pstmt.executeUpdate();
+                if (rows > 0 && fileHash != null) {
+                    BlobDAO.release(conn, fileHash, rows);
+                }
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(autoCommit);
+            }
             
             if (rows > 0) {
+                CatalogCache.bumpVersion(conn, userId);
+                FileNameIndex.onFileDeleted(fileId);
                 System.out.println("✅ File deleted: " + fileId);
                 return true;
             }
@@ -525,13 +1055,31 @@ public FileInfo findBestMatch(String fileName) {
      * Xóa tất cả file của user
      */
     public boolean deleteFilesByUser(int userId) {
+        BlobDAO.ensureBlobTable();
         String sql = "DELETE FROM files WHERE user_id = ?";
         
         try (Connection conn = DatabaseConnection.getConnection();
              PreparedStatement pstmt = conn.prepareStatement(sql)) {
             
-            pstmt.setInt(1, userId);
-            int rows = pstmt.executeUpdate();
+            // Giảm ref_count (đếm theo các dòng sắp xóa) + DELETE trong 1 transaction
+            int rows;
+            boolean autoCommit = conn.getAutoCommit();
+            conn.setAutoCommit(false);
+            try {
+                BlobDAO.releaseByUser(conn, userId);
+                pstmt.setInt(1, userId);
+                rows = pstmt.executeUpdate();
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(autoCommit);
+            }
+            if (rows > 0) {
+                CatalogCache.bumpVersion(conn, userId);
+                FileNameIndex.onUserFilesDeleted(userId);
+            }
             
             System.out.println("✅ Deleted " + rows + " files from user " + userId);
             return true;
@@ -546,6 +1094,120 @@ public FileInfo findBestMatch(String fileName) {
     // HELPER METHODS
     // ============================================
     
+    /**
+     * Đã kiểm tra các cột piece manifest chưa (chỉ kiểm tra 1 lần)
+     */
+    private static volatile boolean pieceColumnsChecked = false;
+    
+    /**
+     * Thêm các cột piece manifest vào bảng files nếu DB cũ chưa có
+     * (piece_size, piece_hashes, merkle_root)
+     */
+    private static synchronized void ensurePieceColumns() {
+        if (pieceColumnsChecked) return;
+        
+        try (Connection conn = DatabaseConnection.getConnection()) {
+            if (conn == null) return;
+            
+            boolean exists;
+            try (ResultSet rs = conn.getMetaData().getColumns(conn.getCatalog(), null, "files", "merkle_root")) {
+                exists = rs.next();
+            }
+            
+            if (!exists) {
+                try (Statement stmt = conn.createStatement()) {
+                    stmt.executeUpdate(
+                        "ALTER TABLE files " +
+                        "ADD COLUMN piece_size INT NULL, " +
+                        "ADD COLUMN piece_hashes MEDIUMTEXT NULL, " +
+                        "ADD COLUMN merkle_root CHAR(64) NULL"
+                    );
+                }
+                System.out.println("✅ Added piece manifest columns to files table");
+            }
+            
+            pieceColumnsChecked = true;
+            
+        } catch (SQLException e) {
+            System.err.println("❌ Ensure piece columns error: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * Đã kiểm tra index phân trang chưa (chỉ kiểm tra 1 lần)
+     */
+    private static volatile boolean pagingIndexChecked = false;
+    
+    /**
+     * Tạo index (shared_date, file_id) cho keyset pagination nếu DB cũ chưa có
+     */
+    private static synchronized void ensurePagingIndex() {
+        if (pagingIndexChecked) return;
+        
+        try (Connection conn = DatabaseConnection.getConnection()) {
+            if (conn == null) return;
+            
+            boolean exists = false;
+            try (ResultSet rs = conn.getMetaData().getIndexInfo(conn.getCatalog(), null, "files", false, false)) {
+                while (rs.next()) {
+                    if ("idx_files_shared_date".equalsIgnoreCase(rs.getString("INDEX_NAME"))) {
+                        exists = true;
+                    }
+                }
+            }
+            
+            if (!exists) {
+                try (Statement stmt = conn.createStatement()) {
+                    stmt.executeUpdate("CREATE INDEX idx_files_shared_date ON files (shared_date, file_id)");
+                }
+                System.out.println("✅ Added (shared_date, file_id) index to files table");
+            }
+            
+            pagingIndexChecked = true;
+            
+        } catch (SQLException e) {
+            System.err.println("❌ Ensure paging index error: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * Đã kiểm tra FULLTEXT index chưa (chỉ kiểm tra 1 lần)
+     */
+    private static volatile boolean fulltextIndexChecked = false;
+    
+    /**
+     * Tạo FULLTEXT index (ngram parser, tách được tên file không có khoảng trắng)
+     * cho chế độ tìm kiếm fulltext nếu DB chưa có
+     */
+    private static synchronized void ensureFulltextIndex() {
+        if (fulltextIndexChecked) return;
+        
+        try (Connection conn = DatabaseConnection.getConnection()) {
+            if (conn == null) return;
+            
+            boolean exists = false;
+            try (ResultSet rs = conn.getMetaData().getIndexInfo(conn.getCatalog(), null, "files", false, false)) {
+                while (rs.next()) {
+                    if ("ft_files_name".equalsIgnoreCase(rs.getString("INDEX_NAME"))) {
+                        exists = true;
+                    }
+                }
+            }
+            
+            if (!exists) {
+                try (Statement stmt = conn.createStatement()) {
+                    stmt.executeUpdate("ALTER TABLE files ADD FULLTEXT INDEX ft_files_name (file_name) WITH PARSER ngram");
+                }
+                System.out.println("✅ Added FULLTEXT (ngram) index to files table");
+            }
+            
+            fulltextIndexChecked = true;
+            
+        } catch (SQLException e) {
+            System.err.println("❌ Ensure fulltext index error: " + e.getMessage());
+        }
+    }
+    
     /**
      * Đếm số file của user
      */
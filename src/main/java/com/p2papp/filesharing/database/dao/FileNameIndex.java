@@ -0,0 +1,839 @@
+package com.p2papp.filesharing.database.dao;
+
+import com.p2papp.filesharing.database.DatabaseConnection;
+import com.p2papp.filesharing.utils.TextUtil;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Deque;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.IntConsumer;
+import java.util.function.IntPredicate;
+
+/**
+ * FileNameIndex.java - Inverted index trigram cho tên file (trong bộ nhớ)
+ *
+ * LIKE '%kw%' không dùng được index → mỗi lần tìm là full scan bảng files
+ * JOIN users + peers. Index này:
+ * - Tên file chuẩn hóa bằng TextUtil.fold (bỏ dấu, đ → d, chữ thường)
+ * - Mỗi trigram (3 ký tự liên tiếp) → danh sách slot chứa nó (tăng dần)
+ * - Tìm: giao các danh sách của trigram trong từ khóa (bắt đầu từ danh sách ngắn nhất),
+ *   kiểm tra lại bằng contains(), xếp hạng:
+ *   trùng hẳn > bắt đầu bằng từ khóa > từ khóa đầu 1 từ > chứa từ khóa,
+ *   cùng hạng thì tên ngắn hơn, rồi file mới hơn
+ * - Từ khóa < 3 ký tự: duyệt tuần tự các tên (vẫn không chạm DB)
+ *
+ * Mỗi file chiếm 1 slot; xóa chỉ đánh dấu slot, danh sách trigram dọn khi
+ * số slot chết vượt số slot sống (compact).
+ *
+ * Tìm gần đúng (findClosest, khi tên file nhận qua mạng bị sai encoding / gõ nhầm):
+ * BK-tree trên tên chuẩn hóa (TextUtil.normalizeFileName), dựng lúc cần lần đầu.
+ * Chỉ tính khoảng cách tới các node mà bất đẳng thức tam giác chưa loại được,
+ * dùng TextUtil.editDistance có giới hạn (dừng sớm) thay vì ma trận đầy đủ.
+ *
+ * Bản dùng chung (getShared) load từ bảng files 1 lần rồi theo catalog_changes
+ * để cập nhật file của các user có thay đổi (kể cả do client khác).
+ */
+public class FileNameIndex {
+
+    private static final int GRAM = 3;
+
+    /**
+     * Gọi liên tiếp trong khoảng này không đọc lại catalog version
+     */
+    private static final long CHECK_INTERVAL_MS = 1000;
+
+    private static final FileNameIndex SHARED = new FileNameIndex();
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // ============================================
+    // DATA (theo slot)
+    // ============================================
+
+    private int[] fileIds = new int[1024];
+    private int[] userIds = new int[1024];
+
+    /**
+     * Tên đã chuẩn hóa, null = slot đã xóa
+     */
+    private String[] names = new String[1024];
+
+    private int slots;
+    private int live;
+
+    /**
+     * file_id → slot
+     */
+    private Map<Integer, Integer> slotOf = new HashMap<>();
+
+    /**
+     * trigram → slot tăng dần (slot mới luôn lớn nhất nên chỉ cần nối vào cuối)
+     */
+    private Map<Long, Postings> postings = new HashMap<>();
+
+    /**
+     * BK-tree cho findClosest (null = chưa dựng, dựng lại sau compact / reload)
+     */
+    private BkNode fuzzyRoot;
+
+    // Đồng bộ với DB (chỉ bản dùng chung)
+    private volatile long version = -1;
+    private volatile long lastCheck;
+
+    FileNameIndex() {
+    }
+
+    /**
+     * Index dùng chung, đã đồng bộ với DB (load lần đầu / cập nhật theo catalog_changes)
+     */
+    public static FileNameIndex getShared() {
+        SHARED.sync();
+        return SHARED;
+    }
+
+    // ============================================
+    // UPDATE
+    // ============================================
+
+    /**
+     * FileDAO vừa thêm file → cập nhật ngay (nếu index dùng chung đã load)
+     */
+    static void onFileAdded(int fileId, int userId, String fileName) {
+        if (SHARED.version >= 0) {
+            SHARED.put(fileId, userId, fileName);
+        }
+    }
+
+    static void onFileDeleted(int fileId) {
+        if (SHARED.version >= 0) {
+            SHARED.remove(fileId);
+        }
+    }
+
+    static void onUserFilesDeleted(int userId) {
+        if (SHARED.version >= 0) {
+            SHARED.removeUser(userId);
+        }
+    }
+
+    /**
+     * Thêm / thay tên của 1 file
+     */
+    public void put(int fileId, int userId, String fileName) {
+        String folded = TextUtil.fold(fileName);
+
+        lock.writeLock().lock();
+        try {
+            Integer old = slotOf.get(fileId);
+            if (old != null) {
+                removeSlot(old);
+            }
+
+            int slot = slots++;
+            if (slot == names.length) {
+                int capacity = names.length * 2;
+                fileIds = Arrays.copyOf(fileIds, capacity);
+                userIds = Arrays.copyOf(userIds, capacity);
+                names = Arrays.copyOf(names, capacity);
+            }
+            fileIds[slot] = fileId;
+            userIds[slot] = userId;
+            names[slot] = folded;
+            slotOf.put(fileId, slot);
+            live++;
+
+            for (long gram : grams(folded)) {
+                postings.computeIfAbsent(gram, g -> new Postings()).add(slot);
+            }
+            if (fuzzyRoot != null) {
+                fuzzyInsert(slot);
+            }
+            compactIfSparse();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void remove(int fileId) {
+        lock.writeLock().lock();
+        try {
+            Integer slot = slotOf.get(fileId);
+            if (slot != null) {
+                removeSlot(slot);
+                compactIfSparse();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Xóa mọi file của 1 user
+     */
+    public void removeUser(int userId) {
+        lock.writeLock().lock();
+        try {
+            for (int slot = 0; slot < slots; slot++) {
+                if (names[slot] != null && userIds[slot] == userId) {
+                    removeSlot(slot);
+                }
+            }
+            compactIfSparse();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void removeSlot(int slot) {
+        slotOf.remove(fileIds[slot]);
+        names[slot] = null;
+        live--;
+    }
+
+    private void compactIfSparse() {
+        if (slots > 1024 && slots - live > live) {
+            compact();
+        }
+    }
+
+    /**
+     * Đánh số lại slot còn sống, dựng lại danh sách trigram (giữ thứ tự cũ)
+     */
+    private void compact() {
+        int[] oldFileIds = fileIds;
+        int[] oldUserIds = userIds;
+        String[] oldNames = names;
+        int oldSlots = slots;
+
+        int capacity = Math.max(1024, Integer.highestOneBit(Math.max(1, live)) * 2);
+        fileIds = new int[capacity];
+        userIds = new int[capacity];
+        names = new String[capacity];
+        slotOf = new HashMap<>();
+        postings = new HashMap<>();
+        fuzzyRoot = null;
+        slots = 0;
+        live = 0;
+
+        for (int old = 0; old < oldSlots; old++) {
+            if (oldNames[old] == null) continue;
+            int slot = slots++;
+            fileIds[slot] = oldFileIds[old];
+            userIds[slot] = oldUserIds[old];
+            names[slot] = oldNames[old];
+            slotOf.put(fileIds[slot], slot);
+            live++;
+            for (long gram : grams(names[slot])) {
+                postings.computeIfAbsent(gram, g -> new Postings()).add(slot);
+            }
+        }
+    }
+
+    // ============================================
+    // SEARCH
+    // ============================================
+
+    /**
+     * Tìm file có tên chứa từ khóa (bỏ dấu, không phân biệt hoa thường)
+     *
+     * @param keyword Từ khóa
+     * @param userFilter Chỉ lấy file của user thỏa điều kiện (VD: peer đang online), null = tất cả
+     * @param limit Số kết quả tối đa
+     * @return file_id theo thứ tự xếp hạng
+     */
+    public int[] search(String keyword, IntPredicate userFilter, int limit) {
+        String query = TextUtil.fold(keyword).trim();
+        if (query.isEmpty() || limit <= 0) {
+            return new int[0];
+        }
+
+        lock.readLock().lock();
+        try {
+            TopK top = new TopK(limit);
+
+            if (query.length() < GRAM) {
+                for (int slot = 0; slot < slots; slot++) {
+                    consider(slot, query, userFilter, top);
+                }
+            } else {
+                forEachCandidate(query, slot -> consider(slot, query, userFilter, top));
+            }
+
+            long[] ranked = top.sorted();
+            int[] result = new int[ranked.length];
+            for (int i = 0; i < ranked.length; i++) {
+                result[i] = fileIds[(int) (ranked[i] & SLOT_MASK)];
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Mảng tạm cho phép giao (tránh cấp phát mảng lớn mỗi lần tìm)
+     */
+    private static final ThreadLocal<int[]> SCRATCH = ThreadLocal.withInitial(() -> new int[1024]);
+
+    /**
+     * Duyệt các slot chứa mọi trigram của từ khóa (chưa kiểm tra contains)
+     */
+    private void forEachCandidate(String query, IntConsumer action) {
+        List<Postings> lists = new ArrayList<>();
+        for (long gram : grams(query)) {
+            Postings p = postings.get(gram);
+            if (p == null) {
+                return;
+            }
+            lists.add(p);
+        }
+        lists.sort(Comparator.comparingInt(p -> p.size));
+
+        Postings smallest = lists.get(0);
+        int[] buffer = SCRATCH.get();
+        if (buffer.length < smallest.size) {
+            buffer = new int[Integer.highestOneBit(smallest.size) * 2];
+            SCRATCH.set(buffer);
+        }
+        System.arraycopy(smallest.slots, 0, buffer, 0, smallest.size);
+
+        int size = smallest.size;
+        for (int i = 1; i < lists.size() && size > 0; i++) {
+            size = intersect(buffer, size, lists.get(i));
+        }
+        for (int i = 0; i < size; i++) {
+            action.accept(buffer[i]);
+        }
+    }
+
+    /**
+     * Giữ lại phần tử của a[0..size) có trong p (cả 2 đều tăng dần), ghi đè vào a
+     *
+     * @return Số phần tử còn lại
+     */
+    private static int intersect(int[] a, int size, Postings p) {
+        int[] b = p.slots;
+        int bSize = p.size;
+        int out = 0;
+        int j = 0;
+
+        for (int i = 0; i < size && j < bSize; i++) {
+            int target = a[i];
+            // b dài hơn nhiều → nhảy theo lũy thừa 2 rồi tìm nhị phân
+            if (b[j] < target) {
+                int step = 1;
+                int hi = j + 1;
+                while (hi < bSize && b[hi] < target) {
+                    j = hi;
+                    step <<= 1;
+                    hi = j + step;
+                }
+                int pos = Arrays.binarySearch(b, j, Math.min(hi + 1, bSize), target);
+                j = pos >= 0 ? pos : -pos - 1;
+            }
+            if (j < bSize && b[j] == target) {
+                a[out++] = target;
+                j++;
+            }
+        }
+        return out;
+    }
+
+    private void consider(int slot, String query, IntPredicate userFilter, TopK top) {
+        String name = names[slot];
+        if (name == null) return;
+
+        int at = name.indexOf(query);
+        if (at < 0) return;
+        if (userFilter != null && !userFilter.test(userIds[slot])) return;
+
+        int score;
+        if (at == 0 && name.length() == query.length()) {
+            score = 3;          // trùng hẳn
+        } else if (at == 0) {
+            score = 2;          // bắt đầu bằng từ khóa
+        } else if (!Character.isLetterOrDigit(name.charAt(at - 1))) {
+            score = 1;          // đầu 1 từ
+        } else {
+            score = 0;
+        }
+
+        // [score 2 bit][tên ngắn hơn 16 bit][slot 31 bit] → số lớn hơn = hạng cao hơn
+        long shortness = 0xFFFF - Math.min(name.length(), 0xFFFF);
+        top.offer(((long) score << 47) | (shortness << 31) | slot);
+    }
+
+    private static final long SLOT_MASK = (1L << 31) - 1;
+
+    // ============================================
+    // FUZZY SEARCH
+    // ============================================
+
+    /**
+     * Tìm file có tên gần giống nhất
+     *
+     * Độ tương đồng = 1 - khoảng cách / độ dài tên dài hơn (trên tên đã normalizeFileName).
+     * Tìm theo ngưỡng khoảng cách tăng dần (0, 1, 2, 4...) → tên chỉ sai 1-2 ký tự
+     * chỉ chạm vài node; ngưỡng lớn nhất suy ra từ minSimilarity.
+     *
+     * @param fileName Tên cần tìm
+     * @param minSimilarity Độ tương đồng tối thiểu (VD: 0.8)
+     * @param userFilter Chỉ lấy file của user thỏa điều kiện, null = tất cả
+     * @return file_id, hoặc -1 nếu không có tên nào đủ giống
+     */
+    public int findClosest(String fileName, double minSimilarity, IntPredicate userFilter) {
+        String query = TextUtil.normalizeFileName(fileName);
+        if (query.isEmpty() || minSimilarity <= 0) {
+            return -1;
+        }
+
+        ensureFuzzyTree();
+
+        lock.readLock().lock();
+        try {
+            if (fuzzyRoot == null) {
+                return -1;
+            }
+
+            // Tên dài L' >= L khớp được khi d <= (1 - s) * L' và d >= L' - L → d <= (1 - s) * L / s
+            int maxTolerance = (int) Math.floor((1 - minSimilarity) * query.length() / minSimilarity + 1e-9);
+
+            FuzzyMatch best = new FuzzyMatch(query, minSimilarity, userFilter);
+            int tolerance = 0;
+            while (true) {
+                fuzzyScan(query, tolerance, best);
+                if (best.slot >= 0) {
+                    // Kết quả tốt hơn phải có d < (1 - best) * L / best
+                    maxTolerance = Math.min(maxTolerance,
+                        (int) Math.floor((1 - best.similarity) * query.length() / best.similarity + 1e-9));
+                }
+                if (tolerance >= maxTolerance) break;
+                tolerance = Math.min(maxTolerance, tolerance == 0 ? 1 : tolerance * 2);
+            }
+
+            return best.slot >= 0 ? fileIds[best.slot] : -1;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Dựng BK-tree từ các slot đang sống (lần tìm gần đúng đầu tiên)
+     */
+    private void ensureFuzzyTree() {
+        lock.readLock().lock();
+        try {
+            if (fuzzyRoot != null || live == 0) return;
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        lock.writeLock().lock();
+        try {
+            if (fuzzyRoot != null) return;
+            long start = System.currentTimeMillis();
+            for (int slot = 0; slot < slots; slot++) {
+                if (names[slot] != null) {
+                    fuzzyInsert(slot);
+                }
+            }
+            if (fuzzyRoot != null && this == SHARED) {
+                System.out.println("✅ Fuzzy name index built: " + live + " files (" +
+                                   (System.currentTimeMillis() - start) + " ms)");
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Thêm slot vào BK-tree (cùng tên chuẩn hóa → chung 1 node)
+     */
+    private void fuzzyInsert(int slot) {
+        String key = TextUtil.normalizeFileName(names[slot]);
+        if (fuzzyRoot == null) {
+            fuzzyRoot = new BkNode(key, slot);
+            return;
+        }
+
+        BkNode node = fuzzyRoot;
+        while (true) {
+            int d = TextUtil.editDistance(key, node.key, Math.max(key.length(), node.key.length()));
+            if (d == 0) {
+                node.addSlot(slot);
+                return;
+            }
+            BkNode child = node.child(d);
+            if (child == null) {
+                node.addChild(d, new BkNode(key, slot));
+                return;
+            }
+            node = child;
+        }
+    }
+
+    /**
+     * Duyệt các node có thể cách query <= tolerance
+     * (con ở khoảng cách k chỉ cần xét khi |d - k| <= tolerance)
+     */
+    private void fuzzyScan(String query, int tolerance, FuzzyMatch best) {
+        Deque<BkNode> stack = new ArrayDeque<>();
+        stack.push(fuzzyRoot);
+
+        while (!stack.isEmpty()) {
+            BkNode node = stack.pop();
+
+            // Chỉ cần khoảng cách chính xác tới tolerance + khoảng cách con xa nhất
+            int limit = tolerance + node.maxChildDistance;
+            int d = TextUtil.editDistance(query, node.key, limit);
+
+            if (d <= tolerance) {
+                best.offer(node, d, names);
+            }
+            if (d > limit) continue;
+
+            for (int i = 0; i < node.childCount; i++) {
+                int k = node.childDistances[i];
+                if (k >= d - tolerance && k <= d + tolerance) {
+                    stack.push(node.children[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Kết quả tốt nhất đang có của findClosest
+     */
+    private class FuzzyMatch {
+        private final String query;
+        private final double minSimilarity;
+        private final IntPredicate userFilter;
+        int slot = -1;
+        double similarity;
+
+        FuzzyMatch(String query, double minSimilarity, IntPredicate userFilter) {
+            this.query = query;
+            this.minSimilarity = minSimilarity;
+            this.userFilter = userFilter;
+        }
+
+        void offer(BkNode node, int distance, String[] names) {
+            double s = 1.0 - (double) distance / Math.max(query.length(), node.key.length());
+            if (s < minSimilarity || s < similarity) return;
+
+            // Cùng tên → lấy file mới nhất (slot lớn nhất) còn sống
+            for (int i = node.slotCount - 1; i >= 0; i--) {
+                int candidate = node.slots[i];
+                if (names[candidate] == null) continue;
+                if (userFilter != null && !userFilter.test(userIds[candidate])) continue;
+
+                if (s > similarity || candidate > slot) {
+                    slot = candidate;
+                    similarity = s;
+                }
+                return;
+            }
+        }
+    }
+
+    // ============================================
+    // SYNC (bản dùng chung)
+    // ============================================
+
+    /**
+     * Đồng bộ với bảng files (tối đa 1 lần / CHECK_INTERVAL_MS)
+     */
+    private void sync() {
+        if (System.currentTimeMillis() - lastCheck < CHECK_INTERVAL_MS) {
+            return;
+        }
+
+        synchronized (this) {
+            if (System.currentTimeMillis() - lastCheck < CHECK_INTERVAL_MS) {
+                return;
+            }
+
+            // Đọc version TRƯỚC khi load → thay đổi giữa chừng được thấy ở lần sau
+            long current = CatalogCache.readVersion();
+            lastCheck = System.currentTimeMillis();
+            if (current < 0 || current == version) {
+                return;
+            }
+
+            CatalogCache.Changes changes = version < 0 ? null : CatalogCache.readChanges(version);
+            if (changes == null) {
+                reloadAll();
+            } else {
+                reloadUsers(changes.users);
+            }
+            version = current;
+        }
+    }
+
+    private void reloadAll() {
+        long start = System.currentTimeMillis();
+        FileNameIndex fresh = new FileNameIndex();
+
+        try (Connection conn = DatabaseConnection.getConnection()) {
+            if (conn == null) return;
+
+            try (PreparedStatement pstmt = conn.prepareStatement("SELECT file_id, user_id, file_name FROM files")) {
+                // Connector/J: đọc từng dòng thay vì giữ cả result set trong bộ nhớ
+                pstmt.setFetchSize(Integer.MIN_VALUE);
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    while (rs.next()) {
+                        fresh.put(rs.getInt(1), rs.getInt(2), rs.getString(3));
+                    }
+                }
+            }
+
+        } catch (SQLException e) {
+            System.err.println("❌ Load file name index error: " + e.getMessage());
+            return;
+        }
+
+        lock.writeLock().lock();
+        try {
+            fileIds = fresh.fileIds;
+            userIds = fresh.userIds;
+            names = fresh.names;
+            slots = fresh.slots;
+            live = fresh.live;
+            slotOf = fresh.slotOf;
+            postings = fresh.postings;
+            fuzzyRoot = null;
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        System.out.println("✅ File name index loaded: " + live + " files, " + postings.size() +
+                           " trigrams (" + (System.currentTimeMillis() - start) + " ms)");
+    }
+
+    private void reloadUsers(Iterable<Integer> users) {
+        List<Integer> ids = new ArrayList<>();
+        users.forEach(ids::add);
+        if (ids.isEmpty()) return;
+
+        String placeholders = String.join(", ", Collections.nCopies(ids.size(), "?"));
+        String sql = "SELECT file_id, user_id, file_name FROM files WHERE user_id IN (" + placeholders + ")";
+
+        try (Connection conn = DatabaseConnection.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+
+            for (int i = 0; i < ids.size(); i++) {
+                pstmt.setInt(i + 1, ids.get(i));
+            }
+            try (ResultSet rs = pstmt.executeQuery()) {
+                lock.writeLock().lock();
+                try {
+                    for (int userId : ids) {
+                        removeUser(userId);
+                    }
+                    while (rs.next()) {
+                        put(rs.getInt(1), rs.getInt(2), rs.getString(3));
+                    }
+                } finally {
+                    lock.writeLock().unlock();
+                }
+            }
+
+        } catch (SQLException e) {
+            System.err.println("❌ Update file name index error: " + e.getMessage());
+        }
+    }
+
+    // ============================================
+    // GETTERS
+    // ============================================
+
+    /**
+     * Số file đang có trong index
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return live;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Số trigram khác nhau
+     */
+    public int getTrigramCount() {
+        lock.readLock().lock();
+        try {
+            return postings.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // ============================================
+    // HELPER METHODS
+    // ============================================
+
+    /**
+     * Các trigram khác nhau của chuỗi (3 ký tự 16 bit gói vào 1 long)
+     */
+    private static long[] grams(String s) {
+        int count = s.length() - GRAM + 1;
+        if (count <= 0) {
+            return new long[0];
+        }
+
+        long[] grams = new long[count];
+        for (int i = 0; i < count; i++) {
+            grams[i] = ((long) s.charAt(i) << 32) | ((long) s.charAt(i + 1) << 16) | s.charAt(i + 2);
+        }
+        Arrays.sort(grams);
+
+        int distinct = 0;
+        for (int i = 0; i < count; i++) {
+            if (i == 0 || grams[i] != grams[i - 1]) {
+                grams[distinct++] = grams[i];
+            }
+        }
+        return Arrays.copyOf(grams, distinct);
+    }
+
+    /**
+     * Danh sách slot tăng dần của 1 trigram
+     */
+    private static class Postings {
+        int[] slots = new int[4];
+        int size;
+
+        void add(int slot) {
+            if (size == slots.length) {
+                slots = Arrays.copyOf(slots, size * 2);
+            }
+            slots[size++] = slot;
+        }
+    }
+
+    /**
+     * Node BK-tree: 1 tên chuẩn hóa, các slot có tên đó, con theo khoảng cách
+     */
+    private static class BkNode {
+        final String key;
+        int[] slots = new int[1];
+        int slotCount;
+
+        int[] childDistances;
+        BkNode[] children;
+        int childCount;
+        int maxChildDistance;
+
+        BkNode(String key, int slot) {
+            this.key = key;
+            addSlot(slot);
+        }
+
+        void addSlot(int slot) {
+            if (slotCount == slots.length) {
+                slots = Arrays.copyOf(slots, slotCount * 2);
+            }
+            slots[slotCount++] = slot;
+        }
+
+        BkNode child(int distance) {
+            for (int i = 0; i < childCount; i++) {
+                if (childDistances[i] == distance) return children[i];
+            }
+            return null;
+        }
+
+        void addChild(int distance, BkNode child) {
+            if (children == null) {
+                childDistances = new int[4];
+                children = new BkNode[4];
+            } else if (childCount == children.length) {
+                childDistances = Arrays.copyOf(childDistances, childCount * 2);
+                children = Arrays.copyOf(children, childCount * 2);
+            }
+            childDistances[childCount] = distance;
+            children[childCount++] = child;
+            maxChildDistance = Math.max(maxChildDistance, distance);
+        }
+    }
+
+    /**
+     * Giữ k giá trị lớn nhất (min-heap trên mảng long)
+     */
+    private static class TopK {
+        private final int k;
+        private long[] heap = new long[16];
+        private int size;
+
+        TopK(int k) {
+            this.k = k;
+        }
+
+        void offer(long value) {
+            if (size < k) {
+                if (size == heap.length) {
+                    heap = Arrays.copyOf(heap, (int) Math.min((long) size * 2, Math.max(k, 16)));
+                }
+                heap[size] = value;
+                siftUp(size++);
+            } else if (value > heap[0]) {
+                heap[0] = value;
+                siftDown(0);
+            }
+        }
+
+        /**
+         * Giảm dần (hạng cao nhất trước)
+         */
+        long[] sorted() {
+            long[] result = Arrays.copyOf(heap, size);
+            Arrays.sort(result);
+            for (int i = 0, j = result.length - 1; i < j; i++, j--) {
+                long t = result[i];
+                result[i] = result[j];
+                result[j] = t;
+            }
+            return result;
+        }
+
+        private void siftUp(int i) {
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (heap[parent] <= heap[i]) break;
+                swap(i, parent);
+                i = parent;
+            }
+        }
+
+        private void siftDown(int i) {
+            while (true) {
+                int left = 2 * i + 1;
+                if (left >= size) break;
+                int smallest = left + 1 < size && heap[left + 1] < heap[left] ? left + 1 : left;
+                if (heap[i] <= heap[smallest]) break;
+                swap(i, smallest);
+                i = smallest;
+            }
+        }
+
+        private void swap(int a, int b) {
+            long t = heap[a];
+            heap[a] = heap[b];
+            heap[b] = t;
+        }
+    }
+}
@@ -8,7 +8,10 @@ import com.p2papp.filesharing.database.DatabaseConnection;
 import com.p2papp.filesharing.model.Peer;
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Objects;
 
 /**
  * PeerDAO.java - Data Access Object cho bảng peers
@@ -61,6 +64,7 @@ public class PeerDAO {
             int rows = pstmt.executeUpdate();
             
             if (rows > 0) {
+                CatalogCache.bumpVersion(conn, userId);
                 System.out.println("✅ Peer registered: " + ipAddress + ":" + port);
                 return true;
             }
@@ -123,6 +127,86 @@ public class PeerDAO {
 }
 
     
+    /**
+     * Thay đổi của danh sách getOnlinePeers() từ version cho trước
+     *
+     * Chỉ query lại peer của các user có thay đổi (xem catalog_changes),
+     * không tính được thì trả delta đầy đủ.
+     */
+    public CatalogDelta<Peer> getChangesSince(long version) {
+        CatalogCache.Changes changes = CatalogCache.readChanges(version);
+        if (changes == null) {
+            long current = CatalogCache.readVersion();
+            return fullDelta(version, current, getOnlinePeers());
+        }
+        if (changes.users.isEmpty()) {
+            return fullDelta(version, version, new ArrayList<>()).unchanged(version);
+        }
+        
+        List<Peer> peers = new ArrayList<>();
+        String placeholders = String.join(", ", Collections.nCopies(changes.users.size(), "?"));
+        String sql = "SELECT p.*, u.username " +
+                     "FROM peers p " +
+                     "JOIN users u ON p.user_id = u.user_id " +
+                     "WHERE p.status = 'online' AND p.user_id IN (" + placeholders + ") " +
+                     "ORDER BY p.last_seen DESC";
+        
+        try (Connection conn = DatabaseConnection.getConnection();
+             PreparedStatement ps = conn.prepareStatement(sql)) {
+            
+            int index = 1;
+            for (int userId : changes.users) {
+                ps.setInt(index++, userId);
+            }
+            
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    Peer peer = new Peer();
+                    peer.setPeerId(rs.getInt("peer_id"));
+                    peer.setUserId(rs.getInt("user_id"));
+                    peer.setIpAddress(rs.getString("ip_address"));
+                    peer.setPort(rs.getInt("port"));
+                    peer.setStatus(rs.getString("status"));
+                    peer.setLastSeen(rs.getTimestamp("last_seen"));
+                    peer.setUsername(rs.getString("username"));
+                    peers.add(peer);
+                }
+            }
+            
+        } catch (SQLException e) {
+            System.err.println("❌ Get peer changes error: " + e.getMessage());
+            long current = CatalogCache.readVersion();
+            return fullDelta(version, current, getOnlinePeers());
+        }
+        
+        return new CatalogDelta<>(version, changes.version, false, changes.users, peers,
+                                  Peer::getPeerId, Peer::getUserId,
+                                  PeerDAO::sameRow, ONLINE_PEERS_ORDER);
+    }
+    
+    /**
+     * Delta thay toàn bộ list bằng peers
+     */
+    static CatalogDelta<Peer> fullDelta(long from, long version, List<Peer> peers) {
+        return new CatalogDelta<>(from, version, true, Collections.emptySet(), peers,
+                                  Peer::getPeerId, Peer::getUserId,
+                                  PeerDAO::sameRow, ONLINE_PEERS_ORDER);
+    }
+    
+    /**
+     * Thứ tự của getOnlinePeers(): last_seen DESC
+     */
+    private static final Comparator<Peer> ONLINE_PEERS_ORDER =
+        Comparator.comparing(Peer::getLastSeen, Comparator.nullsLast(Comparator.<Timestamp>reverseOrder()));
+    
+    private static boolean sameRow(Peer a, Peer b) {
+        return a.getPort() == b.getPort()
+            && Objects.equals(a.getIpAddress(), b.getIpAddress())
+            && Objects.equals(a.getStatus(), b.getStatus())
+            && Objects.equals(a.getLastSeen(), b.getLastSeen())
+            && Objects.equals(a.getUsername(), b.getUsername());
+    }
+    
     /**
      * Lấy tất cả peers (online + offline)
      */
@@ -135,8 +219,8 @@ public class PeerDAO {
                      "ORDER BY p.status DESC, p.last_seen DESC"; // online trước
         
         try (Connection conn = DatabaseConnection.getConnection();
-             Statement stmt = conn.createStatement();
-             ResultSet rs = stmt.executeQuery(sql)) {
+             PreparedStatement pstmt = conn.prepareStatement(sql);
+             ResultSet rs = pstmt.executeQuery()) {
             
             while (rs.next()) {
                 Peer peer = new Peer();
@@ -209,6 +293,7 @@ public class PeerDAO {
             int rows = pstmt.executeUpdate();
             
             if (rows > 0) {
+                CatalogCache.bumpVersion(conn, userId);
                 System.out.println("✅ Peer offline: user_id=" + userId);
                 return true;
             }
@@ -233,6 +318,7 @@ public class PeerDAO {
             int rows = pstmt.executeUpdate();
             
             if (rows > 0) {
+                CatalogCache.bumpVersion(conn, userId);
                 System.out.println("✅ Peer online: user_id=" + userId);
                 return true;
             }
@@ -279,6 +365,7 @@ public class PeerDAO {
             int rows = pstmt.executeUpdate();
             
             if (rows > 0) {
+                CatalogCache.bumpVersion(conn, userId);
                 System.out.println("✅ Peer deleted: user_id=" + userId);
                 return true;
             }
@@ -325,8 +412,8 @@ public class PeerDAO {
         String sql = "SELECT COUNT(*) FROM peers WHERE status = 'online'";
         
         try (Connection conn = DatabaseConnection.getConnection();
-             Statement stmt = conn.createStatement();
-             ResultSet rs = stmt.executeQuery(sql)) {
+             PreparedStatement pstmt = conn.prepareStatement(sql);
+             ResultSet rs = pstmt.executeQuery()) {
             
             if (rs.next()) {
                 return rs.getInt(1);
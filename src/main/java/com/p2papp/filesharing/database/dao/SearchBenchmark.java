@@ -0,0 +1,243 @@
+package com.p2papp.filesharing.database.dao;
+
+import com.p2papp.filesharing.utils.TextUtil;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * SearchBenchmark.java - Đo tìm kiếm tên file: FileNameIndex vs duyệt tuần tự
+ *
+ * Sinh N tên file giả (tiếng Việt có dấu + tiếng Anh + số + đuôi file),
+ * dựng FileNameIndex rồi so với cách LIKE '%kw%' làm: duyệt từng tên, bỏ dấu, contains().
+ * (Baseline này còn nhanh hơn MySQL thật vì không có JOIN / mạng.)
+ *
+ * Phần 2: tìm gần đúng (tên gõ sai 1-3 ký tự) bằng BK-tree (findClosest)
+ * so với cách cũ: Levenshtein ma trận đầy đủ với từng tên.
+ *
+ * Không cần MySQL.
+ *
+ * Cách chạy:
+ * mvn compile exec:java -Dexec.mainClass="com.p2papp.filesharing.database.dao.SearchBenchmark" -Dexec.args="1000000 200"
+ * (args: số tên file, số lần tìm mỗi từ khóa)
+ */
+public class SearchBenchmark {
+
+    private static final String[] WORDS = {
+        "báo", "cáo", "đồ", "án", "tốt", "nghiệp", "luận", "văn", "bài", "giảng",
+        "mạng", "máy", "tính", "cơ", "sở", "dữ", "liệu", "hệ", "điều", "hành",
+        "report", "final", "draft", "lecture", "notes", "slides", "project", "thesis",
+        "music", "video", "photo", "backup", "setup", "install", "ubuntu", "windows",
+        "nhạc", "phim", "ảnh", "sách", "tài", "liệu", "học", "kỳ", "đề", "thi"
+    };
+
+    /**
+     * Ghép âm tiết ngẫu nhiên → thêm vài nghìn từ khác nhau (tên riêng, viết tắt...)
+     */
+    private static final String[] ONSETS = {"b", "c", "ch", "d", "đ", "g", "h", "k", "kh", "l", "m", "n", "ng",
+                                            "nh", "ph", "qu", "r", "s", "t", "th", "tr", "v", "x"};
+    private static final String[] RHYMES = {"a", "ai", "an", "ang", "anh", "ao", "âm", "ân", "e", "em", "ên", "i",
+                                            "im", "inh", "o", "oa", "oan", "ong", "ô", "ôi", "ơn", "u", "uy", "ư", "ương"};
+
+    private static final String[] EXTENSIONS = {
+        ".pdf", ".docx", ".pptx", ".zip", ".mp3", ".mp4", ".jpg", ".txt", ".iso", ".xlsx"
+    };
+
+    private static final String[] QUERIES = {
+        "đồ án",        // 2 từ, có dấu
+        "do an",        // cùng từ khóa, gõ không dấu
+        "thesis",       // 1 từ
+        "nghiep_2019",  // hiếm: từ + năm
+        "khoanh",       // tên riêng (ghép âm tiết)
+        "Trương",       // có dấu + chữ hoa
+        "mp4",          // đuôi file, rất nhiều kết quả
+        "zz",           // < 3 ký tự → duyệt tuần tự trong index
+        "qwerty"        // không có kết quả
+    };
+
+    public static void main(String[] args) {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+
+        System.out.println("╔════════════════════════════════════════╗");
+        System.out.println("║   FILE NAME SEARCH BENCHMARK           ║");
+        System.out.println("╚════════════════════════════════════════╝\n");
+
+        String[] names = generateNames(count, new Random(42));
+
+        long heapBefore = usedHeap();
+        long start = System.nanoTime();
+        FileNameIndex index = new FileNameIndex();
+        for (int i = 0; i < names.length; i++) {
+            index.put(i + 1, i % 500, names[i]);
+        }
+        long buildMs = (System.nanoTime() - start) / 1_000_000;
+        long heapAfter = usedHeap();
+
+        System.out.printf("Index: %,d names, %,d trigrams, built in %,d ms, ~%,d MB heap%n%n",
+                          index.size(), index.getTrigramCount(), buildMs, (heapAfter - heapBefore) >> 20);
+
+        // Baseline: giữ tên gốc như DB, mỗi lần tìm bỏ dấu + contains từng dòng
+        System.out.printf("%-14s %10s %12s %12s %12s %12s%n",
+                          "query", "matches", "index p50", "index p99", "scan p50", "scan p99");
+
+        for (String query : QUERIES) {
+            // Trang đầu của bảng All Files (200 kết quả xếp hạng)
+            long[] indexNanos = measure(rounds, () -> index.search(query, null, FileDAO.DEFAULT_PAGE_SIZE));
+            long[] scanNanos = measure(Math.max(3, rounds / 20), () -> scan(names, query));
+            int matches = index.search(query, null, Integer.MAX_VALUE).length;
+
+            System.out.printf("%-14s %,10d %9.3f ms %9.3f ms %9.1f ms %9.1f ms%n",
+                              query, matches,
+                              percentile(indexNanos, 0.50) / 1e6, percentile(indexNanos, 0.99) / 1e6,
+                              percentile(scanNanos, 0.50) / 1e6, percentile(scanNanos, 0.99) / 1e6);
+        }
+
+        benchmarkFuzzy(index, names, rounds);
+    }
+
+    // ============================================
+    // FUZZY
+    // ============================================
+
+    private static void benchmarkFuzzy(FileNameIndex index, String[] names, int rounds) {
+        long start = System.nanoTime();
+        index.findClosest("warm up", 0.8, null);
+        System.out.printf("%nBK-tree built in %,d ms%n%n", (System.nanoTime() - start) / 1_000_000);
+
+        // Tên có thật bị sửa 0-3 ký tự + 1 tên không giống gì
+        Random random = new Random(7);
+        String[] queries = new String[5];
+        for (int edits = 0; edits < 4; edits++) {
+            queries[edits] = mutate(names[random.nextInt(names.length)], edits, random);
+        }
+        queries[4] = "zzqx_unrelated_name.bin";
+
+        String[] normalized = new String[names.length];
+        for (int i = 0; i < names.length; i++) {
+            normalized[i] = TextUtil.normalizeFileName(names[i]);
+        }
+
+        System.out.printf("%-34s %10s %12s %12s %12s%n", "query", "found", "bk p50", "bk p99", "matrix p50");
+
+        for (String query : queries) {
+            long[] bkNanos = measure(rounds, () -> index.findClosest(query, 0.8, null));
+            long[] matrixNanos = measure(3, () -> closestByMatrix(normalized, query));
+            int found = index.findClosest(query, 0.8, null);
+
+            System.out.printf("%-34s %10s %9.3f ms %9.3f ms %9.1f ms%n",
+                              query.length() > 34 ? query.substring(0, 31) + "..." : query,
+                              found >= 0 ? "#" + found : "-",
+                              percentile(bkNanos, 0.50) / 1e6, percentile(bkNanos, 0.99) / 1e6,
+                              percentile(matrixNanos, 0.50) / 1e6);
+        }
+    }
+
+    /**
+     * Sửa ngẫu nhiên vài ký tự (thay / xóa / chèn)
+     */
+    private static String mutate(String name, int edits, Random random) {
+        StringBuilder sb = new StringBuilder(name);
+        for (int i = 0; i < edits; i++) {
+            int pos = random.nextInt(sb.length());
+            switch (random.nextInt(3)) {
+                case 0: sb.setCharAt(pos, (char) ('a' + random.nextInt(26))); break;
+                case 1: sb.deleteCharAt(pos); break;
+                default: sb.insert(pos, (char) ('a' + random.nextInt(26))); break;
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Cách cũ: Levenshtein ma trận (n+1) x (m+1) với từng tên
+     */
+    private static int closestByMatrix(String[] normalized, String query) {
+        String target = TextUtil.normalizeFileName(query);
+        int best = -1;
+        double bestSimilarity = 0;
+
+        for (int i = 0; i < normalized.length; i++) {
+            String s = normalized[i];
+            int[][] dp = new int[target.length() + 1][s.length() + 1];
+            for (int a = 0; a <= target.length(); a++) dp[a][0] = a;
+            for (int b = 0; b <= s.length(); b++) dp[0][b] = b;
+            for (int a = 1; a <= target.length(); a++) {
+                for (int b = 1; b <= s.length(); b++) {
+                    int cost = target.charAt(a - 1) == s.charAt(b - 1) ? 0 : 1;
+                    dp[a][b] = Math.min(Math.min(dp[a - 1][b] + 1, dp[a][b - 1] + 1), dp[a - 1][b - 1] + cost);
+                }
+            }
+            double similarity = 1.0 - (double) dp[target.length()][s.length()] / Math.max(1, Math.max(target.length(), s.length()));
+            if (similarity > bestSimilarity) {
+                bestSimilarity = similarity;
+                best = i;
+            }
+        }
+        return bestSimilarity >= 0.8 ? best + 1 : -1;
+    }
+
+    private static String[] generateNames(int count, Random random) {
+        String[] names = new String[count];
+        StringBuilder sb = new StringBuilder();
+
+        for (int i = 0; i < count; i++) {
+            sb.setLength(0);
+            int words = 2 + random.nextInt(4);
+            for (int w = 0; w < words; w++) {
+                if (w > 0) sb.append(random.nextBoolean() ? '_' : ' ');
+                String word = random.nextInt(3) == 0
+                    ? WORDS[random.nextInt(WORDS.length)]
+                    : ONSETS[random.nextInt(ONSETS.length)] + RHYMES[random.nextInt(RHYMES.length)] +
+                      ONSETS[random.nextInt(ONSETS.length)] + RHYMES[random.nextInt(RHYMES.length)];
+                sb.append(random.nextInt(4) == 0 ? Character.toUpperCase(word.charAt(0)) + word.substring(1) : word);
+            }
+            if (random.nextInt(3) == 0) {
+                sb.append('_').append(2000 + random.nextInt(26));
+            }
+            sb.append(EXTENSIONS[random.nextInt(EXTENSIONS.length)]);
+            names[i] = sb.toString();
+        }
+        return names;
+    }
+
+    /**
+     * Cách cũ: duyệt toàn bộ, chuẩn hóa từng tên rồi contains()
+     */
+    private static int scan(String[] names, String query) {
+        String folded = TextUtil.fold(query);
+        int matches = 0;
+        for (String name : names) {
+            if (TextUtil.fold(name).contains(folded)) {
+                matches++;
+            }
+        }
+        return matches;
+    }
+
+    private static long[] measure(int rounds, Runnable action) {
+        // Warm-up
+        for (int i = 0; i < Math.max(1, rounds / 10); i++) {
+            action.run();
+        }
+        long[] nanos = new long[rounds];
+        for (int i = 0; i < rounds; i++) {
+            long start = System.nanoTime();
+            action.run();
+            nanos[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(nanos);
+        return nanos;
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        return sorted[Math.min(sorted.length - 1, (int) (sorted.length * p))];
+    }
+
+    private static long usedHeap() {
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+}
@@ -212,8 +212,8 @@ public class UserDAO {
         String sql = "SELECT * FROM users ORDER BY created_at DESC";
         
         try (Connection conn = DatabaseConnection.getConnection();
-             Statement stmt = conn.createStatement();
-             ResultSet rs = stmt.executeQuery(sql)) {
+             PreparedStatement pstmt = conn.prepareStatement(sql);
+             ResultSet rs = pstmt.executeQuery()) {
             
             while (rs.next()) {
                 User user = new User();
@@ -316,6 +316,8 @@ public class UserDAO {
             int rows = pstmt.executeUpdate();
             
             if (rows > 0) {
+                // CASCADE xoá cả files/peers của user
+                CatalogCache.bumpVersion(conn, userId);
                 System.out.println("✅ User deleted: " + userId);
                 return true;
             }
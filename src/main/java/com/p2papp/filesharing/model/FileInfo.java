@@ -28,6 +28,10 @@ public class FileInfo {
     private int peerPort;    // Port của peer
     // Thông tin bổ sung
     private String ownerUsername; // Username của người chia sẻ
+    // Piece manifest (kiểm tra từng piece khi tải)
+    private int pieceSize;        // Kích thước 1 piece (bytes)
+    private String pieceHashes;   // SHA-256 từng piece, nối liền (hex)
+    private String merkleRoot;    // Merkle root của các piece hash
     
     // ============================================
     // CONSTRUCTORS
@@ -132,6 +136,30 @@ public class FileInfo {
         this.ownerUsername = ownerUsername;
     }
     
+    public int getPieceSize() {
+        return pieceSize;
+    }
+    
+    public void setPieceSize(int pieceSize) {
+        this.pieceSize = pieceSize;
+    }
+    
+    public String getPieceHashes() {
+        return pieceHashes;
+    }
+    
+    public void setPieceHashes(String pieceHashes) {
+        this.pieceHashes = pieceHashes;
+    }
+    
+    public String getMerkleRoot() {
+        return merkleRoot;
+    }
+    
+    public void setMerkleRoot(String merkleRoot) {
+        this.merkleRoot = merkleRoot;
+    }
+    
     // ============================================
     // HELPER METHODS
     // ============================================
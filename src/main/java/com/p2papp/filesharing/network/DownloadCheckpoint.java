@@ -0,0 +1,142 @@
+package com.p2papp.filesharing.network;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+/**
+ * DownloadCheckpoint.java - Trạng thái download dở dang (để resume)
+ *
+ * Với file đích "a.pdf":
+ * - a.pdf.part      : dữ liệu đã nhận
+ * - a.pdf.part.meta : sidecar (tên file nguồn, tổng size, số byte đã xác nhận)
+ *
+ * Chỉ các byte trước verifiedBytes được tin là đã ghi xuống disk (fsync).
+ * Lần tải sau bắt đầu lại từ verifiedBytes thay vì byte 0.
+ */
+public class DownloadCheckpoint {
+
+    private final File targetFile;
+    private final File partFile;
+    private final File metaFile;
+    private final String source;
+
+    private long totalSize = -1;
+    private long verifiedBytes = 0;
+
+    private DownloadCheckpoint(File targetFile, String source) {
+        this.targetFile = targetFile;
+        this.partFile = new File(targetFile.getPath() + ".part");
+        this.metaFile = new File(targetFile.getPath() + ".part.meta");
+        this.source = source;
+    }
+
+    /**
+     * Mở checkpoint cho file đích
+     * Nếu sidecar thuộc file nguồn khác → bỏ dữ liệu cũ, tải lại từ đầu
+     *
+     * @param targetFile File đích cuối cùng
+     * @param source Định danh file nguồn (tên file hoặc hash)
+     */
+    public static DownloadCheckpoint open(File targetFile, String source) {
+        DownloadCheckpoint cp = new DownloadCheckpoint(targetFile, source);
+
+        if (cp.metaFile.exists() && cp.partFile.exists()) {
+            Properties props = new Properties();
+            try (InputStream in = new FileInputStream(cp.metaFile)) {
+                props.load(in);
+
+                if (source.equals(props.getProperty("source"))) {
+                    cp.totalSize = Long.parseLong(props.getProperty("totalSize", "-1"));
+                    long verified = Long.parseLong(props.getProperty("verifiedBytes", "0"));
+                    cp.verifiedBytes = Math.min(verified, cp.partFile.length());
+
+                    System.out.println("   🔁 Resuming from byte " + cp.verifiedBytes +
+                                       (cp.totalSize > 0 ? "/" + cp.totalSize : ""));
+                    return cp;
+                }
+            } catch (IOException | NumberFormatException e) {
+                System.err.println("   ⚠️  Invalid checkpoint, starting over: " + e.getMessage());
+            }
+        }
+
+        cp.reset();
+        return cp;
+    }
+
+    /**
+     * Bắt đầu (hoặc tiếp tục) với tổng size do server báo
+     * Nếu size khác lần trước → file nguồn đã đổi, tải lại từ đầu
+     *
+     * @return true nếu vẫn resume được từ verifiedBytes
+     */
+    public boolean begin(long total) throws IOException {
+        boolean resumable = totalSize == total;
+        if (!resumable) {
+            reset();
+        }
+        totalSize = total;
+        save();
+        return resumable;
+    }
+
+    /**
+     * Ghi nhận dữ liệu đến byte verified đã nằm an toàn trên disk
+     */
+    public void update(long verified) throws IOException {
+        verifiedBytes = verified;
+        save();
+    }
+
+    /**
+     * Hoàn tất: đổi .part thành file đích, xóa sidecar
+     */
+    public void complete() throws IOException {
+        Files.move(partFile.toPath(), targetFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        metaFile.delete();
+    }
+
+    /**
+     * Xóa dữ liệu tải dở, bắt đầu lại từ byte 0
+     */
+    public void reset() {
+        partFile.delete();
+        metaFile.delete();
+        totalSize = -1;
+        verifiedBytes = 0;
+    }
+
+    /**
+     * Lưu sidecar (ghi file tạm rồi rename để không bị hỏng giữa chừng)
+     */
+    private void save() throws IOException {
+        Properties props = new Properties();
+        props.setProperty("source", source);
+        props.setProperty("totalSize", String.valueOf(totalSize));
+        props.setProperty("verifiedBytes", String.valueOf(verifiedBytes));
+
+        File tmp = new File(metaFile.getPath() + ".tmp");
+        try (OutputStream out = new FileOutputStream(tmp)) {
+            props.store(out, "P2P partial download");
+        }
+        Files.move(tmp.toPath(), metaFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                   StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // ============================================
+    // GETTERS
+    // ============================================
+
+    public File getPartFile() {
+        return partFile;
+    }
+
+    public long getTotalSize() {
+        return totalSize;
+    }
+
+    public long getVerifiedBytes() {
+        return verifiedBytes;
+    }
+}
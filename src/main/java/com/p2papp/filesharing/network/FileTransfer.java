@@ -0,0 +1,163 @@
+package com.p2papp.filesharing.network;
+
+import java.io.*;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * FileTransfer.java - Gửi nội dung file qua socket
+ *
+ * Hai cách gửi:
+ * - Zero-copy: FileChannel.transferTo() thẳng vào SocketChannel
+ *   (Linux dùng sendfile, dữ liệu không đi qua user space)
+ * - Stream copy: đọc vào byte[] rồi ghi ra OutputStream
+ *   (dùng khi socket không có channel)
+ */
+public class FileTransfer {
+
+    /**
+     * Số byte tối đa cho mỗi lần transferTo()
+     * Một số OS giới hạn sendfile ~2GB/lần, chia nhỏ để log progress
+     */
+    private static final long TRANSFER_CHUNK = 8L * 1024 * 1024; // 8MB
+
+    /**
+     * Buffer cho cách stream copy
+     */
+    private static final int STREAM_BUFFER = 64 * 1024; // 64KB
+
+    /**
+     * Thời gian chờ tối đa socket non-blocking ghi được trở lại
+     */
+    private static final long WRITE_TIMEOUT_MS = 30000;
+
+    /**
+     * Gửi toàn bộ file qua socket
+     *
+     * @return Số byte đã gửi
+     */
+    public static long sendFile(File file, Socket socket) throws IOException {
+        return sendFile(file, 0, file.length(), socket);
+    }
+
+    /**
+     * Gửi 1 đoạn [offset, offset + length) của file qua socket
+     *
+     * Nếu socket có SocketChannel → zero-copy (transferTo)
+     * Nếu không → fallback đọc/ghi qua buffer
+     *
+     * ⚠️ Không đóng socket/output stream sau khi gửi,
+     *    kết nối vẫn dùng được cho các request tiếp theo
+     *
+     * @return Số byte đã gửi
+     */
+    public static long sendFile(File file, long offset, long length, Socket socket) throws IOException {
+        try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (socket.getChannel() != null) {
+                return transferTo(fileChannel, offset, length, socket.getChannel());
+            }
+
+            OutputStream os = socket.getOutputStream();
+            long sent = copyStream(fileChannel, offset, length, os);
+            os.flush();
+            return sent;
+        }
+    }
+
+    /**
+     * Zero-copy: FileChannel → WritableByteChannel
+     *
+     * transferTo() có thể gửi ít hơn yêu cầu → lặp đến khi đủ
+     */
+    public static long transferTo(FileChannel fileChannel, long offset, long length,
+                                  WritableByteChannel target) throws IOException {
+        long sent = 0;
+        int lastProgress = 0;
+
+        while (sent < length) {
+            long count = Math.min(TRANSFER_CHUNK, length - sent);
+            long n = fileChannel.transferTo(offset + sent, count, target);
+
+            if (n <= 0) {
+                // Channel blocking mà transferTo trả về 0 → file đã bị cắt ngắn
+                if (offset + sent >= fileChannel.size()) {
+                    throw new EOFException("File truncated at " + (offset + sent) + " bytes");
+                }
+                // Không lặp lại ngay (quay tròn 1 core): chờ socket ghi được
+                awaitWritable(target);
+                continue;
+            }
+
+            sent += n;
+            lastProgress = logProgress(sent, length, lastProgress);
+        }
+
+        return sent;
+    }
+
+    /**
+     * transferTo() không gửi được byte nào dù file chưa hết
+     *
+     * Channel non-blocking (send buffer đầy) → chờ OP_WRITE tối đa WRITE_TIMEOUT_MS.
+     * Channel blocking mà vẫn không gửi được → lỗi, không thử lại vô hạn.
+     */
+    private static void awaitWritable(WritableByteChannel target) throws IOException {
+        if (!(target instanceof SelectableChannel) || ((SelectableChannel) target).isBlocking()) {
+            throw new IOException("transferTo made no progress");
+        }
+
+        try (Selector selector = Selector.open()) {
+            ((SelectableChannel) target).register(selector, SelectionKey.OP_WRITE);
+            if (selector.select(WRITE_TIMEOUT_MS) == 0) {
+                throw new SocketTimeoutException("Peer not reading for " + WRITE_TIMEOUT_MS + " ms");
+            }
+        }
+    }
+
+    /**
+     * Stream copy: đọc đoạn file vào buffer rồi ghi ra OutputStream
+     * Dùng cho socket không có channel
+     */
+    public static long copyStream(FileChannel fileChannel, long offset, long length,
+                                  OutputStream out) throws IOException {
+        InputStream in = Channels.newInputStream(fileChannel.position(offset));
+        byte[] buffer = new byte[STREAM_BUFFER];
+        long sent = 0;
+        int lastProgress = 0;
+
+        while (sent < length) {
+            int n = in.read(buffer, 0, (int) Math.min(buffer.length, length - sent));
+            if (n == -1) {
+                throw new EOFException("File truncated at " + (offset + sent) + " bytes");
+            }
+
+            out.write(buffer, 0, n);
+            sent += n;
+            lastProgress = logProgress(sent, length, lastProgress);
+        }
+
+        return sent;
+    }
+
+    /**
+     * In progress mỗi 10%
+     */
+    private static int logProgress(long sent, long length, int lastProgress) {
+        int progress = length == 0 ? 100 : (int) ((sent * 100) / length);
+        if (progress != lastProgress && progress % 10 == 0) {
+            System.out.print("\r   Progress: " + progress + "%");
+            if (progress == 100) {
+                System.out.println();
+            }
+            return progress;
+        }
+        return lastProgress;
+    }
+}
@@ -0,0 +1,161 @@
+package com.p2papp.filesharing.network;
+
+/**
+ * Frame.java - 1 message của protocol (dùng chung cho text và binary)
+ *
+ * Gồm:
+ * - type: loại message (MessageType)
+ * - numbers: các trường số (số lượng = type.getNumericFields())
+ * - text: phần text còn lại (tên file, thông báo lỗi...), có thể null
+ *
+ * VD: FILE_RANGE:0:1048576:5000000
+ *     → type = FILE_RANGE, numbers = [0, 1048576, 5000000], text = null
+ *     DOWNLOAD_RANGE:0:-1:a.pdf
+ *     → type = DOWNLOAD_RANGE, numbers = [0, -1], text = "a.pdf"
+ *
+ * id: mã tương quan (correlation id) của request pipelined, 0 = không có.
+ * Server gắn lại đúng id vào response → client ghép được response dù
+ * có nhiều request đang chờ trên cùng 1 kết nối. Chỉ có trong binary v2+.
+ */
+public final class Frame {
+
+    private static final long[] NO_NUMBERS = new long[0];
+
+    private final MessageType type;
+    private final long[] numbers;
+    private final String text;
+    private final long id;
+
+    private Frame(MessageType type, String text, long[] numbers) {
+        this(type, text, numbers, 0);
+    }
+
+    private Frame(MessageType type, String text, long[] numbers, long id) {
+        this.type = type;
+        this.text = text;
+        this.numbers = numbers;
+        this.id = id;
+    }
+
+    // ============================================
+    // FACTORY METHODS
+    // ============================================
+
+    public static Frame of(MessageType type) {
+        return new Frame(type, null, NO_NUMBERS);
+    }
+
+    public static Frame of(MessageType type, String text) {
+        return new Frame(type, text, NO_NUMBERS);
+    }
+
+    public static Frame of(MessageType type, long... numbers) {
+        return new Frame(type, null, numbers);
+    }
+
+    public static Frame of(MessageType type, String text, long... numbers) {
+        return new Frame(type, text, numbers);
+    }
+
+    /**
+     * Bản sao gắn correlation id (0 = bỏ id)
+     */
+    public Frame withId(long id) {
+        return id == this.id ? this : new Frame(type, text, numbers, id);
+    }
+
+    // ============================================
+    // TEXT FORMAT
+    // ============================================
+
+    /**
+     * Chuyển sang 1 dòng protocol text
+     * VD: Frame(FILE_RANGE, [0, 10, 20]) → "FILE_RANGE:0:10:20"
+     */
+    public String toLine() {
+        StringBuilder sb = new StringBuilder(type.getCommand());
+        for (long n : numbers) {
+            sb.append(':').append(n);
+        }
+        if (text != null) {
+            sb.append(':').append(text);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Parse 1 dòng protocol text
+     *
+     * @return Frame, hoặc null nếu command không tồn tại
+     * @throws IllegalArgumentException nếu trường số không hợp lệ
+     */
+    public static Frame parseLine(String line) {
+        int colon = line.indexOf(':');
+        String command = (colon < 0 ? line : line.substring(0, colon)).trim();
+
+        MessageType type = MessageType.fromString(command);
+        if (type == null) {
+            return null;
+        }
+        if (colon < 0) {
+            return of(type);
+        }
+
+        int fields = type.getNumericFields();
+        long[] numbers = new long[fields];
+        int start = colon + 1;
+
+        for (int i = 0; i < fields; i++) {
+            int end = line.indexOf(':', start);
+            String field = end < 0 ? line.substring(start) : line.substring(start, end);
+            numbers[i] = Long.parseLong(field.trim());
+
+            if (end < 0) {
+                if (i < fields - 1) {
+                    throw new IllegalArgumentException("Missing fields in " + command);
+                }
+                return new Frame(type, null, numbers);
+            }
+            start = end + 1;
+        }
+
+        return new Frame(type, line.substring(start), numbers);
+    }
+
+    // ============================================
+    // GETTERS
+    // ============================================
+
+    public MessageType getType() {
+        return type;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    public int getNumberCount() {
+        return numbers.length;
+    }
+
+    public long getNumber(int index) {
+        return numbers[index];
+    }
+
+    long[] numbers() {
+        return numbers;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public boolean isError() {
+        return type == MessageType.ERROR;
+    }
+
+    @Override
+    public String toString() {
+        return toLine();
+    }
+}
@@ -0,0 +1,364 @@
+package com.p2papp.filesharing.network;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * FrameCodec.java - Protocol binary có độ dài (length-prefixed)
+ *
+ * Bắt tay (client → server): [MAGIC][version]['\n']
+ *   Server mới trả [MAGIC][version chọn], server cũ trả 1 dòng
+ *   "ERROR:UNKNOWN_COMMAND:..." → client quay về protocol text.
+ *   Byte đầu khác MAGIC → server coi như client text cũ.
+ *
+ * Frame: [type: 1 byte = MessageType.code][length: varint][payload]
+ * - v2: bit cao của type (TAGGED) bật → [type][id: varint][length][payload],
+ *   id = correlation id của request pipelined, response mang lại đúng id đó
+ * - Payload: các trường số (zigzag varint) rồi text UTF-8 (phần còn lại)
+ * - FILE_DATA: payload là bytes thô của file, gửi ngay sau header
+ *   → server vẫn dùng được transferTo (zero-copy)
+ *   (kết nối đã thoả thuận nén trong HELLO: payload theo định dạng WireCompression)
+ *
+ * Không còn trộn readLine() với bytes thô, không split chuỗi.
+ */
+final class FrameCodec {
+
+    /**
+     * Byte đầu tiên của kết nối binary (không phải ký tự ASCII → không nhầm với text)
+     */
+    static final byte MAGIC = (byte) 0xB7;
+
+    /**
+     * Version protocol binary hiện tại
+     */
+    static final int VERSION = 2;
+
+    /**
+     * Version đầu tiên có correlation id (frame TAGGED)
+     */
+    static final int TAGGED_VERSION = 2;
+
+    /**
+     * Bit cao của byte type: frame có correlation id
+     * (MessageType.code luôn < 0x80 nên không bị nhầm)
+     */
+    static final int TAGGED = 0x80;
+
+    /**
+     * Payload tối đa của 1 frame điều khiển (không tính FILE_DATA)
+     */
+    static final int MAX_FRAME = 16 * 1024 * 1024;
+
+    /**
+     * Header FILE_DATA lớn nhất: 1 byte type + varint 64-bit (10 bytes)
+     */
+    static final int MAX_HEADER = 11;
+
+    private FrameCodec() {
+    }
+
+    // ============================================
+    // HANDSHAKE
+    // ============================================
+
+    static void writeHandshake(OutputStream out) throws IOException {
+        out.write(new byte[] { MAGIC, (byte) VERSION, '\n' });
+        out.flush();
+    }
+
+    /**
+     * Server: trả lời bắt tay, chọn version thấp hơn của 2 bên
+     *
+     * @param clientVersion version client đề nghị
+     */
+    static byte[] handshakeReply(int clientVersion) {
+        return new byte[] { MAGIC, (byte) Math.min(clientVersion, VERSION) };
+    }
+
+    // ============================================
+    // ENCODE
+    // ============================================
+
+    /**
+     * Encode frame vào scratch (tái sử dụng được), cấp buffer mới nếu không đủ chỗ
+     *
+     * @param scratch Buffer tạm của kết nối, hoặc null
+     * @return Buffer đã flip, sẵn sàng để ghi
+     */
+    static ByteBuffer encode(Frame frame, ByteBuffer scratch) {
+        byte[] text = frame.getText() == null ? null : frame.getText().getBytes(StandardCharsets.UTF_8);
+
+        int payload = text == null ? 0 : text.length;
+        for (long n : frame.numbers()) {
+            payload += varLongSize(zigzag(n));
+        }
+
+        long id = frame.getId();
+        int total = 1 + (id != 0 ? varLongSize(id) : 0) + varLongSize(payload) + payload;
+        ByteBuffer buf = scratch != null && scratch.capacity() >= total ? scratch : ByteBuffer.allocate(total);
+        buf.clear();
+
+        if (id != 0) {
+            buf.put((byte) (frame.getType().getCode() | TAGGED));
+            putVarLong(buf, id);
+        } else {
+            buf.put(frame.getType().getCode());
+        }
+        putVarLong(buf, payload);
+        for (long n : frame.numbers()) {
+            putVarLong(buf, zigzag(n));
+        }
+        if (text != null) {
+            buf.put(text);
+        }
+
+        buf.flip();
+        return buf;
+    }
+
+    /**
+     * Header của FILE_DATA (bytes file gửi ngay sau)
+     */
+    static ByteBuffer encodeDataHeader(long length, ByteBuffer scratch) {
+        ByteBuffer buf = scratch != null && scratch.capacity() >= MAX_HEADER ? scratch : ByteBuffer.allocate(MAX_HEADER);
+        buf.clear();
+        buf.put(MessageType.FILE_DATA.getCode());
+        putVarLong(buf, length);
+        buf.flip();
+        return buf;
+    }
+
+    /**
+     * Ghi frame ra stream (blocking)
+     */
+    static void write(OutputStream out, Frame frame, ByteBuffer scratch) throws IOException {
+        ByteBuffer buf = encode(frame, scratch);
+        out.write(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+    }
+
+    static void writeDataHeader(OutputStream out, long length, ByteBuffer scratch) throws IOException {
+        ByteBuffer buf = encodeDataHeader(length, scratch);
+        out.write(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+    }
+
+    // ============================================
+    // DECODE
+    // ============================================
+
+    /**
+     * Decode 1 frame từ buffer (NIO)
+     *
+     * Với FILE_DATA chỉ đọc header: trả Frame(FILE_DATA, length),
+     * bytes dữ liệu vẫn nằm trong buffer.
+     *
+     * @return Frame, hoặc null nếu chưa đủ bytes (position giữ nguyên)
+     * @throws ProtocolException nếu frame không hợp lệ
+     */
+    static Frame decode(ByteBuffer buf) throws ProtocolException {
+        int start = buf.position();
+        if (!buf.hasRemaining()) return null;
+
+        byte code = buf.get();
+        MessageType type = typeOf(code);
+        long id = 0;
+        long length;
+        try {
+            if ((code & TAGGED) != 0) {
+                id = getVarLong(buf);
+            }
+            length = type == MessageType.FILE_DATA ? getVarLong(buf) : getVarInt(buf);
+        } catch (BufferUnderflowException e) {
+            buf.position(start);
+            return null;
+        }
+
+        checkLength(type, length);
+        if (type == MessageType.FILE_DATA) {
+            return Frame.of(type, length);
+        }
+
+        if (buf.remaining() < length) {
+            buf.position(start);
+            return null;
+        }
+
+        int end = buf.position() + (int) length;
+        ByteBuffer payload = buf.duplicate();
+        payload.limit(end);
+        buf.position(end);
+        return decodePayload(type, payload).withId(id);
+    }
+
+    /**
+     * Đọc 1 frame từ stream (blocking)
+     *
+     * Với FILE_DATA chỉ đọc header, caller tự đọc length bytes tiếp theo.
+     *
+     * @return Frame, hoặc null nếu stream kết thúc trước frame mới
+     */
+    static Frame read(InputStream in) throws IOException {
+        int b = in.read();
+        if (b == -1) return null;
+
+        MessageType type = typeOf((byte) b);
+        long id = (b & TAGGED) != 0 ? readVarLong(in) : 0;
+        long length = type == MessageType.FILE_DATA ? readVarLong(in) : readVarInt(in);
+
+        checkLength(type, length);
+        if (type == MessageType.FILE_DATA) {
+            return Frame.of(type, length);
+        }
+
+        byte[] payload = new byte[(int) length];
+        int read = 0;
+        while (read < payload.length) {
+            int n = in.read(payload, read, payload.length - read);
+            if (n == -1) throw new EOFException("Unexpected end of stream in " + type + " frame");
+            read += n;
+        }
+        return decodePayload(type, ByteBuffer.wrap(payload)).withId(id);
+    }
+
+    private static Frame decodePayload(MessageType type, ByteBuffer payload) throws ProtocolException {
+        int fields = type.getNumericFields();
+        long[] numbers = new long[fields];
+        try {
+            for (int i = 0; i < fields; i++) {
+                numbers[i] = unzigzag(getVarLong(payload));
+            }
+        } catch (BufferUnderflowException e) {
+            throw new ProtocolException("Truncated " + type + " frame");
+        }
+
+        String text = null;
+        if (payload.hasRemaining()) {
+            text = new String(payload.array(), payload.arrayOffset() + payload.position(),
+                              payload.remaining(), StandardCharsets.UTF_8);
+        }
+        return Frame.of(type, text, numbers);
+    }
+
+    private static MessageType typeOf(byte code) throws ProtocolException {
+        MessageType type = MessageType.fromCode(code & 0xff & ~TAGGED);
+        if (type == null) {
+            throw new ProtocolException("Unknown frame type: 0x" + Integer.toHexString(code & 0xff));
+        }
+        return type;
+    }
+
+    /**
+     * Độ dài âm (varint hỏng) làm decode() lùi position → vòng lặp đọc frame không dừng
+     */
+    private static void checkLength(MessageType type, long length) throws ProtocolException {
+        if (length < 0) {
+            throw new ProtocolException("Negative " + type + " length: " + length);
+        }
+        if (type != MessageType.FILE_DATA && length > MAX_FRAME) {
+            throw new ProtocolException("Frame too large: " + length + " bytes");
+        }
+    }
+
+    // ============================================
+    // VARINT
+    // ============================================
+
+    /**
+     * 7 bit / byte, bit cao = còn byte tiếp theo (giống protobuf)
+     */
+    static void putVarLong(ByteBuffer buf, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buf.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buf.put((byte) value);
+    }
+
+    /**
+     * @throws BufferUnderflowException nếu buffer hết giữa chừng
+     */
+    static long getVarLong(ByteBuffer buf) throws ProtocolException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buf.get();
+            checkVarByte(b, shift, 64);
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new ProtocolException("Varint too long");
+    }
+
+    static long readVarLong(InputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+            if (b == -1) throw new EOFException("Unexpected end of stream in frame header");
+            checkVarByte(b, shift, 64);
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new ProtocolException("Varint too long");
+    }
+
+    /**
+     * Varint không âm vừa 1 int (tối đa 5 bytes) - độ dài frame điều khiển
+     *
+     * @throws BufferUnderflowException nếu buffer hết giữa chừng
+     */
+    static int getVarInt(ByteBuffer buf) throws ProtocolException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = buf.get();
+            checkVarByte(b, shift, 31);
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new ProtocolException("Varint too long");
+    }
+
+    static int readVarInt(InputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.read();
+            if (b == -1) throw new EOFException("Unexpected end of stream in frame header");
+            checkVarByte(b, shift, 31);
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new ProtocolException("Varint too long");
+    }
+
+    /**
+     * Byte ở vị trí shift không được mang bit vượt quá bits (tràn số)
+     */
+    private static void checkVarByte(int b, int shift, int bits) throws ProtocolException {
+        if (bits - shift < 7 && (b & 0x7F) >>> (bits - shift) != 0) {
+            throw new ProtocolException("Varint overflows " + bits + " bits");
+        }
+    }
+
+    static int varLongSize(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * Zigzag: số âm nhỏ (VD: length = -1) vẫn chỉ tốn 1 byte
+     */
+    private static long zigzag(long n) {
+        return (n << 1) ^ (n >> 63);
+    }
+
+    private static long unzigzag(long n) {
+        return (n >>> 1) ^ -(n & 1);
+    }
+}
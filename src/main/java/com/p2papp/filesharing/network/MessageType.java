@@ -6,46 +6,88 @@ package com.p2papp.filesharing.network;
 
 /**
  * MessageType.java - Enum các loại message trong protocol
+ * 
+ * Mỗi type có:
+ * - command: tên dùng trong protocol text (VD: "PING")
+ * - code: 1 byte định danh frame trong protocol binary (FrameCodec)
+ * - numericFields: số trường số đứng trước phần text
+ *   (VD: FILE_RANGE:<offset>:<length>:<total> có 3 trường số)
  */
 public enum MessageType {
     // Connection
-    PING("PING"),
-    PONG("PONG"),
-    HELLO("HELLO"),
-    HELLO_ACK("HELLO_ACK"),
+    PING("PING", 0x01),
+    PONG("PONG", 0x02),
+    HELLO("HELLO", 0x03),
+    HELLO_ACK("HELLO_ACK", 0x04),
     
     // Info
-    GET_INFO("GET_INFO"),
-    INFO("INFO"),
+    GET_INFO("GET_INFO", 0x05),
+    INFO("INFO", 0x06),
     
     // File operations
-    LIST_FILES("LIST_FILES"),
-    FILES("FILES"),
-    REQUEST_FILE("REQUEST_FILE"),
-    FILE_INFO("FILE_INFO"),
-    FILE_CHUNK("FILE_CHUNK"),
+    LIST_FILES("LIST_FILES", 0x10),
+    FILES("FILES", 0x11),
+    REQUEST_FILE("REQUEST_FILE", 0x12),
+    FILE_INFO("FILE_INFO", 0x13),
+    FILE_CHUNK("FILE_CHUNK", 0x14),
+    LIST_PAGE("LIST_PAGE", 0x1C, 1),             // limit, "<cursor>:<filter>" (cursor rỗng = từ đầu)
+    FILE_ENTRY("FILE_ENTRY", 0x1D, 3),           // size, mtime (ms), fileId, "<hash>:<name>" (1 frame / file)
+    FILES_END("FILES_END", 0x1E, 1),             // số FILE_ENTRY vừa gửi, cursor trang sau (rỗng = hết)
+    
+    // Download
+    DOWNLOAD_REQUEST("DOWNLOAD_REQUEST", 0x15),
+    DOWNLOAD_RANGE("DOWNLOAD_RANGE", 0x16, 2),   // offset, length (-1 = đến hết file), fileName
+    FILE_SIZE("FILE_SIZE", 0x17, 1),             // size
+    FILE_RANGE("FILE_RANGE", 0x18, 3),           // offset, length, total
+    FILE_DATA("FILE_DATA", 0x19),                // raw bytes (chỉ có trong protocol binary)
+    DOWNLOAD_BY_HASH("DOWNLOAD_BY_HASH", 0x1A, 2), // offset, length, fileHash
+    DOWNLOAD_BY_ID("DOWNLOAD_BY_ID", 0x1B, 3),     // fileId, offset, length
     
     // Discovery
-    DISCOVER("DISCOVER"),
-    ANNOUNCE("ANNOUNCE"),
+    DISCOVER("DISCOVER", 0x20),
+    ANNOUNCE("ANNOUNCE", 0x21),
     
     // Disconnect
-    DISCONNECT("DISCONNECT"),
-    BYE("BYE"),
+    DISCONNECT("DISCONNECT", 0x30),
+    BYE("BYE", 0x31),
     
     // Error
-    ERROR("ERROR");
+    ERROR("ERROR", 0x7F);
+    
+    private static final MessageType[] BY_CODE = new MessageType[128];
+    
+    static {
+        for (MessageType type : values()) {
+            BY_CODE[type.code] = type;
+        }
+    }
     
     private final String command;
+    private final byte code;
+    private final int numericFields;
+    
+    MessageType(String command, int code) {
+        this(command, code, 0);
+    }
     
-    MessageType(String command) {
+    MessageType(String command, int code, int numericFields) {
         this.command = command;
+        this.code = (byte) code;
+        this.numericFields = numericFields;
     }
     
     public String getCommand() {
         return command;
     }
     
+    public byte getCode() {
+        return code;
+    }
+    
+    public int getNumericFields() {
+        return numericFields;
+    }
+    
     /**
      * Parse string to MessageType
      */
@@ -58,8 +100,20 @@ public enum MessageType {
         return null;
     }
     
+    /**
+     * Parse frame type byte to MessageType
+     * 
+     * @return MessageType hoặc null nếu code không hợp lệ
+     */
+    public static MessageType fromCode(int code) {
+        if (code < 0 || code >= BY_CODE.length) {
+            return null;
+        }
+        return BY_CODE[code];
+    }
+    
     @Override
     public String toString() {
         return command;
     }
-}
\ No newline at end of file
+}
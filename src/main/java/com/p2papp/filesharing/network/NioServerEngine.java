@@ -0,0 +1,652 @@
+package com.p2papp.filesharing.network;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * NioServerEngine.java - Engine NIO cho PeerServer
+ *
+ * Thay vì 1 thread/kết nối:
+ * - N event-loop thread (N = số core), mỗi loop có 1 Selector
+ * - Kết nối mới được chia round-robin vào các loop
+ * - Đọc/ghi non-blocking, tách dòng command (text) hoặc frame (binary,
+ *   nhận biết qua byte FrameCodec.MAGIC đầu tiên) ngay trên event loop
+ * - Command được xử lý (có thể gọi DB) trên worker pool nhỏ,
+ *   kết quả đẩy ngược về event loop để ghi ra socket
+ * - File gửi bằng transferTo non-blocking theo từng phần
+ *   (kết nối đã thoả thuận nén: lấy mẫu entropy + nén từng chunk WireCompression
+ *   trên worker, event loop chỉ ghi các chunk đã sẵn sàng)
+ *
+ * Kết nối idle/chậm chỉ tốn 1 SelectionKey + vài buffer, không tốn thread.
+ */
+class NioServerEngine {
+
+    /**
+     * Độ dài tối đa 1 dòng command (chống client gửi rác không có '\n')
+     */
+    private static final int MAX_LINE = 64 * 1024;
+
+    /**
+     * Số command chờ tối đa / kết nối, vượt quá thì tạm ngừng đọc
+     */
+    private static final int MAX_PENDING = 64;
+
+    /**
+     * Số chunk nén sẵn tối đa / kết nối (worker nén trước trong lúc loop ghi)
+     */
+    private static final int CHUNKS_AHEAD = 2;
+
+    private final RequestProcessor processor;
+    private final EventLoop[] loops;
+    private final ExecutorService workers;
+
+    /**
+     * Pool riêng cho việc nén chunk: request metadata (PING, LIST...) không phải xếp hàng
+     * sau các chunk đang chờ nén trên workers
+     */
+    private final ExecutorService encoders;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private final AtomicInteger connections = new AtomicInteger();
+
+    NioServerEngine(RequestProcessor processor, int loopCount) {
+        this.processor = processor;
+        this.loops = new EventLoop[Math.max(1, loopCount)];
+        this.workers = Executors.newFixedThreadPool(Math.max(4, loops.length), namedThreads("nio-worker"));
+        this.encoders = Executors.newFixedThreadPool(loops.length, namedThreads("nio-encoder"));
+    }
+
+    // ============================================
+    // LIFECYCLE
+    // ============================================
+
+    void start() throws IOException {
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(i);
+            loops[i].thread.start();
+        }
+        System.out.println("   ✓ NIO engine: " + loops.length + " event loops");
+    }
+
+    /**
+     * Giao kết nối mới (từ thread accept) cho 1 event loop
+     */
+    void register(SocketChannel channel) throws IOException {
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+
+        EventLoop loop = loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+        loop.execute(() -> {
+            try {
+                Connection conn = new Connection(channel, loop);
+                conn.key = channel.register(loop.selector, SelectionKey.OP_READ, conn);
+                connections.incrementAndGet();
+                System.out.println("   ✓ NIO handler started for: " + conn.clientInfo);
+            } catch (IOException e) {
+                System.err.println("   ❌ NIO register error: " + e.getMessage());
+                closeQuietly(channel);
+            }
+        });
+    }
+
+    void shutdown() {
+        for (EventLoop loop : loops) {
+            if (loop != null) {
+                loop.running = false;
+                loop.selector.wakeup();
+            }
+        }
+        workers.shutdownNow();
+        encoders.shutdownNow();
+    }
+
+    int getConnectionCount() {
+        return connections.get();
+    }
+
+    // ============================================
+    // EVENT LOOP
+    // ============================================
+
+    /**
+     * 1 thread + 1 Selector, xử lý I/O của nhiều kết nối
+     */
+    private class EventLoop implements Runnable {
+
+        final Selector selector;
+        final Thread thread;
+        final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        volatile boolean running = true;
+
+        EventLoop(int index) throws IOException {
+            this.selector = Selector.open();
+            this.thread = new Thread(this, "nio-loop-" + index);
+            this.thread.setDaemon(true);
+        }
+
+        /**
+         * Chạy task trên thread của event loop
+         */
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    selector.select();
+
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+
+                        Connection conn = (Connection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable()) {
+                                conn.onReadable();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                conn.flush();
+                            }
+                        } catch (IOException | RuntimeException e) {
+                            // ProtocolException (frame hỏng) / lỗi bất ngờ: chỉ đóng kết nối này,
+                            // không để event loop lặp lại trên cùng dữ liệu hay chết thread
+                            System.err.println("   ❌ Handler error [" + conn.clientInfo + "]: " + e);
+                            conn.close();
+                        }
+                    }
+
+                } catch (IOException e) {
+                    System.err.println("❌ Event loop error: " + e.getMessage());
+                }
+            }
+
+            for (SelectionKey key : selector.keys()) {
+                ((Connection) key.attachment()).close();
+            }
+            try {
+                selector.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    // ============================================
+    // CONNECTION
+    // ============================================
+
+    /**
+     * Trạng thái 1 kết nối (chỉ truy cập từ thread event loop)
+     */
+    private class Connection {
+
+        final SocketChannel channel;
+        final EventLoop loop;
+        final String clientInfo;
+        SelectionKey key;
+
+        ByteBuffer readBuffer = ByteBuffer.allocate(8192);
+        final ByteArrayOutputStream lineBuffer = new ByteArrayOutputStream();
+        final Deque<Object> pendingLines = new ArrayDeque<>();
+        final Deque<Object> outbound = new ArrayDeque<>();
+
+        /**
+         * null = chưa biết, true = binary (FrameCodec), false = text
+         */
+        Boolean binary = null;
+
+        /**
+         * Codec nén FILE_DATA đã thoả thuận qua HELLO (null = gửi thô)
+         * Ghi trên event loop, đọc trên worker khi chuẩn bị file (prepareFile)
+         */
+        volatile String compression;
+
+        boolean processing = false;
+        boolean closeAfterFlush = false;
+        boolean closed = false;
+
+        Connection(SocketChannel channel, EventLoop loop) throws IOException {
+            this.channel = channel;
+            this.loop = loop;
+            this.clientInfo = channel.getRemoteAddress().toString();
+        }
+
+        /**
+         * Đọc bytes, tách thành các dòng command (text) hoặc frame (binary)
+         */
+        void onReadable() throws IOException {
+            int n = channel.read(readBuffer);
+            if (n == -1) {
+                System.out.println("   🔴 Client disconnected: " + clientInfo);
+                close();
+                return;
+            }
+
+            readBuffer.flip();
+
+            if (binary == null && readBuffer.hasRemaining()) {
+                detectProtocol();
+            }
+            if (Boolean.TRUE.equals(binary)) {
+                readFrames();
+            } else if (Boolean.FALSE.equals(binary)) {
+                readLines();
+            }
+            readBuffer.compact();
+
+            processNext();
+            updateInterest();
+        }
+
+        /**
+         * Byte đầu = MAGIC → bắt tay binary ([MAGIC][version]['\n']), ngược lại text
+         */
+        void detectProtocol() throws IOException {
+            if (readBuffer.get(readBuffer.position()) != FrameCodec.MAGIC) {
+                binary = false;
+                return;
+            }
+            if (readBuffer.remaining() < 3) {
+                return;
+            }
+
+            readBuffer.get();
+            int version = readBuffer.get();
+            if (version <= 0 || readBuffer.get() != '\n') {
+                throw new ProtocolException("Invalid handshake");
+            }
+
+            binary = true;
+            outbound.add(ByteBuffer.wrap(FrameCodec.handshakeReply(version)));
+        }
+
+        void readLines() {
+            while (readBuffer.hasRemaining()) {
+                byte b = readBuffer.get();
+                if (b == '\n') {
+                    byte[] bytes = lineBuffer.toByteArray();
+                    int len = bytes.length;
+                    if (len > 0 && bytes[len - 1] == '\r') len--;
+                    pendingLines.add(new String(bytes, 0, len, StandardCharsets.UTF_8));
+                    lineBuffer.reset();
+                } else {
+                    lineBuffer.write(b);
+                    if (lineBuffer.size() > MAX_LINE) {
+                        enqueue(new RequestProcessor.Reply().error("LINE_TOO_LONG").close(), null);
+                        lineBuffer.reset();
+                        readBuffer.position(readBuffer.limit());
+                        break;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Decode các frame đã nhận đủ, frame dở dang giữ lại trong readBuffer
+         * (readBuffer được nới rộng khi 1 frame lớn hơn buffer)
+         */
+        void readFrames() throws IOException {
+            Frame frame;
+            while ((frame = FrameCodec.decode(readBuffer)) != null) {
+                pendingLines.add(frame);
+            }
+
+            if (readBuffer.position() == 0 && readBuffer.limit() == readBuffer.capacity()) {
+                if (readBuffer.capacity() >= FrameCodec.MAX_FRAME + FrameCodec.MAX_HEADER) {
+                    throw new ProtocolException("Frame too large");
+                }
+                ByteBuffer bigger = ByteBuffer.allocate(Math.min(readBuffer.capacity() * 2,
+                                                                 FrameCodec.MAX_FRAME + FrameCodec.MAX_HEADER));
+                bigger.put(readBuffer);
+                bigger.flip();
+                readBuffer = bigger;
+            }
+        }
+
+        /**
+         * Xử lý command tiếp theo (tuần tự, giữ đúng thứ tự reply)
+         */
+        void processNext() {
+            if (processing || closeAfterFlush || !outbound.isEmpty() || pendingLines.isEmpty()) {
+                return;
+            }
+
+            Object message = pendingLines.poll();
+            System.out.println("   📩 [" + clientInfo + "] " + message);
+            processing = true;
+
+            workers.execute(() -> {
+                RequestProcessor.Reply reply = message instanceof Frame
+                    ? processor.process((Frame) message)
+                    : processor.process((String) message);
+                List<Object> fileParts = reply.hasFile() ? prepareFile(reply) : null;
+                loop.execute(() -> {
+                    processing = false;
+                    if (closed) {
+                        if (fileParts != null) fileParts.forEach(NioServerEngine::discard);
+                        return;
+                    }
+                    try {
+                        enqueue(reply, fileParts);
+                        flush();
+                    } catch (IOException | RuntimeException e) {
+                        System.err.println("   ❌ Handler error [" + clientInfo + "]: " + e.getMessage());
+                        close();
+                    }
+                });
+            });
+        }
+
+        /**
+         * Đưa reply vào hàng đợi ghi
+         *
+         * @param fileParts Phần file đã chuẩn bị trên worker (prepareFile),
+         *                  null khi reply có file nghĩa là không mở được file
+         */
+        void enqueue(RequestProcessor.Reply reply, List<Object> fileParts) {
+            if (reply.isNegotiated()) {
+                compression = Boolean.TRUE.equals(binary) ? reply.getCompression() : null;
+            }
+            for (Frame frame : reply.getFrames()) {
+                if (Boolean.TRUE.equals(binary)) {
+                    outbound.add(FrameCodec.encode(frame, null));
+                } else {
+                    outbound.add(ByteBuffer.wrap((frame.toLine() + "\n").getBytes(StandardCharsets.UTF_8)));
+                }
+                System.out.println("   📤 [" + clientInfo + "] " + frame);
+            }
+
+            if (reply.hasFile()) {
+                if (fileParts == null) {
+                    // Đã gửi FILE_SIZE → không thể báo lỗi giữa chừng, đóng kết nối
+                    closeAfterFlush = true;
+                } else {
+                    if (Boolean.TRUE.equals(binary)) {
+                        outbound.add(FrameCodec.encodeDataHeader(reply.getLength(), null));
+                    }
+                    outbound.addAll(fileParts);
+                }
+            }
+
+            if (reply.shouldClose()) {
+                closeAfterFlush = true;
+            }
+        }
+
+        /**
+         * Chạy trên worker: mở file, kết nối đã thoả thuận nén thì lấy mẫu entropy
+         * (đọc file) để chọn chế độ → event loop không phải đọc file
+         *
+         * @return Các phần ghi sau header FILE_DATA, null nếu không mở được file
+         */
+        List<Object> prepareFile(RequestProcessor.Reply reply) {
+            FileChannel fc = null;
+            try {
+                fc = FileChannel.open(reply.getFile().toPath(), StandardOpenOption.READ);
+                List<Object> parts = new ArrayList<>();
+
+                if (compression == null) {
+                    parts.add(new FileRegion(fc, reply.getOffset(), reply.getLength(), reply.getFileLabel()));
+                    return parts;
+                }
+
+                // Byte chế độ rồi các chunk; file có vẻ đã nén sẵn → transferTo như thường
+                WireCompression.Encoder encoder =
+                    new WireCompression.Encoder(fc, reply.getOffset(), reply.getLength(), clientInfo);
+                parts.add(encoder.start());
+                if (encoder.isRaw()) {
+                    parts.add(new FileRegion(fc, reply.getOffset(), reply.getLength(), reply.getFileLabel()));
+                } else {
+                    parts.add(new ChunkRegion(encoder, reply.getFileLabel()));
+                }
+                return parts;
+
+            } catch (IOException e) {
+                System.err.println("   ❌ Cannot open file: " + e.getMessage());
+                if (fc != null) closeQuietly(fc);
+                return null;
+            }
+        }
+
+        /**
+         * Nhờ encoder pool nén trước chunk tiếp theo (tối đa CHUNKS_AHEAD chunk chờ ghi)
+         */
+        void encodeAhead(ChunkRegion region) {
+            if (region.encoding || region.finished || region.ready.size() >= CHUNKS_AHEAD) {
+                return;
+            }
+            region.encoding = true;
+
+            encoders.execute(() -> {
+                ByteBuffer chunk = null;
+                IOException error = null;
+                try {
+                    // next() dùng lại buffer của encoder → chép ra trước khi giao cho loop
+                    ByteBuffer wire = region.encoder.next();
+                    if (wire != null) {
+                        chunk = ByteBuffer.allocate(wire.remaining()).put(wire);
+                        chunk.flip();
+                    }
+                } catch (IOException e) {
+                    error = e;
+                } catch (RuntimeException e) {
+                    error = new IOException(e);
+                }
+
+                ByteBuffer encoded = chunk;
+                IOException failed = error;
+                loop.execute(() -> {
+                    region.encoding = false;
+                    if (closed) {
+                        region.closeQuietly();
+                        return;
+                    }
+                    if (failed != null) {
+                        region.error = failed;
+                    } else if (encoded == null) {
+                        region.finished = true;
+                    } else {
+                        region.ready.add(encoded);
+                    }
+                    try {
+                        flush();
+                    } catch (IOException | RuntimeException e) {
+                        System.err.println("   ❌ Handler error [" + clientInfo + "]: " + e);
+                        close();
+                    }
+                });
+            });
+        }
+
+        /**
+         * Ghi hết những gì ghi được mà không block
+         */
+        void flush() throws IOException {
+            while (!outbound.isEmpty()) {
+                Object head = outbound.peek();
+
+                if (head instanceof ByteBuffer) {
+                    ByteBuffer buf = (ByteBuffer) head;
+                    channel.write(buf);
+                    if (buf.hasRemaining()) break;
+
+                } else if (head instanceof ChunkRegion) {
+                    ChunkRegion region = (ChunkRegion) head;
+                    ByteBuffer chunk;
+                    while ((chunk = region.ready.peek()) != null) {
+                        channel.write(chunk);
+                        if (chunk.hasRemaining()) break;
+                        region.ready.poll();
+                    }
+                    if (region.error != null) {
+                        throw region.error;
+                    }
+                    if (!region.finished || !region.ready.isEmpty()) {
+                        // Socket đầy hoặc đang chờ worker nén xong chunk tiếp
+                        encodeAhead(region);
+                        break;
+                    }
+
+                    region.encoder.close();
+                    System.out.println("   🗜️  Sent " + region.encoder.getStats());
+                    System.out.println("   ✅ File sent successfully: " + region.label);
+
+                } else {
+                    FileRegion region = (FileRegion) head;
+                    // File rỗng: không gọi transferTo (trả 0 → bị coi là file bị cắt)
+                    if (region.remaining > 0) {
+                        long n = region.channel.transferTo(region.position, region.remaining, channel);
+                        if (n == 0 && region.position >= region.channel.size()) {
+                            throw new IOException("File truncated: " + region.label);
+                        }
+                        region.position += n;
+                        region.remaining -= n;
+                        if (region.remaining > 0) break;
+                    }
+
+                    region.channel.close();
+                    System.out.println("   ✅ File sent successfully: " + region.label);
+                }
+
+                outbound.poll();
+            }
+
+            if (outbound.isEmpty() && closeAfterFlush) {
+                close();
+                return;
+            }
+
+            processNext();
+            updateInterest();
+        }
+
+        /**
+         * Bật OP_WRITE khi còn dữ liệu chờ ghi (không tính lúc đang chờ worker nén chunk:
+         * worker xong sẽ tự gọi flush), tắt OP_READ khi quá nhiều command đang chờ
+         */
+        void updateInterest() {
+            if (closed || !key.isValid()) return;
+
+            Object head = outbound.peek();
+            boolean awaitingChunk = head instanceof ChunkRegion && ((ChunkRegion) head).ready.isEmpty();
+
+            int ops = 0;
+            if (head != null && !awaitingChunk) ops |= SelectionKey.OP_WRITE;
+            if (!closeAfterFlush && pendingLines.size() < MAX_PENDING) ops |= SelectionKey.OP_READ;
+            key.interestOps(ops);
+        }
+
+        void close() {
+            if (closed) return;
+            closed = true;
+            connections.decrementAndGet();
+
+            if (key != null) key.cancel();
+            outbound.forEach(NioServerEngine::discard);
+            outbound.clear();
+            closeQuietly(channel);
+        }
+    }
+
+    /**
+     * Đoạn file đang gửi dở
+     */
+    private static class FileRegion {
+        final FileChannel channel;
+        final String label;
+        long position;
+        long remaining;
+
+        FileRegion(FileChannel channel, long position, long remaining, String label) {
+            this.channel = channel;
+            this.position = position;
+            this.remaining = remaining;
+            this.label = label;
+        }
+    }
+
+    /**
+     * Đoạn file đang gửi dở dạng nén (WireCompression)
+     * encoder chỉ chạy trên worker, các trường còn lại chỉ truy cập từ event loop
+     */
+    private static class ChunkRegion {
+        final WireCompression.Encoder encoder;
+        final String label;
+
+        /**
+         * Chunk đã nén xong, chờ ghi
+         */
+        final Deque<ByteBuffer> ready = new ArrayDeque<>();
+
+        /**
+         * Worker đang chạy encoder.next() (đóng encoder phải đợi worker xong)
+         */
+        boolean encoding;
+        boolean finished;
+        IOException error;
+
+        ChunkRegion(WireCompression.Encoder encoder, String label) {
+            this.encoder = encoder;
+            this.label = label;
+        }
+
+        void closeQuietly() {
+            try {
+                encoder.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    // ============================================
+    // HELPER METHODS
+    // ============================================
+
+    /**
+     * Đóng file của 1 phần outbound chưa gửi xong
+     * (ChunkRegion đang được worker nén → worker đóng khi xong)
+     */
+    private static void discard(Object part) {
+        if (part instanceof FileRegion) {
+            closeQuietly(((FileRegion) part).channel);
+        } else if (part instanceof ChunkRegion && !((ChunkRegion) part).encoding) {
+            ((ChunkRegion) part).closeQuietly();
+        }
+    }
+
+    private static void closeQuietly(Channel channel) {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static ThreadFactory namedThreads(String prefix) {
+        AtomicInteger counter = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, prefix + "-" + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+}
@@ -4,8 +4,23 @@
  */
 package com.p2papp.filesharing.network;
 
+import com.p2papp.filesharing.model.FileInfo;
+import com.p2papp.filesharing.utils.PieceManifest;
 import java.io.*;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 
 /**
@@ -13,10 +28,14 @@ import java.net.*;
  * 
  * Chức năng:
  * - Kết nối đến peer khác (biết IP:Port)
- * - Gửi requests (PING, LIST_FILES, REQUEST_FILE)
+ * - Gửi requests (PING, LIST_PAGE, REQUEST_FILE)
  * - Nhận responses và file
  * - Download file từ peer
  * 
+ * Request metadata đi qua PipelinedConnection: sendAsync() gửi không chờ,
+ * nhiều request cùng lúc trên 1 kết nối. Download dùng kết nối riêng
+ * lấy từ PeerConnectionPool.
+ * 
  * @author P2P Team
  */
 public class PeerClient {
@@ -36,19 +55,14 @@ public class PeerClient {
     private int peerPort;
     
     /**
-     * Socket connection
-     */
-    private Socket socket;
-    
-    /**
-     * Input stream - nhận data từ peer
+     * Kết nối metadata đến peer (protocol binary, hoặc text nếu peer cũ)
      */
-    private BufferedReader in;
+    private PipelinedConnection pipeline;
     
     /**
-     * Output stream - gửi data đến peer
+     * Thời gian chờ tối đa 1 response
      */
-    private PrintWriter out;
+    private static final long RESPONSE_TIMEOUT_MS = 30000;
     
     /**
      * Trạng thái kết nối
@@ -95,13 +109,8 @@ public class PeerClient {
         try {
             System.out.println("🔄 Connecting to peer: " + peerIP + ":" + peerPort);
             
-            // Tạo socket với timeout
-            socket = new Socket();
-            socket.connect(new InetSocketAddress(peerIP, peerPort), 5000); // 5s timeout
-            
-            // Tạo input/output streams
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            out = new PrintWriter(socket.getOutputStream(), true); // auto-flush
+            // Tạo kết nối với timeout 5s + bắt tay protocol
+            pipeline = new PipelinedConnection(PeerConnection.open(peerIP, peerPort, 5000, 0));
             
             isConnected = true;
             System.out.println("✅ Connected to peer: " + peerIP + ":" + peerPort);
@@ -135,15 +144,13 @@ public class PeerClient {
     public void disconnect() {
         try {
             // Gửi DISCONNECT trước khi đóng
-            if (isConnected && out != null) {
+            if (isConnected && pipeline != null) {
                 sendMessage("DISCONNECT");
             }
             
-            // Đóng streams và socket
-            if (in != null) in.close();
-            if (out != null) out.close();
-            if (socket != null && !socket.isClosed()) {
-                socket.close();
+            // Đóng kết nối
+            if (pipeline != null) {
+                pipeline.close();
             }
             
             isConnected = false;
@@ -165,27 +172,55 @@ public class PeerClient {
      * @return Response từ peer, null nếu lỗi
      */
      public String sendMessage(String message) {
-        if (!isConnected) {
-            System.err.println("❌ Not connected to peer!");
-            return null;
-        }
+        CompletableFuture<String> future = sendAsync(message);
         
         try {
-            out.println(message);
-            System.out.println("📤 Sent: " + message);
-            
-            String response = in.readLine();
-            System.out.println("📥 Received: " + response);
-            
-            return response;
+            return future.get(RESPONSE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
             
-        } catch (IOException e) {
-            System.err.println("❌ Send/Receive error: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException | TimeoutException e) {
+            Throwable cause = e.getCause() != null ? e.getCause() : e;
+            System.err.println("❌ Send/Receive error: " + cause.getMessage());
             isConnected = false;
             return null;
         }
     }
     
+    /**
+     * Gửi message, không chờ response (pipelining)
+     * 
+     * Gọi nhiều lần liên tiếp → các request cùng bay trên 1 kết nối,
+     * tổng thời gian ≈ 1 RTT thay vì 1 RTT / request.
+     * 
+     * @return Future nhận response (dạng dòng text), null nếu message không hợp lệ
+     *         hoặc chưa kết nối
+     */
+    public CompletableFuture<String> sendAsync(String message) {
+        if (!isConnected) {
+            System.err.println("❌ Not connected to peer!");
+            return CompletableFuture.completedFuture(null);
+        }
+        
+        Frame request;
+        try {
+            request = Frame.parseLine(message);
+        } catch (IllegalArgumentException e) {
+            request = null;
+        }
+        if (request == null) {
+            System.err.println("❌ Invalid command: " + message);
+            return CompletableFuture.completedFuture(null);
+        }
+        
+        System.out.println("📤 Sent: " + message);
+        return pipeline.submit(request).thenApply(response -> {
+            System.out.println("📥 Received: " + response);
+            return response.toLine();
+        });
+    }
+    
     
     // ============================================
     // PROTOCOL COMMANDS
@@ -218,27 +253,180 @@ public class PeerClient {
     }
     
     /**
-     * LIST_FILES - Lấy danh sách file
+     * Lấy danh sách tên file (tất cả các trang LIST_PAGE)
      * @return Array tên file, empty array nếu không có
      */
    public String[] getFileList() {
-        String response = sendMessage("LIST_FILES");
+        if (!isConnected) {
+            System.err.println("❌ Not connected!");
+            return new String[0];
+        }
         
-        if (response == null) {
+        try {
+            return listFiles(peerIP, peerPort, "", null).stream()
+                .map(FileInfo::getFileName)
+                .toArray(String[]::new);
+        } catch (IOException e) {
+            System.err.println("❌ List files error: " + e.getMessage());
             return new String[0];
         }
+    }
+    
+    /**
+     * Lấy toàn bộ danh sách file của peer, từng trang một
+     * 
+     * @param filter Prefix hoặc glob (* ?), lọc trên server ("" = tất cả)
+     * @param onEntry Gọi ngay khi nhận được mỗi file (hiển thị dần), null = không cần
+     * @return Tất cả file khớp filter
+     */
+    public static List<FileInfo> listFiles(String host, int port, String filter,
+                                           Consumer<FileInfo> onEntry) throws IOException {
+        List<FileInfo> files = new ArrayList<>();
+        String cursor = null;
+        do {
+            cursor = listFilesPage(host, port, cursor, filter, 0, file -> {
+                files.add(file);
+                if (onEntry != null) {
+                    onEntry.accept(file);
+                }
+            });
+        } while (cursor != null);
+        return files;
+    }
+    
+    /**
+     * LIST_PAGE - Lấy 1 trang danh sách file
+     * 
+     * Mỗi file là 1 frame FILE_ENTRY (tên, size, hash, mtime) → onEntry được gọi
+     * ngay khi frame tới, không chờ cả trang. Hết trang: FILES_END + cursor trang sau.
+     * 
+     * Peer cũ chưa có LIST_PAGE → dùng LIST_FILES (chỉ có tên, lọc ở client, 1 trang).
+     * 
+     * @param cursor Cursor FILES_END trả về lần trước (null = trang đầu)
+     * @param limit Số file tối đa (0 = mặc định của server)
+     * @return Cursor trang sau, null nếu đã hết
+     */
+    public static String listFilesPage(String host, int port, String cursor, String filter, int limit,
+                                       Consumer<FileInfo> onEntry) throws IOException {
+        PeerConnectionPool pool = PeerConnectionPool.getShared();
+        PeerConnection connection = pool.acquire(host, port);
+        
+        // Chỉ trả về pool khi đã đọc tới frame cuối của response
+        boolean reusable = false;
         
-        if (response.startsWith("FILES:")) {
-            String fileList = response.substring(6);
+        try {
+            String query = (cursor != null ? cursor : "") + ":" + (filter != null ? filter : "");
+            connection.send(Frame.of(MessageType.LIST_PAGE, query, limit));
             
-            if (fileList.equals("NONE") || fileList.isEmpty()) {
-                return new String[0];
+            while (true) {
+                Frame frame = connection.receive();
+                if (frame == null) {
+                    throw new EOFException("Connection closed by peer");
+                }
+                
+                if (frame.getType() == MessageType.FILE_ENTRY) {
+                    onEntry.accept(parseFileEntry(frame, host, port));
+                    continue;
+                }
+                
+                if (frame.getType() == MessageType.FILES_END) {
+                    reusable = true;
+                    String next = frame.getText();
+                    return next == null || next.isEmpty() ? null : next;
+                }
+                
+                if (isUnknownCommand(frame) && cursor == null) {
+                    listFilesLegacy(connection, filter, onEntry, host, port);
+                    reusable = true;
+                    return null;
+                }
+                
+                if (frame.isError()) {
+                    reusable = true;
+                    throw new IOException("List files failed: " + frame.getText());
+                }
+                throw new ProtocolException("Unexpected response: " + frame);
             }
             
-            return fileList.split(",");
+        } finally {
+            if (reusable) {
+                pool.release(connection);
+            } else {
+                pool.invalidate(connection);
+            }
+        }
+    }
+    
+    /**
+     * FILE_ENTRY:<size>:<mtime>:<fileId>:<hash>:<name> → FileInfo
+     */
+    private static FileInfo parseFileEntry(Frame frame, String host, int port) throws ProtocolException {
+        String text = frame.getText();
+        int colon = text == null ? -1 : text.indexOf(':');
+        if (colon < 0) {
+            throw new ProtocolException("Invalid FILE_ENTRY: " + frame);
         }
         
-        return new String[0];
+        String hash = text.substring(0, colon);
+        FileInfo file = new FileInfo(text.substring(colon + 1), frame.getNumber(0),
+                                     hash.isEmpty() ? null : hash, null);
+        if (frame.getNumber(1) > 0) {
+            file.setSharedDate(new Timestamp(frame.getNumber(1)));
+        }
+        file.setFileId((int) frame.getNumber(2));
+        file.setPeerIp(host);
+        file.setPeerPort(port);
+        return file;
+    }
+    
+    /**
+     * Peer cũ: LIST_FILES → FILES:a,b,c (1 dòng, không có size / hash)
+     */
+    private static void listFilesLegacy(PeerConnection connection, String filter, Consumer<FileInfo> onEntry,
+                                        String host, int port) throws IOException {
+        Frame response = connection.request(Frame.of(MessageType.LIST_FILES));
+        if (response.getType() != MessageType.FILES) {
+            throw new IOException("List files failed: " + response);
+        }
+        
+        Predicate<String> matches = RequestProcessor.nameFilter(filter);
+        for (String name : MessageHandler.parseFilesList("FILES:" + response.getText())) {
+            if (matches.test(name)) {
+                FileInfo file = new FileInfo(name, 0);
+                file.setPeerIp(host);
+                file.setPeerPort(port);
+                onEntry.accept(file);
+            }
+        }
+    }
+    
+    /**
+     * REQUEST_FILE cho nhiều file cùng lúc (pipelined)
+     * 
+     * @return Tên file → kích thước (bytes), file lỗi / không tồn tại bị bỏ qua
+     */
+    public Map<String, Long> getFileSizes(String[] fileNames) {
+        Map<String, CompletableFuture<String>> futures = new LinkedHashMap<>();
+        for (String fileName : fileNames) {
+            futures.put(fileName, sendAsync(MessageHandler.createRequestFileMessage(fileName)));
+        }
+        
+        Map<String, Long> sizes = new LinkedHashMap<>();
+        for (Map.Entry<String, CompletableFuture<String>> entry : futures.entrySet()) {
+            try {
+                String[] info = MessageHandler.parseFileInfo(
+                    entry.getValue().get(RESPONSE_TIMEOUT_MS, TimeUnit.MILLISECONDS));
+                if (info != null) {
+                    sizes.put(entry.getKey(), Long.parseLong(info[1]));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException | TimeoutException | NumberFormatException e) {
+                System.err.println("❌ File info failed: " + entry.getKey());
+            }
+        }
+        return sizes;
     }
     // ============================================
     // FILE DOWNLOAD
@@ -272,26 +460,31 @@ public boolean downloadFile(String fileName, String savePath) {
             return false;
         }
         
+        // Dữ liệu file không đi qua kết nối pipelined → dùng kết nối riêng từ pool
+        PeerConnectionPool pool = PeerConnectionPool.getShared();
+        PeerConnection connection = null;
+        boolean reusable = false;
+        
         try {
             System.out.println("\n📥 Downloading: " + fileName);
             
-            out.println("DOWNLOAD_REQUEST:" + fileName);
+            connection = pool.acquire(peerIP, peerPort);
+            Frame response = connection.request(Frame.of(MessageType.DOWNLOAD_REQUEST, fileName));
             System.out.println("📤 Sent: DOWNLOAD_REQUEST:" + fileName);
-            
-            String response = in.readLine();
             System.out.println("📥 Received: " + response);
             
-            if (response.startsWith("ERROR:")) {
+            if (response.isError()) {
                 System.err.println("❌ Server error: " + response);
+                reusable = true;
                 return false;
             }
             
-            if (!response.startsWith("FILE_SIZE:")) {
+            if (response.getType() != MessageType.FILE_SIZE) {
                 System.err.println("❌ Invalid response: " + response);
                 return false;
             }
             
-            long fileSize = Long.parseLong(response.split(":")[1]);
+            long fileSize = response.getNumber(0);
             
             System.out.println("   File: " + fileName);
             System.out.println("   Size: " + formatFileSize(fileSize));
@@ -303,15 +496,16 @@ public boolean downloadFile(String fileName, String savePath) {
             System.out.println("   Progress: 0%");
             
             try (FileOutputStream fos = new FileOutputStream(outputFile)) {
-                InputStream is = socket.getInputStream();
+                // Cùng stream với response → không mất bytes đã buffer
+                InputStream is = connection.beginData(fileSize);
                 
-                byte[] buffer = new byte[4096];
+                byte[] buffer = new byte[64 * 1024];
                 long totalRead = 0;
                 int bytesRead;
                 int lastProgress = 0;
                 
                 while (totalRead < fileSize) {
-                    bytesRead = is.read(buffer);
+                    bytesRead = is.read(buffer, 0, (int) Math.min(buffer.length, fileSize - totalRead));
                     
                     if (bytesRead == -1) {
                         throw new IOException("Unexpected end of stream");
@@ -333,15 +527,20 @@ public boolean downloadFile(String fileName, String savePath) {
             System.out.println("✅ Download completed: " + outputFile.getName());
             System.out.println("   Saved to: " + outputFile.getAbsolutePath() + "\n");
             
+            reusable = true;
             return true;
             
-        } catch (NumberFormatException e) {
-            System.err.println("❌ Invalid file size format");
-            return false;
         } catch (IOException e) {
             System.err.println("❌ Download failed: " + e.getMessage());
             e.printStackTrace();
             return false;
+            
+        } finally {
+            if (reusable) {
+                pool.release(connection);
+            } else {
+                pool.invalidate(connection);
+            }
         }
     }
 
@@ -359,7 +558,7 @@ public boolean downloadFile(String fileName, String savePath) {
     // ============================================
     
     public boolean isConnected() {
-        return isConnected && socket != null && socket.isConnected() && !socket.isClosed();
+        return isConnected && pipeline != null && !pipeline.isClosed();
     }
     
     public String getPeerIP() {
@@ -381,9 +580,26 @@ public boolean downloadFile(String fileName, String savePath) {
     // ✅ STATIC METHOD - Download trực tiếp (không cần connect)
     // ============================================
     
+    /**
+     * Số lần thử tối đa cho 1 download (mỗi lần thử resume từ checkpoint)
+     */
+    private static final int MAX_ATTEMPTS = 3;
+    
+    /**
+     * Cứ mỗi 4MB nhận được thì fsync + cập nhật checkpoint
+     */
+    private static final long CHECKPOINT_BYTES = 4L * 1024 * 1024;
+    
     /**
      * Download file trực tiếp từ peer mà không cần tạo instance
      * 
+     * Resume được: dữ liệu ghi vào savePath.part, vị trí đã ghi an toàn
+     * lưu trong savePath.part.meta. Nếu đứt giữa chừng, lần thử sau
+     * (hoặc lần gọi sau) gửi DOWNLOAD_RANGE từ byte cuối đã xác nhận.
+     * 
+     * Kết nối lấy từ PeerConnectionPool: tải nhiều file liên tiếp
+     * từ cùng 1 peer không phải mở lại socket mỗi lần.
+     * 
      * @param host IP của peer
      * @param port Port của peer
      * @param fileName Tên file cần download
@@ -391,113 +607,355 @@ public boolean downloadFile(String fileName, String savePath) {
      * @return true nếu thành công
      */
     public static boolean downloadFileDirect(String host, int port, String fileName, String savePath) {
-        Socket socket = null;
+        return downloadFileDirect(host, port, fileName, savePath, null);
+    }
+    
+    /**
+     * Download file, kiểm tra hash từng piece ngay khi nhận
+     * 
+     * Checkpoint chỉ tiến qua các piece đã đúng hash.
+     * Piece hỏng được tải lại riêng bằng DOWNLOAD_RANGE sau khi nhận hết stream.
+     * 
+     * @param manifest Piece manifest của file (null = không kiểm tra)
+     */
+    public static boolean downloadFileDirect(String host, int port, String fileName, String savePath,
+                                             PieceManifest manifest) {
+        return downloadFileDirect(host, port, fileName, null, savePath, manifest);
+    }
+    
+    /**
+     * Download file theo file_hash (DOWNLOAD_BY_HASH)
+     * 
+     * Server tra hash trong bộ nhớ: không query DB, không nhầm file trùng tên.
+     * Peer cũ chưa hỗ trợ → tự chuyển sang DOWNLOAD_RANGE theo tên.
+     * 
+     * @param fileHash file_hash (null = tải theo tên)
+     */
+    public static boolean downloadFileDirect(String host, int port, String fileName, String fileHash,
+                                             String savePath, PieceManifest manifest) {
+        System.out.println("\n📥 Downloading: " + fileName);
+        System.out.println("   From: " + host + ":" + port);
+        System.out.println("   Save to: " + savePath);
         
-        try {
-            System.out.println("\n📥 Downloading: " + fileName);
-            System.out.println("   From: " + host + ":" + port);
-            System.out.println("   Save to: " + savePath);
-            
-            // 1. Kết nối đến server
-            socket = new Socket();
-            socket.connect(new InetSocketAddress(host, port), 5000); // 5s timeout
+        File outputFile = new File(savePath);
+        outputFile.getAbsoluteFile().getParentFile().mkdirs();
+        DownloadCheckpoint checkpoint = DownloadCheckpoint.open(outputFile, fileName);
+        
+        for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+            try {
+                return downloadResumable(host, port, fileName, fileHash, outputFile, checkpoint, manifest);
+                
+            } catch (SocketTimeoutException e) {
+                System.err.println("   ❌ Connection timeout");
+            } catch (ConnectException e) {
+                System.err.println("   ❌ Connection refused - peer offline?");
+                return false;
+            } catch (IOException e) {
+                System.err.println("   ❌ Download failed: " + e.getMessage());
+            }
             
+            if (attempt < MAX_ATTEMPTS) {
+                System.out.println("   🔁 Retry " + (attempt + 1) + "/" + MAX_ATTEMPTS +
+                                   " from byte " + checkpoint.getVerifiedBytes());
+                try {
+                    Thread.sleep(1000L * attempt);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+        
+        System.err.println("   ❌ Giving up, partial data kept at: " + checkpoint.getPartFile().getAbsolutePath());
+        return false;
+    }
+    
+    /**
+     * 1 lần thử download, tiếp tục từ checkpoint
+     * 
+     * @return false nếu server báo lỗi (không nên thử lại)
+     * @throws IOException lỗi mạng (có thể thử lại)
+     */
+    private static boolean downloadResumable(String host, int port, String fileName, String fileHash, File outputFile,
+                                             DownloadCheckpoint checkpoint, PieceManifest manifest) throws IOException {
+        // 1. Lấy kết nối từ pool (dùng lại nếu vừa tải file khác từ peer này)
+        // (30s không nhận được gì → coi như đứt)
+        PeerConnectionPool pool = PeerConnectionPool.getShared();
+        PeerConnection connection = pool.acquire(host, port);
+        
+        // Chỉ trả về pool khi response cuối đã đọc hết
+        boolean reusable = false;
+        
+        try {
             System.out.println("   ✅ Connected to peer");
             
-            // 2. Gửi request
-            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-            out.println("DOWNLOAD_REQUEST:" + fileName);
-            System.out.println("   📤 Sent: DOWNLOAD_REQUEST:" + fileName);
+            // 2. Gửi request từ byte cuối đã xác nhận
+            long offset = checkpoint.getVerifiedBytes();
+            if (manifest != null) {
+                // Bắt đầu ở ranh giới piece để hash được trọn piece
+                offset -= offset % manifest.getPieceSize();
+            }
+            System.out.println("   📤 Sent: range from " + offset + " (" + (fileHash != null ? fileHash : fileName) + ")");
             
             // 3. Nhận response
-            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            String response = in.readLine();
+            Frame response = requestRange(connection, fileHash, fileName, offset, -1);
             System.out.println("   📥 Received: " + response);
             
+            // Peer cũ chưa hỗ trợ DOWNLOAD_RANGE → tải cả file
+            if (isUnknownCommand(response)) {
+                offset = 0;
+                Frame request = Frame.of(MessageType.DOWNLOAD_REQUEST, fileName);
+                System.out.println("   📤 Sent: " + request);
+                response = connection.request(request);
+                System.out.println("   📥 Received: " + response);
+            }
+            
             // 4. Kiểm tra response
-            if (response == null || response.startsWith("ERROR:")) {
+            if (response.isError()) {
                 System.err.println("   ❌ Server error: " + response);
+                reusable = true;
                 return false;
             }
             
-            if (!response.startsWith("FILE_SIZE:")) {
+            // 5. FILE_RANGE:<offset>:<length>:<total> hoặc FILE_SIZE:<total>
+            long start;
+            long fileSize;
+            if (response.getType() == MessageType.FILE_RANGE) {
+                start = response.getNumber(0);
+                fileSize = response.getNumber(2);
+            } else if (response.getType() == MessageType.FILE_SIZE) {
+                start = 0;
+                fileSize = response.getNumber(0);
+            } else {
                 System.err.println("   ❌ Invalid response format");
                 return false;
             }
+            System.out.println("   File size: " + formatFileSize(fileSize));
+            
+            if (manifest != null && manifest.getTotalSize() != fileSize) {
+                System.err.println("   ❌ Remote file does not match manifest (" +
+                                   fileSize + " != " + manifest.getTotalSize() + " bytes)");
+                return false;
+            }
+            
+            // File nguồn đổi size → dữ liệu cũ vô dụng, tải lại từ đầu
+            if (!checkpoint.begin(fileSize) && start > 0) {
+                throw new IOException("Remote file changed, restarting from byte 0");
+            }
+            
+            // 6. Nhận binary data, ghi vào .part tại đúng vị trí
+            InputStream is = connection.beginData(fileSize - start);
+            List<Integer> badPieces = receiveRange(is, checkpoint, start, fileSize, manifest);
+            
+            // 7. Tải lại riêng các piece sai hash
+            if (!badPieces.isEmpty()) {
+                refetchPieces(connection, fileName, fileHash, checkpoint, manifest, badPieces);
+            }
+            
+            checkpoint.complete();
             
-            // 5. Parse file size
-          long fileSize = Long.parseLong(response.split(":")[1]);
-          System.out.println("   File size: " + formatFileSize(fileSize));
+            System.out.println("   ✅ Download completed!");
+            System.out.println("   Saved to: " + outputFile.getAbsolutePath() + "\n");
+            
+            reusable = true;
+            return true;
+            
+        } finally {
+            if (reusable) {
+                pool.release(connection);
+            } else {
+                pool.invalidate(connection);
+            }
+        }
+    }
     
+    /**
+     * Nhận bytes [start, fileSize) vào file .part
+     * Định kỳ fsync và cập nhật checkpoint
+     * 
+     * Có manifest: hash dần từng piece khi nhận, checkpoint chỉ tiến
+     * đến hết piece đúng cuối cùng (trước piece hỏng đầu tiên)
+     * 
+     * @return Các piece sai hash (rỗng nếu không có manifest)
+     */
+    private static List<Integer> receiveRange(InputStream is, DownloadCheckpoint checkpoint,
+                                              long start, long fileSize, PieceManifest manifest) throws IOException {
+        List<Integer> badPieces = new ArrayList<>();
+        MessageDigest md = manifest != null ? PieceManifest.newDigest() : null;
+        int piece = manifest != null ? (int) (start / manifest.getPieceSize()) : 0;
+        long pieceEnd = manifest != null ? manifest.getPieceOffset(piece) + manifest.getPieceLength(piece) : fileSize;
+        
+        try (RandomAccessFile raf = new RandomAccessFile(checkpoint.getPartFile(), "rw")) {
+            // Bỏ phần đuôi chưa được xác nhận của lần tải trước
+            raf.setLength(start);
+            raf.seek(start);
             
-            // 6. Nhận binary data
-            File outputFile = new File(savePath);
-            outputFile.getParentFile().mkdirs();
+            byte[] buffer = new byte[64 * 1024];
+            long position = start;
+            long safe = start;
+            long lastCheckpoint = start;
+            int lastProgress = 0;
+            
+            System.out.println("   Progress: " + (fileSize == 0 ? 100 : (start * 100) / fileSize) + "%");
             
-            try (FileOutputStream fos = new FileOutputStream(outputFile);
-                 InputStream is = socket.getInputStream()) {
+            while (position < fileSize) {
+                // Không đọc vượt ranh giới piece để hash đúng từng piece
+                int bytesRead = is.read(buffer, 0, (int) Math.min(buffer.length, pieceEnd - position));
                 
-                byte[] buffer = new byte[4096];
-                long totalRead = 0;
-                int bytesRead;
-                int lastProgress = 0;
+                if (bytesRead == -1) {
+                    raf.getFD().sync();
+                    checkpoint.update(safe);
+                    throw new IOException("Unexpected end of stream at " + position + " bytes");
+                }
                 
-                System.out.println("   Progress: 0%");
+                raf.write(buffer, 0, bytesRead);
+                position += bytesRead;
                 
-                while (totalRead < fileSize) {
-                    bytesRead = is.read(buffer);
+                if (md == null) {
+                    safe = position;
+                } else {
+                    md.update(buffer, 0, bytesRead);
                     
-                    if (bytesRead == -1) {
-                        throw new IOException("Unexpected end of stream at " + totalRead + " bytes");
-                    }
-                    
-                    fos.write(buffer, 0, bytesRead);
-                    totalRead += bytesRead;
-                    
-                    // Progress bar
-                    int progress = (int) ((totalRead * 100) / fileSize);
-                    if (progress != lastProgress && progress % 10 == 0) {
-                        System.out.print("\r   Progress: " + progress + "%");
-                        lastProgress = progress;
+                    if (position == pieceEnd) {
+                        if (!manifest.verifyPieceHash(piece, md.digest())) {
+                            System.err.println("\n   ⚠️  Piece " + piece + " hash mismatch");
+                            badPieces.add(piece);
+                        } else if (badPieces.isEmpty()) {
+                            safe = position;
+                        }
+                        
+                        piece++;
+                        if (piece < manifest.getPieceCount()) {
+                            pieceEnd = manifest.getPieceOffset(piece) + manifest.getPieceLength(piece);
+                        }
                     }
                 }
                 
-                System.out.print("\r   Progress: 100%\n");
+                if (safe - lastCheckpoint >= CHECKPOINT_BYTES) {
+                    raf.getFD().sync();
+                    checkpoint.update(safe);
+                    lastCheckpoint = safe;
+                }
                 
-                if (totalRead != fileSize) {
-                    System.err.println("   ⚠️  Warning: Expected " + fileSize + " bytes, received " + totalRead);
+                // Progress bar
+                int progress = (int) ((position * 100) / fileSize);
+                if (progress != lastProgress && progress % 10 == 0) {
+                    System.out.print("\r   Progress: " + progress + "%");
+                    lastProgress = progress;
                 }
             }
             
-            System.out.println("   ✅ Download completed!");
-            System.out.println("   Saved to: " + outputFile.getAbsolutePath() + "\n");
-            
-            return true;
+            raf.getFD().sync();
+            checkpoint.update(safe);
+            System.out.print("\r   Progress: 100%\n");
+        }
+        
+        return badPieces;
+    }
+    
+    /**
+     * Tải lại từng piece sai hash trên cùng kết nối
+     * Mỗi piece thử tối đa MAX_ATTEMPTS lần
+     */
+    private static void refetchPieces(PeerConnection connection, String fileName, String fileHash,
+                                      DownloadCheckpoint checkpoint, PieceManifest manifest,
+                                      List<Integer> pieces) throws IOException {
+        System.out.println("   🔁 Re-fetching " + pieces.size() + " corrupted piece(s): " + pieces);
+        
+        try (RandomAccessFile raf = new RandomAccessFile(checkpoint.getPartFile(), "rw")) {
+            byte[] buffer = new byte[manifest.getPieceSize()];
             
-        } catch (SocketTimeoutException e) {
-            System.err.println("   ❌ Connection timeout");
-            return false;
-        } catch (ConnectException e) {
-            System.err.println("   ❌ Connection refused - peer offline?");
-            return false;
-        } catch (IOException e) {
-            System.err.println("   ❌ Download failed: " + e.getMessage());
-            e.printStackTrace();
-            return false;
-        } catch (NumberFormatException e) {
-            System.err.println("   ❌ Invalid file size format");
-            return false;
-        } finally {
-            // Đóng socket
-            if (socket != null && !socket.isClosed()) {
-                try {
-                    socket.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
+            for (int piece : pieces) {
+                long offset = manifest.getPieceOffset(piece);
+                int length = manifest.getPieceLength(piece);
+                
+                for (int attempt = 1; ; attempt++) {
+                    Frame response = requestRange(connection, fileHash, fileName, offset, length);
+                    if (response.getType() != MessageType.FILE_RANGE
+                            || response.getNumber(0) != offset || response.getNumber(1) != length) {
+                        throw new IOException("Re-fetch of piece " + piece + " failed: " + response);
+                    }
+                    InputStream is = connection.beginData(length);
+                    
+                    int read = 0;
+                    while (read < length) {
+                        int n = is.read(buffer, read, length - read);
+                        if (n == -1) {
+                            throw new IOException("Unexpected end of stream in piece " + piece);
+                        }
+                        read += n;
+                    }
+                    
+                    if (manifest.verifyPiece(piece, buffer, 0, length)) {
+                        raf.seek(offset);
+                        raf.write(buffer, 0, length);
+                        break;
+                    }
+                    
+                    if (attempt >= MAX_ATTEMPTS) {
+                        throw new IOException("Piece " + piece + " corrupted " + MAX_ATTEMPTS + " times");
+                    }
+                    System.err.println("   ⚠️  Piece " + piece + " still corrupted, retry " + (attempt + 1));
                 }
             }
+            
+            raf.getFD().sync();
         }
         
+        checkpoint.update(manifest.getTotalSize());
+    }
+    
+    /**
+     * Xin đoạn [offset, offset + length) của 1 file (length = -1 → đến hết file)
+     * 
+     * Biết hash → DOWNLOAD_BY_HASH (server không query DB);
+     * chỉ peer cũ (UNKNOWN_COMMAND) mới được hỏi lại DOWNLOAD_RANGE theo tên trên cùng kết nối.
+     * FILE_NOT_FOUND được trả nguyên cho caller: hỏi lại theo tên sẽ rơi vào
+     * tìm gần đúng (findBestMatch) của server và có thể nhận về file khác hash.
+     * 
+     * @param fileHash file_hash (null = theo tên)
+     * @return Response header (FILE_RANGE, hoặc ERROR)
+     */
+    static Frame requestRange(PeerConnection connection, String fileHash, String fileName,
+                              long offset, long length) throws IOException {
+        if (fileHash != null) {
+            Frame response = connection.request(Frame.of(MessageType.DOWNLOAD_BY_HASH, fileHash, offset, length));
+            if (!isUnknownCommand(response)) {
+                return response;
+            }
+        }
+        return connection.request(Frame.of(MessageType.DOWNLOAD_RANGE, fileName, offset, length));
+    }
+    
+    /**
+     * Server không biết command (peer chạy bản cũ)
+     */
+    static boolean isUnknownCommand(Frame response) {
+        return response.isError() && response.getText() != null
+               && response.getText().startsWith("UNKNOWN_COMMAND");
+    }
+    
+    /**
+     * Đọc 1 dòng text (UTF-8, kết thúc bằng \n) trực tiếp từ InputStream
+     * Không đọc thừa byte nào sau '\n'
+     */
+    static String readLine(InputStream is) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = is.read()) != -1) {
+            if (b == '\n') {
+                break;
+            }
+            line.write(b);
+        }
+        if (b == -1 && line.size() == 0) {
+            return null;
+        }
+        
+        byte[] bytes = line.toByteArray();
+        int len = bytes.length;
+        if (len > 0 && bytes[len - 1] == '\r') len--;
+        return new String(bytes, 0, len, StandardCharsets.UTF_8);
     }
     // ============================================
     // HELPER METHODS
@@ -564,8 +1022,8 @@ public boolean downloadFile(String fileName, String savePath) {
             System.out.println("Result: " + (info != null ? "✅" : "❌"));
             Thread.sleep(1000);
             
-            // Test 4: LIST_FILES
-            System.out.println("\n【 Test 4: LIST_FILES 】");
+            // Test 4: LIST_PAGE
+            System.out.println("\n【 Test 4: LIST_PAGE 】");
             String[] files = client.getFileList();
             System.out.println("Files available on peer:");
             if (files.length == 0) {
@@ -577,8 +1035,17 @@ public boolean downloadFile(String fileName, String savePath) {
             }
             Thread.sleep(1000);
             
-            // Test 5: DOWNLOAD FILE
-            System.out.println("\n【 Test 5: DOWNLOAD FILE 】");
+            // Test 5: FILE INFO (pipelined)
+            System.out.println("\n【 Test 5: FILE INFO (pipelined) 】");
+            long start = System.nanoTime();
+            Map<String, Long> sizes = client.getFileSizes(files);
+            System.out.println("Result: " + sizes.size() + "/" + files.length + " files in " +
+                               (System.nanoTime() - start) / 1_000_000 + " ms");
+            sizes.forEach((name, size) -> System.out.println("  - " + name + " (" + formatFileSize(size) + ")"));
+            Thread.sleep(1000);
+            
+            // Test 6: DOWNLOAD FILE
+            System.out.println("\n【 Test 6: DOWNLOAD FILE 】");
             if (files.length > 0) {
                 String fileToDownload = files[0];
                 System.out.println("Downloading: " + fileToDownload);
@@ -0,0 +1,265 @@
+package com.p2papp.filesharing.network;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * PeerConnection.java - 1 kết nối client đến PeerServer
+ *
+ * Khi mở kết nối, client đề nghị protocol binary (FrameCodec):
+ * - Server mới → dùng frame có độ dài, dữ liệu file nằm trong FILE_DATA
+ * - Server cũ (chỉ hiểu text) → tự quay về protocol text từng dòng
+ *
+ * Caller chỉ làm việc với Frame, không cần biết đang dùng protocol nào.
+ * Chọn protocol bằng -Dp2p.protocol=binary|text (mặc định binary).
+ */
+public class PeerConnection implements Closeable {
+
+    /**
+     * System property chọn protocol phía client
+     */
+    public static final String PROPERTY = "p2p.protocol";
+
+    private final String host;
+    private final int port;
+    private final Socket socket;
+    private final InputStream in;
+    private final OutputStream out;
+    private final boolean binary;
+
+    /**
+     * Version binary đã thống nhất với server (0 = protocol text)
+     */
+    private final int version;
+    private final ByteBuffer scratch = ByteBuffer.allocate(1024);
+
+    /**
+     * Codec nén FILE_DATA đã thoả thuận qua hello() (null = dữ liệu thô)
+     */
+    private String compression;
+
+    private PeerConnection(String host, int port, Socket socket, InputStream in, OutputStream out, int version) {
+        this.host = host;
+        this.port = port;
+        this.socket = socket;
+        this.in = in;
+        this.out = out;
+        this.version = version;
+        this.binary = version > 0;
+    }
+
+    // ============================================
+    // OPEN
+    // ============================================
+
+    /**
+     * Kết nối và bắt tay protocol
+     *
+     * @param connectTimeoutMs Timeout kết nối
+     * @param soTimeoutMs Timeout đọc (0 = không giới hạn)
+     */
+    public static PeerConnection open(String host, int port, int connectTimeoutMs, int soTimeoutMs) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(host, port), connectTimeoutMs);
+            socket.setSoTimeout(soTimeoutMs);
+            socket.setTcpNoDelay(true);
+
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+
+            int version = 0;
+            if (!"text".equalsIgnoreCase(System.getProperty(PROPERTY, "binary"))) {
+                version = handshake(in, out);
+            }
+
+            return new PeerConnection(host, port, socket, in, out, version);
+
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return Version binary server chọn, 0 nếu server chỉ hiểu text
+     */
+    private static int handshake(InputStream in, OutputStream out) throws IOException {
+        FrameCodec.writeHandshake(out);
+
+        int first = in.read();
+        if (first == -1) {
+            throw new EOFException("Connection closed during handshake");
+        }
+
+        if (first == (FrameCodec.MAGIC & 0xff)) {
+            int version = in.read();
+            if (version <= 0 || version > FrameCodec.VERSION) {
+                throw new ProtocolException("Unsupported protocol version: " + version);
+            }
+            return version;
+        }
+
+        // Server cũ trả "ERROR:UNKNOWN_COMMAND:..." cho dòng bắt tay → bỏ dòng đó
+        // (server quá tải trước khi kịp đọc bắt tay → ERROR:SERVER_BUSY, không phải server cũ)
+        String line = (char) first + String.valueOf(PeerClient.readLine(in));
+        if (line.startsWith("ERROR:SERVER_BUSY")) {
+            throw new IOException("Peer busy (SERVER_BUSY)");
+        }
+        System.out.println("   ⚠️  Peer does not support binary protocol, using text");
+        return 0;
+    }
+
+    // ============================================
+    // SEND / RECEIVE
+    // ============================================
+
+    /**
+     * Gửi 1 frame (flush ngay)
+     */
+    public void send(Frame frame) throws IOException {
+        if (binary) {
+            FrameCodec.write(out, frame, scratch);
+        } else {
+            out.write((frame.toLine() + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+        out.flush();
+    }
+
+    /**
+     * Nhận 1 frame
+     *
+     * @return Frame, hoặc null nếu server đóng kết nối
+     */
+    public Frame receive() throws IOException {
+        if (binary) {
+            return FrameCodec.read(in);
+        }
+
+        String line = PeerClient.readLine(in);
+        if (line == null) {
+            return null;
+        }
+
+        try {
+            Frame frame = Frame.parseLine(line);
+            if (frame == null) {
+                throw new ProtocolException("Unknown response: " + line);
+            }
+            return frame;
+        } catch (IllegalArgumentException e) {
+            throw new ProtocolException("Invalid response: " + line);
+        }
+    }
+
+    /**
+     * Gửi request và chờ response
+     *
+     * @throws EOFException nếu server đóng kết nối
+     */
+    public Frame request(Frame frame) throws IOException {
+        send(frame);
+        Frame response = receive();
+        if (response == null) {
+            throw new EOFException("Connection closed by peer");
+        }
+        return response;
+    }
+
+    /**
+     * HELLO → HELLO_ACK, kèm đề nghị nén dữ liệu file (chỉ protocol binary)
+     *
+     * @return HELLO_ACK (hoặc ERROR) của server
+     */
+    public Frame hello(String clientName) throws IOException {
+        String offer = binary ? WireCompression.offer(clientName) : clientName;
+        Frame ack = request(Frame.of(MessageType.HELLO, offer));
+
+        if (ack.getType() == MessageType.HELLO_ACK && binary) {
+            compression = WireCompression.accepted(ack.getText());
+        }
+        return ack;
+    }
+
+    /**
+     * Bắt đầu đọc dữ liệu file ngay sau FILE_SIZE / FILE_RANGE
+     *
+     * Binary: đọc header FILE_DATA, kiểm tra đúng độ dài;
+     * đã thoả thuận nén → stream giải nén (WireCompression).
+     * Text: bytes thô nằm ngay sau dòng header.
+     *
+     * @param expected Số byte response trước đó báo
+     * @return Stream để đọc đúng expected bytes (dữ liệu gốc)
+     */
+    public InputStream beginData(long expected) throws IOException {
+        if (binary) {
+            Frame header = FrameCodec.read(in);
+            if (header == null || header.getType() != MessageType.FILE_DATA) {
+                throw new ProtocolException("Expected FILE_DATA, got " + header);
+            }
+            if (header.getNumber(0) != expected) {
+                throw new ProtocolException("FILE_DATA length " + header.getNumber(0) + " != " + expected);
+            }
+            if (compression != null) {
+                return WireCompression.decode(in, expected, host + ":" + port);
+            }
+        }
+        return in;
+    }
+
+    // ============================================
+    // GETTERS
+    // ============================================
+
+    /**
+     * Host/port đã dùng khi open (key của PeerConnectionPool)
+     */
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Codec nén đang dùng cho dữ liệu file, null nếu không nén
+     */
+    public String getCompression() {
+        return compression;
+    }
+
+    public boolean isBinary() {
+        return binary;
+    }
+
+    /**
+     * Server gắn lại correlation id vào response (binary v2+)
+     * Không có → response vẫn theo đúng thứ tự request
+     */
+    public boolean supportsCorrelationIds() {
+        return version >= FrameCodec.TAGGED_VERSION;
+    }
+
+    public boolean isClosed() {
+        return socket.isClosed();
+    }
+
+    public Socket getSocket() {
+        return socket;
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+
+    @Override
+    public String toString() {
+        return "PeerConnection{" + socket.getRemoteSocketAddress() + ", " + (binary ? "binary" : "text") + "}";
+    }
+}
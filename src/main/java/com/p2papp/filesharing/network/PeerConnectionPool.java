@@ -0,0 +1,349 @@
+package com.p2papp.filesharing.network;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * PeerConnectionPool.java - Giữ lại kết nối đến peer để dùng cho request sau
+ *
+ * Trước đây mỗi lần download mở 1 socket mới rồi đóng ngay,
+ * tải 500 file nhỏ từ 1 peer = 500 lần bắt tay TCP + bắt tay protocol.
+ *
+ * Pool theo key "ip:port":
+ * - acquire(): lấy kết nối rảnh (mới dùng gần nhất trước), không có thì mở mới + HELLO
+ * - release(): trả kết nối về pool (chỉ khi đang ở ranh giới frame, không dở dang)
+ * - invalidate(): đóng luôn kết nối lỗi, không trả về pool
+ * - Kết nối rảnh lâu hơn validateAfterMs → PING/PONG trước khi dùng lại
+ * - Kết nối rảnh quá idleTimeoutMs → bị đóng (thread nền dọn định kỳ)
+ *
+ * Lưu ý: engine CLASSIC của PeerServer giữ 1 thread cho mỗi kết nối,
+ * nên số kết nối rảnh / peer và thời gian giữ được để nhỏ: idleTimeoutMs mặc định
+ * ngắn hơn p2p.server.idleTimeoutMs (server tự đóng kết nối rảnh quá lâu);
+ * kết nối server đã đóng bị PING phát hiện trước khi dùng lại.
+ */
+public class PeerConnectionPool {
+
+    // ============================================
+    // CONFIG
+    // ============================================
+
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+    private static final int READ_TIMEOUT_MS = 30000;
+
+    /**
+     * Timeout chờ PONG khi kiểm tra kết nối rảnh
+     */
+    private static final int PING_TIMEOUT_MS = 2000;
+
+    /**
+     * Pool dùng chung cho PeerClient.downloadFileDirect
+     */
+    private static final PeerConnectionPool SHARED = new PeerConnectionPool(
+        Integer.getInteger("p2p.pool.maxIdlePerPeer", 2),
+        Long.getLong("p2p.pool.idleTimeoutMs", 10_000),
+        Long.getLong("p2p.pool.validateAfterMs", 1_000));
+
+    private final int maxIdlePerPeer;
+    private final long idleTimeoutMs;
+    private final long validateAfterMs;
+
+    /**
+     * Tên gửi trong HELLO khi mở kết nối mới
+     */
+    private volatile String clientName = "peer";
+
+    /**
+     * ip:port → kết nối rảnh (đầu deque = mới trả gần nhất)
+     */
+    private final Map<String, Deque<IdleConnection>> idle = new HashMap<>();
+
+    private ScheduledExecutorService evictor;
+
+    // ============================================
+    // METRICS
+    // ============================================
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong failedHealthChecks = new AtomicLong();
+
+    // ============================================
+    // CONSTRUCTOR
+    // ============================================
+
+    /**
+     * @param maxIdlePerPeer Số kết nối rảnh tối đa giữ lại cho 1 peer
+     * @param idleTimeoutMs Kết nối rảnh lâu hơn → đóng
+     * @param validateAfterMs Kết nối rảnh lâu hơn → PING trước khi dùng lại
+     */
+    public PeerConnectionPool(int maxIdlePerPeer, long idleTimeoutMs, long validateAfterMs) {
+        this.maxIdlePerPeer = maxIdlePerPeer;
+        this.idleTimeoutMs = idleTimeoutMs;
+        this.validateAfterMs = validateAfterMs;
+    }
+
+    public static PeerConnectionPool getShared() {
+        return SHARED;
+    }
+
+    // ============================================
+    // ACQUIRE / RELEASE
+    // ============================================
+
+    /**
+     * Lấy kết nối đến peer (dùng lại nếu có, không thì mở mới)
+     *
+     * Sau khi dùng xong phải gọi release() hoặc invalidate().
+     */
+    public PeerConnection acquire(String host, int port) throws IOException {
+        String key = key(host, port);
+
+        IdleConnection candidate;
+        while ((candidate = poll(key)) != null) {
+            long idleMs = System.currentTimeMillis() - candidate.since;
+
+            if (candidate.connection.isClosed() || idleMs >= idleTimeoutMs) {
+                evictions.incrementAndGet();
+                closeQuietly(candidate.connection);
+                continue;
+            }
+
+            if (idleMs >= validateAfterMs && !isHealthy(candidate.connection)) {
+                failedHealthChecks.incrementAndGet();
+                closeQuietly(candidate.connection);
+                continue;
+            }
+
+            hits.incrementAndGet();
+            return candidate.connection;
+        }
+
+        misses.incrementAndGet();
+        return openNew(host, port);
+    }
+
+    /**
+     * Trả kết nối về pool
+     *
+     * Chỉ gọi khi request/response cuối đã đọc hết (kể cả dữ liệu file),
+     * nếu không thì dùng invalidate().
+     */
+    public void release(PeerConnection connection) {
+        if (connection == null) {
+            return;
+        }
+        if (connection.isClosed()) {
+            return;
+        }
+
+        String key = key(connection.getHost(), connection.getPort());
+        boolean pooled = false;
+
+        synchronized (idle) {
+            Deque<IdleConnection> queue = idle.computeIfAbsent(key, k -> new ArrayDeque<>());
+            if (queue.size() < maxIdlePerPeer) {
+                queue.addFirst(new IdleConnection(connection, System.currentTimeMillis()));
+                pooled = true;
+            }
+        }
+
+        if (pooled) {
+            startEvictor();
+        } else {
+            closeQuietly(connection);
+        }
+    }
+
+    /**
+     * Đóng kết nối lỗi / dở dang (không trả về pool)
+     */
+    public void invalidate(PeerConnection connection) {
+        if (connection != null) {
+            closeQuietly(connection);
+        }
+    }
+
+    /**
+     * Đóng mọi kết nối rảnh (VD: khi logout)
+     */
+    public void closeAll() {
+        synchronized (idle) {
+            for (Deque<IdleConnection> queue : idle.values()) {
+                for (IdleConnection c : queue) {
+                    closeQuietly(c.connection);
+                }
+            }
+            idle.clear();
+
+            if (evictor != null) {
+                evictor.shutdownNow();
+                evictor = null;
+            }
+        }
+    }
+
+    // ============================================
+    // GETTERS (METRICS)
+    // ============================================
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public long getFailedHealthChecks() {
+        return failedHealthChecks.get();
+    }
+
+    /**
+     * Tỉ lệ dùng lại kết nối (0..1)
+     */
+    public double getHitRatio() {
+        long total = hits.get() + misses.get();
+        return total == 0 ? 0 : (double) hits.get() / total;
+    }
+
+    public int getIdleCount() {
+        synchronized (idle) {
+            int count = 0;
+            for (Deque<IdleConnection> queue : idle.values()) {
+                count += queue.size();
+            }
+            return count;
+        }
+    }
+
+    public void setClientName(String clientName) {
+        this.clientName = clientName;
+    }
+
+    public String getStats() {
+        return String.format("hits=%d, misses=%d (%.0f%% reused), idle=%d, evicted=%d, failed pings=%d",
+                             getHits(), getMisses(), getHitRatio() * 100, getIdleCount(),
+                             getEvictions(), getFailedHealthChecks());
+    }
+
+    // ============================================
+    // HELPER METHODS
+    // ============================================
+
+    private IdleConnection poll(String key) {
+        synchronized (idle) {
+            Deque<IdleConnection> queue = idle.get(key);
+            return queue == null ? null : queue.pollFirst();
+        }
+    }
+
+    /**
+     * Mở kết nối mới và chào server (HELLO → HELLO_ACK)
+     */
+    private PeerConnection openNew(String host, int port) throws IOException {
+        PeerConnection connection = PeerConnection.open(host, port, CONNECT_TIMEOUT_MS, READ_TIMEOUT_MS);
+        try {
+            Frame ack = connection.hello(clientName);
+            if (ack.getType() != MessageType.HELLO_ACK) {
+                throw new IOException("Handshake rejected: " + ack);
+            }
+            return connection;
+        } catch (IOException e) {
+            closeQuietly(connection);
+            throw e;
+        }
+    }
+
+    /**
+     * PING/PONG với timeout ngắn, phát hiện kết nối đã bị peer đóng
+     */
+    private boolean isHealthy(PeerConnection connection) {
+        try {
+            int timeout = connection.getSocket().getSoTimeout();
+            connection.getSocket().setSoTimeout(PING_TIMEOUT_MS);
+            try {
+                return connection.request(Frame.of(MessageType.PING)).getType() == MessageType.PONG;
+            } finally {
+                connection.getSocket().setSoTimeout(timeout);
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Thread nền đóng kết nối rảnh quá idleTimeoutMs
+     * (peer không phải giữ socket / thread cho client đã đi)
+     */
+    private void startEvictor() {
+        synchronized (idle) {
+            if (evictor != null) {
+                return;
+            }
+            evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "peer-pool-evictor");
+                t.setDaemon(true);
+                return t;
+            });
+            long period = Math.max(1000, idleTimeoutMs / 2);
+            evictor.scheduleWithFixedDelay(this::evictIdle, period, period, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void evictIdle() {
+        long now = System.currentTimeMillis();
+        synchronized (idle) {
+            for (Iterator<Deque<IdleConnection>> it = idle.values().iterator(); it.hasNext(); ) {
+                Deque<IdleConnection> queue = it.next();
+                queue.removeIf(c -> {
+                    if (c.connection.isClosed() || now - c.since >= idleTimeoutMs) {
+                        evictions.incrementAndGet();
+                        closeQuietly(c.connection);
+                        return true;
+                    }
+                    return false;
+                });
+                if (queue.isEmpty()) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    private static String key(String host, int port) {
+        return host + ":" + port;
+    }
+
+    private static void closeQuietly(PeerConnection connection) {
+        try {
+            connection.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Kết nối rảnh + thời điểm trả về pool
+     */
+    private static class IdleConnection {
+        final PeerConnection connection;
+        final long since;
+
+        IdleConnection(PeerConnection connection, long since) {
+            this.connection = connection;
+            this.since = since;
+        }
+    }
+}
@@ -1,12 +1,25 @@
 package com.p2papp.filesharing.network;
 
-import com.p2papp.filesharing.database.dao.FileDAO;
 import com.p2papp.filesharing.model.FileInfo;
+import com.p2papp.filesharing.utils.BlobStore;
+import com.p2papp.filesharing.utils.HashCache;
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * PeerServer.java - Socket Server lắng nghe kết nối từ peer khác
@@ -16,7 +29,14 @@ import java.util.concurrent.*;
  * - Chấp nhận nhiều kết nối đồng thời
  * - Xử lý requests từ peer khác
  * - Gửi/nhận file P2P
-
+ * 
+ * Engine (chọn bằng -Dp2p.server.engine):
+ * - classic: thread pool cố định, 1 thread/kết nối
+ * - nio: Selector + event loops (NioServerEngine)
+ * - virtual: 1 virtual thread/kết nối, giới hạn bằng -Dp2p.server.maxConnections
+ * 
+ * File đang chia sẻ được giữ trong bộ nhớ (file_hash → file, file_id → file):
+ * DOWNLOAD_BY_HASH / DOWNLOAD_BY_ID phục vụ không cần query DB.
  */
 public class PeerServer extends Thread {
     
@@ -50,6 +70,121 @@ public class PeerServer extends Thread {
      */
     private String sharedFolder = "shared_files";
     
+    /**
+     * Engine xử lý kết nối (classic / nio)
+     */
+    private final ServerEngine engine;
+    
+    /**
+     * Xử lý protocol commands (dùng chung cho mọi engine)
+     */
+    private final RequestProcessor processor;
+    
+    /**
+     * NIO engine (chỉ tạo khi engine = NIO)
+     */
+    private NioServerEngine nioEngine;
+    
+    /**
+     * Giới hạn số kết nối đồng thời (chỉ dùng cho engine = VIRTUAL)
+     * Virtual thread rẻ nhưng socket/file descriptor thì không
+     */
+    private Semaphore connectionLimit;
+    private int maxConnections = Integer.getInteger("p2p.server.maxConnections", 10000);
+    
+    /**
+     * Thời gian chờ tối đa khi đã đủ kết nối, quá hạn thì từ chối
+     */
+    private long admissionTimeoutMs = Long.getLong("p2p.server.admissionTimeoutMs", 2000);
+    
+    /**
+     * Engine CLASSIC: kết nối không gửi request mới trong khoảng này → đóng
+     * (kết nối rảnh trong PeerConnectionPool của client giữ chặt 1 trong 10 thread)
+     * Phải lớn hơn p2p.pool.idleTimeoutMs của client → client thường tự đóng trước
+     */
+    private long idleTimeoutMs = Long.getLong("p2p.server.idleTimeoutMs", 15_000);
+    
+    /**
+     * Timeout đọc phần còn lại của 1 request đã bắt đầu nhận
+     */
+    private static final int REQUEST_READ_TIMEOUT_MS = 30_000;
+    
+    /**
+     * Chờ bắt tay binary của kết nối bị từ chối (client binary gửi ngay khi kết nối)
+     */
+    private static final int BUSY_HANDSHAKE_TIMEOUT_MS = 500;
+    
+    /**
+     * Số kết nối phải chờ slot / bị từ chối vì quá tải
+     */
+    private final AtomicLong queuedConnections = new AtomicLong();
+    private final AtomicLong rejectedConnections = new AtomicLong();
+    
+    /**
+     * File đang chia sẻ của peer này (load lúc start, cập nhật khi upload / xóa)
+     */
+    private final ConcurrentMap<String, SharedFile> filesByHash = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Integer, SharedFile> filesById = new ConcurrentHashMap<>();
+    
+    /**
+     * Kiểm tra nội dung file đang chia sẻ còn đúng hash không (qua HashCache, chạy nền)
+     */
+    private final ExecutorService verifier = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "shared-file-verifier");
+        t.setDaemon(true);
+        return t;
+    });
+    private final Set<SharedFile> verifying = ConcurrentHashMap.newKeySet();
+    
+    /**
+     * Tăng mỗi khi danh sách file chia sẻ (trong DB) thay đổi
+     */
+    private final AtomicLong sharedVersion = new AtomicLong();
+    
+    /**
+     * File trong thư mục chia sẻ (tạo khi cần, xem getFolderIndex)
+     */
+    private SharedFolderIndex folderIndex;
+    
+    /**
+     * LIST_FILES / GET_INFO: danh sách đã ghép (file trong DB + thư mục chia sẻ),
+     * dựng lại khi 1 trong 2 đổi version
+     */
+    private volatile Listing listing;
+    
+    /**
+     * 1 file đang chia sẻ: đường dẫn + hash đã công bố trong DB
+     */
+    private static final class SharedFile {
+        final File file;
+        final String hash;
+        final String name;
+        final long size;
+        final int fileId;
+        final long modified;
+        
+        SharedFile(File file, FileInfo info) {
+            this.file = file;
+            this.hash = info.getFileHash();
+            this.name = info.getFileName();
+            this.size = info.getFileSize();
+            this.fileId = info.getFileId();
+            this.modified = info.getSharedDate() != null ? info.getSharedDate().getTime() : file.lastModified();
+        }
+    }
+    
+    private static final class Listing {
+        final long sharedVersion;
+        final long folderVersion;
+        final List<FileInfo> files;
+        
+        Listing(long sharedVersion, long folderVersion, List<FileInfo> files) {
+            this.sharedVersion = sharedVersion;
+            this.folderVersion = folderVersion;
+            this.files = files;
+        }
+    }
+    
     // ============================================
     // CONSTRUCTOR
     // ============================================
@@ -59,8 +194,27 @@ public class PeerServer extends Thread {
      * @port Port để lắng nghe
      */
     public PeerServer(int port) {
+        this(port, ServerEngine.fromConfig());
+    }
+    
+    /**
+     * Constructor
+     * @param port Port để lắng nghe
+     * @param engine Engine xử lý kết nối
+     */
+    public PeerServer(int port, ServerEngine engine) {
         this.port = port;
-        this.threadPool = Executors.newFixedThreadPool(10);
+        this.engine = engine;
+        this.processor = new RequestProcessor(this);
+        
+        if (engine == ServerEngine.NIO) {
+            this.nioEngine = new NioServerEngine(processor, Runtime.getRuntime().availableProcessors());
+        } else if (engine == ServerEngine.VIRTUAL) {
+            this.threadPool = newVirtualThreadExecutor();
+            this.connectionLimit = new Semaphore(maxConnections);
+        } else {
+            this.threadPool = Executors.newFixedThreadPool(10);
+        }
         
         // Tạo thư mục shared_files nếu chưa có
         File folder = new File(sharedFolder);
@@ -81,16 +235,28 @@ public class PeerServer extends Thread {
     public void run() {
         try {
             // Tạo ServerSocket lắng nghe trên port
-            serverSocket = new ServerSocket(port);
+            // Mở qua ServerSocketChannel để socket accept() có SocketChannel
+            // → gửi file bằng transferTo (zero-copy)
+            ServerSocketChannel serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(port));
+            serverSocket = serverChannel.socket();
             isRunning = true;
             
             System.out.println("╔════════════════════════════════════════╗");
             System.out.println("║   🟢 PEER SERVER STARTED              ║");
             System.out.println("║   Port: " + port + "                          ║");
             System.out.println("║   Shared folder: " + sharedFolder + "         ║");
+            System.out.println("║   Engine: " + engine + "                      ║");
             System.out.println("║   Waiting for connections...          ║");
             System.out.println("╚════════════════════════════════════════╝\n");
             
+            // Liệt kê thư mục chia sẻ 1 lần, sau đó WatchService giữ cho danh sách luôn mới
+            getFolderIndex();
+            
+            if (nioEngine != null) {
+                nioEngine.start();
+            }
+            
             // Vòng lặp accept connections
             while (isRunning) {
                 try {
@@ -104,12 +270,37 @@ public class PeerServer extends Thread {
                     
                     System.out.println("📥 New connection from: " + clientIP + ":" + clientPort);
                     
-                    // Xử lý client trong thread riêng
-                    threadPool.execute(new ClientHandler(clientSocket));
+                    if (nioEngine != null) {
+                        // NIO: giao cho event loop, không tốn thread
+                        try {
+                            nioEngine.register(clientSocket.getChannel());
+                        } catch (IOException e) {
+                            System.err.println("   ❌ Register error [" + clientIP + "]: " + e.getMessage());
+                            clientSocket.close();
+                        }
+                    } else if (connectionLimit != null) {
+                        // VIRTUAL: 1 virtual thread/kết nối, có giới hạn tổng
+                        if (admit(clientSocket)) {
+                            threadPool.execute(() -> {
+                                try {
+                                    new ClientHandler(clientSocket).run();
+                                } finally {
+                                    connectionLimit.release();
+                                }
+                            });
+                        }
+                    } else {
+                        // Xử lý client trong thread riêng
+                        threadPool.execute(new ClientHandler(clientSocket));
+                    }
                     
                 } catch (SocketException e) {
                     // Server bị stop → SocketException
                     if (!isRunning) break;
+                } catch (java.nio.channels.ClosedChannelException e) {
+                    // Server bị stop khi đang accept() trên channel
+                    if (!isRunning) break;
+                    throw e;
                 }
             }
             
@@ -121,6 +312,87 @@ public class PeerServer extends Thread {
         }
     }
     
+    /**
+     * Xin 1 slot kết nối
+     * 
+     * - Còn slot → nhận ngay
+     * - Hết slot → chờ tối đa admissionTimeoutMs (tính là queued)
+     * - Vẫn hết → trả SERVER_BUSY và đóng (tính là rejected), xem rejectBusy()
+     */
+    private boolean admit(Socket clientSocket) throws IOException {
+        if (connectionLimit.tryAcquire()) {
+            return true;
+        }
+        
+        queuedConnections.incrementAndGet();
+        try {
+            if (connectionLimit.tryAcquire(admissionTimeoutMs, TimeUnit.MILLISECONDS)) {
+                return true;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        
+        rejectedConnections.incrementAndGet();
+        System.err.println("   ⚠️  Server busy, rejected: " + clientSocket.getInetAddress().getHostAddress());
+        
+        try {
+            rejectBusy(clientSocket);
+        } finally {
+            clientSocket.close();
+        }
+        return false;
+    }
+    
+    /**
+     * Báo SERVER_BUSY theo đúng protocol của client
+     * 
+     * - Client binary (byte đầu = MAGIC): trả bắt tay rồi frame ERROR,
+     *   client nhận lỗi rõ ràng cho request đầu tiên thay vì decode dòng text thành frame rác
+     * - Client text / chưa gửi gì trong BUSY_HANDSHAKE_TIMEOUT_MS: dòng ERROR:SERVER_BUSY như cũ
+     */
+    private void rejectBusy(Socket clientSocket) throws IOException {
+        InputStream in = clientSocket.getInputStream();
+        OutputStream out = new BufferedOutputStream(clientSocket.getOutputStream());
+        Frame busy = Frame.of(MessageType.ERROR, "SERVER_BUSY");
+        
+        int first = -1;
+        clientSocket.setSoTimeout(BUSY_HANDSHAKE_TIMEOUT_MS);
+        try {
+            first = in.read();
+        } catch (SocketTimeoutException e) {
+            // Client chưa gửi gì → trả dạng text
+        }
+        
+        int version = first == (FrameCodec.MAGIC & 0xff) ? in.read() : -1;
+        if (version > 0 && in.read() == '\n') {
+            out.write(FrameCodec.handshakeReply(version));
+            FrameCodec.write(out, busy, null);
+        } else {
+            out.write((busy.toLine() + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+        out.flush();
+    }
+    
+    /**
+     * Executor tạo 1 virtual thread cho mỗi task
+     * 
+     * Gọi qua reflection để project vẫn build được với release 11
+     * (build với JDK 21: mvn -Pjdk21 ...). Nếu JVM không có virtual thread
+     * → fallback sang cached thread pool.
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class
+                .getMethod("newVirtualThreadPerTaskExecutor")
+                .invoke(null);
+        } catch (ReflectiveOperationException e) {
+            System.err.println("⚠️  Virtual threads not available (JDK " +
+                               Runtime.version().feature() + "), using cached thread pool");
+            return Executors.newCachedThreadPool();
+        }
+    }
+    
     // ============================================
     // CLIENT HANDLER - Xử lý 1 client
     // ============================================
@@ -132,10 +404,21 @@ public class PeerServer extends Thread {
     class ClientHandler implements Runnable {
         
         private Socket socket;
-        private BufferedReader in;
+        private InputStream in;
         private PrintWriter out;
+        private OutputStream binaryOut;
         private String clientInfo;
         
+        /**
+         * Codec nén FILE_DATA đã thoả thuận qua HELLO (null = gửi thô)
+         */
+        private String compression;
+        
+        /**
+         * Buffer tạm để encode frame (dùng lại cho mọi frame của kết nối)
+         */
+        private final java.nio.ByteBuffer scratch = java.nio.ByteBuffer.allocate(8192);
+        
         /**
          * Constructor
          */
@@ -146,29 +429,23 @@ public class PeerServer extends Thread {
         
         /**
          * Run method - xử lý client
+         * Byte đầu tiên = FrameCodec.MAGIC → protocol binary, ngược lại → text
          */
         @Override
      public void run() {
     try {
-        // Tạo input/output streams với UTF-8
-        in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
-        out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
-
+        in = new BufferedInputStream(socket.getInputStream());
+        
         System.out.println("   ✓ Handler started for: " + clientInfo);
-
-        // Đọc messages từ client
-        String message;
-        while ((message = in.readLine()) != null) {
-            System.out.println("   📩 [" + clientInfo + "] " + message);
-
-            // Xử lý message
-            handleMessage(message);
-
-            // Nếu client disconnect
-            if (message.equals("DISCONNECT") || message.equals("BYE")) {
-                System.out.println("   🔴 Client disconnected: " + clientInfo);
-                break;
-            }
+        
+        in.mark(1);
+        int first = in.read();
+        in.reset();
+        
+        if (first == (FrameCodec.MAGIC & 0xff)) {
+            runBinary();
+        } else {
+            runText();
         }
 
     } catch (IOException e) {
@@ -177,297 +454,159 @@ public class PeerServer extends Thread {
         cleanup();
     }
 }
-
         
         /**
-         * Xử lý message theo protocol
+         * Protocol text: mỗi command 1 dòng (UTF-8)
          */
-     private void handleMessage(String message) {
-            try {
-                if (message == null || message.trim().isEmpty()) {
-                    sendResponse("ERROR:EMPTY_MESSAGE");
-                    return;
-                }
+        private void runText() throws IOException {
+            out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+            
+            // Đọc messages từ client
+            String message;
+            while (awaitRequest() && (message = PeerClient.readLine(in)) != null) {
+                System.out.println("   📩 [" + clientInfo + "] " + message);
                 
-                String[] parts = message.split(":", 2);
-                String command = parts[0].trim();
+                // Xử lý message
+                boolean close = handleMessage(processor.process(message));
                 
-                switch (command) {
-                    case "PING":
-                        handlePing();
-                        break;
-                        
-                    case "HELLO":
-                        handleHello(parts.length > 1 ? parts[1] : "");
-                        break;
-                        
-                    case "GET_INFO":
-                        handleGetInfo();
-                        break;
-                        
-                    case "LIST_FILES":
-                        handleListFiles();
-                        break;
-                    
-                    // Chỉ dùng DOWNLOAD_REQUEST
-                    case "DOWNLOAD_REQUEST":
-                        if (parts.length > 1) {
-                            handleDownloadRequest(parts[1].trim());
-                        } else {
-                            sendResponse("ERROR:MISSING_FILENAME");
-                        }
-                        break;
-                        
-                    case "DISCONNECT":
-                    case "BYE":
-                        handleDisconnect();
-                        break;
-                        
-                    default:
-                        sendResponse("ERROR:UNKNOWN_COMMAND:" + command);
+                // Nếu client disconnect
+                if (close) {
+                    System.out.println("   🔴 Client disconnected: " + clientInfo);
+                    break;
                 }
-                
-            } catch (Exception e) {
-                System.err.println("   ❌ Handle message error: " + e.getMessage());
-                e.printStackTrace();
-                sendResponse("ERROR:INTERNAL_ERROR");
             }
         }
         
-        // ============================================
-        // PROTOCOL HANDLERS
-        // ============================================
-        
         /**
-         * PING - Test connection
+         * Protocol binary: bắt tay rồi đọc từng frame
          */
-        private void handlePing() {
-            sendResponse("PONG");
+        private void runBinary() throws IOException {
+            binaryOut = new BufferedOutputStream(socket.getOutputStream());
+            
+            in.read(); // MAGIC
+            int version = in.read();
+            int newline = in.read();
+            if (version <= 0 || newline != '\n') {
+                throw new ProtocolException("Invalid handshake");
+            }
+            binaryOut.write(FrameCodec.handshakeReply(version));
+            binaryOut.flush();
+            
+            Frame request;
+            while (awaitRequest() && (request = FrameCodec.read(in)) != null) {
+                System.out.println("   📩 [" + clientInfo + "] " + request);
+                
+                if (handleMessage(processor.process(request))) {
+                    System.out.println("   🔴 Client disconnected: " + clientInfo);
+                    break;
+                }
+            }
         }
         
         /**
-         * HELLO - Greeting
+         * Chờ byte đầu của request tiếp theo (đang ở ranh giới frame / dòng)
+         * 
+         * Engine CLASSIC: rảnh quá idleTimeoutMs → trả false để đóng kết nối,
+         * trả thread cho peer khác. Engine VIRTUAL: thread rẻ, chờ không giới hạn.
+         * 
+         * @return false nếu client đã đóng hoặc rảnh quá lâu
          */
-        private void handleHello(String clientName) {
-            sendResponse("HELLO_ACK:Welcome " + clientName + "!");
+        private boolean awaitRequest() throws IOException {
+            if (engine != ServerEngine.CLASSIC || idleTimeoutMs <= 0) {
+                return true;
+            }
+            
+            socket.setSoTimeout((int) idleTimeoutMs);
+            try {
+                in.mark(1);
+                if (in.read() == -1) {
+                    return false;
+                }
+                in.reset();
+            } catch (SocketTimeoutException e) {
+                System.out.println("   💤 Idle connection closed: " + clientInfo);
+                return false;
+            }
+            
+            // Request đã bắt đầu → cho thời gian đọc hết phần còn lại
+            socket.setSoTimeout(REQUEST_READ_TIMEOUT_MS);
+            return true;
         }
         
         /**
-         * GET_INFO - Server info
+         * Gửi reply (text hoặc frame) và file đi kèm
+         * @return true nếu cần đóng kết nối sau reply
          */
-        private void handleGetInfo() {
-            String info = "INFO:Port=" + port + ",Status=Running,Files=" + countFiles();
-            sendResponse(info);
-        }
-/**
- * DOWNLOAD_REQUEST handler - Xử lý tên file với nhiều encoding
- */
-private void handleDownloadRequest(String fileName) {
-    try {
-        System.out.println("   📥 Download request: " + fileName);
-        
-        FileDAO fileDAO = new FileDAO();
-        FileInfo fileInfo = null;
-        
-        // Thử 1: Tìm exact match
-        fileInfo = fileDAO.getFileByName(fileName);
-        
-        // Thử 2: Nếu không tìm thấy, thử normalize và tìm lại
-        if (fileInfo == null) {
-            System.out.println("   ⚠️  Exact match not found, trying normalized search...");
+     private boolean handleMessage(RequestProcessor.Reply reply) throws IOException {
+            if (reply.isNegotiated()) {
+                compression = binaryOut != null ? reply.getCompression() : null;
+            }
+            for (Frame frame : reply.getFrames()) {
+                sendResponse(frame);
+            }
             
-            String normalized = normalizeFileName(fileName);
-            fileInfo = fileDAO.getFileByName(normalized);
-        }
-        
-        // Thử 3: Tìm tất cả file có tên tương tự
-        if (fileInfo == null) {
-            System.out.println("   ⚠️  Normalized search failed, trying fuzzy search...");
+            if (reply.hasFile()) {
+                // Lỗi giữa chừng khi gửi binary → không báo ERROR được
+                // (client đang đọc bytes), để IOException đóng kết nối
+                sendBinaryFile(reply.getFile(), reply.getOffset(), reply.getLength());
+                System.out.println("   ✅ File sent successfully: " + reply.getFileLabel());
+            } else if (binaryOut != null && in.available() == 0) {
+                // Client còn request pipelined trong buffer → gom response, flush 1 lần
+                binaryOut.flush();
+            }
             
-            List<FileInfo> allFiles = fileDAO.getAllSharedFiles();
-            fileInfo = findClosestMatch(fileName, allFiles);
-        }
-        
-        if (fileInfo == null) {
-            System.err.println("   ❌ File not found in database: " + fileName);
-            sendResponse("ERROR:FILE_NOT_FOUND");
-            return;
+            return reply.shouldClose();
         }
         
-        // Lấy file từ disk
-        File file = new File(fileInfo.getFilePath());
-        
-        if (!file.exists()) {
-            System.err.println("   ❌ File not on disk: " + file.getAbsolutePath());
-            sendResponse("ERROR:FILE_NOT_ON_DISK");
-            return;
-        }
-        
-        // Gửi metadata
-        sendResponse("FILE_SIZE:" + file.length());
-        System.out.println("   📤 Sending file: " + fileInfo.getFileName() + 
-                         " (" + file.length() + " bytes)");
-        
-        // Gửi binary data
-        sendBinaryFile(file);
-        
-        System.out.println("   ✅ File sent successfully: " + fileInfo.getFileName());
-        
-    } catch (Exception e) {
-        System.err.println("   ❌ Download error: " + e.getMessage());
-        e.printStackTrace();
-        sendResponse("ERROR:SEND_FAILED");
-    }
-}
-
-/**
- * Normalize tên file (bỏ dấu, lowercase, bỏ ký tự đặc biệt)
- */
-private String normalizeFileName(String fileName) {
-    if (fileName == null) return "";
-    
-    // Bỏ dấu tiếng Việt
-    String temp = java.text.Normalizer.normalize(fileName, java.text.Normalizer.Form.NFD);
-    temp = temp.replaceAll("\\p{M}", "");
-    
-    // Lowercase và bỏ ký tự đặc biệt
-    temp = temp.toLowerCase()
-               .replaceAll("[^a-z0-9._-]", "_")
-               .replaceAll("_{2,}", "_")
-               .replaceAll("^_+|_+$", "");
-    
-    return temp;
-}
-
 /**
- * Tìm file gần khớp nhất dựa trên tên
- */
-private FileInfo findClosestMatch(String target, List<FileInfo> files) {
-    if (files == null || files.isEmpty()) return null;
-    
-    String normalizedTarget = normalizeFileName(target);
-    
-    FileInfo bestMatch = null;
-    double bestSimilarity = 0.0;
-    
-    for (FileInfo file : files) {
-        String normalizedFile = normalizeFileName(file.getFileName());
-        
-        double similarity = calculateSimilarity(normalizedTarget, normalizedFile);
-        
-        if (similarity > bestSimilarity) {
-            bestSimilarity = similarity;
-            bestMatch = file;
-        }
-    }
-    
-    // Chỉ chấp nhận nếu độ tương đồng > 80%
-    if (bestSimilarity >= 0.8) {
-        System.out.println("   ✅ Found closest match: " + bestMatch.getFileName() + 
-                         " (similarity: " + String.format("%.1f%%", bestSimilarity * 100) + ")");
-        return bestMatch;
-    }
-    
-    return null;
-}
-
-/**
- * Tính độ tương đồng giữa 2 string (Levenshtein distance)
- */
-private double calculateSimilarity(String s1, String s2) {
-    int maxLength = Math.max(s1.length(), s2.length());
-    if (maxLength == 0) return 1.0;
-    
-    int distance = levenshteinDistance(s1, s2);
-    return 1.0 - (double) distance / maxLength;
-}
-
-/**
- * Levenshtein distance (edit distance)
- */
-private int levenshteinDistance(String s1, String s2) {
-    int[][] dp = new int[s1.length() + 1][s2.length() + 1];
-    
-    for (int i = 0; i <= s1.length(); i++) dp[i][0] = i;
-    for (int j = 0; j <= s2.length(); j++) dp[0][j] = j;
-    
-    for (int i = 1; i <= s1.length(); i++) {
-        for (int j = 1; j <= s2.length(); j++) {
-            int cost = (s1.charAt(i - 1) == s2.charAt(j - 1)) ? 0 : 1;
+* Gửi file binary qua socket
+* Zero-copy (FileChannel.transferTo) nếu socket có channel,
+* fallback sang stream copy nếu không
+*/
+        private void sendBinaryFile(File file, long offset, long length) throws IOException {
+            if (binaryOut != null && compression != null) {
+                sendCompressed(file, offset, length);
+                return;
+            }
+            if (binaryOut != null) {
+                FrameCodec.writeDataHeader(binaryOut, length, scratch);
+                binaryOut.flush();
+            } else {
+                out.flush();
+            }
+            long totalSent = FileTransfer.sendFile(file, offset, length, socket);
             
-            dp[i][j] = Math.min(
-                Math.min(dp[i - 1][j] + 1, dp[i][j - 1] + 1),
-                dp[i - 1][j - 1] + cost
-            );
+            if (totalSent != length) {
+                System.err.println("   ⚠️  Sent " + totalSent + "/" + length + " bytes");
+            }
         }
-    }
-    
-    return dp[s1.length()][s2.length()];
-}
         
-
         /**
-         * LIST_FILES - Danh sách file có sẵn
+         * Gửi file trên kết nối đã thoả thuận nén (WireCompression)
+         * File có vẻ đã nén sẵn → vẫn gửi thô bằng zero-copy
          */
-     private void handleListFiles() {
-            File folder = new File(sharedFolder);
-            File[] files = folder.listFiles();
+        private void sendCompressed(File file, long offset, long length) throws IOException {
+            FrameCodec.writeDataHeader(binaryOut, length, scratch);
             
-            if (files == null || files.length == 0) {
-                sendResponse("FILES:NONE");
-                return;
-            }
-            
-            StringBuilder fileList = new StringBuilder("FILES:");
-            for (int i = 0; i < files.length; i++) {
-                if (files[i].isFile()) {
-                    fileList.append(files[i].getName());
-                    if (i < files.length - 1) {
-                        fileList.append(",");
-                    }
-                }
-            }
-            
-            sendResponse(fileList.toString());
-        } 
-// Helper: bỏ dấu tiếng Việt
-private String removeAccent(String s) {
-    if (s == null) return null;
-    String temp = java.text.Normalizer.normalize(s, java.text.Normalizer.Form.NFD);
-    return temp.replaceAll("\\p{M}", "");
-}
-/**
-* Gửi file binary qua socket
-*/
-        private void sendBinaryFile(File file) throws IOException {
-            try (BufferedInputStream bis = new BufferedInputStream(new FileInputStream(file));
-                 BufferedOutputStream bos = new BufferedOutputStream(socket.getOutputStream())) {
-                
-                byte[] buffer = new byte[4096];
-                int bytes;
-                long totalSent = 0;
-                long fileSize = file.length();
+            try (WireCompression.Encoder encoder = new WireCompression.Encoder(
+                    FileChannel.open(file.toPath(), StandardOpenOption.READ), offset, length, clientInfo)) {
+                ByteBuffer mode = encoder.start();
+                binaryOut.write(mode.array(), 0, mode.remaining());
                 
-                while ((bytes = bis.read(buffer)) != -1) {
-                    bos.write(buffer, 0, bytes);
-                    totalSent += bytes;
-                    
-                    // Progress log
-                    if (totalSent % (100 * 1024) == 0 || totalSent == fileSize) {
-                        int progress = (int) ((totalSent * 100) / fileSize);
-                        System.out.print("\r   Progress: " + progress + "%");
-                    }
+                if (encoder.isRaw()) {
+                    binaryOut.flush();
+                    FileTransfer.sendFile(file, offset, length, socket);
+                    return;
                 }
                 
-                bos.flush();
-                System.out.println("\r   Progress: 100%");
+                ByteBuffer chunk;
+                while ((chunk = encoder.next()) != null) {
+                    binaryOut.write(chunk.array(), chunk.position(), chunk.remaining());
+                    chunk.position(chunk.limit());
+                }
+                binaryOut.flush();
+                System.out.println("   🗜️  Sent " + encoder.getStats());
             }
-        }  
-        /**
-         * DISCONNECT - Ngắt kết nối
-         */
-        private void handleDisconnect() {
-            sendResponse("BYE:Connection closed");
         }
         
         // ============================================
@@ -475,29 +614,22 @@ private String removeAccent(String s) {
         // ============================================
         
         /**
-         * Gửi text response
+         * Gửi 1 response (dòng text hoặc frame tuỳ protocol của kết nối)
          */
-       private void sendResponse(String response) {
-            out.println(response);
-            System.out.println("   📤 [" + clientInfo + "] " + response);
-        }
-        
-        private int countFiles() {
-            File folder = new File(sharedFolder);
-            File[] files = folder.listFiles();
-            if (files == null) return 0;
-            
-            int count = 0;
-            for (File f : files) {
-                if (f.isFile()) count++;
+       private void sendResponse(Frame response) throws IOException {
+            if (binaryOut != null) {
+                FrameCodec.write(binaryOut, response, scratch);
+            } else {
+                out.println(response.toLine());
             }
-            return count;
+            System.out.println("   📤 [" + clientInfo + "] " + response);
         }
         
         private void cleanup() {
             try {
                 if (in != null) in.close();
                 if (out != null) out.close();
+                if (binaryOut != null) binaryOut.close();
                 if (socket != null && !socket.isClosed()) {
                     socket.close();
                 }
@@ -507,6 +639,181 @@ private String removeAccent(String s) {
         }
     }
     
+    // ============================================
+    // SHARED FILES
+    // ============================================
+    
+    /**
+     * Thay toàn bộ danh sách file đang chia sẻ
+     * (VD: kết quả FileDAO.getFilesByUser lúc start)
+     * 
+     * Nội dung từng file được kiểm tra lại ở nền; file không đổi từ lần hash trước
+     * chỉ tốn 1 lần stat (HashCache) → khởi động lại với share lớn không phải hash lại.
+     */
+    public void loadSharedFiles(List<FileInfo> files) {
+        filesByHash.clear();
+        filesById.clear();
+        sharedVersion.incrementAndGet();
+        for (FileInfo file : files) {
+            addSharedFile(file);
+        }
+        System.out.println("📂 Serving " + filesById.size() + " shared files");
+    }
+    
+    /**
+     * Thêm 1 file vừa upload
+     */
+    public void addSharedFile(FileInfo file) {
+        if (file.getFilePath() == null) return;
+        
+        File path = new File(file.getFilePath());
+        if (!path.isFile() && BlobStore.getShared().contains(file.getFileHash())) {
+            // Bản copy cũ đã mất / đã chuyển vào blob store → phục vụ thẳng từ blob
+            path = BlobStore.getShared().blobFile(file.getFileHash());
+        }
+        
+        SharedFile shared = new SharedFile(path, file);
+        if (file.getFileHash() != null) {
+            filesByHash.put(file.getFileHash(), shared);
+        }
+        if (file.getFileId() > 0) {
+            filesById.put(file.getFileId(), shared);
+        }
+        sharedVersion.incrementAndGet();
+        verifyLater(shared);
+    }
+    
+    /**
+     * Bỏ 1 file vừa xóa
+     */
+    public void removeSharedFile(FileInfo file) {
+        SharedFile shared = filesById.remove(file.getFileId());
+        if (file.getFileHash() != null) {
+            // Chỉ bỏ nếu hash đó đang trỏ đến đúng file này
+            File path = shared != null ? shared.file : new File(String.valueOf(file.getFilePath()));
+            filesByHash.computeIfPresent(file.getFileHash(), (hash, current) -> current.file.equals(path) ? null : current);
+        }
+        sharedVersion.incrementAndGet();
+    }
+    
+    /**
+     * @return File trên disk, hoặc null nếu không chia sẻ file này (hoặc file đã bị sửa)
+     */
+    File findSharedFileByHash(String fileHash) {
+        return servable(filesByHash.get(fileHash));
+    }
+    
+    File findSharedFileById(int fileId) {
+        return servable(filesById.get(fileId));
+    }
+    
+    /**
+     * Kiểm tra trước khi gửi (chỉ stat, không đọc file):
+     * - Còn y như lúc hash → gửi nếu hash khớp
+     * - Đã bị sửa từ lần hash trước → tạm không gửi, hash lại ở nền
+     * - Chưa kiểm tra xong (vừa start) → vẫn gửi, người tải tự kiểm tra từng piece
+     */
+    private File servable(SharedFile shared) {
+        if (shared == null) return null;
+        if (shared.hash == null) return shared.file;
+        
+        HashCache cache = HashCache.getShared();
+        String cached = cache.lookup(shared.file);
+        if (cached != null) {
+            return cached.equalsIgnoreCase(shared.hash) ? shared.file : null;
+        }
+        if (cache.hasChanged(shared.file)) {
+            System.err.println("⚠️  File changed since last hash, re-verifying: " + shared.file);
+            verifyLater(shared);
+            return null;
+        }
+        return shared.file;
+    }
+    
+    /**
+     * Hash lại (nếu cần) ở nền; nội dung không còn khớp hash → ngừng chia sẻ file đó
+     */
+    private void verifyLater(SharedFile shared) {
+        if (shared.hash == null || !verifying.add(shared)) return;
+        
+        verifier.execute(() -> {
+            try {
+                if (!HashCache.getShared().verify(shared.file, shared.hash)) {
+                    filesByHash.remove(shared.hash, shared);
+                    filesById.values().removeIf(s -> s == shared);
+                    sharedVersion.incrementAndGet();
+                    System.err.println("❌ Content no longer matches " + shared.hash + ", stopped serving " + shared.file);
+                }
+            } finally {
+                verifying.remove(shared);
+            }
+        });
+    }
+    
+    /**
+     * Các file peer này chia sẻ, theo tên (rồi file_id)
+     * 
+     * Ghép file trong DB (đã upload) + file trong thư mục chia sẻ
+     * (trùng tên → lấy bản trong DB). Không liệt kê lại thư mục mỗi lần gọi:
+     * chỉ dựng lại khi SharedFolderIndex hoặc danh sách file trong DB đổi version.
+     */
+    public List<FileInfo> getListing() {
+        SharedFolderIndex index = getFolderIndex();
+        long shared = sharedVersion.get();
+        long folder = index.version();
+        
+        Listing current = listing;
+        if (current != null && current.sharedVersion == shared && current.folderVersion == folder) {
+            return current.files;
+        }
+        
+        List<FileInfo> files = new ArrayList<>();
+        Set<String> names = new HashSet<>();
+        for (SharedFile s : filesById.values()) {
+            FileInfo info = new FileInfo(s.name, s.size, s.hash, s.file.getPath());
+            info.setFileId(s.fileId);
+            info.setSharedDate(new Timestamp(s.modified));
+            files.add(info);
+            names.add(s.name);
+        }
+        for (SharedFolderIndex.Entry e : index.entries()) {
+            if (!names.contains(e.getName())) {
+                FileInfo info = new FileInfo(e.getName(), e.getSize());
+                info.setSharedDate(new Timestamp(e.getLastModified()));
+                files.add(info);
+            }
+        }
+        files.sort(LISTING_ORDER);
+        
+        listing = new Listing(shared, folder, Collections.unmodifiableList(files));
+        return listing.files;
+    }
+    
+    /**
+     * Thứ tự của getListing(): tên, rồi file_id
+     */
+    static final Comparator<FileInfo> LISTING_ORDER =
+        Comparator.comparing(FileInfo::getFileName).thenComparingInt(FileInfo::getFileId);
+    
+    /**
+     * File trong thư mục chia sẻ theo đúng tên (null nếu không có)
+     */
+    File findFolderFile(String fileName) {
+        if (fileName == null || getFolderIndex().get(fileName) == null) return null;
+        return getFolderIndex().getRoot().resolve(fileName).toFile();
+    }
+    
+    /**
+     * Index thư mục chia sẻ (liệt kê 1 lần + WatchService), tạo + start lần đầu gọi
+     */
+    public synchronized SharedFolderIndex getFolderIndex() {
+        if (folderIndex == null) {
+            folderIndex = new SharedFolderIndex(Paths.get(sharedFolder));
+            folderIndex.start();
+        }
+        return folderIndex;
+    }
+    
     // ============================================
     // SERVER CONTROL
     // ============================================
@@ -523,11 +830,20 @@ private String removeAccent(String s) {
                 serverSocket.close();
             }
             
-            threadPool.shutdown();
+            if (nioEngine != null) {
+                nioEngine.shutdown();
+            }
+            
+            verifier.shutdownNow();
+            closeFolderIndex();
             
-            // Đợi tối đa 5 giây cho threads kết thúc
-            if (!threadPool.awaitTermination(5, TimeUnit.SECONDS)) {
-                threadPool.shutdownNow();
+            if (threadPool != null) {
+                threadPool.shutdown();
+                
+                // Đợi tối đa 5 giây cho threads kết thúc
+                if (!threadPool.awaitTermination(5, TimeUnit.SECONDS)) {
+                    threadPool.shutdownNow();
+                }
             }
             
             System.out.println("🔴 Server stopped");
@@ -545,7 +861,13 @@ private String removeAccent(String s) {
             if (serverSocket != null && !serverSocket.isClosed()) {
                 serverSocket.close();
             }
-            threadPool.shutdown();
+            if (nioEngine != null) {
+                nioEngine.shutdown();
+            }
+            if (threadPool != null) {
+                threadPool.shutdown();
+            }
+            closeFolderIndex();
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -563,12 +885,45 @@ private String removeAccent(String s) {
         return port;
     }
     
+    public ServerEngine getEngine() {
+        return engine;
+    }
+    
+    /**
+     * Số kết nối đang được xử lý (engine VIRTUAL hoặc NIO)
+     */
+    public int getActiveConnections() {
+        if (nioEngine != null) {
+            return nioEngine.getConnectionCount();
+        }
+        if (connectionLimit != null) {
+            return maxConnections - connectionLimit.availablePermits();
+        }
+        return -1;
+    }
+    
+    public long getQueuedConnections() {
+        return queuedConnections.get();
+    }
+    
+    public long getRejectedConnections() {
+        return rejectedConnections.get();
+    }
+    
     public String getSharedFolder() {
         return sharedFolder;
     }
     
     public void setSharedFolder(String sharedFolder) {
         this.sharedFolder = sharedFolder;
+        closeFolderIndex();
+    }
+    
+    private synchronized void closeFolderIndex() {
+        if (folderIndex != null) {
+            folderIndex.close();
+            folderIndex = null;
+        }
     }
     
     // ============================================
@@ -0,0 +1,170 @@
+package com.p2papp.filesharing.network;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * PiecePicker.java - Chọn piece tiếp theo cho swarm download
+ *
+ * Theo kiểu BitTorrent:
+ * - Rarest-first: ưu tiên piece có ít nguồn còn sống nhất
+ *   (hòa thì chọn ngẫu nhiên để các peer không tranh cùng 1 piece)
+ * - Endgame: khi không còn piece nào chưa được yêu cầu,
+ *   các nguồn rảnh yêu cầu trùng những piece đang tải dở,
+ *   piece nào về trước thì thắng → không bị kẹt chờ 1 peer chậm
+ *
+ * Thread-safe: mọi worker dùng chung 1 PiecePicker.
+ */
+class PiecePicker {
+
+    private static final int MISSING = 0;
+    private static final int IN_FLIGHT = 1;
+    private static final int DONE = 2;
+
+    private final int[] state;
+    private final int[] availability;
+    private final int[] requesters;
+    private final Random random = new Random();
+    private int doneCount = 0;
+    private boolean endgame = false;
+
+    PiecePicker(int pieceCount) {
+        this.state = new int[pieceCount];
+        this.availability = new int[pieceCount];
+        this.requesters = new int[pieceCount];
+    }
+
+    /**
+     * 1 nguồn có đủ các piece trong has[] (null = có tất cả)
+     */
+    synchronized void addSource(boolean[] has) {
+        for (int i = 0; i < availability.length; i++) {
+            if (has == null || has[i]) availability[i]++;
+        }
+    }
+
+    /**
+     * 1 nguồn bị loại (lỗi liên tục / quá chậm)
+     */
+    synchronized void removeSource(boolean[] has) {
+        for (int i = 0; i < availability.length; i++) {
+            if (has == null || has[i]) availability[i]--;
+        }
+    }
+
+    /**
+     * Chọn piece cho 1 nguồn
+     *
+     * @param has Các piece nguồn này có (null = tất cả)
+     * @param inFlightByMe Các piece nguồn này đang tải (tránh trùng chính mình)
+     * @return index piece, hoặc -1 nếu hiện không có gì để tải
+     */
+    synchronized int next(boolean[] has, boolean[] inFlightByMe) {
+        int best = -1;
+        int bestAvail = Integer.MAX_VALUE;
+        int ties = 0;
+
+        // Rarest-first trong các piece chưa ai yêu cầu
+        for (int i = 0; i < state.length; i++) {
+            if (state[i] != MISSING || (has != null && !has[i])) continue;
+
+            if (availability[i] < bestAvail) {
+                best = i;
+                bestAvail = availability[i];
+                ties = 1;
+            } else if (availability[i] == bestAvail && random.nextInt(++ties) == 0) {
+                best = i;
+            }
+        }
+
+        if (best >= 0) {
+            state[best] = IN_FLIGHT;
+            requesters[best]++;
+            return best;
+        }
+
+        // Endgame: yêu cầu trùng piece đang tải dở có ít người tải nhất
+        int fewest = Integer.MAX_VALUE;
+        for (int i = 0; i < state.length; i++) {
+            if (state[i] != IN_FLIGHT || (has != null && !has[i]) || inFlightByMe[i]) continue;
+            if (requesters[i] < fewest) {
+                best = i;
+                fewest = requesters[i];
+            }
+        }
+
+        if (best >= 0) {
+            if (!endgame) {
+                endgame = true;
+                System.out.println("   🏁 Endgame mode");
+            }
+            requesters[best]++;
+        }
+        return best;
+    }
+
+    /**
+     * Piece đã nhận và ghi xong
+     *
+     * @return false nếu piece đã được nguồn khác hoàn thành trước (endgame)
+     */
+    synchronized boolean complete(int piece) {
+        requesters[piece]--;
+        if (state[piece] == DONE) {
+            return false;
+        }
+        state[piece] = DONE;
+        doneCount++;
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Tải piece thất bại (hoặc dữ liệu hỏng) → trả về hàng đợi
+     */
+    synchronized void release(int piece) {
+        requesters[piece]--;
+        if (state[piece] == IN_FLIGHT && requesters[piece] == 0) {
+            state[piece] = MISSING;
+        }
+        notifyAll();
+    }
+
+    /**
+     * Piece đã có sẵn từ trước (VD: resume) → đánh dấu DONE
+     */
+    synchronized void markDone(int piece) {
+        if (state[piece] != DONE) {
+            state[piece] = DONE;
+            doneCount++;
+        }
+    }
+
+    synchronized boolean isDone(int piece) {
+        return state[piece] == DONE;
+    }
+
+    synchronized boolean allDone() {
+        return doneCount == state.length;
+    }
+
+    synchronized int getDoneCount() {
+        return doneCount;
+    }
+
+    /**
+     * Chờ đến khi có thay đổi (piece xong / trả lại)
+     */
+    synchronized void awaitChange(long timeoutMs) throws InterruptedException {
+        if (!allDone()) {
+            wait(timeoutMs);
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "PiecePicker{done=" + doneCount + "/" + state.length +
+               ", availability=" + Arrays.stream(availability).min().orElse(0) + ".." +
+               Arrays.stream(availability).max().orElse(0) + "}";
+    }
+}
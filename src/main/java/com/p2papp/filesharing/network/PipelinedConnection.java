@@ -0,0 +1,255 @@
+package com.p2papp.filesharing.network;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * PipelinedConnection.java - Gửi nhiều request metadata trên 1 kết nối
+ * mà không chờ response của request trước
+ *
+ * send-one/read-one: 100 request qua link 100ms = 100 RTT ≈ 10 giây.
+ * Pipelined: gửi liên tục, response về đến đâu ghép đến đó ≈ 1 RTT.
+ *
+ * - submit() gán correlation id, gửi frame, trả CompletableFuture<Frame>
+ * - 1 thread đọc (daemon) nhận response, ghép theo id rồi complete future
+ * - Server cũ không có id (binary v1 / text) → ghép theo thứ tự (FIFO),
+ *   vì server xử lý request của 1 kết nối tuần tự
+ * - Kết nối sống lâu: rảnh quá nửa KEEPALIVE_MS thì gửi PING,
+ *   không bị server (CLASSIC) đóng vì idle (p2p.server.idleTimeoutMs)
+ *
+ * Chỉ dùng cho request metadata (PING, GET_INFO, LIST_FILES, REQUEST_FILE...).
+ * Request có dữ liệu file đi kèm / nhiều frame trả lời (LIST_PAGE)
+ * dùng PeerConnection / PeerConnectionPool.
+ */
+public class PipelinedConnection implements Closeable {
+
+    /**
+     * Số request tối đa đang chờ response (tránh làm đầy buffer của server)
+     */
+    private static final int MAX_IN_FLIGHT = 64;
+
+    /**
+     * Khoảng rảnh tối đa giữa 2 request (phải nhỏ hơn idle timeout của server, mặc định 15s)
+     * 0 = không gửi PING giữ kết nối
+     */
+    private static final long KEEPALIVE_MS = Long.getLong("p2p.pipeline.keepAliveMs", 10_000);
+
+    /**
+     * 1 thread chung cho PING giữ kết nối của mọi PipelinedConnection
+     */
+    private static final ScheduledExecutorService KEEPALIVE = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "pipeline-keepalive");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final PeerConnection connection;
+    private final boolean tagged;
+
+    /**
+     * Request đang chờ: theo id (tagged) hoặc theo thứ tự gửi (FIFO)
+     */
+    private final Map<Long, CompletableFuture<Frame>> pendingById = new ConcurrentHashMap<>();
+    private final Queue<CompletableFuture<Frame>> pendingInOrder = new ConcurrentLinkedQueue<>();
+
+    private final Semaphore inFlight = new Semaphore(MAX_IN_FLIGHT);
+    private final AtomicLong nextId = new AtomicLong();
+    private final Object sendLock = new Object();
+    private final Thread reader;
+    private final ScheduledFuture<?> keepAlive;
+
+    private volatile IOException failure;
+
+    /**
+     * Lần gửi request gần nhất (kể cả PING giữ kết nối)
+     */
+    private volatile long lastSend = System.currentTimeMillis();
+
+    /**
+     * @param connection Kết nối đã mở, từ nay chỉ PipelinedConnection được đọc/ghi
+     */
+    public PipelinedConnection(PeerConnection connection) {
+        this.connection = connection;
+        this.tagged = connection.supportsCorrelationIds();
+
+        this.reader = new Thread(this::readLoop, "pipeline-" + connection.getHost() + ":" + connection.getPort());
+        this.reader.setDaemon(true);
+        this.reader.start();
+
+        // Kiểm tra mỗi nửa khoảng → 2 request cách nhau không quá KEEPALIVE_MS
+        this.keepAlive = KEEPALIVE_MS > 0
+            ? KEEPALIVE.scheduleWithFixedDelay(this::sendKeepAlive, KEEPALIVE_MS / 2, KEEPALIVE_MS / 2, TimeUnit.MILLISECONDS)
+            : null;
+    }
+
+    // ============================================
+    // SUBMIT
+    // ============================================
+
+    /**
+     * Gửi request, không chờ response
+     *
+     * @return Future nhận response (fail với IOException nếu kết nối đứt)
+     * @throws IllegalArgumentException nếu request có dữ liệu file đi kèm
+     */
+    public CompletableFuture<Frame> submit(Frame request) {
+        MessageType type = request.getType();
+        if (type == MessageType.DOWNLOAD_REQUEST || type == MessageType.DOWNLOAD_RANGE
+                || type == MessageType.DOWNLOAD_BY_HASH || type == MessageType.DOWNLOAD_BY_ID
+                || type == MessageType.LIST_PAGE) {
+            throw new IllegalArgumentException(type + " cannot be pipelined");
+        }
+
+        CompletableFuture<Frame> future = new CompletableFuture<>();
+
+        try {
+            inFlight.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future.completeExceptionally(e);
+            return future;
+        }
+
+        synchronized (sendLock) {
+            if (failure != null) {
+                inFlight.release();
+                future.completeExceptionally(failure);
+                return future;
+            }
+            lastSend = System.currentTimeMillis();
+
+            try {
+                if (tagged) {
+                    long id = nextId.incrementAndGet();
+                    pendingById.put(id, future);
+                    connection.send(request.withId(id));
+                } else {
+                    // Thêm vào hàng đợi và gửi trong cùng lock → đúng thứ tự response
+                    pendingInOrder.add(future);
+                    connection.send(request);
+                }
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        return future;
+    }
+
+    /**
+     * Rảnh (không request nào đang chờ) từ nửa KEEPALIVE_MS trở lên → gửi PING,
+     * PONG được readLoop nhận như mọi response
+     */
+    private void sendKeepAlive() {
+        if (failure != null) {
+            keepAlive.cancel(false);
+            return;
+        }
+        if (getInFlight() > 0) return;
+        if (System.currentTimeMillis() - lastSend < KEEPALIVE_MS / 2) return;
+
+        submit(Frame.of(MessageType.PING));
+    }
+
+    // ============================================
+    // READER
+    // ============================================
+
+    private void readLoop() {
+        try {
+            while (true) {
+                Frame response = connection.receive();
+                if (response == null) {
+                    throw new EOFException("Connection closed by peer");
+                }
+
+                CompletableFuture<Frame> future = tagged
+                    ? pendingById.remove(response.getId())
+                    : pendingInOrder.poll();
+
+                if (future == null) {
+                    System.err.println("   ⚠️  Unexpected response (id " + response.getId() + "): " + response);
+                    continue;
+                }
+
+                inFlight.release();
+                future.complete(response.withId(0));
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Kết nối hỏng → mọi request đang chờ đều fail, request mới fail ngay
+     */
+    private void fail(IOException e) {
+        synchronized (sendLock) {
+            if (failure == null) {
+                failure = e;
+            }
+        }
+        if (keepAlive != null) {
+            keepAlive.cancel(false);
+        }
+
+        for (Long id : pendingById.keySet()) {
+            CompletableFuture<Frame> future = pendingById.remove(id);
+            if (future != null) {
+                inFlight.release();
+                future.completeExceptionally(failure);
+            }
+        }
+
+        CompletableFuture<Frame> future;
+        while ((future = pendingInOrder.poll()) != null) {
+            inFlight.release();
+            future.completeExceptionally(failure);
+        }
+
+        try {
+            connection.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    // ============================================
+    // GETTERS
+    // ============================================
+
+    /**
+     * Số request đang chờ response
+     */
+    public int getInFlight() {
+        return MAX_IN_FLIGHT - inFlight.availablePermits();
+    }
+
+    public boolean isTagged() {
+        return tagged;
+    }
+
+    public boolean isClosed() {
+        return failure != null || connection.isClosed();
+    }
+
+    public PeerConnection getConnection() {
+        return connection;
+    }
+
+    @Override
+    public void close() throws IOException {
+        fail(new EOFException("Connection closed"));
+    }
+}
@@ -0,0 +1,151 @@
+package com.p2papp.filesharing.network;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * ProtocolBenchmark.java - So sánh chi phí encode/decode 1 cặp request/response
+ *
+ * Cặp được đo: DOWNLOAD_RANGE (client → server) + FILE_RANGE (server → client)
+ * - text:   ghép chuỗi, getBytes, new String, split(":"), Long.parseLong (cách cũ)
+ * - binary: FrameCodec.encode vào buffer dùng lại + FrameCodec.decode
+ *
+ * In ns/op, bytes trên đường truyền và bytes cấp phát / op (nếu JVM hỗ trợ đo).
+ *
+ * Cách chạy:
+ * mvn compile exec:java -Dexec.mainClass="com.p2papp.filesharing.network.ProtocolBenchmark" -Dexec.args="5000000"
+ */
+public class ProtocolBenchmark {
+
+    private static final String FILE_NAME = "Buoi_37_thu_6_7_ngay_31.10_01.11.2025_khoa_256.pdf";
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    /**
+     * Chỉ chống JIT bỏ qua phép tính
+     */
+    private static long sink;
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 5_000_000;
+
+        System.out.println("╔════════════════════════════════════════╗");
+        System.out.println("║   PROTOCOL ENCODE/DECODE BENCHMARK     ║");
+        System.out.println("╚════════════════════════════════════════╝\n");
+
+        // Warm-up để JIT compile cả 2 cách
+        for (int i = 0; i < 3; i++) {
+            runText(iterations / 5);
+            runBinary(iterations / 5);
+        }
+
+        report("text  ", iterations, false);
+        report("binary", iterations, true);
+
+        System.out.println("\n   Wire size (request + response): text " + textWireSize() +
+                           " bytes, binary " + binaryWireSize() + " bytes");
+        System.out.println("   (sink " + sink + ")");
+    }
+
+    private static void report(String label, int iterations, boolean binary) throws Exception {
+        long allocBefore = allocatedBytes();
+        long start = System.nanoTime();
+
+        if (binary) {
+            runBinary(iterations);
+        } else {
+            runText(iterations);
+        }
+
+        long nanos = System.nanoTime() - start;
+        long allocAfter = allocatedBytes();
+        long alloc = allocBefore < 0 || allocAfter < 0 ? -1 : allocAfter - allocBefore;
+
+        System.out.println(String.format("   %s: %6.1f ns/op, %s", label, (double) nanos / iterations,
+            alloc >= 0 ? String.format("%.0f B/op allocated", (double) alloc / iterations) : "allocation n/a"));
+    }
+
+    // ============================================
+    // TEXT (cách cũ)
+    // ============================================
+
+    private static void runText(int iterations) {
+        for (int i = 0; i < iterations; i++) {
+            long offset = (long) i << 20;
+
+            // Client: ghép request → bytes
+            byte[] request = ("DOWNLOAD_RANGE:" + offset + ":1048576:" + FILE_NAME + "\n")
+                .getBytes(StandardCharsets.UTF_8);
+
+            // Server: bytes → String → split
+            String line = new String(request, 0, request.length - 1, StandardCharsets.UTF_8);
+            String[] parts = line.split(":", 2);
+            String[] args = parts[1].split(":", 3);
+            long reqOffset = Long.parseLong(args[0]);
+            long reqLength = Long.parseLong(args[1]);
+            sink += args[2].length();
+
+            // Server: response → bytes
+            byte[] response = ("FILE_RANGE:" + reqOffset + ":" + reqLength + ":5000000000\n")
+                .getBytes(StandardCharsets.UTF_8);
+
+            // Client: bytes → String → split
+            String header = new String(response, 0, response.length - 1, StandardCharsets.UTF_8);
+            String[] fields = header.substring(11).split(":");
+            sink += Long.parseLong(fields[0]) + Long.parseLong(fields[1]) + Long.parseLong(fields[2]);
+        }
+    }
+
+    private static int textWireSize() {
+        return ("DOWNLOAD_RANGE:0:1048576:" + FILE_NAME + "\n").length() +
+               "FILE_RANGE:0:1048576:5000000000\n".length();
+    }
+
+    // ============================================
+    // BINARY (FrameCodec)
+    // ============================================
+
+    private static void runBinary(int iterations) throws Exception {
+        ByteBuffer scratch = ByteBuffer.allocate(1024);
+
+        for (int i = 0; i < iterations; i++) {
+            long offset = (long) i << 20;
+
+            // Client → server
+            ByteBuffer buf = FrameCodec.encode(Frame.of(MessageType.DOWNLOAD_RANGE, FILE_NAME, offset, 1048576), scratch);
+            Frame request = FrameCodec.decode(buf);
+            sink += request.getText().length();
+
+            // Server → client
+            buf = FrameCodec.encode(Frame.of(MessageType.FILE_RANGE,
+                request.getNumber(0), request.getNumber(1), 5_000_000_000L), scratch);
+            Frame response = FrameCodec.decode(buf);
+            sink += response.getNumber(0) + response.getNumber(1) + response.getNumber(2);
+        }
+    }
+
+    private static int binaryWireSize() {
+        return FrameCodec.encode(Frame.of(MessageType.DOWNLOAD_RANGE, FILE_NAME, 0, 1048576), null).remaining() +
+               FrameCodec.encode(Frame.of(MessageType.FILE_RANGE, 0, 1048576, 5_000_000_000L), null).remaining();
+    }
+
+    // ============================================
+    // HELPER METHODS
+    // ============================================
+
+    /**
+     * Bytes thread hiện tại đã cấp phát (com.sun.management), -1 nếu JVM không hỗ trợ
+     */
+    private static long allocatedBytes() {
+        try {
+            Method m = Class.forName("com.sun.management.ThreadMXBean")
+                            .getMethod("getThreadAllocatedBytes", long.class);
+            return (long) m.invoke(THREADS, Thread.currentThread().getId());
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return -1;
+        }
+    }
+}
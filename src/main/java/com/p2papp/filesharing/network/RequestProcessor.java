@@ -0,0 +1,602 @@
+package com.p2papp.filesharing.network;
+
+import com.p2papp.filesharing.database.dao.FileDAO;
+import com.p2papp.filesharing.model.FileInfo;
+import com.p2papp.filesharing.utils.TextUtil;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+/**
+ * RequestProcessor.java - Xử lý protocol commands của PeerServer
+ *
+ * Dùng chung cho mọi engine (classic thread pool, NIO selector)
+ * và cả 2 dạng protocol (text từng dòng, binary FrameCodec):
+ * - Nhận 1 Frame (VD: DOWNLOAD_REQUEST + "a.pdf"), hoặc 1 dòng text được parse thành Frame
+ * - Trả về Reply: các Frame trả lời + (tuỳ chọn) 1 đoạn file cần gửi
+ *
+ * Engine chỉ lo đọc/ghi socket, không cần biết logic từng command.
+ */
+class RequestProcessor {
+
+    /**
+     * Số FILE_ENTRY mỗi trang LIST_PAGE (client không chỉ định / chỉ định quá lớn)
+     */
+    static final int DEFAULT_PAGE_SIZE = 200;
+    static final int MAX_PAGE_SIZE = 1000;
+
+    private final PeerServer server;
+
+    RequestProcessor(PeerServer server) {
+        this.server = server;
+    }
+
+    // ============================================
+    // REPLY
+    // ============================================
+
+    /**
+     * Kết quả xử lý 1 command
+     */
+    static class Reply {
+
+        private final List<Frame> frames = new ArrayList<>();
+        private File file;
+        private String fileLabel;
+        private long offset;
+        private long length;
+        private boolean close;
+        private boolean negotiated;
+        private String compression;
+
+        Reply send(Frame frame) {
+            frames.add(frame);
+            return this;
+        }
+
+        Reply error(String code) {
+            return send(Frame.of(MessageType.ERROR, code));
+        }
+
+        /**
+         * Gửi đoạn [offset, offset + length) của file sau các frame
+         */
+        Reply file(File file, String label, long offset, long length) {
+            this.file = file;
+            this.fileLabel = label;
+            this.offset = offset;
+            this.length = length;
+            return this;
+        }
+
+        Reply close() {
+            this.close = true;
+            return this;
+        }
+
+        /**
+         * Codec nén FILE_DATA đã thoả thuận cho kết nối (null = không nén)
+         */
+        Reply compression(String codec) {
+            this.negotiated = true;
+            this.compression = codec;
+            return this;
+        }
+
+        /**
+         * Gắn correlation id của request vào mọi frame trả lời
+         */
+        Reply tag(long id) {
+            frames.replaceAll(frame -> frame.withId(id));
+            return this;
+        }
+
+        List<Frame> getFrames() {
+            return frames;
+        }
+
+        /**
+         * Các frame dưới dạng dòng text (protocol text)
+         */
+        List<String> getLines() {
+            List<String> lines = new ArrayList<>(frames.size());
+            for (Frame frame : frames) {
+                lines.add(frame.toLine());
+            }
+            return lines;
+        }
+
+        boolean hasFile() {
+            return file != null;
+        }
+
+        File getFile() {
+            return file;
+        }
+
+        String getFileLabel() {
+            return fileLabel;
+        }
+
+        long getOffset() {
+            return offset;
+        }
+
+        long getLength() {
+            return length;
+        }
+
+        /**
+         * Reply của HELLO: engine cập nhật codec nén của kết nối theo getCompression()
+         */
+        boolean isNegotiated() {
+            return negotiated;
+        }
+
+        String getCompression() {
+            return compression;
+        }
+
+        /**
+         * Đóng kết nối sau khi gửi reply (DISCONNECT/BYE)
+         */
+        boolean shouldClose() {
+            return close;
+        }
+    }
+
+    // ============================================
+    // DISPATCH
+    // ============================================
+
+    /**
+     * Xử lý 1 dòng protocol text
+     */
+    Reply process(String message) {
+        if (message == null || message.trim().isEmpty()) {
+            return new Reply().error("EMPTY_MESSAGE");
+        }
+
+        Frame request;
+        try {
+            request = Frame.parseLine(message);
+        } catch (IllegalArgumentException e) {
+            return new Reply().error(message.startsWith("DOWNLOAD_") ? "INVALID_RANGE" : "INVALID_ARGUMENTS");
+        }
+
+        if (request == null) {
+            String command = message.split(":", 2)[0].trim();
+            return new Reply().error("UNKNOWN_COMMAND:" + command);
+        }
+        return process(request);
+    }
+
+    /**
+     * Xử lý 1 frame theo protocol
+     *
+     * Request pipelined (có correlation id) → response mang lại cùng id
+     */
+    Reply process(Frame request) {
+        Reply reply = dispatch(request);
+        return request.getId() != 0 ? reply.tag(request.getId()) : reply;
+    }
+
+    private Reply dispatch(Frame request) {
+        Reply reply = new Reply();
+
+        try {
+            String text = request.getText() == null ? "" : request.getText().trim();
+
+            switch (request.getType()) {
+                case PING:
+                    return reply.send(Frame.of(MessageType.PONG));
+
+                case HELLO:
+                    return handleHello(reply, text);
+
+                case GET_INFO:
+                    return handleGetInfo(reply);
+
+                case LIST_FILES:
+                    return handleListFiles(reply);
+
+                // LIST_PAGE:<limit>:<cursor>:<filter> → FILE_ENTRY × n + FILES_END:<n>:<cursor tiếp>
+                case LIST_PAGE:
+                    return handleListPage(reply, request.getNumberCount() > 0 ? request.getNumber(0) : 0, text);
+
+                // REQUEST_FILE:<fileName> → FILE_INFO:<fileName>:<size>
+                case REQUEST_FILE:
+                    if (!text.isEmpty()) {
+                        return handleRequestFile(reply, text);
+                    }
+                    return reply.error("MISSING_FILENAME");
+
+                case DOWNLOAD_REQUEST:
+                    if (!text.isEmpty()) {
+                        return handleDownloadRequest(reply, text);
+                    }
+                    return reply.error("MISSING_FILENAME");
+
+                // DOWNLOAD_RANGE:<offset>:<length>:<fileName> (length = -1 → đến hết file)
+                case DOWNLOAD_RANGE:
+                    if (request.getNumberCount() < 2 || text.isEmpty()) {
+                        return reply.error("INVALID_RANGE");
+                    }
+                    return handleDownloadRange(reply, request.getNumber(0), request.getNumber(1), text);
+
+                // DOWNLOAD_BY_HASH:<offset>:<length>:<fileHash> (không query DB)
+                case DOWNLOAD_BY_HASH:
+                    if (request.getNumberCount() < 2 || text.isEmpty()) {
+                        return reply.error("INVALID_RANGE");
+                    }
+                    return sendShared(reply, server.findSharedFileByHash(text), text,
+                                      request.getNumber(0), request.getNumber(1));
+
+                // DOWNLOAD_BY_ID:<fileId>:<offset>:<length> (không query DB)
+                case DOWNLOAD_BY_ID:
+                    if (request.getNumberCount() < 3) {
+                        return reply.error("INVALID_RANGE");
+                    }
+                    return sendShared(reply, server.findSharedFileById((int) request.getNumber(0)),
+                                      "#" + request.getNumber(0), request.getNumber(1), request.getNumber(2));
+
+                case DISCONNECT:
+                case BYE:
+                    return reply.send(Frame.of(MessageType.BYE, "Connection closed")).close();
+
+                default:
+                    return reply.error("UNKNOWN_COMMAND:" + request.getType().getCommand());
+            }
+
+        } catch (Exception e) {
+            System.err.println("   ❌ Handle message error: " + e.getMessage());
+            e.printStackTrace();
+            return new Reply().error("INTERNAL_ERROR");
+        }
+    }
+
+    // ============================================
+    // PROTOCOL HANDLERS
+    // ============================================
+
+    /**
+     * HELLO - Greeting
+     *
+     * HELLO:<tên>;compress=<codec,...> → chọn codec nén, báo lại trong HELLO_ACK
+     * (engine chỉ nén trên kết nối binary)
+     */
+    private Reply handleHello(Reply reply, String text) {
+        int offer = text.indexOf(WireCompression.OFFER);
+        String clientName = offer < 0 ? text : text.substring(0, offer);
+        String codec = offer < 0 ? null : WireCompression.choose(text.substring(offer + WireCompression.OFFER.length()));
+
+        String ack = "Welcome " + clientName + "!";
+        if (codec != null) {
+            ack += WireCompression.OFFER + codec;
+        }
+        return reply.compression(codec).send(Frame.of(MessageType.HELLO_ACK, ack));
+    }
+
+    /**
+     * GET_INFO - Server info
+     */
+    private Reply handleGetInfo(Reply reply) {
+        return reply.send(Frame.of(MessageType.INFO,
+            "Port=" + server.getPort() + ",Status=Running,Files=" + countFiles()));
+    }
+
+    /**
+     * REQUEST_FILE - Thông tin 1 file (không gửi dữ liệu)
+     */
+    private Reply handleRequestFile(Reply reply, String fileName) {
+        File file = resolveFile(reply, fileName);
+        if (file == null) {
+            return reply;
+        }
+        return reply.send(Frame.of(MessageType.FILE_INFO, fileName + ":" + file.length()));
+    }
+
+    /**
+     * DOWNLOAD_REQUEST handler - Gửi toàn bộ file
+     *
+     * Response: FILE_SIZE:<size> + binary data
+     */
+    private Reply handleDownloadRequest(Reply reply, String fileName) {
+        try {
+            System.out.println("   📥 Download request: " + fileName);
+
+            File file = resolveFile(reply, fileName);
+            if (file == null) {
+                return reply;
+            }
+
+            // Gửi metadata, sau đó binary data
+            System.out.println("   📤 Sending file: " + fileName +
+                             " (" + file.length() + " bytes)");
+
+            return reply.send(Frame.of(MessageType.FILE_SIZE, file.length()))
+                        .file(file, fileName, 0, file.length());
+
+        } catch (Exception e) {
+            System.err.println("   ❌ Download error: " + e.getMessage());
+            e.printStackTrace();
+            return new Reply().error("SEND_FAILED");
+        }
+    }
+
+    /**
+     * DOWNLOAD_RANGE handler - Gửi 1 đoạn của file (resume download)
+     *
+     * Request:  DOWNLOAD_RANGE:<offset>:<length>:<fileName>
+     * Response: FILE_RANGE:<offset>:<length>:<totalSize> + <length> bytes
+     */
+    private Reply handleDownloadRange(Reply reply, long offset, long length, String fileName) {
+        System.out.println("   📥 Range request: " + fileName + " [" + offset + ", +" + length + "]");
+
+        try {
+            File file = resolveFile(reply, fileName);
+            if (file == null) {
+                return reply;
+            }
+            return sendRange(reply, file, fileName, offset, length);
+
+        } catch (Exception e) {
+            System.err.println("   ❌ Download error: " + e.getMessage());
+            e.printStackTrace();
+            return new Reply().error("SEND_FAILED");
+        }
+    }
+
+    /**
+     * DOWNLOAD_BY_HASH / DOWNLOAD_BY_ID - file lấy từ danh sách chia sẻ trong PeerServer
+     *
+     * Response giống DOWNLOAD_RANGE: FILE_RANGE:<offset>:<length>:<totalSize> + <length> bytes
+     *
+     * @param file File đã tra trong bộ nhớ (null = không chia sẻ)
+     * @param label Hash / id (để log)
+     */
+    private Reply sendShared(Reply reply, File file, String label, long offset, long length) {
+        System.out.println("   📥 Range request: " + label + " [" + offset + ", +" + length + "]");
+
+        if (file == null) {
+            return reply.error("FILE_NOT_FOUND");
+        }
+        if (!file.isFile()) {
+            System.err.println("   ❌ File not on disk: " + file.getAbsolutePath());
+            return reply.error("FILE_NOT_ON_DISK");
+        }
+        return sendRange(reply, file, file.getName(), offset, length);
+    }
+
+    /**
+     * Gửi đoạn [offset, offset + length) (length < 0 hoặc quá cuối file → đến hết file)
+     */
+    private Reply sendRange(Reply reply, File file, String label, long offset, long length) {
+        long total = file.length();
+        if (offset < 0 || offset > total) {
+            return reply.error("INVALID_RANGE");
+        }
+        if (length < 0 || offset + length > total) {
+            length = total - offset;
+        }
+
+        return reply.send(Frame.of(MessageType.FILE_RANGE, offset, length, total))
+                    .file(file, label, offset, length);
+    }
+
+    /**
+     * Tìm file trên disk theo tên (xử lý tên file với nhiều encoding)
+     *
+     * @return File hoặc null (đã ghi ERROR vào reply)
+     */
+    private File resolveFile(Reply reply, String fileName) {
+        FileDAO fileDAO = new FileDAO();
+        FileInfo fileInfo = null;
+
+        // Thử 1: Tìm exact match
+        fileInfo = fileDAO.getFileByName(fileName);
+
+        // Thử 2: Nếu không tìm thấy, thử normalize và tìm lại
+        if (fileInfo == null) {
+            System.out.println("   ⚠️  Exact match not found, trying normalized search...");
+
+            String normalized = TextUtil.normalizeFileName(fileName);
+            fileInfo = fileDAO.getFileByName(normalized);
+        }
+
+        // Thử 3: File đặt thẳng trong thư mục chia sẻ (có trong LIST_FILES)
+        if (fileInfo == null) {
+            File folderFile = server.findFolderFile(fileName);
+            if (folderFile != null) {
+                return folderFile;
+            }
+        }
+
+        // Thử 4: Tìm file có tên gần giống nhất (BK-tree trong FileNameIndex)
+        if (fileInfo == null) {
+            System.out.println("   ⚠️  Normalized search failed, trying fuzzy search...");
+
+            fileInfo = fileDAO.findBestMatch(fileName);
+        }
+
+        if (fileInfo == null) {
+            System.err.println("   ❌ File not found in database: " + fileName);
+            reply.error("FILE_NOT_FOUND");
+            return null;
+        }
+
+        // Lấy file từ disk
+        File file = new File(fileInfo.getFilePath());
+
+        if (!file.exists()) {
+            System.err.println("   ❌ File not on disk: " + file.getAbsolutePath());
+            reply.error("FILE_NOT_ON_DISK");
+            return null;
+        }
+
+        return file;
+    }
+
+    /**
+     * LIST_FILES - Danh sách file có sẵn
+     * (từ snapshot trong PeerServer, không liệt kê thư mục mỗi request)
+     */
+    private Reply handleListFiles(Reply reply) {
+        List<FileInfo> files = server.getListing();
+
+        if (files.isEmpty()) {
+            return reply.send(Frame.of(MessageType.FILES, "NONE"));
+        }
+
+        StringBuilder fileList = new StringBuilder();
+        for (FileInfo file : files) {
+            if (fileList.length() > 0) {
+                fileList.append(",");
+            }
+            fileList.append(file.getFileName());
+        }
+
+        return reply.send(Frame.of(MessageType.FILES, fileList.toString()));
+    }
+
+    /**
+     * LIST_PAGE - 1 trang danh sách file, mỗi file 1 frame FILE_ENTRY
+     *
+     * - Cursor = vị trí sau file cuối của trang trước (theo PeerServer.LISTING_ORDER),
+     *   không phải số thứ tự → file thêm / xóa giữa 2 trang không làm lặp / sót trang sau
+     * - Filter lọc ngay trên server: có * hoặc ? → glob, không thì prefix
+     *   (so sánh không phân biệt hoa thường / dấu)
+     * - Client nhận được FILE_ENTRY nào là hiển thị được ngay, không chờ hết trang
+     */
+    private Reply handleListPage(Reply reply, long limit, String text) {
+        int colon = text.indexOf(':');
+        String cursor = colon < 0 ? text : text.substring(0, colon);
+        String filter = colon < 0 ? "" : text.substring(colon + 1).trim();
+
+        FileInfo after = null;
+        if (!cursor.isEmpty()) {
+            after = decodeCursor(cursor);
+            if (after == null) {
+                return reply.error("INVALID_CURSOR");
+            }
+        }
+
+        int pageSize = (int) Math.min(limit > 0 ? limit : DEFAULT_PAGE_SIZE, MAX_PAGE_SIZE);
+        Predicate<String> matches = nameFilter(filter);
+
+        List<FileInfo> files = server.getListing();
+        int index = after == null ? 0 : firstAfter(files, after);
+        int count = 0;
+        FileInfo last = null;
+
+        for (; index < files.size() && count < pageSize; index++) {
+            FileInfo file = files.get(index);
+            last = file;
+
+            String name = file.getFileName();
+            if (name.indexOf('\n') >= 0 || name.indexOf('\r') >= 0) continue;   // không gửi được qua protocol text
+            if (!matches.test(name)) continue;
+
+            String hash = file.getFileHash() != null ? file.getFileHash() : "";
+            long modified = file.getSharedDate() != null ? file.getSharedDate().getTime() : 0;
+            reply.send(Frame.of(MessageType.FILE_ENTRY, hash + ":" + name,
+                                file.getFileSize(), modified, file.getFileId()));
+            count++;
+        }
+
+        // Còn file chưa xét → cursor = file cuối đã xét (kể cả file bị filter loại)
+        String next = index < files.size() && last != null ? encodeCursor(last) : "";
+        return reply.send(Frame.of(MessageType.FILES_END, next, count));
+    }
+
+    // ============================================
+    // HELPER METHODS
+    // ============================================
+
+    /**
+     * Vị trí file đầu tiên đứng sau after trong danh sách đã sắp xếp
+     */
+    private static int firstAfter(List<FileInfo> files, FileInfo after) {
+        int low = 0;
+        int high = files.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (PeerServer.LISTING_ORDER.compare(files.get(mid), after) <= 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Cursor = base64url("fileId/tên") (không chứa ':' → nằm được trong dòng text)
+     */
+    static String encodeCursor(FileInfo file) {
+        String key = file.getFileId() + "/" + file.getFileName();
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return FileInfo chỉ có tên + file_id, null nếu cursor hỏng
+     */
+    static FileInfo decodeCursor(String cursor) {
+        try {
+            String key = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+            int slash = key.indexOf('/');
+            if (slash < 0) return null;
+
+            FileInfo file = new FileInfo(key.substring(slash + 1), 0);
+            file.setFileId(Integer.parseInt(key.substring(0, slash)));
+            return file;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Filter của LIST_PAGE: có * (chuỗi bất kỳ) / ? (1 ký tự) → glob, không thì prefix
+     * Không phân biệt hoa thường / dấu; filter rỗng → nhận mọi tên
+     */
+    static Predicate<String> nameFilter(String filter) {
+        String folded = TextUtil.fold(filter);
+        if (folded.isEmpty()) {
+            return name -> true;
+        }
+        if (folded.indexOf('*') < 0 && folded.indexOf('?') < 0) {
+            return name -> TextUtil.fold(name).startsWith(folded);
+        }
+
+        Pattern glob = compileGlob(folded);
+        return name -> glob.matcher(TextUtil.fold(name)).matches();
+    }
+
+    private static Pattern compileGlob(String glob) {
+        StringBuilder regex = new StringBuilder();
+        StringBuilder literal = new StringBuilder();
+        for (char c : glob.toCharArray()) {
+            if (c == '*' || c == '?') {
+                if (literal.length() > 0) {
+                    regex.append(Pattern.quote(literal.toString()));
+                    literal.setLength(0);
+                }
+                regex.append(c == '*' ? ".*" : ".");
+            } else {
+                literal.append(c);
+            }
+        }
+        if (literal.length() > 0) {
+            regex.append(Pattern.quote(literal.toString()));
+        }
+        return Pattern.compile(regex.toString(), Pattern.DOTALL);
+    }
+
+    private int countFiles() {
+        return server.getListing().size();
+    }
+}
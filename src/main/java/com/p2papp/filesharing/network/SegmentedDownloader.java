@@ -0,0 +1,409 @@
+package com.p2papp.filesharing.network;
+
+import com.p2papp.filesharing.utils.PieceManifest;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * SegmentedDownloader.java - Tải 1 file bằng nhiều kết nối song song đến cùng 1 peer
+ *
+ * 1 TCP stream trên đường truyền RTT cao không dùng hết băng thông
+ * (bị giới hạn bởi TCP window / RTT). Chia file thành N đoạn,
+ * mỗi đoạn tải qua 1 kết nối riêng bằng DOWNLOAD_BY_HASH / DOWNLOAD_RANGE,
+ * ghi thẳng vào đúng vị trí trong file bằng FileChannel.write(buf, position).
+ *
+ * N và kích thước đoạn tối thiểu được chọn dựa trên đo đạc:
+ * - RTT: đo bằng PING/PONG
+ * - Throughput 1 stream: đo khi tải đoạn probe đầu tiên
+ *
+ * Có PieceManifest: ranh giới các đoạn trùng ranh giới piece,
+ * đoạn nào tải xong thì kiểm tra hash từng piece của đoạn đó
+ * và chỉ tải lại các piece hỏng.
+ */
+public class SegmentedDownloader {
+
+    /**
+     * File tạm riêng, không dùng chung "<đích>.part" với DownloadCheckpoint
+     * (ghi theo đoạn có thể để lại lỗ hổng → checkpoint resume sai nếu dùng chung)
+     */
+    static final String PART_SUFFIX = ".seg.part";
+
+    /**
+     * Đoạn probe đầu tiên (đo throughput 1 stream)
+     */
+    private static final long PROBE_BYTES = 1024L * 1024; // 1MB
+
+    /**
+     * Đoạn tối thiểu tuyệt đối (dưới mức này không đáng mở thêm kết nối)
+     */
+    private static final long MIN_SEGMENT_FLOOR = 1024L * 1024; // 1MB
+
+    /**
+     * Số lần thử lại cho mỗi đoạn
+     */
+    private static final int SEGMENT_ATTEMPTS = 3;
+
+    private final String host;
+    private final int port;
+    private final String fileName;
+    private int maxConnections = 8;
+    private PieceManifest manifest;
+    private String fileHash;
+
+    public SegmentedDownloader(String host, int port, String fileName) {
+        this.host = host;
+        this.port = port;
+        this.fileName = fileName;
+    }
+
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = Math.max(1, maxConnections);
+    }
+
+    /**
+     * Manifest để kiểm tra từng piece (null = không kiểm tra)
+     */
+    public void setManifest(PieceManifest manifest) {
+        this.manifest = manifest;
+    }
+
+    /**
+     * file_hash → xin đoạn bằng DOWNLOAD_BY_HASH (null = theo tên)
+     */
+    public void setFileHash(String fileHash) {
+        this.fileHash = fileHash;
+    }
+
+    // ============================================
+    // DOWNLOAD
+    // ============================================
+
+    /**
+     * Tải file về outputFile
+     *
+     * @return Thống kê (throughput tổng, số đoạn, RTT...)
+     * @throws IOException nếu không tải được
+     */
+    public Result download(File outputFile) throws IOException {
+        outputFile.getAbsoluteFile().getParentFile().mkdirs();
+        File partFile = new File(outputFile.getPath() + PART_SUFFIX);
+
+        long startTime = System.nanoTime();
+        Result result = new Result();
+
+        System.out.println("\n📥 Segmented download: " + fileName);
+        System.out.println("   From: " + host + ":" + port);
+
+        // Probe đúng bằng piece đầu tiên để các đoạn sau bắt đầu ở ranh giới piece
+        long probeBytes = manifest != null ? manifest.getPieceSize() : PROBE_BYTES;
+
+        try (FileChannel fc = FileChannel.open(partFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                               StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+
+            // 1. Probe: đo RTT + throughput 1 stream, đồng thời tải đoạn đầu
+            long probeStart;
+            try (PeerConnection conn = openConnection()) {
+                result.rttNanos = measureRtt(conn);
+
+                probeStart = System.nanoTime();
+                long[] header = requestRange(conn, 0, probeBytes);
+                result.totalBytes = header[2];
+                if (manifest != null && result.totalBytes != manifest.getTotalSize()) {
+                    throw new IOException("Remote size " + result.totalBytes +
+                                          " does not match manifest " + manifest.getTotalSize());
+                }
+                receive(conn.beginData(header[1]), fc, 0, header[1], null);
+                long probeNanos = Math.max(1, System.nanoTime() - probeStart);
+                result.perStreamBytesPerSec = header[1] * 1e9 / probeNanos;
+            }
+            verifyRange(fc, 0, Math.min(probeBytes, result.totalBytes));
+
+            long remaining = result.totalBytes - Math.min(probeBytes, result.totalBytes);
+
+            // 2. Chọn số đoạn theo RTT và throughput đã đo
+            result.segments = chooseSegments(remaining, result);
+
+            System.out.println(String.format("   RTT: %.1f ms, 1 stream: %.2f MB/s → %d segment(s)",
+                result.rttNanos / 1e6, result.perStreamBytesPerSec / (1024 * 1024), result.segments));
+
+            // 3. Tải các đoạn còn lại song song
+            if (remaining > 0) {
+                downloadSegments(fc, probeBytes, remaining, result.segments);
+            }
+
+            fc.force(false);
+        } catch (IOException e) {
+            Files.deleteIfExists(partFile.toPath());
+            throw e;
+        }
+
+        Files.move(partFile.toPath(), outputFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        result.elapsedNanos = System.nanoTime() - startTime;
+        System.out.println("   ✅ Download completed: " + result);
+        return result;
+    }
+
+    /**
+     * Chọn số đoạn song song
+     *
+     * - Đoạn tối thiểu = lượng dữ liệu 1 stream tải được trong ~20 RTT
+     *   (chi phí mở kết nối ~2 RTT chỉ chiếm ≤10%)
+     * - RTT thấp (LAN): 1 stream gần như đã đầy link → ít kết nối
+     * - RTT cao: window/RTT giới hạn mỗi stream → dùng tối đa maxConnections
+     */
+    int chooseSegments(long remaining, Result measured) {
+        if (remaining <= 0) return 0;
+
+        double rttSec = measured.rttNanos / 1e9;
+        long minSegment = Math.max(MIN_SEGMENT_FLOOR, (long) (measured.perStreamBytesPerSec * rttSec * 20));
+        measured.minSegmentBytes = minSegment;
+
+        int byRtt;
+        if (measured.rttNanos < 2_000_000L) {
+            byRtt = 2;
+        } else if (measured.rttNanos < 20_000_000L) {
+            byRtt = 4;
+        } else {
+            byRtt = maxConnections;
+        }
+
+        long bySize = remaining / minSegment;
+        return (int) Math.max(1, Math.min(Math.min(byRtt, maxConnections), bySize));
+    }
+
+    /**
+     * Chia [offset, offset + length) thành n đoạn, tải song song
+     */
+    private void downloadSegments(FileChannel fc, long offset, long length, int n) throws IOException {
+        ExecutorService pool = Executors.newFixedThreadPool(n);
+        AtomicLong received = new AtomicLong();
+        List<Future<?>> futures = new ArrayList<>();
+
+        long segmentSize = (length + n - 1) / n;
+        if (manifest != null) {
+            // Làm tròn lên bội số piece size → mỗi đoạn gồm các piece nguyên
+            long piece = manifest.getPieceSize();
+            segmentSize = (segmentSize + piece - 1) / piece * piece;
+        }
+        for (int i = 0; i < n; i++) {
+            long segStart = offset + i * segmentSize;
+            long segLength = Math.min(segmentSize, offset + length - segStart);
+            if (segLength <= 0) break;
+
+            futures.add(pool.submit(() -> {
+                downloadSegment(fc, segStart, segLength, received);
+                return null;
+            }));
+        }
+
+        try {
+            for (Future<?> f : futures) {
+                f.get();
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Segmented download interrupted");
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Tải 1 đoạn qua kết nối riêng
+     *
+     * Đứt giữa chừng: các byte đã ghi của lần thử đó vẫn được tính (receive cập nhật done
+     * theo từng chunk), lần thử sau chỉ xin phần [start + done, start + length).
+     */
+    private void downloadSegment(FileChannel fc, long start, long length, AtomicLong received) throws IOException {
+        AtomicLong done = new AtomicLong();
+        IOException lastError = null;
+
+        for (int attempt = 1; attempt <= SEGMENT_ATTEMPTS && done.get() < length; attempt++) {
+            long before = done.get();
+            try (PeerConnection conn = openConnection()) {
+                long[] header = requestRange(conn, start + before, length - before);
+                if (header[0] != start + before) {
+                    throw new IOException("Unexpected range offset " + header[0] + ", expected " + (start + before));
+                }
+                receive(conn.beginData(header[1]), fc, header[0], Math.min(header[1], length - before), done);
+            } catch (IOException e) {
+                lastError = e;
+                System.err.println("   ⚠️  Segment @" + start + " failed at +" + done.get() +
+                                   " (" + e.getMessage() + "), retry " + attempt);
+            } finally {
+                received.addAndGet(done.get() - before);
+            }
+        }
+
+        if (done.get() < length) {
+            throw lastError != null ? lastError : new IOException("Segment @" + start + " incomplete");
+        }
+
+        verifyRange(fc, start, length);
+    }
+
+    // ============================================
+    // PIECE VERIFICATION
+    // ============================================
+
+    /**
+     * Kiểm tra các piece trong [start, start + length) vừa tải,
+     * piece hỏng được tải lại riêng (tối đa SEGMENT_ATTEMPTS lần)
+     */
+    private void verifyRange(FileChannel fc, long start, long length) throws IOException {
+        if (manifest == null || length <= 0) return;
+
+        int first = (int) (start / manifest.getPieceSize());
+        int last = (int) ((start + length - 1) / manifest.getPieceSize());
+        ByteBuffer buffer = ByteBuffer.allocate(manifest.getPieceLength(first));
+
+        for (int piece = first; piece <= last; piece++) {
+            int attempt = 0;
+            while (!pieceValid(fc, piece, buffer)) {
+                if (++attempt > SEGMENT_ATTEMPTS) {
+                    throw new IOException("Piece " + piece + " failed verification " + SEGMENT_ATTEMPTS + " times");
+                }
+                System.err.println("   ⚠️  Piece " + piece + " hash mismatch, re-fetching (" + attempt + ")");
+
+                try (PeerConnection conn = openConnection()) {
+                    long[] header = requestRange(conn, manifest.getPieceOffset(piece), manifest.getPieceLength(piece));
+                    receive(conn.beginData(header[1]), fc, header[0], header[1], null);
+                }
+            }
+        }
+    }
+
+    /**
+     * Đọc lại 1 piece từ file (nằm trong page cache) và so hash
+     */
+    private boolean pieceValid(FileChannel fc, int piece, ByteBuffer buffer) throws IOException {
+        int length = manifest.getPieceLength(piece);
+        long offset = manifest.getPieceOffset(piece);
+
+        buffer.clear().limit(length);
+        while (buffer.hasRemaining()) {
+            if (fc.read(buffer, offset + buffer.position()) == -1) {
+                return false;
+            }
+        }
+        return manifest.verifyPiece(piece, buffer.array(), 0, length);
+    }
+
+    // ============================================
+    // PROTOCOL HELPERS
+    // ============================================
+
+    private PeerConnection openConnection() throws IOException {
+        PeerConnection conn = PeerConnection.open(host, port, 5000, 30000);
+        conn.getSocket().setReceiveBufferSize(1024 * 1024);
+        return conn;
+    }
+
+    /**
+     * RTT nhỏ nhất của 3 lần PING
+     */
+    private static long measureRtt(PeerConnection conn) throws IOException {
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < 3; i++) {
+            long t = System.nanoTime();
+            Frame pong = conn.request(Frame.of(MessageType.PING));
+            if (pong.getType() != MessageType.PONG) {
+                throw new IOException("Unexpected PING response: " + pong);
+            }
+            best = Math.min(best, System.nanoTime() - t);
+        }
+        return best;
+    }
+
+    /**
+     * Gửi DOWNLOAD_BY_HASH / DOWNLOAD_RANGE và đọc header
+     *
+     * @return [offset, length, totalSize]
+     */
+    private long[] requestRange(PeerConnection conn, long offset, long length) throws IOException {
+        Frame response = PeerClient.requestRange(conn, fileHash, fileName, offset, length);
+
+        if (response.getType() != MessageType.FILE_RANGE) {
+            throw new IOException("Server error: " + response);
+        }
+        return new long[] { response.getNumber(0), response.getNumber(1), response.getNumber(2) };
+    }
+
+    /**
+     * Nhận length bytes, ghi vào fc tại position (thread-safe với positional write)
+     *
+     * @param counter Cộng thêm sau mỗi chunk đã ghi → đứt giữa chừng (IOException)
+     *                caller vẫn biết đã ghi được bao nhiêu (null = không đếm)
+     * @return length
+     */
+    private static long receive(InputStream is, FileChannel fc, long position, long length,
+                                AtomicLong counter) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        long done = 0;
+
+        while (done < length) {
+            int n = is.read(buffer, 0, (int) Math.min(buffer.length, length - done));
+            if (n == -1) {
+                throw new EOFException("Unexpected end of stream at " + (position + done));
+            }
+
+            ByteBuffer bb = ByteBuffer.wrap(buffer, 0, n);
+            while (bb.hasRemaining()) {
+                fc.write(bb, position + done + (n - bb.remaining()));
+            }
+            done += n;
+            if (counter != null) counter.addAndGet(n);
+        }
+
+        return done;
+    }
+
+    // ============================================
+    // RESULT
+    // ============================================
+
+    /**
+     * Thống kê 1 lần tải
+     */
+    public static class Result {
+        long totalBytes;
+        long elapsedNanos;
+        long rttNanos;
+        double perStreamBytesPerSec;
+        long minSegmentBytes;
+        int segments;
+
+        public long getTotalBytes() {
+            return totalBytes;
+        }
+
+        public int getSegments() {
+            return segments;
+        }
+
+        /**
+         * Throughput tổng (MB/s)
+         */
+        public double getThroughputMBps() {
+            return elapsedNanos == 0 ? 0 : totalBytes / (1024.0 * 1024) / (elapsedNanos / 1e9);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d bytes in %.2f s, %.2f MB/s aggregate, %d segment(s), RTT %.1f ms",
+                totalBytes, elapsedNanos / 1e9, getThroughputMBps(), segments, rttNanos / 1e6);
+        }
+    }
+}
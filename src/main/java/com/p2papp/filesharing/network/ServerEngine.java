@@ -0,0 +1,36 @@
+package com.p2papp.filesharing.network;
+
+/**
+ * ServerEngine.java - Cách PeerServer xử lý kết nối
+ *
+ * - CLASSIC: mỗi kết nối chiếm 1 thread trong pool cố định (blocking I/O)
+ * - NIO:     Selector + vài event-loop thread, giữ được hàng nghìn kết nối
+ * - VIRTUAL: mỗi kết nối 1 virtual thread (JDK 21+), code handler vẫn blocking
+ *
+ * Chọn engine bằng system property:
+ * -Dp2p.server.engine=classic|nio|virtual
+ */
+public enum ServerEngine {
+    CLASSIC,
+    NIO,
+    VIRTUAL;
+
+    /**
+     * System property chọn engine
+     */
+    public static final String PROPERTY = "p2p.server.engine";
+
+    /**
+     * Đọc engine từ system property, mặc định CLASSIC
+     */
+    public static ServerEngine fromConfig() {
+        String value = System.getProperty(PROPERTY, "classic");
+        for (ServerEngine engine : values()) {
+            if (engine.name().equalsIgnoreCase(value.trim())) {
+                return engine;
+            }
+        }
+        System.err.println("⚠️  Unknown server engine '" + value + "', using CLASSIC");
+        return CLASSIC;
+    }
+}
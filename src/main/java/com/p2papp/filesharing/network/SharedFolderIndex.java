@@ -0,0 +1,294 @@
+package com.p2papp.filesharing.network;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * SharedFolderIndex.java - Danh sách file trong thư mục chia sẻ, giữ trong bộ nhớ
+ *
+ * Trước đây mỗi LIST_FILES / GET_INFO gọi new File(sharedFolder).listFiles()
+ * → thư mục lớn / ổ mạng thì mỗi request là 1 lần liệt kê toàn bộ thư mục.
+ *
+ * Giờ:
+ * - Liệt kê thư mục 1 lần lúc start (DirectoryStream, không tạo mảng File[] khổng lồ)
+ * - Sau đó WatchService báo file thêm / xóa / sửa → chỉ stat đúng file đó
+ * - OVERFLOW (quá nhiều thay đổi cùng lúc) → liệt kê lại toàn bộ
+ * - Ổ mạng (NFS/SMB) thường không báo thay đổi từ máy khác → liệt kê lại
+ *   định kỳ (-Dp2p.sharedFolder.rescanMs, mặc định 5 phút);
+ *   filesystem không hỗ trợ WatchService → chỉ dùng cách này
+ *
+ * Snapshot sắp xếp theo tên (ConcurrentSkipListMap): đọc không cần khóa,
+ * version() tăng mỗi khi có thay đổi để caller cache kết quả dựng từ snapshot.
+ *
+ * Chỉ tính file ở cấp 1 của thư mục (giống listFiles() trước đây), bỏ file ẩn.
+ */
+public class SharedFolderIndex implements Closeable {
+
+    /**
+     * Khoảng liệt kê lại toàn bộ để bắt thay đổi WatchService bỏ sót
+     */
+    private static final long RESCAN_INTERVAL_MS = Long.getLong("p2p.sharedFolder.rescanMs", 5 * 60 * 1000L);
+
+    /**
+     * 1 file trong thư mục
+     */
+    public static final class Entry {
+        private final String name;
+        private final long size;
+        private final long lastModified;
+
+        Entry(String name, long size, long lastModified) {
+            this.name = name;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        boolean sameAs(Entry other) {
+            return other != null && size == other.size && lastModified == other.lastModified;
+        }
+    }
+
+    private final Path root;
+    private final ConcurrentSkipListMap<String, Entry> entries = new ConcurrentSkipListMap<>();
+    private final AtomicLong version = new AtomicLong();
+
+    private volatile boolean running;
+    private volatile WatchService watcher;
+    private Thread thread;
+
+    public SharedFolderIndex(Path root) {
+        this.root = root.toAbsolutePath();
+    }
+
+    // ============================================
+    // LIFECYCLE
+    // ============================================
+
+    /**
+     * Đăng ký WatchService, liệt kê lần đầu rồi chạy thread theo dõi
+     *
+     * Đăng ký TRƯỚC khi liệt kê → file thêm trong lúc liệt kê vẫn có event.
+     */
+    public synchronized void start() {
+        if (running) return;
+        running = true;
+
+        try {
+            Files.createDirectories(root);
+            watcher = root.getFileSystem().newWatchService();
+            root.register(watcher,
+                          StandardWatchEventKinds.ENTRY_CREATE,
+                          StandardWatchEventKinds.ENTRY_DELETE,
+                          StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException | UnsupportedOperationException e) {
+            System.err.println("⚠️  WatchService unavailable for " + root + ", polling every " +
+                               RESCAN_INTERVAL_MS / 1000 + "s: " + e.getMessage());
+            closeWatcher();
+        }
+
+        rescan();
+        System.out.println("📂 Shared folder indexed: " + entries.size() + " files in " + root);
+
+        thread = new Thread(this::watchLoop, "shared-folder-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public synchronized void close() {
+        running = false;
+        closeWatcher();
+        if (thread != null) {
+            thread.interrupt();
+            thread = null;
+        }
+    }
+
+    private void closeWatcher() {
+        if (watcher != null) {
+            try {
+                watcher.close();
+            } catch (IOException ignored) {
+            }
+            watcher = null;
+        }
+    }
+
+    // ============================================
+    // SNAPSHOT
+    // ============================================
+
+    /**
+     * Các file theo thứ tự tên (view sống, đọc không khóa)
+     */
+    public Collection<Entry> entries() {
+        return entries.values();
+    }
+
+    /**
+     * Các file có tên sau after (null = từ đầu), theo thứ tự tên
+     */
+    public ConcurrentNavigableMap<String, Entry> after(String after) {
+        return after == null ? entries : entries.tailMap(after, false);
+    }
+
+    public Entry get(String name) {
+        return entries.get(name);
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Tăng mỗi khi danh sách thay đổi
+     */
+    public long version() {
+        return version.get();
+    }
+
+    public Path getRoot() {
+        return root;
+    }
+
+    // ============================================
+    // SCAN
+    // ============================================
+
+    /**
+     * Liệt kê lại toàn bộ thư mục, cập nhật snapshot theo chênh lệch
+     */
+    public void rescan() {
+        Set<String> seen = new HashSet<>();
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(root)) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                if (refresh(path, name)) {
+                    seen.add(name);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("❌ Scan shared folder error: " + e.getMessage());
+            return;
+        }
+
+        if (entries.keySet().retainAll(seen)) {
+            version.incrementAndGet();
+        }
+    }
+
+    /**
+     * Stat lại 1 file và cập nhật snapshot
+     *
+     * @return true nếu file đang có trong snapshot
+     */
+    private boolean refresh(Path path, String name) {
+        Entry entry = null;
+        if (!name.startsWith(".")) {
+            try {
+                BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+                if (attrs.isRegularFile()) {
+                    entry = new Entry(name, attrs.size(), attrs.lastModifiedTime().toMillis());
+                }
+            } catch (NoSuchFileException e) {
+                // Vừa bị xóa
+            } catch (IOException e) {
+                System.err.println("⚠️  Cannot stat " + path + ": " + e.getMessage());
+            }
+        }
+
+        if (entry == null) {
+            if (entries.remove(name) != null) {
+                version.incrementAndGet();
+            }
+            return false;
+        }
+        if (!entry.sameAs(entries.put(name, entry))) {
+            version.incrementAndGet();
+        }
+        return true;
+    }
+
+    private void watchLoop() {
+        long nextRescan = System.currentTimeMillis() + RESCAN_INTERVAL_MS;
+
+        while (running) {
+            try {
+                long wait = Math.max(1, nextRescan - System.currentTimeMillis());
+                WatchService ws = watcher;
+                WatchKey key = null;
+
+                if (ws != null) {
+                    key = ws.poll(wait, TimeUnit.MILLISECONDS);
+                } else {
+                    Thread.sleep(wait);
+                }
+
+                if (key != null) {
+                    handleEvents(key);
+                }
+
+                if (System.currentTimeMillis() >= nextRescan) {
+                    rescan();
+                    nextRescan = System.currentTimeMillis() + RESCAN_INTERVAL_MS;
+                }
+
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+        }
+    }
+
+    private void handleEvents(WatchKey key) {
+        boolean overflow = false;
+
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                overflow = true;
+                continue;
+            }
+            Path name = (Path) event.context();
+            refresh(root.resolve(name), name.toString());
+        }
+
+        if (!key.reset()) {
+            // Thư mục bị xóa / không truy cập được → chờ lần liệt kê định kỳ
+            System.err.println("⚠️  Shared folder no longer watchable: " + root);
+            closeWatcher();
+            overflow = true;
+        }
+        if (overflow) {
+            rescan();
+        }
+    }
+}
@@ -0,0 +1,363 @@
+package com.p2papp.filesharing.network;
+
+import com.p2papp.filesharing.model.FileInfo;
+import com.p2papp.filesharing.utils.PieceManifest;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * SwarmDownloader.java - Tải 1 file từ nhiều peer cùng lúc
+ *
+ * Các peer cùng chia sẻ 1 file_hash giữ nội dung giống hệt nhau.
+ * File được chia thành các piece cố định, mỗi peer (nguồn) có 1 worker:
+ * - Worker giữ 1 kết nối, lần lượt xin piece từ PiecePicker
+ *   và tải bằng DOWNLOAD_BY_HASH (peer cũ: DOWNLOAD_RANGE theo tên file của chính peer đó)
+ * - Peer nhanh xin được nhiều piece hơn → tự cân bằng tải
+ * - Peer lỗi liên tục hoặc chậm hơn 10 lần peer nhanh nhất → bị loại,
+ *   piece của nó trả lại cho peer khác
+ * - Cuối cùng vào endgame: piece còn dở được xin trùng ở peer rảnh
+ * - Có PieceManifest: mỗi piece được kiểm tra hash trước khi ghi,
+ *   piece hỏng được tải lại (tính là 1 lần lỗi của nguồn gửi)
+ *
+ * Throughput tổng ≈ tổng upload của các peer nguồn.
+ */
+public class SwarmDownloader {
+
+    /**
+     * File tạm riêng, không dùng chung "<đích>.part" với DownloadCheckpoint
+     */
+    static final String PART_SUFFIX = ".swarm.part";
+
+    /**
+     * Kích thước mặc định 1 piece
+     */
+    public static final int DEFAULT_PIECE_SIZE = 1024 * 1024; // 1MB
+
+    /**
+     * Số lần lỗi liên tiếp trước khi loại 1 nguồn
+     */
+    private static final int MAX_FAILURES = 3;
+
+    /**
+     * Nguồn chậm hơn (nhanh nhất / SLOW_FACTOR) thì bị loại
+     */
+    private static final int SLOW_FACTOR = 10;
+
+    private final List<FileInfo> sources;
+    private final long fileSize;
+    private final int pieceSize;
+    private final int pieceCount;
+    private final PieceManifest manifest;
+
+    private PiecePicker picker;
+    private FileChannel output;
+    private final List<SourceWorker> workers = new ArrayList<>();
+
+    /**
+     * @param sources Các bản sao của file (có peerIp/peerPort, cùng file_hash)
+     * @param fileSize Kích thước file
+     */
+    public SwarmDownloader(List<FileInfo> sources, long fileSize) {
+        this(sources, fileSize, DEFAULT_PIECE_SIZE);
+    }
+
+    public SwarmDownloader(List<FileInfo> sources, long fileSize, int pieceSize) {
+        this(sources, fileSize, pieceSize, null);
+    }
+
+    /**
+     * Tải theo đúng các piece của manifest, kiểm tra hash từng piece
+     */
+    public SwarmDownloader(List<FileInfo> sources, PieceManifest manifest) {
+        this(sources, manifest.getTotalSize(), manifest.getPieceSize(), manifest);
+    }
+
+    private SwarmDownloader(List<FileInfo> sources, long fileSize, int pieceSize, PieceManifest manifest) {
+        this.sources = sources;
+        this.fileSize = fileSize;
+        this.pieceSize = pieceSize;
+        this.pieceCount = (int) Math.max(1, (fileSize + pieceSize - 1) / pieceSize);
+        this.manifest = manifest;
+    }
+
+    // ============================================
+    // DOWNLOAD
+    // ============================================
+
+    /**
+     * Tải file về outputFile
+     *
+     * @throws IOException nếu mọi nguồn đều lỗi trước khi tải xong
+     */
+    public Result download(File outputFile) throws IOException {
+        if (sources.isEmpty()) {
+            throw new IOException("No online sources");
+        }
+
+        outputFile.getAbsoluteFile().getParentFile().mkdirs();
+        File partFile = new File(outputFile.getPath() + PART_SUFFIX);
+        long start = System.nanoTime();
+
+        System.out.println("\n📥 Swarm download: " + sources.get(0).getFileName());
+        System.out.println("   Sources: " + sources.size() + ", pieces: " + pieceCount + " x " + pieceSize + " bytes");
+
+        picker = new PiecePicker(pieceCount);
+
+        try (FileChannel fc = FileChannel.open(partFile.toPath(), StandardOpenOption.CREATE,
+                                               StandardOpenOption.WRITE, StandardOpenOption.READ,
+                                               StandardOpenOption.TRUNCATE_EXISTING)) {
+            output = fc;
+
+            List<Thread> threads = new ArrayList<>();
+            for (FileInfo source : sources) {
+                SourceWorker worker = new SourceWorker(source);
+                workers.add(worker);
+                picker.addSource(null);
+
+                Thread t = new Thread(worker, "swarm-" + source.getPeerIp() + ":" + source.getPeerPort());
+                t.setDaemon(true);
+                threads.add(t);
+                t.start();
+            }
+
+            for (Thread t : threads) {
+                try {
+                    t.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Swarm download interrupted");
+                }
+            }
+
+            if (!picker.allDone()) {
+                throw new IOException("All sources failed (" + picker + ")");
+            }
+
+            fc.truncate(fileSize);
+            fc.force(false);
+        } catch (IOException e) {
+            Files.deleteIfExists(partFile.toPath());
+            throw e;
+        }
+
+        Files.move(partFile.toPath(), outputFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        Result result = new Result(fileSize, System.nanoTime() - start, workers);
+        System.out.println("   ✅ Swarm download completed: " + result);
+        return result;
+    }
+
+    /**
+     * Throughput (bytes/s) của nguồn nhanh nhất hiện tại
+     */
+    private synchronized double bestThroughput() {
+        double best = 0;
+        for (SourceWorker w : workers) {
+            if (!w.dropped) best = Math.max(best, w.bytesPerSec);
+        }
+        return best;
+    }
+
+    private synchronized int aliveSources() {
+        int alive = 0;
+        for (SourceWorker w : workers) {
+            if (!w.dropped) alive++;
+        }
+        return alive;
+    }
+
+    // ============================================
+    // SOURCE WORKER
+    // ============================================
+
+    /**
+     * Worker tải piece từ 1 peer nguồn
+     */
+    private class SourceWorker implements Runnable {
+
+        final FileInfo source;
+        final String label;
+        final boolean[] inFlight = new boolean[pieceCount];
+        final byte[] pieceBuffer = new byte[pieceSize];
+
+        PeerConnection conn;
+
+        int failures = 0;
+        int pieces = 0;
+        int corrupt = 0;
+        long bytes = 0;
+        volatile double bytesPerSec = 0;
+        volatile boolean dropped = false;
+
+        SourceWorker(FileInfo source) {
+            this.source = source;
+            this.label = source.getOwnerUsername() + "@" + source.getPeerIp() + ":" + source.getPeerPort();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!picker.allDone() && !dropped) {
+                    int piece = picker.next(null, inFlight);
+                    if (piece < 0) {
+                        picker.awaitChange(200);
+                        continue;
+                    }
+
+                    inFlight[piece] = true;
+                    try {
+                        fetch(piece);
+                        failures = 0;
+                    } catch (IOException e) {
+                        picker.release(piece);
+                        closeSocket();
+                        failures++;
+                        System.err.println("   ⚠️  [" + label + "] piece " + piece + " failed: " + e.getMessage());
+                        if (failures >= MAX_FAILURES) {
+                            drop("too many failures");
+                        }
+                    } finally {
+                        inFlight[piece] = false;
+                    }
+
+                    checkSlow();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                closeSocket();
+            }
+        }
+
+        /**
+         * Tải 1 piece, ghi vào đúng vị trí trong file
+         */
+        void fetch(int piece) throws IOException {
+            long offset = (long) piece * pieceSize;
+            int length = (int) Math.min(pieceSize, fileSize - offset);
+            long t0 = System.nanoTime();
+
+            ensureConnected();
+            Frame header = PeerClient.requestRange(conn, source.getFileHash(), source.getFileName(), offset, length);
+            if (header.getType() != MessageType.FILE_RANGE
+                    || header.getNumber(0) != offset || header.getNumber(1) != length) {
+                throw new IOException("Unexpected response: " + header);
+            }
+            InputStream in = conn.beginData(length);
+
+            int read = 0;
+            while (read < length) {
+                // Endgame: nguồn khác đã xong piece này → bỏ, kết nối phải mở lại
+                if (picker.isDone(piece)) {
+                    picker.release(piece);
+                    closeSocket();
+                    return;
+                }
+
+                int n = in.read(pieceBuffer, read, Math.min(64 * 1024, length - read));
+                if (n == -1) {
+                    throw new EOFException("Unexpected end of stream in piece " + piece);
+                }
+                read += n;
+            }
+
+            if (manifest != null && !manifest.verifyPiece(piece, pieceBuffer, 0, length)) {
+                corrupt++;
+                throw new IOException("hash mismatch");
+            }
+
+            ByteBuffer bb = ByteBuffer.wrap(pieceBuffer, 0, length);
+            long pos = offset;
+            while (bb.hasRemaining()) {
+                pos += output.write(bb, pos);
+            }
+
+            if (picker.complete(piece)) {
+                pieces++;
+                bytes += length;
+            }
+
+            // EWMA throughput của nguồn này
+            double sample = length * 1e9 / Math.max(1, System.nanoTime() - t0);
+            bytesPerSec = bytesPerSec == 0 ? sample : 0.7 * bytesPerSec + 0.3 * sample;
+        }
+
+        /**
+         * Loại nguồn quá chậm (chỉ khi vẫn còn nguồn khác)
+         */
+        void checkSlow() {
+            if (dropped || pieces < 3 || aliveSources() <= 1) return;
+
+            double best = bestThroughput();
+            if (best > 0 && bytesPerSec * SLOW_FACTOR < best) {
+                drop(String.format("too slow (%.2f MB/s vs best %.2f MB/s)",
+                     bytesPerSec / (1024 * 1024), best / (1024 * 1024)));
+            }
+        }
+
+        void drop(String reason) {
+            dropped = true;
+            picker.removeSource(null);
+            System.err.println("   ❌ Dropping source " + label + ": " + reason);
+        }
+
+        void ensureConnected() throws IOException {
+            if (conn != null && !conn.isClosed()) return;
+
+            conn = PeerConnection.open(source.getPeerIp(), source.getPeerPort(), 5000, 15000);
+        }
+
+        void closeSocket() {
+            if (conn != null) {
+                try {
+                    conn.close();
+                } catch (IOException ignored) {
+                }
+                conn = null;
+            }
+        }
+    }
+
+    // ============================================
+    // RESULT
+    // ============================================
+
+    /**
+     * Thống kê 1 lần swarm download
+     */
+    public static class Result {
+        private final long totalBytes;
+        private final long elapsedNanos;
+        private final List<String> perSource = new ArrayList<>();
+
+        Result(long totalBytes, long elapsedNanos, List<SourceWorker> workers) {
+            this.totalBytes = totalBytes;
+            this.elapsedNanos = elapsedNanos;
+            for (SourceWorker w : workers) {
+                perSource.add(String.format("%s: %d pieces, %.2f MB/s%s%s", w.label, w.pieces,
+                    w.bytesPerSec / (1024 * 1024), w.corrupt > 0 ? ", " + w.corrupt + " corrupt" : "",
+                    w.dropped ? " (dropped)" : ""));
+            }
+        }
+
+        public double getThroughputMBps() {
+            return elapsedNanos == 0 ? 0 : totalBytes / (1024.0 * 1024) / (elapsedNanos / 1e9);
+        }
+
+        public List<String> getPerSource() {
+            return perSource;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d bytes in %.2f s, %.2f MB/s aggregate %s",
+                totalBytes, elapsedNanos / 1e9, getThroughputMBps(), perSource);
+        }
+    }
+}
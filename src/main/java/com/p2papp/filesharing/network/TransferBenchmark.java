@@ -0,0 +1,158 @@
+package com.p2papp.filesharing.network;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * TransferBenchmark.java - So sánh throughput gửi file qua socket
+ *
+ * - legacy:   BufferedInputStream → byte[4096] → BufferedOutputStream (cách cũ)
+ * - zerocopy: FileChannel.transferTo → SocketChannel (FileTransfer)
+ *
+ * Đo qua loopback, in MB/s và CPU (ms) của thread gửi cho mỗi Gbit.
+ *
+ * Cách chạy:
+ * mvn compile exec:java -Dexec.mainClass="com.p2papp.filesharing.network.TransferBenchmark" -Dexec.args="1m 100m 4g"
+ */
+public class TransferBenchmark {
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    public static void main(String[] args) throws Exception {
+        String[] sizes = args.length > 0 ? args : new String[] { "1m", "100m", "4g" };
+
+        System.out.println("╔════════════════════════════════════════╗");
+        System.out.println("║   FILE TRANSFER BENCHMARK              ║");
+        System.out.println("╚════════════════════════════════════════╝\n");
+
+        for (String size : sizes) {
+            long bytes = parseSize(size);
+            File file = createTestFile(bytes);
+
+            try {
+                // Warm-up để JIT compile 2 đường gửi
+                run(file, false);
+                run(file, true);
+
+                Result legacy = run(file, false);
+                Result zeroCopy = run(file, true);
+
+                System.out.println("Size: " + size + " (" + bytes + " bytes)");
+                System.out.println("   legacy   : " + legacy);
+                System.out.println("   zerocopy : " + zeroCopy);
+                System.out.println();
+            } finally {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Gửi file 1 lần qua loopback, receiver đọc bỏ dữ liệu
+     */
+    private static Result run(File file, boolean zeroCopy) throws Exception {
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress("127.0.0.1", 0));
+
+            Thread receiver = new Thread(() -> drain(server));
+            receiver.start();
+
+            long cpuStart = THREADS.getCurrentThreadCpuTime();
+            long start = System.nanoTime();
+
+            try (SocketChannel channel = SocketChannel.open(server.getLocalAddress())) {
+                if (zeroCopy) {
+                    try (FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                        FileTransfer.transferTo(fc, 0, fc.size(), channel);
+                    }
+                } else {
+                    legacyCopy(file, channel.socket().getOutputStream());
+                }
+                channel.shutdownOutput();
+                receiver.join();
+            }
+
+            long elapsed = System.nanoTime() - start;
+            long cpu = THREADS.getCurrentThreadCpuTime() - cpuStart;
+            return new Result(file.length(), elapsed, cpu);
+        }
+    }
+
+    /**
+     * Vòng lặp gửi cũ của PeerServer (trước khi có FileTransfer)
+     */
+    private static void legacyCopy(File file, OutputStream socketOut) throws IOException {
+        try (BufferedInputStream bis = new BufferedInputStream(new FileInputStream(file))) {
+            BufferedOutputStream bos = new BufferedOutputStream(socketOut);
+            byte[] buffer = new byte[4096];
+            int bytes;
+            while ((bytes = bis.read(buffer)) != -1) {
+                bos.write(buffer, 0, bytes);
+            }
+            bos.flush();
+        }
+    }
+
+    private static void drain(ServerSocketChannel server) {
+        try (SocketChannel client = server.accept()) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(1024 * 1024);
+            while (client.read(buffer) != -1) {
+                buffer.clear();
+            }
+        } catch (IOException e) {
+            System.err.println("❌ Receiver error: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Tạo file test (sparse file với setLength - không tốn disk cho 4GB)
+     */
+    private static File createTestFile(long bytes) throws IOException {
+        File file = File.createTempFile("p2p-bench-", ".bin");
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(bytes);
+        }
+        return file;
+    }
+
+    private static long parseSize(String size) {
+        String s = size.trim().toLowerCase();
+        long unit = 1;
+        if (s.endsWith("k")) unit = 1024L;
+        else if (s.endsWith("m")) unit = 1024L * 1024;
+        else if (s.endsWith("g")) unit = 1024L * 1024 * 1024;
+        if (unit > 1) s = s.substring(0, s.length() - 1);
+        return Long.parseLong(s) * unit;
+    }
+
+    /**
+     * Kết quả 1 lần chạy
+     */
+    private static class Result {
+        final long bytes;
+        final long elapsedNanos;
+        final long cpuNanos;
+
+        Result(long bytes, long elapsedNanos, long cpuNanos) {
+            this.bytes = bytes;
+            this.elapsedNanos = elapsedNanos;
+            this.cpuNanos = cpuNanos;
+        }
+
+        @Override
+        public String toString() {
+            double seconds = elapsedNanos / 1e9;
+            double mbPerSec = bytes / (1024.0 * 1024) / seconds;
+            double gbits = bytes * 8 / 1e9;
+            double cpuMsPerGbit = cpuNanos / 1e6 / gbits;
+            return String.format("%8.1f MB/s, %8.1f ms, CPU %7.1f ms/Gbit", mbPerSec, elapsedNanos / 1e6, cpuMsPerGbit);
+        }
+    }
+}
@@ -0,0 +1,535 @@
+package com.p2papp.filesharing.network;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * WireCompression.java - Nén dữ liệu file trên đường truyền (chỉ protocol binary)
+ *
+ * Trước đây FILE_DATA luôn là bytes thô. File text / CSV / log nén được 5-10 lần,
+ * qua VPN chậm thì băng thông mới là cổ chai chứ không phải CPU.
+ *
+ * Thoả thuận trong HELLO / HELLO_ACK:
+ *   HELLO:<tên>;compress=deflate       → client đề nghị các codec nó giải nén được
+ *   HELLO_ACK:Welcome <tên>!;compress=deflate → server chọn 1 codec (không có = không nén)
+ * Peer cũ không hiểu phần ";compress=" → không nén, vẫn chạy như trước.
+ *
+ * Khi kết nối đã thoả thuận codec, sau mỗi header FILE_DATA có thêm 1 byte chế độ:
+ * - MODE_RAW: bytes thô như cũ (server vẫn dùng transferTo) - lấy mẫu đầu / giữa / cuối
+ *   đoạn file thấy entropy cao (zip, jpg, mp4...) → không tốn CPU thử nén
+ * - MODE_CHUNKED: dãy chunk, mỗi chunk ≤ CHUNK_SIZE bytes gốc:
+ *     [STORED][varint rawLen][bytes]  hoặc  [DEFLATE][varint rawLen][varint zLen][zlib]
+ *   Mỗi chunk nén độc lập. Chunk entropy cao → STORED không thử nén;
+ *   nén không giảm được 1/10 → STORED, và bỏ qua thử nén vài chunk tiếp theo
+ *   (lùi dần, tối đa MAX_BACKOFF chunk)
+ *
+ * Mỗi lần gửi / nhận xong in tỉ lệ nén và CPU đã tốn (Stats).
+ *
+ * Chỉ có Deflater của JDK (không thêm thư viện); codec khác thêm vào supported().
+ * Tắt nén: -Dp2p.compression=off, mức nén: -Dp2p.compression.level=1..9 (mặc định 1)
+ */
+final class WireCompression {
+
+    static final String PROPERTY = "p2p.compression";
+
+    static final String DEFLATE = "deflate";
+
+    /**
+     * Phần thêm vào text của HELLO / HELLO_ACK
+     */
+    static final String OFFER = ";compress=";
+
+    static final int MODE_RAW = 0;
+    static final int MODE_CHUNKED = 1;
+
+    static final int CHUNK_STORED = 0;
+    static final int CHUNK_DEFLATE = 1;
+
+    /**
+     * Số byte gốc tối đa của 1 chunk
+     */
+    static final int CHUNK_SIZE = 64 * 1024;
+
+    /**
+     * Header chunk lớn nhất: 1 byte cờ + 2 varint
+     */
+    private static final int MAX_CHUNK_HEADER = 1 + 5 + 5;
+
+    private static final int LEVEL = Integer.getInteger("p2p.compression.level", Deflater.BEST_SPEED);
+
+    /**
+     * Entropy (bit / byte) trên mức này → coi như đã nén sẵn, không thử nén
+     */
+    private static final double MAX_ENTROPY = 7.5;
+
+    /**
+     * Số byte lấy mẫu để tính entropy
+     */
+    private static final int SAMPLE_SIZE = 4096;
+
+    /**
+     * Nén phải giảm được ít nhất 1/10 → không thì gửi thô
+     */
+    private static final int MIN_SAVING_DIVISOR = 10;
+
+    /**
+     * Số chunk tối đa bỏ qua thử nén sau các lần nén không được
+     */
+    private static final int MAX_BACKOFF = 64;
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private WireCompression() {
+    }
+
+    // ============================================
+    // NEGOTIATION
+    // ============================================
+
+    /**
+     * Các codec bên này dùng được, null nếu đã tắt nén
+     */
+    static String supported() {
+        String setting = System.getProperty(PROPERTY, DEFLATE);
+        return DEFLATE.equalsIgnoreCase(setting) ? DEFLATE : null;
+    }
+
+    /**
+     * Client: text HELLO kèm đề nghị nén
+     */
+    static String offer(String clientName) {
+        String codecs = supported();
+        return codecs == null ? clientName : clientName + OFFER + codecs;
+    }
+
+    /**
+     * Server: chọn codec từ danh sách client đề nghị ("deflate,..."), null = không nén
+     */
+    static String choose(String offered) {
+        String codecs = supported();
+        if (codecs == null || offered == null) return null;
+
+        for (String codec : offered.split(",")) {
+            if (codec.trim().equalsIgnoreCase(codecs)) {
+                return codecs;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Client: codec server đã chọn trong HELLO_ACK, null nếu server không nén / là peer cũ
+     * (peer cũ chỉ nhại lại tên: "Welcome x;compress=deflate!" → không khớp)
+     */
+    static String accepted(String ackText) {
+        String codecs = supported();
+        if (codecs == null || ackText == null) return null;
+        return ackText.endsWith(OFFER + codecs) ? codecs : null;
+    }
+
+    // ============================================
+    // ENTROPY
+    // ============================================
+
+    /**
+     * Entropy Shannon (bit / byte) của tối đa SAMPLE_SIZE byte từ vị trí hiện tại
+     * (không đổi position của buffer)
+     */
+    static double entropy(ByteBuffer data) {
+        int n = Math.min(data.remaining(), SAMPLE_SIZE);
+        if (n == 0) return 0;
+
+        // Lấy mẫu rải đều trên cả đoạn, không chỉ phần đầu
+        int step = Math.max(1, data.remaining() / n);
+        int[] counts = new int[256];
+        int start = data.position();
+        for (int i = 0; i < n; i++) {
+            counts[data.get(start + i * step) & 0xff]++;
+        }
+
+        double bits = 0;
+        for (int count : counts) {
+            if (count > 0) {
+                double p = (double) count / n;
+                bits -= p * Math.log(p);
+            }
+        }
+        return bits / Math.log(2);
+    }
+
+    // ============================================
+    // STATS
+    // ============================================
+
+    /**
+     * Thống kê 1 lần gửi / nhận
+     */
+    static final class Stats {
+        private final String label;
+        private long rawBytes;
+        private long wireBytes;
+        private int chunks;
+        private int deflated;
+        private long cpuNanos;
+
+        Stats(String label) {
+            this.label = label;
+        }
+
+        void add(int raw, int wire, boolean compressed, long cpu) {
+            rawBytes += raw;
+            wireBytes += wire;
+            chunks++;
+            if (compressed) deflated++;
+            cpuNanos += cpu;
+        }
+
+        /**
+         * Bytes gốc / bytes trên đường truyền
+         */
+        double ratio() {
+            return wireBytes == 0 ? 1 : (double) rawBytes / wireBytes;
+        }
+
+        long getRawBytes() {
+            return rawBytes;
+        }
+
+        long getWireBytes() {
+            return wireBytes;
+        }
+
+        long getCpuNanos() {
+            return cpuNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %d → %d bytes (%.2fx), %d/%d chunks deflated, CPU %.1f ms",
+                                 label, rawBytes, wireBytes, ratio(), deflated, chunks, cpuNanos / 1e6);
+        }
+    }
+
+    // ============================================
+    // ENCODE
+    // ============================================
+
+    /**
+     * Mã hoá 1 đoạn file thành các chunk (dùng cho cả engine blocking và NIO)
+     *
+     * <pre>
+     * ByteBuffer mode = encoder.start();     // gửi trước
+     * if (encoder.isRaw()) → gửi đoạn file bằng transferTo như cũ
+     * else while ((buf = encoder.next()) != null) → ghi hết buf
+     * </pre>
+     */
+    static final class Encoder implements Closeable {
+
+        private final FileChannel file;
+        private final Stats stats;
+
+        // Chỉ cấp khi gửi dạng chunk (chế độ raw không cần)
+        private Deflater deflater;
+        private ByteBuffer raw;
+        private ByteBuffer wire;
+        private byte[] deflateOut;
+
+        private long position;
+        private long remaining;
+        private boolean rawMode;
+        private int skip;
+        private int backoff = 1;
+
+        /**
+         * @param file Channel đọc file (Encoder đóng khi close)
+         */
+        Encoder(FileChannel file, long offset, long length, String label) {
+            this.file = file;
+            this.position = offset;
+            this.remaining = length;
+            this.stats = new Stats(label);
+        }
+
+        /**
+         * Chọn chế độ cho cả đoạn, trả về byte chế độ cần gửi ngay sau header FILE_DATA
+         */
+        ByteBuffer start() throws IOException {
+            rawMode = looksCompressed();
+            ByteBuffer mode = ByteBuffer.allocate(1);
+            mode.put((byte) (rawMode ? MODE_RAW : MODE_CHUNKED));
+            mode.flip();
+            return mode;
+        }
+
+        boolean isRaw() {
+            return rawMode;
+        }
+
+        /**
+         * Chunk tiếp theo (header + dữ liệu), null khi đã hết đoạn
+         * Buffer trả về được dùng lại: chỉ gọi tiếp khi đã ghi hết
+         */
+        ByteBuffer next() throws IOException {
+            if (wire != null && wire.hasRemaining()) return wire;
+            if (remaining == 0) return null;
+
+            if (wire == null) {
+                deflater = new Deflater(LEVEL);
+                raw = ByteBuffer.allocate(CHUNK_SIZE);
+                wire = ByteBuffer.allocate(MAX_CHUNK_HEADER + CHUNK_SIZE);
+                deflateOut = new byte[CHUNK_SIZE];
+            }
+
+            long cpuStart = THREADS.getCurrentThreadCpuTime();
+
+            raw.clear();
+            raw.limit((int) Math.min(CHUNK_SIZE, remaining));
+            while (raw.hasRemaining()) {
+                int n = file.read(raw, position + raw.position());
+                if (n == -1) {
+                    throw new EOFException("File truncated at " + (position + raw.position()) + " bytes");
+                }
+            }
+            raw.flip();
+            int rawLen = raw.remaining();
+
+            int zLen = tryDeflate();
+            wire.clear();
+            if (zLen > 0) {
+                wire.put((byte) CHUNK_DEFLATE);
+                FrameCodec.putVarLong(wire, rawLen);
+                FrameCodec.putVarLong(wire, zLen);
+                wire.put(deflateOut, 0, zLen);
+            } else {
+                wire.put((byte) CHUNK_STORED);
+                FrameCodec.putVarLong(wire, rawLen);
+                wire.put(raw);
+            }
+            wire.flip();
+
+            position += rawLen;
+            remaining -= rawLen;
+            stats.add(rawLen, wire.remaining(), zLen > 0, THREADS.getCurrentThreadCpuTime() - cpuStart);
+            return wire;
+        }
+
+        Stats getStats() {
+            return stats;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (deflater != null) {
+                deflater.end();
+            }
+            file.close();
+        }
+
+        /**
+         * Nén chunk trong raw, trả về số byte nén (0 = không đáng nén, gửi thô)
+         */
+        private int tryDeflate() {
+            // Entropy cao → chắc chắn không nén được, không tốn CPU thử
+            if (entropy(raw) > MAX_ENTROPY) return 0;
+
+            if (skip > 0) {
+                skip--;
+                return 0;
+            }
+
+            int rawLen = raw.remaining();
+            deflater.reset();
+            deflater.setInput(raw.array(), raw.arrayOffset() + raw.position(), rawLen);
+            deflater.finish();
+
+            // Không vừa limit → không đáng nén
+            int zLen = deflater.deflate(deflateOut, 0, rawLen - rawLen / MIN_SAVING_DIVISOR);
+            if (deflater.finished()) {
+                backoff = 1;
+                return zLen;
+            }
+
+            // Entropy thấp mà vẫn nén không được → thưa dần số lần thử
+            skip = backoff;
+            backoff = Math.min(backoff * 2, MAX_BACKOFF);
+            return 0;
+        }
+
+        /**
+         * Lấy mẫu đầu / giữa / cuối đoạn, tất cả entropy cao → gửi thô cả đoạn
+         */
+        private boolean looksCompressed() throws IOException {
+            if (remaining == 0) return true;
+
+            ByteBuffer sample = ByteBuffer.allocate(SAMPLE_SIZE);
+            long span = Math.max(0, remaining - SAMPLE_SIZE);
+            for (long at : new long[] { 0, span / 2, span }) {
+                sample.clear();
+                sample.limit((int) Math.min(SAMPLE_SIZE, remaining));
+                // read() có thể trả thiếu → đọc đến khi đủ mẫu (hoặc hết file)
+                while (sample.hasRemaining()) {
+                    if (file.read(sample, position + at + sample.position()) <= 0) break;
+                }
+                sample.flip();
+                if (entropy(sample) <= MAX_ENTROPY) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    // ============================================
+    // DECODE
+    // ============================================
+
+    /**
+     * Client: đọc byte chế độ sau header FILE_DATA
+     *
+     * @return in (MODE_RAW), hoặc stream giải nén trả đúng length bytes gốc;
+     *         không đọc quá chunk cuối → kết nối vẫn dùng tiếp được
+     */
+    static InputStream decode(InputStream in, long length, String label) throws IOException {
+        int mode = in.read();
+        if (mode == MODE_RAW) {
+            return in;
+        }
+        if (mode != MODE_CHUNKED) {
+            throw new ProtocolException("Unknown transfer mode: " + mode);
+        }
+        return new ChunkInputStream(in, length, label);
+    }
+
+    /**
+     * Stream giải nén các chunk MODE_CHUNKED
+     */
+    private static final class ChunkInputStream extends InputStream {
+
+        private final InputStream in;
+        private final Inflater inflater = new Inflater();
+        private final byte[] chunk = new byte[CHUNK_SIZE];
+        private final byte[] compressed = new byte[CHUNK_SIZE];
+        private final Stats stats;
+
+        private long remaining;
+        private int pos;
+        private int limit;
+
+        ChunkInputStream(InputStream in, long length, String label) {
+            this.in = in;
+            this.remaining = length;
+            this.stats = new Stats(label);
+            if (length == 0) {
+                inflater.end();
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (pos == limit && !fill()) return -1;
+            return chunk[pos++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            if (pos == limit && !fill()) return -1;
+
+            int n = Math.min(len, limit - pos);
+            System.arraycopy(chunk, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return limit - pos;
+        }
+
+        /**
+         * Không đóng stream của kết nối, chỉ giải phóng Inflater
+         */
+        @Override
+        public void close() {
+            inflater.end();
+        }
+
+        /**
+         * Đọc + giải nén chunk tiếp theo
+         *
+         * @return false nếu đã nhận đủ length bytes
+         */
+        private boolean fill() throws IOException {
+            if (remaining == 0) return false;
+
+            int flag = in.read();
+            if (flag == -1) throw new EOFException("Connection closed in compressed data");
+
+            int rawLen = checkLength(FrameCodec.readVarLong(in), Math.min(CHUNK_SIZE, remaining));
+            int wireLen;
+            long cpu = 0;
+
+            if (flag == CHUNK_STORED) {
+                readFully(chunk, rawLen);
+                wireLen = rawLen;
+            } else if (flag == CHUNK_DEFLATE) {
+                wireLen = checkLength(FrameCodec.readVarLong(in), CHUNK_SIZE);
+                readFully(compressed, wireLen);
+
+                long cpuStart = THREADS.getCurrentThreadCpuTime();
+                inflater.reset();
+                inflater.setInput(compressed, 0, wireLen);
+                try {
+                    if (inflater.inflate(chunk, 0, rawLen) != rawLen || !inflater.finished()) {
+                        throw new ProtocolException("Compressed chunk size mismatch");
+                    }
+                } catch (DataFormatException e) {
+                    throw new ProtocolException("Corrupt compressed chunk: " + e.getMessage());
+                }
+                cpu = THREADS.getCurrentThreadCpuTime() - cpuStart;
+            } else {
+                throw new ProtocolException("Unknown chunk type: " + flag);
+            }
+
+            pos = 0;
+            limit = rawLen;
+            remaining -= rawLen;
+
+            // Tính cả header chunk như bên gửi
+            int header = 1 + FrameCodec.varLongSize(rawLen) + (flag == CHUNK_DEFLATE ? FrameCodec.varLongSize(wireLen) : 0);
+            stats.add(rawLen, header + wireLen, flag == CHUNK_DEFLATE, cpu);
+
+            if (remaining == 0) {
+                inflater.end();
+                System.out.println("   🗜️  Received " + stats);
+            }
+            return true;
+        }
+
+        private void readFully(byte[] buffer, int length) throws IOException {
+            int read = 0;
+            while (read < length) {
+                int n = in.read(buffer, read, length - read);
+                if (n == -1) throw new EOFException("Connection closed in compressed data");
+                read += n;
+            }
+        }
+
+        private static int checkLength(long length, long max) throws ProtocolException {
+            if (length <= 0 || length > max) {
+                throw new ProtocolException("Invalid chunk length: " + length);
+            }
+            return (int) length;
+        }
+    }
+}
@@ -0,0 +1,242 @@
+package com.p2papp.filesharing.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * BlobStore.java - Lưu nội dung file theo SHA-256 (content-addressed), mỗi nội dung 1 bản
+ *
+ * Trước đây mỗi user có 1 bản copy riêng trong storage/user_N → cùng 1 file
+ * do 5 user chia sẻ nằm trên disk 5 lần.
+ * Giờ:
+ * - Nội dung nằm ở storage/blobs/ab/cd/abcd...(64 hex) - chia 2 cấp thư mục
+ *   theo 4 ký tự đầu để không thư mục nào có quá nhiều file
+ * - Dòng trong bảng files chỉ là tham chiếu: (user, tên hiển thị) → file_path = đường dẫn blob
+ * - Số tham chiếu của mỗi blob nằm trong bảng blobs (BlobDAO), tăng / giảm theo
+ *   FileDAO.addFile / deleteFile; blob không còn ai tham chiếu bị BlobDAO.collectGarbage xóa
+ *
+ * Blob không bao giờ bị sửa tại chỗ: tên = hash của nội dung.
+ *
+ * Thư mục gốc: -Dp2p.blob.dir=... (mặc định storage/blobs)
+ */
+public final class BlobStore {
+
+    public static final String DEFAULT_ROOT = System.getProperty("p2p.blob.dir", "storage/blobs");
+
+    private static final BlobStore SHARED = new BlobStore(new File(DEFAULT_ROOT));
+
+    /**
+     * File tạm của FileIngest (cùng filesystem với blob → move atomic)
+     */
+    private static final String TEMP_DIR = "tmp";
+
+    private final File root;
+
+    public BlobStore(File root) {
+        this.root = root.getAbsoluteFile();
+    }
+
+    /**
+     * Store dùng chung của app (upload, PeerServer, GC)
+     */
+    public static BlobStore getShared() {
+        return SHARED;
+    }
+
+    public File getRoot() {
+        return root;
+    }
+
+    // ============================================
+    // PATHS
+    // ============================================
+
+    /**
+     * Hash SHA-256 dạng 64 ký tự hex thường
+     */
+    public static boolean isValidHash(String hash) {
+        if (hash == null || hash.length() != 64) return false;
+        for (int i = 0; i < hash.length(); i++) {
+            char c = hash.charAt(i);
+            if (!((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f'))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Đường dẫn blob của hash (file có thể chưa tồn tại)
+     *
+     * VD: "9f86d0..." → storage/blobs/9f/86/9f86d0...
+     */
+    public File blobFile(String hash) {
+        if (!isValidHash(hash)) {
+            throw new IllegalArgumentException("Invalid SHA-256 hash: " + hash);
+        }
+        return new File(new File(new File(root, hash.substring(0, 2)), hash.substring(2, 4)), hash);
+    }
+
+    /**
+     * Có blob của hash này trên disk không
+     */
+    public boolean contains(String hash) {
+        return isValidHash(hash) && blobFile(hash).isFile();
+    }
+
+    /**
+     * File có phải 1 blob trong store này không (so đường dẫn, không đọc nội dung)
+     */
+    public boolean isBlob(File file) {
+        if (file == null) return false;
+        String hash = file.getName();
+        return isValidHash(hash) && blobFile(hash).equals(file.getAbsoluteFile());
+    }
+
+    // ============================================
+    // WRITE
+    // ============================================
+
+    /**
+     * Copy file nguồn vào thư mục tạm của store, hash trong lúc copy
+     * Sau đó gọi store(ingest) để đưa vào đúng chỗ
+     */
+    public FileIngest ingest(File source) throws IOException {
+        return FileIngest.copy(source, new File(root, TEMP_DIR));
+    }
+
+    /**
+     * Đưa nội dung vừa ingest vào blob của nó
+     *
+     * Blob đã có (cùng size) → giữ bản cũ, file tạm bị xóa khi đóng ingest.
+     * Cập nhật mtime của blob → GC không xóa blob vừa được dùng lại
+     * (trong lúc dòng files mới chưa kịp ghi vào DB).
+     *
+     * @return File blob
+     */
+    public File store(FileIngest ingest) throws IOException {
+        HashUtil.FileDigest digest = ingest.getDigest();
+        File blob = blobFile(digest.getFileHash());
+
+        if (blob.isFile() && blob.length() == digest.getSize()) {
+            blob.setLastModified(System.currentTimeMillis());
+            System.out.println("♻️  Blob already stored: " + digest.getFileHash());
+        } else {
+            Files.createDirectories(blob.getParentFile().toPath());
+            ingest.commit(blob);
+        }
+
+        // Nội dung vừa hash lúc copy → lần kiểm tra sau không phải đọc lại
+        HashCache.getShared().record(blob, digest.getFileHash());
+        return blob;
+    }
+
+    /**
+     * Đưa 1 file đã có sẵn trên disk (bản copy cũ trong storage/user_N) vào store
+     * Caller phải chắc hash đúng với nội dung file
+     *
+     * Blob đã có → xóa bản cũ; chưa có → move file vào blob.
+     *
+     * @return File blob
+     */
+    public File adopt(File existing, String hash) throws IOException {
+        File blob = blobFile(hash);
+
+        if (blob.isFile() && blob.length() == existing.length()) {
+            Files.delete(existing.toPath());
+            blob.setLastModified(System.currentTimeMillis());
+        } else {
+            Files.createDirectories(blob.getParentFile().toPath());
+            try {
+                Files.move(existing.toPath(), blob.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(existing.toPath(), blob.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+
+        HashCache.getShared().forget(existing);
+        HashCache.getShared().record(blob, hash);
+        return blob;
+    }
+
+    /**
+     * Xóa blob (+ thư mục shard nếu rỗng)
+     *
+     * @return true nếu đã xóa
+     */
+    public boolean delete(String hash) throws IOException {
+        File blob = blobFile(hash);
+        boolean deleted = Files.deleteIfExists(blob.toPath());
+        HashCache.getShared().forget(blob);
+
+        // Thư mục shard rỗng thì bỏ luôn (không rỗng → delete() trả false, bỏ qua)
+        File shard = blob.getParentFile();
+        if (shard.delete()) {
+            shard.getParentFile().delete();
+        }
+        return deleted;
+    }
+
+    // ============================================
+    // SCAN
+    // ============================================
+
+    /**
+     * Tất cả hash đang có blob trên disk (bỏ qua file lạ trong store)
+     */
+    public List<String> listHashes() {
+        List<String> hashes = new ArrayList<>();
+
+        File[] level1 = root.listFiles(f -> f.isDirectory() && f.getName().length() == 2);
+        if (level1 == null) return hashes;
+
+        for (File dir1 : level1) {
+            File[] level2 = dir1.listFiles(f -> f.isDirectory() && f.getName().length() == 2);
+            if (level2 == null) continue;
+
+            for (File dir2 : level2) {
+                String[] names = dir2.list();
+                if (names == null) continue;
+
+                String prefix = dir1.getName() + dir2.getName();
+                for (String name : names) {
+                    if (isValidHash(name) && name.startsWith(prefix)) {
+                        hashes.add(name);
+                    }
+                }
+            }
+        }
+        return hashes;
+    }
+
+    /**
+     * Xóa file tạm của các lần ingest bị bỏ dở (app tắt giữa chừng)
+     *
+     * @param olderThanMs Chỉ xóa file cũ hơn khoảng này (ingest đang chạy không bị xóa)
+     * @return Số file đã xóa
+     */
+    public int cleanTemp(long olderThanMs) {
+        File[] parts = new File(root, TEMP_DIR).listFiles((dir, name) -> name.startsWith(".ingest-"));
+        if (parts == null) return 0;
+
+        long cutoff = System.currentTimeMillis() - olderThanMs;
+        int deleted = 0;
+        for (File part : parts) {
+            Path path = part.toPath();
+            try {
+                if (part.lastModified() < cutoff && Files.deleteIfExists(path)) {
+                    deleted++;
+                }
+            } catch (IOException e) {
+                System.err.println("⚠️  Cannot delete temp file " + path + ": " + e.getMessage());
+            }
+        }
+        return deleted;
+    }
+}
@@ -0,0 +1,116 @@
+package com.p2papp.filesharing.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * FileIngest.java - Copy file vào storage, vừa copy vừa hash (1 lần đọc)
+ *
+ * Trước đây upload: Files.copy → đọc lại file để hash → nếu trùng thì bản copy bị bỏ lại trên disk.
+ * Giờ:
+ * - Copy vào file tạm (.ingest-*.part) trong chính thư mục đích,
+ *   mỗi đoạn đọc được vừa ghi ra vừa đưa qua HashUtil.StreamingDigest
+ * - Có hash rồi mới quyết định: commit() → move atomic vào đúng tên,
+ *   không commit (VD: file trùng) → close() xóa file tạm
+ *
+ * Dùng với try-with-resources:
+ * <pre>
+ * try (FileIngest ingest = FileIngest.copy(source, folder)) {
+ *     if (isDuplicate(ingest.getDigest().getFileHash())) return;
+ *     File saved = ingest.commit(new File(folder, name));
+ * }
+ * </pre>
+ */
+public final class FileIngest implements AutoCloseable {
+
+    /**
+     * Cửa sổ map file nguồn mỗi lần
+     */
+    private static final long MAP_WINDOW = 64L * 1024 * 1024;
+
+    private final Path tempFile;
+    private final HashUtil.FileDigest digest;
+    private boolean committed;
+
+    private FileIngest(Path tempFile, HashUtil.FileDigest digest) {
+        this.tempFile = tempFile;
+        this.digest = digest;
+    }
+
+    /**
+     * Copy source vào 1 file tạm trong targetDir, tính file hash + piece hash trong lúc copy
+     *
+     * @param source File nguồn
+     * @param targetDir Thư mục đích (file tạm nằm cùng filesystem → move được atomic)
+     */
+    public static FileIngest copy(File source, File targetDir) throws IOException {
+        Files.createDirectories(targetDir.toPath());
+        Path temp = Files.createTempFile(targetDir.toPath(), ".ingest-", ".part");
+
+        try (FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+
+            long size = in.size();
+            HashUtil.StreamingDigest hasher = new HashUtil.StreamingDigest(PieceManifest.choosePieceSize(size));
+
+            for (long position = 0; position < size; ) {
+                long window = Math.min(size - position, MAP_WINDOW);
+                MappedByteBuffer chunk = in.map(FileChannel.MapMode.READ_ONLY, position, window);
+
+                hasher.update(chunk.duplicate());
+                while (chunk.hasRemaining()) {
+                    out.write(chunk);
+                }
+                position += window;
+            }
+
+            // Dữ liệu phải xuống disk trước khi move → không có file đúng tên mà nội dung dở dang
+            out.force(true);
+            return new FileIngest(temp, hasher.finish());
+
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+    }
+
+    /**
+     * Hash cả file + manifest của nội dung đã copy
+     */
+    public HashUtil.FileDigest getDigest() {
+        return digest;
+    }
+
+    /**
+     * Move file tạm vào đúng tên (ghi đè nếu đã có)
+     *
+     * @return File đích
+     */
+    public File commit(File target) throws IOException {
+        Path dest = target.toPath();
+        try {
+            Files.move(tempFile, dest, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tempFile, dest, StandardCopyOption.REPLACE_EXISTING);
+        }
+        committed = true;
+        return target;
+    }
+
+    /**
+     * Chưa commit → xóa file tạm
+     */
+    @Override
+    public void close() throws IOException {
+        if (!committed) {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package com.p2papp.filesharing.utils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Random;
+import java.util.concurrent.Callable;
+
+/**
+ * HashBenchmark.java - Đo throughput hash file (GB/s)
+ *
+ * - legacy:    FileInputStream + buffer 8KB (hashFile cũ), rồi đọc lại file
+ *              để hash từng piece (PieceManifest.compute cũ) - cách upload làm trước đây
+ * - hashFile:  SHA-256 cả file qua MappedByteBuffer
+ * - pieces:    piece hash song song trên ForkJoinPool (Merkle root)
+ * - digest:    hashFile + pieces cùng lúc (HashUtil.digestFile, upload dùng cách này)
+ * - streaming: đọc file bằng buffer 1MB, đưa qua StreamingDigest
+ *
+ * Phần cuối: kiểm tra lại cả thư mục share sau khi khởi động lại (HashCache):
+ * lần đầu phải hash hết, lần sau (mở lại cache từ file log) chỉ stat từng file.
+ *
+ * File nằm sẵn trong page cache (vừa ghi xong) → đo tốc độ hash, không đo disk.
+ * Mỗi cách chạy vài lần, lấy lần nhanh nhất.
+ *
+ * Cách chạy:
+ * mvn compile exec:java -Dexec.mainClass="com.p2papp.filesharing.utils.HashBenchmark" -Dexec.args="64m 1g"
+ */
+public class HashBenchmark {
+
+    private static final int ROUNDS = 3;
+
+    public static void main(String[] args) throws Exception {
+        String[] sizes = args.length > 0 ? args : new String[] { "64m", "1g" };
+
+        System.out.println("╔════════════════════════════════════════╗");
+        System.out.println("║   FILE HASHING BENCHMARK               ║");
+        System.out.println("╚════════════════════════════════════════╝\n");
+        System.out.println("CPU cores: " + Runtime.getRuntime().availableProcessors() +
+                           ", ForkJoinPool parallelism: " + java.util.concurrent.ForkJoinPool.getCommonPoolParallelism() + "\n");
+
+        for (String size : sizes) {
+            long bytes = parseSize(size);
+            File file = createTestFile(bytes);
+
+            try {
+                int pieceSize = PieceManifest.choosePieceSize(bytes);
+                String[] expected = legacy(file, pieceSize);
+
+                System.out.println("Size: " + size + " (" + bytes + " bytes, piece " + (pieceSize >> 10) + " KB)");
+                report("legacy", bytes, () -> legacy(file, pieceSize));
+                report("hashFile", bytes, () -> HashUtil.hashFile(file));
+                report("pieces", bytes, () -> HashUtil.hashPieces(file, pieceSize));
+                report("digest", bytes, () -> HashUtil.digestFile(file, pieceSize));
+                report("streaming", bytes, () -> streaming(file, pieceSize));
+
+                HashUtil.FileDigest digest = HashUtil.digestFile(file, pieceSize);
+                HashUtil.FileDigest streamed = streaming(file, pieceSize);
+                boolean same = digest.getFileHash().equals(expected[0])
+                               && digest.getManifest().getMerkleRoot().equals(expected[1])
+                               && streamed.getFileHash().equals(expected[0])
+                               && streamed.getManifest().getMerkleRoot().equals(expected[1]);
+                System.out.println("   Same hash + Merkle root as legacy: " + (same ? "✅" : "❌"));
+                System.out.println();
+            } finally {
+                file.delete();
+            }
+        }
+
+        benchmarkRescan(64, 16L * 1024 * 1024);
+    }
+
+    // ============================================
+    // RESCAN (HashCache)
+    // ============================================
+
+    private static void benchmarkRescan(int count, long fileSize) throws IOException {
+        File dir = java.nio.file.Files.createTempDirectory("hashrescan").toFile();
+        File log = new File(dir, "hash-cache.log");
+        File[] files = new File[count];
+        String[] expected = new String[count];
+
+        try {
+            for (int i = 0; i < count; i++) {
+                files[i] = createTestFile(fileSize);
+                // mtime cũ hơn cửa sổ "racy" → được ghi vào cache
+                files[i].setLastModified(System.currentTimeMillis() - 60_000);
+                expected[i] = HashUtil.hashFile(files[i]);
+            }
+
+            long total = count * fileSize;
+            System.out.println("Rescan: " + count + " files x " + (fileSize >> 20) + " MB");
+
+            long start = System.nanoTime();
+            HashCache cold = new HashCache(log);
+            boolean ok = verifyAll(cold, files, expected);
+            cold.close();
+            long coldNanos = System.nanoTime() - start;
+
+            // "Khởi động lại": mở cache mới từ file log
+            start = System.nanoTime();
+            HashCache warm = new HashCache(log);
+            ok &= verifyAll(warm, files, expected);
+            warm.close();
+            long warmNanos = System.nanoTime() - start;
+
+            System.out.printf("   %-10s: %9.1f ms  %6.2f GB/s%n", "no cache", coldNanos / 1e6, total / (double) coldNanos);
+            System.out.printf("   %-10s: %9.1f ms  %6.2f GB/s (effective)%n", "cached", warmNanos / 1e6, total / (double) warmNanos);
+            System.out.println("   All hashes verified: " + (ok ? "✅" : "❌"));
+        } finally {
+            for (File f : files) {
+                if (f != null) f.delete();
+            }
+            log.delete();
+            dir.delete();
+        }
+    }
+
+    private static boolean verifyAll(HashCache cache, File[] files, String[] expected) {
+        boolean ok = true;
+        for (int i = 0; i < files.length; i++) {
+            ok &= cache.verify(files[i], expected[i]);
+        }
+        return ok;
+    }
+
+    private static void report(String name, long bytes, Callable<?> action) throws Exception {
+        action.call(); // warm-up
+
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < ROUNDS; i++) {
+            long start = System.nanoTime();
+            action.call();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        System.out.printf("   %-10s: %7.1f ms  %6.2f GB/s%n", name, best / 1e6, bytes / (double) best);
+    }
+
+    // ============================================
+    // BASELINE / STREAMING
+    // ============================================
+
+    /**
+     * Cách cũ: hash cả file bằng buffer 8KB, rồi đọc lại từng piece
+     *
+     * @return [file hash, Merkle root]
+     */
+    private static String[] legacy(File file, int pieceSize) throws IOException {
+        MessageDigest md = PieceManifest.newDigest();
+        try (FileInputStream fis = new FileInputStream(file)) {
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = fis.read(buffer)) != -1) {
+                md.update(buffer, 0, n);
+            }
+        }
+        String fileHash = HashUtil.bytesToHex(md.digest());
+
+        long total = file.length();
+        byte[][] hashes = new byte[PieceManifest.pieceCount(total, pieceSize)][];
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            byte[] buffer = new byte[(int) Math.min(pieceSize, Math.max(1, total))];
+            for (int i = 0; i < hashes.length; i++) {
+                int length = PieceManifest.pieceLength(total, pieceSize, i);
+                raf.readFully(buffer, 0, length);
+                md.update(buffer, 0, length);
+                hashes[i] = md.digest();
+            }
+        }
+        return new String[] { fileHash, PieceManifest.of(pieceSize, total, hashes).getMerkleRoot() };
+    }
+
+    private static HashUtil.FileDigest streaming(File file, int pieceSize) throws IOException {
+        HashUtil.StreamingDigest digest = new HashUtil.StreamingDigest(pieceSize);
+        try (FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(1024 * 1024);
+            while (fc.read(buffer) != -1) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+        return digest.finish();
+    }
+
+    // ============================================
+    // HELPER METHODS
+    // ============================================
+
+    private static File createTestFile(long bytes) throws IOException {
+        File file = File.createTempFile("hashbench", ".bin");
+        file.deleteOnExit();
+
+        byte[] chunk = new byte[1024 * 1024];
+        new Random(42).nextBytes(chunk);
+        try (FileOutputStream fos = new FileOutputStream(file)) {
+            for (long written = 0; written < bytes; written += chunk.length) {
+                fos.write(chunk, 0, (int) Math.min(chunk.length, bytes - written));
+            }
+        }
+        return file;
+    }
+
+    /**
+     * "64m" → 64 * 1024 * 1024
+     */
+    private static long parseSize(String size) {
+        String s = size.trim().toLowerCase();
+        long unit = 1;
+        if (s.endsWith("k")) unit = 1024L;
+        if (s.endsWith("m")) unit = 1024L * 1024;
+        if (s.endsWith("g")) unit = 1024L * 1024 * 1024;
+        if (unit > 1) s = s.substring(0, s.length() - 1);
+        return Long.parseLong(s) * unit;
+    }
+}
@@ -0,0 +1,342 @@
+package com.p2papp.filesharing.utils;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * HashCache.java - Cache SHA-256 của file trên disk, lưu qua các lần chạy
+ *
+ * Kiểm tra lại file đang chia sẻ (lúc start, trước khi phục vụ, compact blob)
+ * trước đây phải hashFile() lại toàn bộ → share 2 TB mất hàng giờ sau mỗi lần khởi động.
+ *
+ * Giờ mỗi lần hash xong ghi 1 dòng vào file log (chỉ append):
+ *   hash \t size \t mtime (ns) \t inode \t canonical path
+ * Lần sau (path, size, mtime, inode) không đổi → dùng lại hash, chỉ tốn 1 lần stat.
+ * Đổi bất kỳ thứ gì (ghi đè, touch, thay file khác cùng tên) → hash lại.
+ *
+ * - Lúc mở: đọc cả log, dòng sau đè dòng trước cùng path; dòng "-" = đã xóa
+ * - Dòng cuối dở dang (app tắt khi đang ghi) bị bỏ qua
+ * - Log nhiều dòng thừa hơn dòng còn dùng → ghi lại file mới (move atomic)
+ * - File có mtime quá gần lúc hash (RACY_WINDOW_MS) không được ghi:
+ *   có thể vừa bị sửa trong cùng 1 tick mtime mà key không đổi
+ *
+ * File log: -Dp2p.hashcache.file=... (mặc định storage/hash-cache.log)
+ */
+public final class HashCache {
+
+    public static final String DEFAULT_FILE = System.getProperty("p2p.hashcache.file", "storage/hash-cache.log");
+
+    private static volatile HashCache shared;
+
+    /**
+     * mtime trong khoảng này trước lúc hash → không cache (độ phân giải mtime của FAT là 2 giây)
+     */
+    private static final long RACY_WINDOW_MS = 2000;
+
+    /**
+     * Ghi lại log khi số dòng thừa vượt số này và vượt số dòng còn dùng
+     */
+    private static final int COMPACT_MIN_GARBAGE = 1024;
+
+    private static final String DELETED = "-";
+
+    private final Path logFile;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    private Writer writer;
+
+    /**
+     * 1 file đã hash: key (size, mtime, inode) + hash
+     */
+    private static final class Entry {
+        final String hash;
+        final long size;
+        final long mtimeNanos;
+        final String inode;
+
+        Entry(String hash, long size, long mtimeNanos, String inode) {
+            this.hash = hash;
+            this.size = size;
+            this.mtimeNanos = mtimeNanos;
+            this.inode = inode;
+        }
+
+        boolean sameKey(Entry other) {
+            return other != null && size == other.size && mtimeNanos == other.mtimeNanos
+                   && Objects.equals(inode, other.inode);
+        }
+    }
+
+    /**
+     * Mở cache (đọc log nếu đã có)
+     */
+    public HashCache(File logFile) {
+        this.logFile = logFile.getAbsoluteFile().toPath();
+        load();
+    }
+
+    /**
+     * Cache dùng chung của app (mở lần đầu khi cần)
+     */
+    public static HashCache getShared() {
+        HashCache cache = shared;
+        if (cache == null) {
+            synchronized (HashCache.class) {
+                cache = shared;
+                if (cache == null) {
+                    shared = cache = new HashCache(new File(DEFAULT_FILE));
+                }
+            }
+        }
+        return cache;
+    }
+
+    // ============================================
+    // LOOKUP / HASH
+    // ============================================
+
+    /**
+     * SHA-256 của file: lấy từ cache nếu file không đổi, không thì hash lại và ghi vào cache
+     */
+    public String hash(File file) throws IOException {
+        String path = file.getCanonicalPath();
+        Entry before = stat(file.toPath());
+        if (before == null) {
+            throw new NoSuchFileException(path);
+        }
+
+        Entry cached = entries.get(path);
+        if (before.sameKey(cached)) {
+            return cached.hash;
+        }
+
+        long start = System.currentTimeMillis();
+        String hash = HashUtil.hashFile(file);
+
+        // File bị sửa trong lúc hash / mtime quá mới → không tin được key, không ghi
+        Entry after = stat(file.toPath());
+        if (before.sameKey(after) && TimeUnit.NANOSECONDS.toMillis(before.mtimeNanos) < start - RACY_WINDOW_MS) {
+            put(path, new Entry(hash, before.size, before.mtimeNanos, before.inode));
+        }
+        return hash;
+    }
+
+    /**
+     * File có đúng hash mong đợi không (hash lại chỉ khi file đã đổi từ lần hash trước)
+     */
+    public boolean verify(File file, String expectedHash) {
+        try {
+            return hash(file).equalsIgnoreCase(expectedHash);
+        } catch (IOException | RuntimeException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Hash đã cache nếu file vẫn y như lúc hash, null nếu chưa hash / đã đổi
+     * Chỉ tốn 1 lần stat (dùng được trước mỗi lần gửi file)
+     */
+    public String lookup(File file) {
+        try {
+            Entry cached = entries.get(file.getCanonicalPath());
+            return cached != null && cached.sameKey(stat(file.toPath())) ? cached.hash : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Ghi hash của file mà caller đã biết chắc (VD: blob vừa ghi xong từ dữ liệu đã hash)
+     */
+    public void record(File file, String hash) {
+        try {
+            Entry now = stat(file.toPath());
+            if (now != null) {
+                put(file.getCanonicalPath(), new Entry(hash, now.size, now.mtimeNanos, now.inode));
+            }
+        } catch (IOException e) {
+            System.err.println("⚠️  Hash cache record error: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Bỏ file khỏi cache (file đã bị xóa)
+     */
+    public void forget(File file) {
+        try {
+            String path = file.getCanonicalPath();
+            if (entries.remove(path) != null) {
+                append(DELETED + "\t0\t0\t" + DELETED + "\t" + path);
+            }
+        } catch (IOException e) {
+            System.err.println("⚠️  Hash cache forget error: " + e.getMessage());
+        }
+    }
+
+    /**
+     * File đã từng được hash nhưng (size, mtime, inode) đã khác → nội dung có thể đã đổi
+     * (chưa từng hash → false)
+     */
+    public boolean hasChanged(File file) {
+        try {
+            Entry cached = entries.get(file.getCanonicalPath());
+            return cached != null && !cached.sameKey(stat(file.toPath()));
+        } catch (IOException e) {
+            return true;
+        }
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Đóng file log (mở lại tự động khi ghi tiếp)
+     */
+    public synchronized void close() {
+        if (writer != null) {
+            try {
+                writer.close();
+            } catch (IOException ignored) {
+            }
+            writer = null;
+        }
+    }
+
+    // ============================================
+    // LOG FILE
+    // ============================================
+
+    private void put(String path, Entry entry) {
+        if (path.indexOf('\n') >= 0 || path.indexOf('\r') >= 0) return;   // không ghi được 1 dòng
+
+        Entry old = entries.put(path, entry);
+        if (old == null || !old.sameKey(entry) || !old.hash.equals(entry.hash)) {
+            append(entry.hash + "\t" + entry.size + "\t" + entry.mtimeNanos + "\t" + entry.inode + "\t" + path);
+        }
+    }
+
+    private synchronized void append(String line) {
+        try {
+            if (writer == null) {
+                Files.createDirectories(logFile.getParent());
+                boolean torn = !endsWithNewline(logFile);
+                writer = Files.newBufferedWriter(logFile, StandardCharsets.UTF_8,
+                                                 StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+                if (torn) {
+                    writer.write('\n');   // dòng cuối ghi dở → không dính vào dòng mới
+                }
+            }
+            writer.write(line);
+            writer.write('\n');
+            writer.flush();
+        } catch (IOException e) {
+            System.err.println("⚠️  Hash cache write error: " + e.getMessage());
+        }
+    }
+
+    private synchronized void load() {
+        if (!Files.isRegularFile(logFile)) return;
+
+        int lines = 0;
+        try (BufferedReader reader = Files.newBufferedReader(logFile, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines++;
+                String[] parts = line.split("\t", 5);
+                if (parts.length < 5) continue;
+
+                try {
+                    if (DELETED.equals(parts[0])) {
+                        entries.remove(parts[4]);
+                    } else if (parts[0].length() == 64) {
+                        entries.put(parts[4], new Entry(parts[0], Long.parseLong(parts[1]),
+                                                        Long.parseLong(parts[2]), parts[3]));
+                    }
+                } catch (NumberFormatException e) {
+                    // Dòng hỏng (ghi dở) → bỏ qua
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("⚠️  Hash cache read error: " + e.getMessage());
+        }
+
+        if (lines - entries.size() > Math.max(COMPACT_MIN_GARBAGE, entries.size())) {
+            rewrite();
+        }
+        System.out.println("🗂️  Hash cache: " + entries.size() + " files (" + logFile + ")");
+    }
+
+    /**
+     * Ghi lại log chỉ với các dòng còn dùng (file tạm + move atomic)
+     */
+    private void rewrite() {
+        Path temp = logFile.resolveSibling(logFile.getFileName() + ".tmp");
+        try {
+            try (BufferedWriter out = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                    Entry entry = e.getValue();
+                    out.write(entry.hash + "\t" + entry.size + "\t" + entry.mtimeNanos + "\t" + entry.inode + "\t" + e.getKey());
+                    out.write('\n');
+                }
+            }
+            try {
+                Files.move(temp, logFile, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, logFile, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            System.err.println("⚠️  Hash cache compaction error: " + e.getMessage());
+        }
+    }
+
+    // ============================================
+    // HELPER METHODS
+    // ============================================
+
+    private static boolean endsWithNewline(Path path) throws IOException {
+        if (!Files.isRegularFile(path)) return true;
+
+        try (FileChannel fc = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (fc.size() == 0) return true;
+            ByteBuffer last = ByteBuffer.allocate(1);
+            fc.read(last, fc.size() - 1);
+            return last.get(0) == '\n';
+        }
+    }
+
+    /**
+     * Key hiện tại của file (hash = null), null nếu không còn file
+     * inode lấy từ fileKey() ("(dev=..,ino=..)" trên Linux/macOS, "-" nếu hệ điều hành không có)
+     */
+    private static Entry stat(Path path) throws IOException {
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        if (!attrs.isRegularFile()) return null;
+
+        Object key = attrs.fileKey();
+        return new Entry(null, attrs.size(), attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS),
+                         key != null ? key.toString().replace('\t', ' ') : DELETED);
+    }
+}
@@ -5,10 +5,21 @@
 package com.p2papp.filesharing.utils;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.Semaphore;
 
 /**
  * HashUtil.java - Tiện ích mã hóa
@@ -16,9 +27,25 @@ import java.security.NoSuchAlgorithmException;
  * Sử dụng SHA-256 để:
  * - Hash password
  * - Hash file (kiểm tra tính toàn vẹn)
+ * 
+ * Hash file:
+ * - Đọc qua MappedByteBuffer từng cửa sổ 64MB (không copy qua buffer 8KB, không syscall read)
+ * - Hash cả file (file_hash) là tuần tự; hash từng piece (PieceManifest / Merkle root)
+ *   chạy song song trên ForkJoinPool, cùng lúc với hash cả file (digestFile)
+ * - StreamingDigest: hash dần khi dữ liệu đi qua (VD: vừa copy vừa hash), không đọc lại file
  */
 public class HashUtil {
     
+    /**
+     * Cửa sổ map tối đa mỗi lần
+     */
+    private static final long MAP_WINDOW = 64L * 1024 * 1024;
+    
+    /**
+     * Mỗi task song song hash ít nhất ngần này byte (piece nhỏ được gộp chung 1 task)
+     */
+    private static final long MIN_TASK_BYTES = 8L * 1024 * 1024;
+    
     // ============================================
     // PASSWORD HASHING
     // ============================================
@@ -81,29 +108,266 @@ public class HashUtil {
      * - Verify file sau khi download
      */
     public static String hashFile(File file) {
-        try {
-            MessageDigest md = MessageDigest.getInstance("SHA-256");
+        try (FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            MessageDigest md = PieceManifest.newDigest();
+            digestRange(fc, 0, fc.size(), md);
+            return bytesToHex(md.digest());
+            
+        } catch (IOException e) {
+            throw new RuntimeException("Error reading file", e);
+        }
+    }
+    
+    /**
+     * Hash cả file + manifest từng piece trong 1 lần gọi
+     * 
+     * Piece hash chạy song song trên ForkJoinPool trong khi thread gọi hash cả file
+     * → thời gian ≈ hash tuần tự 1 lần, thay vì đọc + hash file 2 lần.
+     */
+    public static FileDigest digestFile(File file) {
+        return digestFile(file, PieceManifest.choosePieceSize(file.length()));
+    }
+    
+    public static FileDigest digestFile(File file, int pieceSize) {
+        ForkJoinTask<PieceManifest> pieces = ForkJoinPool.commonPool().submit(() -> hashPieces(file, pieceSize));
+        String fileHash = hashFile(file);
+        return new FileDigest(fileHash, pieces.join());
+    }
+    
+    /**
+     * Hash từng piece song song (mỗi task map 1 đoạn file, hash các piece trong đoạn đó)
+     */
+    static PieceManifest hashPieces(File file, int pieceSize) {
+        try (FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long total = fc.size();
+            byte[][] hashes = new byte[PieceManifest.pieceCount(total, pieceSize)][];
             
-            // Đọc file theo chunk để tiết kiệm RAM
-            try (FileInputStream fis = new FileInputStream(file)) {
-                byte[] buffer = new byte[8192]; // 8KB buffer
-                int bytesRead;
+            try {
+                ForkJoinPool.commonPool().invoke(new PieceTask(fc, total, pieceSize, hashes, 0, hashes.length));
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            return PieceManifest.of(pieceSize, total, hashes);
+            
+        } catch (IOException e) {
+            throw new RuntimeException("Error reading file", e);
+        }
+    }
+    
+    /**
+     * Hash đoạn [position, position + length) của file (map từng cửa sổ)
+     */
+    private static void digestRange(FileChannel fc, long position, long length, MessageDigest md) throws IOException {
+        while (length > 0) {
+            long window = Math.min(length, MAP_WINDOW);
+            md.update(fc.map(FileChannel.MapMode.READ_ONLY, position, window));
+            position += window;
+            length -= window;
+        }
+    }
+    
+    /**
+     * Hash các piece [from, to): chia đôi đến khi đủ nhỏ
+     */
+    private static class PieceTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        
+        private final FileChannel fc;
+        private final long total;
+        private final int pieceSize;
+        private final byte[][] hashes;
+        private final int from;
+        private final int to;
+        
+        PieceTask(FileChannel fc, long total, int pieceSize, byte[][] hashes, int from, int to) {
+            this.fc = fc;
+            this.total = total;
+            this.pieceSize = pieceSize;
+            this.hashes = hashes;
+            this.from = from;
+            this.to = to;
+        }
+        
+        @Override
+        protected void compute() {
+            if (to - from > 1 && (long) (to - from) * pieceSize > MIN_TASK_BYTES) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new PieceTask(fc, total, pieceSize, hashes, from, mid),
+                          new PieceTask(fc, total, pieceSize, hashes, mid, to));
+                return;
+            }
+            
+            try {
+                long start = (long) from * pieceSize;
+                long end = Math.min((long) to * pieceSize, total);
+                MappedByteBuffer region = fc.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+                MessageDigest md = PieceManifest.newDigest();
                 
-                // Đọc và hash từng chunk
-                while ((bytesRead = fis.read(buffer)) != -1) {
-                    md.update(buffer, 0, bytesRead);
+                for (int i = from; i < to; i++) {
+                    int offset = (int) ((long) (i - from) * pieceSize);
+                    ByteBuffer piece = region.duplicate();
+                    piece.position(offset).limit(offset + PieceManifest.pieceLength(total, pieceSize, i));
+                    md.update(piece);
+                    hashes[i] = md.digest();
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+    
+    // ============================================
+    // STREAMING
+    // ============================================
+    
+    /**
+     * Hash dần theo dữ liệu đi qua (VD: vừa copy vừa hash khi upload)
+     * 
+     * Thread gọi update() chỉ hash cả file; mỗi piece đủ dữ liệu được copy
+     * sang buffer riêng và hash trên ForkJoinPool. Số piece đang chờ có giới hạn
+     * (~64MB) → thread gọi chờ bớt nếu pool hash không kịp.
+     * 
+     * Không thread-safe: 1 stream chỉ do 1 thread cập nhật.
+     */
+    public static final class StreamingDigest {
+        
+        private static final long MAX_IN_FLIGHT_BYTES = 64L * 1024 * 1024;
+        
+        private final int pieceSize;
+        private final MessageDigest fileDigest = PieceManifest.newDigest();
+        private final List<ForkJoinTask<byte[]>> pieces = new ArrayList<>();
+        private final Queue<byte[]> freeBuffers = new ConcurrentLinkedQueue<>();
+        private final Semaphore inFlight;
+        
+        private byte[] current;
+        private int filled;
+        private long total;
+        
+        /**
+         * @param pieceSize Kích thước piece (VD: PieceManifest.choosePieceSize(kích thước dự kiến))
+         */
+        public StreamingDigest(int pieceSize) {
+            this.pieceSize = pieceSize;
+            int parallel = ForkJoinPool.getCommonPoolParallelism();
+            this.inFlight = new Semaphore((int) Math.max(1, Math.min(2L * parallel, MAX_IN_FLIGHT_BYTES / pieceSize)));
+        }
+        
+        public void update(byte[] data, int off, int len) {
+            fileDigest.update(data, off, len);
+            total += len;
+            
+            while (len > 0) {
+                int n = Math.min(len, pieceSize - ensureCurrent());
+                System.arraycopy(data, off, current, filled, n);
+                filled += n;
+                off += n;
+                len -= n;
+                if (filled == pieceSize) {
+                    submitPiece();
                 }
             }
+        }
+        
+        /**
+         * Hash phần còn lại của buffer (position → limit), position tiến đến limit
+         */
+        public void update(ByteBuffer data) {
+            fileDigest.update(data.duplicate());
+            total += data.remaining();
             
-            // Lấy hash cuối cùng
-            byte[] hashBytes = md.digest();
+            while (data.hasRemaining()) {
+                int n = Math.min(data.remaining(), pieceSize - ensureCurrent());
+                data.get(current, filled, n);
+                filled += n;
+                if (filled == pieceSize) {
+                    submitPiece();
+                }
+            }
+        }
+        
+        /**
+         * Số byte đã hash
+         */
+        public long getBytesHashed() {
+            return total;
+        }
+        
+        /**
+         * Kết thúc: chờ các piece còn đang hash, trả về file hash + manifest
+         */
+        public FileDigest finish() {
+            // File rỗng vẫn có 1 piece rỗng (giống PieceManifest.compute)
+            if (filled > 0 || pieces.isEmpty()) {
+                ensureCurrent();
+                submitPiece();
+            }
             
-            return bytesToHex(hashBytes);
+            byte[][] hashes = new byte[pieces.size()][];
+            for (int i = 0; i < hashes.length; i++) {
+                hashes[i] = pieces.get(i).join();
+            }
+            return new FileDigest(bytesToHex(fileDigest.digest()), PieceManifest.of(pieceSize, total, hashes));
+        }
+        
+        /**
+         * Lấy buffer cho piece đang nhận (chờ nếu đã đủ piece đang hash)
+         * 
+         * @return Số byte đã có trong piece đang nhận
+         */
+        private int ensureCurrent() {
+            if (current == null) {
+                inFlight.acquireUninterruptibly();
+                byte[] buffer = freeBuffers.poll();
+                current = buffer != null ? buffer : new byte[pieceSize];
+                filled = 0;
+            }
+            return filled;
+        }
+        
+        private void submitPiece() {
+            byte[] buffer = current;
+            int length = filled;
+            current = null;
+            filled = 0;
             
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException("SHA-256 not found", e);
-        } catch (IOException e) {
-            throw new RuntimeException("Error reading file", e);
+            pieces.add(ForkJoinPool.commonPool().submit(() -> {
+                try {
+                    MessageDigest md = PieceManifest.newDigest();
+                    md.update(buffer, 0, length);
+                    return md.digest();
+                } finally {
+                    freeBuffers.offer(buffer);
+                    inFlight.release();
+                }
+            }));
+        }
+    }
+    
+    /**
+     * Kết quả hash 1 file: SHA-256 cả file + manifest từng piece
+     */
+    public static final class FileDigest {
+        private final String fileHash;
+        private final PieceManifest manifest;
+        
+        FileDigest(String fileHash, PieceManifest manifest) {
+            this.fileHash = fileHash;
+            this.manifest = manifest;
+        }
+        
+        /**
+         * SHA-256 cả file (hex) - giống hashFile()
+         */
+        public String getFileHash() {
+            return fileHash;
+        }
+        
+        public PieceManifest getManifest() {
+            return manifest;
+        }
+        
+        public long getSize() {
+            return manifest.getTotalSize();
         }
     }
     
@@ -136,7 +400,7 @@ public class HashUtil {
      * - Integer.toHexString(): Chuyển sang hex
      * - Thêm '0' nếu chỉ có 1 chữ số
      */
-    private static String bytesToHex(byte[] bytes) {
+    static String bytesToHex(byte[] bytes) {
         StringBuilder hexString = new StringBuilder();
         
         for (byte b : bytes) {
@@ -0,0 +1,331 @@
+package com.p2papp.filesharing.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * PieceManifest.java - Hash từng piece + Merkle root của 1 file
+ *
+ * File được chia thành các piece cố định (mặc định 1MB):
+ * - Mỗi piece có 1 hash SHA-256 riêng
+ * - Merkle root = hash gộp của mọi piece hash (cây nhị phân)
+ *
+ * Nhờ đó client kiểm tra được từng piece ngay khi nhận,
+ * piece hỏng chỉ cần tải lại piece đó thay vì cả file.
+ * Merkle root dùng để xác nhận danh sách piece hash không bị sửa.
+ */
+public class PieceManifest {
+
+    /**
+     * Kích thước piece mặc định
+     */
+    public static final int DEFAULT_PIECE_SIZE = 1024 * 1024; // 1MB
+
+    /**
+     * Số piece tối đa (file rất lớn → tăng piece size để manifest không quá to)
+     */
+    private static final int MAX_PIECES = 16384;
+
+    /**
+     * Độ dài hex của 1 hash SHA-256
+     */
+    private static final int HASH_HEX_LENGTH = 64;
+
+    private final int pieceSize;
+    private final long totalSize;
+    private final byte[][] pieceHashes;
+    private final byte[] merkleRoot;
+
+    private PieceManifest(int pieceSize, long totalSize, byte[][] pieceHashes) {
+        this.pieceSize = pieceSize;
+        this.totalSize = totalSize;
+        this.pieceHashes = pieceHashes;
+        this.merkleRoot = computeRoot(pieceHashes);
+    }
+
+    // ============================================
+    // CREATE
+    // ============================================
+
+    /**
+     * Tính manifest cho file (đọc file 1 lần, theo từng piece)
+     *
+     * @param file File cần hash
+     * @return Manifest với piece size tự chọn theo kích thước file
+     */
+    public static PieceManifest compute(File file) {
+        return compute(file, choosePieceSize(file.length()));
+    }
+
+    /**
+     * Các piece được hash song song (HashUtil.hashPieces)
+     */
+    public static PieceManifest compute(File file, int pieceSize) {
+        return HashUtil.hashPieces(file, pieceSize);
+    }
+
+    /**
+     * Manifest từ piece hash đã tính (HashUtil)
+     */
+    static PieceManifest of(int pieceSize, long totalSize, byte[][] pieceHashes) {
+        if (pieceHashes.length != pieceCount(totalSize, pieceSize)) {
+            throw new IllegalArgumentException("Expected " + pieceCount(totalSize, pieceSize) +
+                                               " pieces, got " + pieceHashes.length);
+        }
+        return new PieceManifest(pieceSize, totalSize, pieceHashes);
+    }
+
+    /**
+     * Tạo lại manifest từ dữ liệu lưu trong DB
+     *
+     * @param pieceHashesHex Các piece hash nối liền (64 ký tự hex / piece)
+     * @param expectedRoot Merkle root đã lưu (null = không kiểm tra)
+     * @return Manifest, hoặc null nếu dữ liệu không hợp lệ / không khớp root
+     */
+    public static PieceManifest parse(int pieceSize, long totalSize, String pieceHashesHex, String expectedRoot) {
+        if (pieceSize <= 0 || pieceHashesHex == null) {
+            return null;
+        }
+
+        int count = pieceCount(totalSize, pieceSize);
+        if (pieceHashesHex.length() != count * HASH_HEX_LENGTH) {
+            return null;
+        }
+
+        byte[][] hashes = new byte[count][];
+        try {
+            for (int i = 0; i < count; i++) {
+                hashes[i] = hexToBytes(pieceHashesHex.substring(i * HASH_HEX_LENGTH, (i + 1) * HASH_HEX_LENGTH));
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+
+        PieceManifest manifest = new PieceManifest(pieceSize, totalSize, hashes);
+        if (expectedRoot != null && !manifest.getMerkleRoot().equalsIgnoreCase(expectedRoot)) {
+            System.err.println("   ❌ Piece hashes do not match Merkle root");
+            return null;
+        }
+        return manifest;
+    }
+
+    /**
+     * Piece size theo kích thước file: 1MB, gấp đôi đến khi ≤ MAX_PIECES piece
+     */
+    public static int choosePieceSize(long totalSize) {
+        int size = DEFAULT_PIECE_SIZE;
+        while (pieceCount(totalSize, size) > MAX_PIECES && size < (1 << 30)) {
+            size <<= 1;
+        }
+        return size;
+    }
+
+    // ============================================
+    // VERIFY
+    // ============================================
+
+    /**
+     * Kiểm tra dữ liệu 1 piece
+     *
+     * @param index Số thứ tự piece
+     * @param data Buffer chứa piece
+     * @param off Vị trí bắt đầu trong buffer
+     * @param len Độ dài (phải đúng bằng độ dài piece)
+     * @return true nếu hash khớp
+     */
+    public boolean verifyPiece(int index, byte[] data, int off, int len) {
+        if (index < 0 || index >= pieceHashes.length || len != getPieceLength(index)) {
+            return false;
+        }
+
+        MessageDigest md = newDigest();
+        md.update(data, off, len);
+        return MessageDigest.isEqual(md.digest(), pieceHashes[index]);
+    }
+
+    /**
+     * Kiểm tra hash đã tính sẵn (VD: hash dần khi nhận stream)
+     */
+    public boolean verifyPieceHash(int index, byte[] digest) {
+        return index >= 0 && index < pieceHashes.length && MessageDigest.isEqual(digest, pieceHashes[index]);
+    }
+
+    /**
+     * Kiểm tra các piece của file trên disk
+     *
+     * @return Danh sách index các piece hỏng (rỗng = file nguyên vẹn)
+     */
+    public List<Integer> findBadPieces(File file) throws IOException {
+        List<Integer> bad = new ArrayList<>();
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            if (raf.length() < totalSize) {
+                throw new IOException("File too short: " + raf.length() + " < " + totalSize);
+            }
+
+            byte[] buffer = new byte[(int) Math.min(pieceSize, Math.max(1, totalSize))];
+            for (int i = 0; i < pieceHashes.length; i++) {
+                int length = getPieceLength(i);
+                raf.seek(getPieceOffset(i));
+                raf.readFully(buffer, 0, length);
+                if (!verifyPiece(i, buffer, 0, length)) {
+                    bad.add(i);
+                }
+            }
+        }
+
+        return bad;
+    }
+
+    /**
+     * MessageDigest mới (SHA-256) để hash dần 1 piece
+     */
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-256 not found", e);
+        }
+    }
+
+    // ============================================
+    // MERKLE TREE
+    // ============================================
+
+    /**
+     * Merkle root: hash từng cặp node, lên dần đến gốc
+     * Node lẻ cuối mỗi tầng được đưa thẳng lên tầng trên
+     */
+    private static byte[] computeRoot(byte[][] leaves) {
+        if (leaves.length == 0) {
+            return newDigest().digest();
+        }
+
+        byte[][] level = leaves;
+        MessageDigest md = newDigest();
+
+        while (level.length > 1) {
+            byte[][] parent = new byte[(level.length + 1) / 2][];
+            for (int i = 0; i < parent.length; i++) {
+                int left = i * 2;
+                if (left + 1 < level.length) {
+                    md.update(level[left]);
+                    md.update(level[left + 1]);
+                    parent[i] = md.digest();
+                } else {
+                    parent[i] = level[left];
+                }
+            }
+            level = parent;
+        }
+
+        return level[0];
+    }
+
+    // ============================================
+    // GETTERS
+    // ============================================
+
+    public int getPieceSize() {
+        return pieceSize;
+    }
+
+    public long getTotalSize() {
+        return totalSize;
+    }
+
+    public int getPieceCount() {
+        return pieceHashes.length;
+    }
+
+    public long getPieceOffset(int index) {
+        return (long) index * pieceSize;
+    }
+
+    public int getPieceLength(int index) {
+        return pieceLength(totalSize, pieceSize, index);
+    }
+
+    public String getMerkleRoot() {
+        return HashUtil.bytesToHex(merkleRoot);
+    }
+
+    /**
+     * Các piece hash nối liền thành 1 chuỗi hex (để lưu DB)
+     */
+    public String getPieceHashesHex() {
+        StringBuilder sb = new StringBuilder(pieceHashes.length * HASH_HEX_LENGTH);
+        for (byte[] hash : pieceHashes) {
+            sb.append(HashUtil.bytesToHex(hash));
+        }
+        return sb.toString();
+    }
+
+    // ============================================
+    // HELPER METHODS
+    // ============================================
+
+    static int pieceCount(long totalSize, int pieceSize) {
+        return (int) Math.max(1, (totalSize + pieceSize - 1) / pieceSize);
+    }
+
+    static int pieceLength(long totalSize, int pieceSize, int index) {
+        return (int) Math.max(0, Math.min(pieceSize, totalSize - (long) index * pieceSize));
+    }
+
+    private static byte[] hexToBytes(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        return bytes;
+    }
+
+    @Override
+    public String toString() {
+        return "PieceManifest{pieces=" + pieceHashes.length + " x " + pieceSize +
+               ", root=" + getMerkleRoot().substring(0, 16) + "...}";
+    }
+
+    // ============================================
+    // TEST
+    // ============================================
+
+    public static void main(String[] args) throws IOException {
+        System.out.println("=== PIECE MANIFEST TEST ===\n");
+
+        File temp = File.createTempFile("manifest", ".bin");
+        temp.deleteOnExit();
+        byte[] data = new byte[5 * 1024 * 1024 + 123];
+        new java.util.Random(7).nextBytes(data);
+        java.nio.file.Files.write(temp.toPath(), data);
+
+        PieceManifest manifest = compute(temp);
+        System.out.println("Manifest: " + manifest);
+
+        PieceManifest parsed = parse(manifest.getPieceSize(), manifest.getTotalSize(),
+                                     manifest.getPieceHashesHex(), manifest.getMerkleRoot());
+        System.out.println("Round trip: " + (parsed != null ? "✅" : "❌"));
+
+        System.out.println("Clean file bad pieces: " + manifest.findBadPieces(temp));
+
+        data[3 * 1024 * 1024 + 5] ^= 1;
+        java.nio.file.Files.write(temp.toPath(), data);
+        System.out.println("Corrupted piece 3 → bad pieces: " + manifest.findBadPieces(temp));
+
+        String hex = manifest.getPieceHashesHex();
+        String tampered = (hex.charAt(0) == '0' ? "1" : "0") + hex.substring(1);
+        boolean rejected = parse(manifest.getPieceSize(), manifest.getTotalSize(),
+                                 tampered, manifest.getMerkleRoot()) == null;
+        System.out.println("Tampered hashes rejected: " + (rejected ? "✅" : "❌"));
+        System.out.println("Single-piece root == file hash: " +
+            (Arrays.equals(compute(temp, data.length).merkleRoot,
+                           hexToBytes(HashUtil.hashFile(temp))) ? "✅" : "❌"));
+    }
+}
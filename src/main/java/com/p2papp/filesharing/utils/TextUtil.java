@@ -0,0 +1,144 @@
+package com.p2papp.filesharing.utils;
+
+import java.text.Normalizer;
+
+/**
+ * TextUtil.java - Tiện ích xử lý chuỗi cho tìm kiếm
+ *
+ * Chuẩn hóa tên file trước khi so sánh:
+ * - Bỏ dấu tiếng Việt (NFD + bỏ dấu kết hợp)
+ * - đ / Đ → d (NFD không tách được chữ đ)
+ * - Chữ thường
+ *
+ * VD: "Báo Cáo Đồ Án.pdf" → "bao cao do an.pdf"
+ *
+ * Và khoảng cách sửa (edit distance) có giới hạn cho tìm kiếm gần đúng.
+ */
+public class TextUtil {
+
+    /**
+     * Chuẩn hóa để tìm kiếm (bỏ dấu + chữ thường)
+     *
+     * @param s Chuỗi gốc (null → "")
+     */
+    public static String fold(String s) {
+        if (s == null) return "";
+
+        // Nhanh: chuỗi ASCII chỉ cần chữ thường
+        boolean ascii = true;
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) >= 0x80) {
+                ascii = false;
+                break;
+            }
+        }
+        if (ascii) {
+            return s.toLowerCase();
+        }
+
+        String decomposed = Normalizer.normalize(s, Normalizer.Form.NFD);
+        StringBuilder sb = new StringBuilder(decomposed.length());
+
+        for (int i = 0; i < decomposed.length(); i++) {
+            char c = decomposed.charAt(i);
+            if (Character.getType(c) == Character.NON_SPACING_MARK) {
+                continue;
+            }
+            if (c == 'đ' || c == 'Đ') {
+                c = 'd';
+            }
+            sb.append(Character.toLowerCase(c));
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * Chuẩn hóa tên file để so gần đúng: fold() + ký tự khác [a-z0-9._-] → '_',
+     * gộp nhiều '_' liền nhau, bỏ '_' ở 2 đầu
+     *
+     * VD: "Đồ Án  (final).PDF" → "do_an_final_.pdf"
+     */
+    public static String normalizeFileName(String fileName) {
+        String folded = fold(fileName);
+        StringBuilder sb = new StringBuilder(folded.length());
+
+        for (int i = 0; i < folded.length(); i++) {
+            char c = folded.charAt(i);
+            boolean keep = (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '.' || c == '-';
+            if (keep) {
+                sb.append(c);
+            } else if (sb.length() > 0 && sb.charAt(sb.length() - 1) != '_') {
+                sb.append('_');
+            }
+        }
+        while (sb.length() > 0 && sb.charAt(sb.length() - 1) == '_') {
+            sb.setLength(sb.length() - 1);
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * Levenshtein distance, dừng sớm khi chắc chắn vượt max
+     *
+     * Chỉ giữ 2 hàng DP (O(min(n, m)) bộ nhớ) và chỉ tính dải |i - j| <= max;
+     * nếu mọi ô của 1 hàng đều > max thì kết quả chắc chắn > max.
+     *
+     * @return Khoảng cách, hoặc max + 1 nếu lớn hơn max
+     */
+    public static int editDistance(String a, String b, int max) {
+        if (a.length() < b.length()) {
+            String t = a;
+            a = b;
+            b = t;
+        }
+        int n = a.length();
+        int m = b.length();
+
+        if (n - m > max) return max + 1;
+        if (m == 0) return n;
+        if (max > n) max = n;       // khoảng cách không bao giờ vượt n
+
+        char[] x = a.toCharArray();
+        char[] y = b.toCharArray();
+        int big = max + 1;
+        int[] prev = new int[m + 1];
+        int[] curr = new int[m + 1];
+        for (int j = 0; j <= m; j++) {
+            prev[j] = j <= max ? j : big;
+        }
+
+        for (int i = 1; i <= n; i++) {
+            int from = Math.max(1, i - max);
+            int to = Math.min(m, i + max);
+
+            curr[0] = i <= max ? i : big;
+            if (from > 1) curr[from - 1] = big;
+
+            char c = x[i - 1];
+            int left = curr[from - 1];
+            int diag = prev[from - 1];
+            int rowMin = curr[0];
+            for (int j = from; j <= to; j++) {
+                int up = prev[j];
+                int v = c == y[j - 1] ? diag : diag + 1;
+                if (up + 1 < v) v = up + 1;
+                if (left + 1 < v) v = left + 1;
+                curr[j] = v;
+                left = v;
+                diag = up;
+                if (v < rowMin) rowMin = v;
+            }
+            if (to < m) curr[to + 1] = big;
+
+            if (rowMin > max) return big;
+
+            int[] t = prev;
+            prev = curr;
+            curr = t;
+        }
+
+        return Math.min(prev[m], big);
+    }
+}
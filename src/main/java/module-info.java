@@ -3,6 +3,7 @@ module com.p2papp.filesharing {
     requires javafx.controls;
     requires javafx.fxml;
 requires java.sql;
+    requires java.management;
     requires mysql.connector.j;
 
    exports com.p2papp.filesharing;